@@ -54,6 +54,7 @@ import android.util.ArraySet;
 import android.util.Base64;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -232,6 +233,13 @@ public class BpfCoordinator {
     private final HashMap<IpServer, LinkedHashMap<Inet6Address, Ipv6ForwardingRule>>
             mIpv6ForwardingRules = new LinkedHashMap<>();
 
+    // Number of rules in mIpv6ForwardingRules on each upstream interface index, and from each
+    // downstream interface index to each upstream interface index. Always updated together with
+    // mIpv6ForwardingRules (see #addIpv6RuleCount and #removeIpv6RuleCount), so checking whether
+    // a rule is the first or last one on an upstream does not need to scan all the rules.
+    private final SparseIntArray mIpv6RuleCountOnUpstream = new SparseIntArray();
+    private final SparseArray<SparseIntArray> mIpv6RuleCountFromDownstream = new SparseArray<>();
+
     // Map of downstream client maps. Each of these maps represents the IPv4 clients for a given
     // downstream. Needed to build IPv4 forwarding rules when conntrack events are received.
     // Each map:
@@ -571,20 +579,14 @@ public class BpfCoordinator {
         maybeSetLimit(rule.upstreamIfindex);
 
         if (!isAnyRuleFromDownstreamToUpstream(rule.downstreamIfindex, rule.upstreamIfindex)) {
-            final int downstream = rule.downstreamIfindex;
-            final int upstream = rule.upstreamIfindex;
-            // TODO: support upstream forwarding on non-point-to-point interfaces.
-            // TODO: get the MTU from LinkProperties and update the rules when it changes.
-            if (!mBpfCoordinatorShim.startUpstreamIpv6Forwarding(downstream, upstream, rule.srcMac,
-                    NULL_MAC_ADDRESS, NULL_MAC_ADDRESS, NetworkStackConstants.ETHER_MTU)) {
-                mLog.e("Failed to enable upstream IPv6 forwarding from "
-                        + mInterfaceNames.get(downstream) + " to " + mInterfaceNames.get(upstream));
-            }
+            startUpstreamIpv6Forwarding(rule);
         }
 
         // Must update the adding rule after calling #isAnyRuleOnUpstream because it needs to
         // check if it is about adding a first rule for a given upstream.
-        rules.put(rule.address, rule);
+        final Ipv6ForwardingRule replaced = rules.put(rule.address, rule);
+        if (replaced != null) removeIpv6RuleCount(replaced);
+        addIpv6RuleCount(rule);
     }
 
     /**
@@ -605,7 +607,9 @@ public class BpfCoordinator {
         // the last rule is removed for a given upstream. If no rule is removed, return early.
         // Avoid unnecessary work on a non-existent rule which may have never been added or
         // removed already.
-        if (rules.remove(rule.address) == null) return;
+        final Ipv6ForwardingRule removed = rules.remove(rule.address);
+        if (removed == null) return;
+        removeIpv6RuleCount(removed);
 
         // Remove the downstream entry if it has no more rule.
         if (rules.isEmpty()) {
@@ -614,19 +618,34 @@ public class BpfCoordinator {
 
         // If no more rules between this upstream and downstream, stop upstream forwarding.
         if (!isAnyRuleFromDownstreamToUpstream(rule.downstreamIfindex, rule.upstreamIfindex)) {
-            final int downstream = rule.downstreamIfindex;
-            final int upstream = rule.upstreamIfindex;
-            if (!mBpfCoordinatorShim.stopUpstreamIpv6Forwarding(downstream, upstream,
-                    rule.srcMac)) {
-                mLog.e("Failed to disable upstream IPv6 forwarding from "
-                        + mInterfaceNames.get(downstream) + " to " + mInterfaceNames.get(upstream));
-            }
+            stopUpstreamIpv6Forwarding(rule);
         }
 
         // Do cleanup functionality if there is no more rule on the given upstream.
         maybeClearLimit(rule.upstreamIfindex);
     }
 
+    private void startUpstreamIpv6Forwarding(@NonNull final Ipv6ForwardingRule rule) {
+        final int downstream = rule.downstreamIfindex;
+        final int upstream = rule.upstreamIfindex;
+        // TODO: support upstream forwarding on non-point-to-point interfaces.
+        // TODO: get the MTU from LinkProperties and update the rules when it changes.
+        if (!mBpfCoordinatorShim.startUpstreamIpv6Forwarding(downstream, upstream, rule.srcMac,
+                NULL_MAC_ADDRESS, NULL_MAC_ADDRESS, NetworkStackConstants.ETHER_MTU)) {
+            mLog.e("Failed to enable upstream IPv6 forwarding from "
+                    + mInterfaceNames.get(downstream) + " to " + mInterfaceNames.get(upstream));
+        }
+    }
+
+    private void stopUpstreamIpv6Forwarding(@NonNull final Ipv6ForwardingRule rule) {
+        final int downstream = rule.downstreamIfindex;
+        final int upstream = rule.upstreamIfindex;
+        if (!mBpfCoordinatorShim.stopUpstreamIpv6Forwarding(downstream, upstream, rule.srcMac)) {
+            mLog.e("Failed to disable upstream IPv6 forwarding from "
+                    + mInterfaceNames.get(downstream) + " to " + mInterfaceNames.get(upstream));
+        }
+    }
+
     /**
      * Clear all forwarding rules for a given downstream.
      * Note that this can be only called on handler thread.
@@ -648,6 +667,12 @@ public class BpfCoordinator {
     /**
      * Update existing forwarding rules to new upstream for a given downstream.
      * Note that this can be only called on handler thread.
+     *
+     * The downstream rules are keyed by upstream interface index in the BPF map, so the rules on
+     * the new upstream are all written before the rules on the old upstream are deleted, and
+     * downstream traffic to the clients is offloaded throughout the upstream change. Upstream
+     * forwarding is keyed by downstream only, so it is switched from the old upstream to the new
+     * one with back-to-back calls once the new rules are in place.
      */
     public void tetherOffloadRuleUpdate(@NonNull final IpServer ipServer, int newUpstreamIfindex) {
         if (!isUsingBpf()) return;
@@ -656,24 +681,52 @@ public class BpfCoordinator {
                 ipServer);
         if (rules == null) return;
 
-        // Need to build a rule list because the rule map may be changed in the iteration.
-        // First remove all the old rules, then add all the new rules. This is because the upstream
-        // forwarding code in tetherOffloadRuleAdd cannot support rules on two upstreams at the
-        // same time. Deleting the rules first ensures that upstream forwarding is disabled on the
-        // old upstream when the last rule is removed from it, and re-enabled on the new upstream
-        // when the first rule is added to it.
-        // TODO: Once the IPv6 client processing code has moved from IpServer to BpfCoordinator, do
-        // something smarter.
-        final ArrayList<Ipv6ForwardingRule> rulesCopy = new ArrayList<>(rules.values());
-        for (final Ipv6ForwardingRule rule : rulesCopy) {
-            // Remove the old rule before adding the new one because the map uses the same key for
-            // both rules. Reversing the processing order causes that the new rule is removed as
-            // unexpected.
-            // TODO: Add new rule first to reduce the latency which has no rule.
-            tetherOffloadRuleRemove(ipServer, rule);
+        final ArrayList<Ipv6ForwardingRule> oldRules = new ArrayList<>();
+        for (final Ipv6ForwardingRule rule : rules.values()) {
+            if (rule.upstreamIfindex != newUpstreamIfindex) oldRules.add(rule);
+        }
+        if (oldRules.isEmpty()) return;
+
+        // Make: write the rules on the new upstream. The rules on the old upstream stay in place.
+        final ArrayList<Ipv6ForwardingRule> newRules = new ArrayList<>(oldRules.size());
+        for (final Ipv6ForwardingRule oldRule : oldRules) {
+            final Ipv6ForwardingRule newRule = oldRule.onNewUpstream(newUpstreamIfindex);
+            if (!mBpfCoordinatorShim.tetherOffloadRuleAdd(newRule)) continue;
+            maybeAddDevMap(newRule.upstreamIfindex, newRule.downstreamIfindex);
+            newRules.add(newRule);
+        }
+        // When the first rule is added to an upstream, setup the data limit.
+        if (!newRules.isEmpty()) maybeSetLimit(newUpstreamIfindex);
+
+        // Switch upstream forwarding: stop it when the last rule from the downstream to the old
+        // upstream is gone, and start it when the first rule to the new upstream is added.
+        for (final Ipv6ForwardingRule oldRule : oldRules) {
+            rules.remove(oldRule.address);
+            removeIpv6RuleCount(oldRule);
+            if (!isAnyRuleFromDownstreamToUpstream(oldRule.downstreamIfindex,
+                    oldRule.upstreamIfindex)) {
+                stopUpstreamIpv6Forwarding(oldRule);
+            }
         }
-        for (final Ipv6ForwardingRule rule : rulesCopy) {
-            tetherOffloadRuleAdd(ipServer, rule.onNewUpstream(newUpstreamIfindex));
+        for (final Ipv6ForwardingRule newRule : newRules) {
+            if (!isAnyRuleFromDownstreamToUpstream(newRule.downstreamIfindex,
+                    newRule.upstreamIfindex)) {
+                startUpstreamIpv6Forwarding(newRule);
+            }
+            rules.put(newRule.address, newRule);
+            addIpv6RuleCount(newRule);
+        }
+        if (rules.isEmpty()) mIpv6ForwardingRules.remove(ipServer);
+
+        // Break: delete the rules on the old upstream, and do the cleanup of each old upstream
+        // that has no more rules.
+        final ArraySet<Integer> oldUpstreams = new ArraySet<>();
+        for (final Ipv6ForwardingRule oldRule : oldRules) {
+            mBpfCoordinatorShim.tetherOffloadRuleRemove(oldRule);
+            oldUpstreams.add(oldRule.upstreamIfindex);
+        }
+        for (final int upstreamIfindex : oldUpstreams) {
+            maybeClearLimit(upstreamIfindex);
         }
     }
 
@@ -1776,26 +1829,41 @@ public class BpfCoordinator {
     // TODO: Rename to isAnyIpv6RuleOnUpstream and define an isAnyRuleOnUpstream method that called
     // both isAnyIpv6RuleOnUpstream and mBpfCoordinatorShim.isAnyIpv4RuleOnUpstream.
     private boolean isAnyRuleOnUpstream(int upstreamIfindex) {
-        for (LinkedHashMap<Inet6Address, Ipv6ForwardingRule> rules : mIpv6ForwardingRules
-                .values()) {
-            for (Ipv6ForwardingRule rule : rules.values()) {
-                if (upstreamIfindex == rule.upstreamIfindex) return true;
-            }
-        }
-        return false;
+        return mIpv6RuleCountOnUpstream.get(upstreamIfindex) > 0;
     }
 
     private boolean isAnyRuleFromDownstreamToUpstream(int downstreamIfindex, int upstreamIfindex) {
-        for (LinkedHashMap<Inet6Address, Ipv6ForwardingRule> rules : mIpv6ForwardingRules
-                .values()) {
-            for (Ipv6ForwardingRule rule : rules.values()) {
-                if (downstreamIfindex == rule.downstreamIfindex
-                        && upstreamIfindex == rule.upstreamIfindex) {
-                    return true;
-                }
-            }
+        final SparseIntArray counts = mIpv6RuleCountFromDownstream.get(downstreamIfindex);
+        return counts != null && counts.get(upstreamIfindex) > 0;
+    }
+
+    private void addIpv6RuleCount(@NonNull final Ipv6ForwardingRule rule) {
+        mIpv6RuleCountOnUpstream.put(rule.upstreamIfindex,
+                mIpv6RuleCountOnUpstream.get(rule.upstreamIfindex) + 1);
+        SparseIntArray counts = mIpv6RuleCountFromDownstream.get(rule.downstreamIfindex);
+        if (counts == null) {
+            counts = new SparseIntArray();
+            mIpv6RuleCountFromDownstream.put(rule.downstreamIfindex, counts);
+        }
+        counts.put(rule.upstreamIfindex, counts.get(rule.upstreamIfindex) + 1);
+    }
+
+    private void removeIpv6RuleCount(@NonNull final Ipv6ForwardingRule rule) {
+        final int count = mIpv6RuleCountOnUpstream.get(rule.upstreamIfindex) - 1;
+        if (count > 0) {
+            mIpv6RuleCountOnUpstream.put(rule.upstreamIfindex, count);
+        } else {
+            mIpv6RuleCountOnUpstream.delete(rule.upstreamIfindex);
+        }
+        final SparseIntArray counts = mIpv6RuleCountFromDownstream.get(rule.downstreamIfindex);
+        if (counts == null) return;
+        final int pairCount = counts.get(rule.upstreamIfindex) - 1;
+        if (pairCount > 0) {
+            counts.put(rule.upstreamIfindex, pairCount);
+        } else {
+            counts.delete(rule.upstreamIfindex);
+            if (counts.size() == 0) mIpv6RuleCountFromDownstream.remove(rule.downstreamIfindex);
         }
-        return false;
     }
 
     // TODO: remove the index from map while the interface has been removed because the map size
@@ -31,6 +31,7 @@ import static android.system.OsConstants.IPPROTO_TCP;
 import static android.system.OsConstants.IPPROTO_UDP;
 import static android.system.OsConstants.NETLINK_NETFILTER;
 
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doAnswer;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.staticMockMarker;
 import static com.android.net.module.util.netlink.ConntrackMessage.DYING_MASK;
@@ -1098,19 +1099,20 @@ public class BpfCoordinatorTest {
         updateStatsEntryForTetherOffloadGetAndClearStats(
                 buildTestTetherStatsParcel(ethIfIndex, 10, 20, 30, 40));
 
-        // Update the existing rules for upstream changes. The rules are removed and re-added one
-        // by one for updating upstream interface index by #tetherOffloadRuleUpdate.
+        // Update the existing rules for upstream changes. #tetherOffloadRuleUpdate adds all the
+        // rules on the new upstream before removing the rules on the old upstream, and switches
+        // upstream forwarding in between.
         coordinator.tetherOffloadRuleUpdate(mIpServer, mobileIfIndex);
-        verifyTetherOffloadRuleRemove(inOrder, ethernetRuleA);
-        verifyTetherOffloadRuleRemove(inOrder, ethernetRuleB);
-        verifyStopUpstreamIpv6Forwarding(inOrder, DOWNSTREAM_IFINDEX, DOWNSTREAM_MAC);
-        verifyTetherOffloadGetAndClearStats(inOrder, ethIfIndex);
         verifyTetherOffloadRuleAdd(inOrder, mobileRuleA);
+        verifyTetherOffloadRuleAdd(inOrder, mobileRuleB);
         verifyTetherOffloadSetInterfaceQuota(inOrder, mobileIfIndex, QUOTA_UNLIMITED,
                 true /* isInit */);
+        verifyStopUpstreamIpv6Forwarding(inOrder, DOWNSTREAM_IFINDEX, DOWNSTREAM_MAC);
         verifyStartUpstreamIpv6Forwarding(inOrder, DOWNSTREAM_IFINDEX, DOWNSTREAM_MAC,
                 mobileIfIndex);
-        verifyTetherOffloadRuleAdd(inOrder, mobileRuleB);
+        verifyTetherOffloadRuleRemove(inOrder, ethernetRuleA);
+        verifyTetherOffloadRuleRemove(inOrder, ethernetRuleB);
+        verifyTetherOffloadGetAndClearStats(inOrder, ethIfIndex);
 
         // [3] Clear all rules for a given IpServer.
         updateStatsEntryForTetherOffloadGetAndClearStats(
@@ -1133,6 +1135,57 @@ public class BpfCoordinatorTest {
                 .addEntry(buildTestEntry(STATS_PER_UID, mobileIface, 50, 60, 70, 80)));
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testTetherOffloadRuleUpdateKeepsDownstreamRules() throws Exception {
+        setupFunctioningNetdInterface();
+
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        final Integer ethIfIndex = 100;
+        final Integer mobileIfIndex = 101;
+        coordinator.addUpstreamNameToLookupTable(ethIfIndex, "eth1");
+        coordinator.addUpstreamNameToLookupTable(mobileIfIndex, "rmnet_data0");
+
+        // Track the number of downstream entries for each neighbor in the BPF map, and record the
+        // lowest count seen for any neighbor once it had a first entry.
+        final HashMap<InetAddress, Integer> entryCounts = new HashMap<>();
+        final int[] minEntryCount = { Integer.MAX_VALUE };
+        doAnswer(invocation -> {
+            final TetherDownstream6Key key = invocation.getArgument(0);
+            entryCounts.merge(InetAddress.getByAddress(key.neigh6), 1, Integer::sum);
+            return null;
+        }).when(mBpfDownstream6Map).updateEntry(any(), any());
+        doAnswer(invocation -> {
+            final TetherDownstream6Key key = invocation.getArgument(0);
+            final int count = entryCounts.merge(InetAddress.getByAddress(key.neigh6), -1,
+                    Integer::sum);
+            minEntryCount[0] = Math.min(minEntryCount[0], count);
+            return true;
+        }).when(mBpfDownstream6Map).deleteEntry(any());
+
+        coordinator.tetherOffloadRuleAdd(mIpServer,
+                buildTestForwardingRule(ethIfIndex, NEIGH_A, MAC_A));
+        coordinator.tetherOffloadRuleAdd(mIpServer,
+                buildTestForwardingRule(ethIfIndex, NEIGH_B, MAC_B));
+        coordinator.tetherOffloadRuleUpdate(mIpServer, mobileIfIndex);
+
+        // Every neighbor always had an entry while the rules moved to the new upstream.
+        assertEquals(1, minEntryCount[0]);
+        assertEquals(Integer.valueOf(1), entryCounts.get(NEIGH_A));
+        assertEquals(Integer.valueOf(1), entryCounts.get(NEIGH_B));
+        for (Ipv6ForwardingRule rule : coordinator.getForwardingRulesForTesting()
+                .get(mIpServer).values()) {
+            assertEquals(mobileIfIndex.intValue(), rule.upstreamIfindex);
+        }
+
+        // Updating to the same upstream again does nothing.
+        clearInvocations(mBpfDownstream6Map, mBpfUpstream6Map);
+        coordinator.tetherOffloadRuleUpdate(mIpServer, mobileIfIndex);
+        verifyNeverTetherOffloadRuleAdd();
+        verifyNeverTetherOffloadRuleRemove();
+        verifyNoUpstreamIpv6ForwardingChange(null);
+    }
+
     private void checkBpfDisabled() throws Exception {
         // The caller may mock the global dependencies |mDeps| which is used in
         // #makeBpfCoordinator for testing.
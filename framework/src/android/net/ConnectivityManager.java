@@ -48,6 +48,7 @@ import android.net.SocketKeepalive.Callback;
 import android.net.TetheringManager.StartTetheringCallback;
 import android.net.TetheringManager.TetheringEventCallback;
 import android.net.TetheringManager.TetheringRequest;
+import android.net.util.DnsUtils;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
@@ -88,8 +89,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -4084,22 +4085,19 @@ public class ConnectivityManager {
 
             final NetworkRequest request = getObject(message, NetworkRequest.class);
             final Network network = getObject(message, Network.class);
-            final NetworkCallback callback;
-            synchronized (sCallbacks) {
-                callback = sCallbacks.get(request);
-                if (callback == null) {
-                    Log.w(TAG,
-                            "callback not found for " + getCallbackName(message.what) + " message");
-                    return;
-                }
-                if (message.what == CALLBACK_UNAVAIL) {
-                    sCallbacks.remove(request);
-                    callback.networkRequest = ALREADY_UNREGISTERED;
-                }
+            final NetworkCallback callback = getCallbackForMessage(request, message.what);
+            if (callback == null) {
+                Log.w(TAG, "callback not found for " + getCallbackName(message.what) + " message");
+                return;
             }
             if (DBG) {
                 Log.d(TAG, getCallbackName(message.what) + " for network " + network);
             }
+            if (message.what == CALLBACK_AVAILABLE || message.what == CALLBACK_IP_CHANGED
+                    || message.what == CALLBACK_LOST) {
+                // Source address selection for DNS answers may have changed.
+                DnsUtils.invalidateSrcAddressCache(network);
+            }
 
             switch (message.what) {
                 case CALLBACK_PRECHECK: {
@@ -4148,6 +4146,29 @@ public class ConnectivityManager {
             }
         }
 
+        /**
+         * Get the callback registered for the request of a message, and unregister it if the
+         * message is the last one for the request.
+         */
+        @Nullable
+        private NetworkCallback getCallbackForMessage(@Nullable NetworkRequest request, int what) {
+            if (request == null) return null;
+            CallbackRecord record = sCallbacks.get(request.requestId);
+            if (record != null && what != CALLBACK_UNAVAIL) return record.callback;
+
+            // Callbacks can be received while the request is being registered: registration holds
+            // the lock until the callback is added to sCallbacks.
+            synchronized (sCallbacks) {
+                record = sCallbacks.get(request.requestId);
+                if (record == null) return null;
+                if (what == CALLBACK_UNAVAIL) {
+                    sCallbacks.remove(request.requestId);
+                    record.callback.networkRequest = ALREADY_UNREGISTERED;
+                }
+                return record.callback;
+            }
+        }
+
         private <T> T getObject(Message msg, Class<T> c) {
             return (T) msg.getData().getParcelable(c.getSimpleName());
         }
@@ -4162,7 +4183,23 @@ public class ConnectivityManager {
         }
     }
 
-    private static final HashMap<NetworkRequest, NetworkCallback> sCallbacks = new HashMap<>();
+    /** A registered {@link NetworkCallback}, with its request. */
+    private static class CallbackRecord {
+        @NonNull
+        final NetworkRequest request;
+        @NonNull
+        final NetworkCallback callback;
+
+        CallbackRecord(@NonNull NetworkRequest request, @NonNull NetworkCallback callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+    }
+
+    // Registered callbacks by request ID. Callback handlers look callbacks up without locking;
+    // registration and unregistration are serialized by synchronizing on sCallbacks.
+    private static final ConcurrentHashMap<Integer, CallbackRecord> sCallbacks =
+            new ConcurrentHashMap<>();
     private static CallbackHandler sCallbackHandler;
 
     private NetworkRequest sendRequestForNetwork(int asUid, NetworkCapabilities need,
@@ -4196,7 +4233,7 @@ public class ConnectivityManager {
                             legacyType, callbackFlags, callingPackageName, getAttributionTag());
                 }
                 if (request != null) {
-                    sCallbacks.put(request, callback);
+                    sCallbacks.put(request.requestId, new CallbackRecord(request, callback));
                 }
                 callback.networkRequest = request;
             }
@@ -4854,9 +4891,9 @@ public class ConnectivityManager {
                 Log.d(TAG, "NetworkCallback was already unregistered");
                 return;
             }
-            for (Map.Entry<NetworkRequest, NetworkCallback> e : sCallbacks.entrySet()) {
-                if (e.getValue() == networkCallback) {
-                    reqs.add(e.getKey());
+            for (CallbackRecord record : sCallbacks.values()) {
+                if (record.callback == networkCallback) {
+                    reqs.add(record.request);
                 }
             }
             // TODO: throw exception if callback was registered more than once (http://b/20701525).
@@ -4867,7 +4904,7 @@ public class ConnectivityManager {
                     throw e.rethrowFromSystemServer();
                 }
                 // Only remove mapping if rpc was successful.
-                sCallbacks.remove(r);
+                sCallbacks.remove(r.requestId);
             }
             networkCallback.networkRequest = ALREADY_UNREGISTERED;
         }
@@ -5903,6 +5940,37 @@ public class ConnectivityManager {
         }
     }
 
+    /**
+     * Sets firewall rules for the specified UIDs on the specified chain.
+     *
+     * This is equivalent to calling {@link #setUidFirewallRule} for each UID in order, but applies
+     * all the rules in a single call.
+     *
+     * @param chain target chain.
+     * @param uids uids to allow/deny.
+     * @param rules for each uid at the same index, firewall rule to allow/drop packets.
+     * @throws IllegalStateException if updating firewall rules failed.
+     * @throws IllegalArgumentException if {@code uids} and {@code rules} have different lengths,
+     *         or if any of {@code rules} is not a valid rule.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    @RequiresPermission(anyOf = {
+            android.Manifest.permission.NETWORK_SETTINGS,
+            android.Manifest.permission.NETWORK_STACK,
+            NetworkStack.PERMISSION_MAINLINE_NETWORK_STACK
+    })
+    public void setUidFirewallRules(@FirewallChain final int chain, @NonNull final int[] uids,
+            @NonNull final int[] rules) {
+        Objects.requireNonNull(uids);
+        Objects.requireNonNull(rules);
+        try {
+            mService.setUidFirewallRules(chain, uids, rules);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
     /**
      * Enables or disables the specified firewall chain.
      *
@@ -33,11 +33,15 @@ import android.annotation.IntDef;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.MessageQueue;
 import android.system.ErrnoException;
+import android.util.ArraySet;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.net.module.util.DnsPacket;
 
 import java.io.FileDescriptor;
@@ -46,7 +50,10 @@ import java.lang.annotation.RetentionPolicy;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executor;
 
 /**
@@ -110,7 +117,14 @@ public final class DnsResolver {
 
     private static final int NETID_UNSET = 0;
 
-    private static final DnsResolver sInstance = new DnsResolver();
+    // How long the dedicated thread is kept once no query is in flight, so that queries sent in
+    // quick succession do not each start and stop a thread.
+    private static final long RESOLVER_THREAD_IDLE_TIMEOUT_MS = 5_000;
+
+    private static final DnsResolver sInstance = new DnsResolver(false /* dedicatedThread */);
+
+    private static final DnsResolver sDedicatedThreadInstance =
+            new DnsResolver(true /* dedicatedThread */);
 
     /**
      * Get instance for DnsResolver
@@ -119,7 +133,149 @@ public final class DnsResolver {
         return sInstance;
     }
 
-    private DnsResolver() {}
+    /**
+     * Get an instance of DnsResolver that waits for answers on a dedicated background thread.
+     *
+     * The instance returned by {@link #getInstance} waits for answers on the main thread, which
+     * wakes up the main thread every time an answer arrives, before the callback is posted to the
+     * executor. This instance instead waits for answers on a thread shared by all its queries, and
+     * answers that arrive together are posted to their executor in a single task. The thread is
+     * started by the first query and stops once no query has been in flight for a few seconds.
+     *
+     * @hide
+     */
+    public static @NonNull DnsResolver getDedicatedThreadInstance() {
+        return sDedicatedThreadInstance;
+    }
+
+    /**
+     * Thread on which the fds of the queries of the dedicated thread instance are monitored.
+     */
+    private static class ResolverThread {
+        private final HandlerThread mThread;
+        private final Handler mHandler;
+        // Answers that were received in the current iteration of the looper, and are not yet
+        // posted to their executor. Only accessed on the thread.
+        private final Map<Executor, List<Runnable>> mPendingAnswers = new IdentityHashMap<>();
+
+        ResolverThread() {
+            mThread = new HandlerThread(TAG);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+
+        MessageQueue getQueue() {
+            return mThread.getLooper().getQueue();
+        }
+
+        void postDelayed(@NonNull Runnable r, long delayMs) {
+            mHandler.postDelayed(r, delayMs);
+        }
+
+        void removeCallbacks(@NonNull Runnable r) {
+            mHandler.removeCallbacks(r);
+        }
+
+        /**
+         * Posts the delivery of an answer to the executor of the query. Must be called on the
+         * thread.
+         *
+         * All fd events found by one poll of the looper are processed before any message, so
+         * answers are accumulated until the looper next processes messages and then posted
+         * together, one task per executor.
+         */
+        void postAnswer(@NonNull Executor executor, @NonNull Runnable answer) {
+            if (mPendingAnswers.isEmpty()) mHandler.post(this::flushPendingAnswers);
+            List<Runnable> answers = mPendingAnswers.get(executor);
+            if (answers == null) {
+                answers = new ArrayList<>();
+                mPendingAnswers.put(executor, answers);
+            }
+            answers.add(answer);
+        }
+
+        private void flushPendingAnswers() {
+            for (Map.Entry<Executor, List<Runnable>> entry : mPendingAnswers.entrySet()) {
+                final List<Runnable> answers = entry.getValue();
+                if (answers.size() == 1) {
+                    entry.getKey().execute(answers.get(0));
+                    continue;
+                }
+                entry.getKey().execute(() -> {
+                    for (Runnable answer : answers) answer.run();
+                });
+            }
+            mPendingAnswers.clear();
+        }
+
+        /** Stops the thread once the answers already posted are flushed. */
+        void quit() {
+            mThread.quitSafely();
+        }
+    }
+
+    // Whether this instance monitors query fds on a dedicated thread rather than the main thread.
+    private final boolean mUseDedicatedThread;
+
+    private final Object mThreadLock = new Object();
+
+    // The dedicated thread, or null if no query is in flight.
+    @GuardedBy("mThreadLock")
+    @Nullable
+    private ResolverThread mResolverThread;
+
+    // The fds of the in-flight queries that are monitored on the dedicated thread.
+    @GuardedBy("mThreadLock")
+    private final Set<FileDescriptor> mRegisteredFds = new ArraySet<>();
+
+    // Posted to the dedicated thread when the last in-flight query completes.
+    private final Runnable mQuitIdleResolverThread = this::quitIdleResolverThread;
+
+    private DnsResolver(boolean dedicatedThread) {
+        mUseDedicatedThread = dedicatedThread;
+    }
+
+    /**
+     * Gets the dedicated thread to monitor the given query fd on, starting it if needed.
+     */
+    @NonNull
+    private ResolverThread acquireResolverThread(@NonNull FileDescriptor queryfd) {
+        synchronized (mThreadLock) {
+            if (mResolverThread == null) {
+                mResolverThread = new ResolverThread();
+            } else {
+                mResolverThread.removeCallbacks(mQuitIdleResolverThread);
+            }
+            mRegisteredFds.add(queryfd);
+            return mResolverThread;
+        }
+    }
+
+    /**
+     * Stops monitoring the given query fd on the dedicated thread, and schedules the thread to
+     * stop if no query is in flight any more. Does nothing if the fd is not monitored any more,
+     * for example if the query was cancelled after its answer arrived.
+     */
+    private void releaseResolverThread(@NonNull FileDescriptor queryfd) {
+        synchronized (mThreadLock) {
+            if (!mRegisteredFds.remove(queryfd) || !mRegisteredFds.isEmpty()) return;
+            mResolverThread.postDelayed(mQuitIdleResolverThread,
+                    RESOLVER_THREAD_IDLE_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Stops the dedicated thread if no query was sent since the last one completed. Runs on the
+     * thread.
+     */
+    private void quitIdleResolverThread() {
+        synchronized (mThreadLock) {
+            // A query may have been sent after this was posted, but before it could be removed.
+            if (mResolverThread == null || !mRegisteredFds.isEmpty()) return;
+            mResolverThread.quit();
+            mResolverThread = null;
+        }
+    }
 
     /**
      * Base interface for answer callbacks
@@ -476,8 +632,10 @@ public final class DnsResolver {
     private void registerFDListener(@NonNull Executor executor,
             @NonNull FileDescriptor queryfd, @NonNull Callback<? super byte[]> answerCallback,
             @Nullable CancellationSignal cancellationSignal, @NonNull Object lock) {
-        final MessageQueue mainThreadMessageQueue = Looper.getMainLooper().getQueue();
-        mainThreadMessageQueue.addOnFileDescriptorEventListener(
+        final ResolverThread thread = mUseDedicatedThread ? acquireResolverThread(queryfd) : null;
+        final MessageQueue messageQueue =
+                (thread == null) ? Looper.getMainLooper().getQueue() : thread.getQueue();
+        messageQueue.addOnFileDescriptorEventListener(
                 queryfd,
                 FD_EVENTS,
                 (fd, events) -> {
@@ -488,9 +646,9 @@ public final class DnsResolver {
                     // and the fd is closed before the second request starts, which might return
                     // the same fd for the second request. By that time, the looper must have
                     // unregistered the fd, otherwise another event listener can't be registered.
-                    mainThreadMessageQueue.removeOnFileDescriptorEventListener(fd);
+                    messageQueue.removeOnFileDescriptorEventListener(fd);
 
-                    executor.execute(() -> {
+                    final Runnable answer = () -> {
                         DnsResponse resp = null;
                         ErrnoException exception = null;
                         synchronized (lock) {
@@ -509,7 +667,15 @@ public final class DnsResolver {
                             return;
                         }
                         answerCallback.onAnswer(resp.answerbuf, resp.rcode);
-                    });
+                    };
+                    if (thread == null) {
+                        executor.execute(answer);
+                    } else {
+                        // Post the answer before releasing the thread, so that the answer is
+                        // delivered even if the thread stops.
+                        thread.postAnswer(executor, answer);
+                        releaseResolverThread(queryfd);
+                    }
 
                     // The file descriptor has already been unregistered, so it does not really
                     // matter what is returned here. In spirit 0 (meaning "unregister this FD")
@@ -521,7 +687,16 @@ public final class DnsResolver {
 
     private void cancelQuery(@NonNull FileDescriptor queryfd) {
         if (!queryfd.valid()) return;
-        Looper.getMainLooper().getQueue().removeOnFileDescriptorEventListener(queryfd);
+        if (mUseDedicatedThread) {
+            synchronized (mThreadLock) {
+                if (mRegisteredFds.contains(queryfd)) {
+                    mResolverThread.getQueue().removeOnFileDescriptorEventListener(queryfd);
+                    releaseResolverThread(queryfd);
+                }
+            }
+        } else {
+            Looper.getMainLooper().getQueue().removeOnFileDescriptorEventListener(queryfd);
+        }
         resNetworkCancel(queryfd);  // Closes fd, marks it invalid.
     }
 
@@ -23,6 +23,7 @@ import android.app.compat.CompatChanges;
 import android.compat.annotation.ChangeId;
 import android.compat.annotation.EnabledAfter;
 import android.compat.annotation.UnsupportedAppUsage;
+import android.os.BadParcelableException;
 import android.os.Build;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -1722,6 +1723,12 @@ public final class LinkProperties implements Parcelable {
      * Implement the Parcelable interface.
      */
     public void writeToParcel(Parcel dest, int flags) {
+        final int version = NetworkStateParcelFormat.getWriteVersion();
+        dest.writeInt(version);
+        if (version == NetworkStateParcelFormat.VERSION_COMPACT) {
+            writeCompactToParcel(dest, flags);
+            return;
+        }
         dest.writeString(getInterfaceName());
         dest.writeInt(mLinkAddresses.size());
         for (LinkAddress linkAddress : mLinkAddresses) {
@@ -1758,6 +1765,120 @@ public final class LinkProperties implements Parcelable {
         dest.writeParcelable(mParcelSensitiveFields ? mCaptivePortalData : null, 0);
     }
 
+    // Values written for the interface name of each route in the compact parcel format. Routes
+    // are almost always on the interface of the link, whose name is not repeated for each route.
+    private static final int PARCEL_ROUTE_IFACE_NULL = 0;
+    private static final int PARCEL_ROUTE_IFACE_LINK = 1;
+    private static final int PARCEL_ROUTE_IFACE_OTHER = 2;
+
+    /**
+     * Write the compact parcel format: addresses, prefixes and routes are written inline instead
+     * of as parcelables, route interface names are not repeated, and stacked links are written
+     * recursively in the same format.
+     */
+    private void writeCompactToParcel(Parcel dest, int flags) {
+        dest.writeString(mIfaceName);
+        dest.writeInt(mLinkAddresses.size());
+        for (LinkAddress linkAddress : mLinkAddresses) {
+            linkAddress.writeToParcel(dest, flags);
+        }
+        writeAddresses(dest, mDnses);
+        writeAddresses(dest, mValidatedPrivateDnses);
+        dest.writeBoolean(mUsePrivateDns);
+        dest.writeString(mPrivateDnsServerName);
+        writeAddresses(dest, mPcscfs);
+        dest.writeString(mDomains);
+        writeAddress(dest, mDhcpServerAddress);
+        dest.writeInt(mMtu);
+        dest.writeString(mTcpBufferSizes);
+        dest.writeInt(mRoutes.size());
+        for (RouteInfo route : mRoutes) {
+            route.getDestination().writeToParcel(dest, flags);
+            writeAddress(dest, route.getGateway());
+            final String iface = route.getInterface();
+            if (iface == null) {
+                dest.writeInt(PARCEL_ROUTE_IFACE_NULL);
+            } else if (iface.equals(mIfaceName)) {
+                dest.writeInt(PARCEL_ROUTE_IFACE_LINK);
+            } else {
+                dest.writeInt(PARCEL_ROUTE_IFACE_OTHER);
+                dest.writeString(iface);
+            }
+            dest.writeInt(route.getType());
+            dest.writeInt(route.getMtu());
+        }
+        dest.writeTypedObject(mHttpProxy, flags);
+        dest.writeTypedObject(mNat64Prefix, flags);
+        dest.writeInt(mStackedLinks.size());
+        for (LinkProperties stacked : mStackedLinks.values()) {
+            stacked.writeCompactToParcel(dest, flags);
+        }
+        dest.writeBoolean(mWakeOnLanSupported);
+        dest.writeTypedObject(mParcelSensitiveFields ? mCaptivePortalApiUrl : null, flags);
+        dest.writeTypedObject(mParcelSensitiveFields ? mCaptivePortalData : null, flags);
+    }
+
+    private static LinkProperties readCompactFromParcel(Parcel in) {
+        final LinkProperties netProp = new LinkProperties();
+        final String iface = in.readString();
+        if (iface != null) {
+            netProp.setInterfaceName(iface);
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            netProp.addLinkAddress(LinkAddress.CREATOR.createFromParcel(in));
+        }
+        try {
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                netProp.addDnsServer(readAddress(in));
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                netProp.addValidatedPrivateDnsServer(readAddress(in));
+            }
+            netProp.setUsePrivateDns(in.readBoolean());
+            netProp.setPrivateDnsServerName(in.readString());
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                netProp.addPcscfServer(readAddress(in));
+            }
+            netProp.setDomains(in.readString());
+            netProp.setDhcpServerAddress((Inet4Address) readAddress(in));
+            netProp.setMtu(in.readInt());
+            netProp.setTcpBufferSizes(in.readString());
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final IpPrefix dest = IpPrefix.CREATOR.createFromParcel(in);
+                final InetAddress gateway = readAddress(in);
+                final int ifaceType = in.readInt();
+                final String routeIface;
+                if (ifaceType == PARCEL_ROUTE_IFACE_LINK) {
+                    routeIface = iface;
+                } else if (ifaceType == PARCEL_ROUTE_IFACE_OTHER) {
+                    routeIface = in.readString();
+                } else {
+                    routeIface = null;
+                }
+                final int type = in.readInt();
+                netProp.addRoute(new RouteInfo(dest, gateway, routeIface, type, in.readInt()));
+            }
+        } catch (UnknownHostException e) {
+            // Only addresses of valid length are written.
+            throw new BadParcelableException(e);
+        }
+        netProp.setHttpProxy(in.readTypedObject(ProxyInfo.CREATOR));
+        netProp.setNat64Prefix(in.readTypedObject(IpPrefix.CREATOR));
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            netProp.addStackedLink(readCompactFromParcel(in));
+        }
+        netProp.setWakeOnLanSupported(in.readBoolean());
+        netProp.setCaptivePortalApiUrl(in.readTypedObject(Uri.CREATOR));
+        netProp.setCaptivePortalData(in.readTypedObject(CaptivePortalData.CREATOR));
+        return netProp;
+    }
+
     private static void writeAddresses(@NonNull Parcel dest, @NonNull List<InetAddress> list) {
         dest.writeInt(list.size());
         for (InetAddress d : list) {
@@ -1796,6 +1917,11 @@ public final class LinkProperties implements Parcelable {
     public static final @android.annotation.NonNull Creator<LinkProperties> CREATOR =
         new Creator<LinkProperties>() {
             public LinkProperties createFromParcel(Parcel in) {
+                final int version = NetworkStateParcelFormat.checkVersion(in.readInt(),
+                        "LinkProperties");
+                if (version == NetworkStateParcelFormat.VERSION_COMPACT) {
+                    return readCompactFromParcel(in);
+                }
                 LinkProperties netProp = new LinkProperties();
 
                 String iface = in.readString();
@@ -48,6 +48,7 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Representation of the capabilities of an active network. Instances are
@@ -146,6 +147,30 @@ public final class NetworkCapabilities implements Parcelable {
      */
     private String mRequestorPackageName;
 
+    // Source of generation numbers. Shared by all instances, so that two states of any
+    // NetworkCapabilities objects never have the same generation.
+    private static final AtomicLong sNextGeneration = new AtomicLong(0);
+
+    // Changes every time this object is mutated. Not parceled, and not part of equals/hashCode.
+    private long mGeneration;
+
+    private void onMutated() {
+        mGeneration = sNextGeneration.incrementAndGet();
+    }
+
+    /**
+     * Returns a number that changes every time this object is mutated.
+     *
+     * Generations are unique across all instances in the process, so callers can cache results
+     * computed from a NetworkCapabilities object and know that they are still valid as long as
+     * the object has the same generation. Copies and unparceled objects get a new generation.
+     *
+     * @hide
+     */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
     /**
      * Enterprise capability identifier 1. It will be used to uniquely identify specific
      * enterprise network.
@@ -279,6 +304,7 @@ public final class NetworkCapabilities implements Parcelable {
         mSubIds = new ArraySet<>();
         mUnderlyingNetworks = null;
         mEnterpriseId = 0;
+        onMutated();
     }
 
     /**
@@ -313,6 +339,7 @@ public final class NetworkCapabilities implements Parcelable {
         // necessary.
         mUnderlyingNetworks = nc.mUnderlyingNetworks;
         mEnterpriseId = nc.mEnterpriseId;
+        onMutated();
     }
 
     /**
@@ -711,6 +738,7 @@ public final class NetworkCapabilities implements Parcelable {
         mNetworkCapabilities |= 1L << capability;
         // remove from forbidden capability list
         mForbiddenNetworkCapabilities &= ~(1L << capability);
+        onMutated();
         return this;
     }
 
@@ -731,6 +759,7 @@ public final class NetworkCapabilities implements Parcelable {
         checkValidCapability(capability);
         mForbiddenNetworkCapabilities |= 1L << capability;
         mNetworkCapabilities &= ~(1L << capability);  // remove from requested capabilities
+        onMutated();
     }
 
     /**
@@ -745,6 +774,7 @@ public final class NetworkCapabilities implements Parcelable {
         checkValidCapability(capability);
         final long mask = ~(1L << capability);
         mNetworkCapabilities &= mask;
+        onMutated();
         return this;
     }
 
@@ -759,6 +789,7 @@ public final class NetworkCapabilities implements Parcelable {
     public @NonNull NetworkCapabilities removeForbiddenCapability(@NetCapability int capability) {
         checkValidCapability(capability);
         mForbiddenNetworkCapabilities &= ~(1L << capability);
+        onMutated();
         return this;
     }
 
@@ -807,6 +838,7 @@ public final class NetworkCapabilities implements Parcelable {
             @NetCapability int[] forbiddenCapabilities) {
         mNetworkCapabilities = NetworkCapabilitiesUtils.packBits(capabilities);
         mForbiddenNetworkCapabilities = NetworkCapabilitiesUtils.packBits(forbiddenCapabilities);
+        onMutated();
     }
 
     /**
@@ -831,6 +863,7 @@ public final class NetworkCapabilities implements Parcelable {
             @EnterpriseId int enterpriseId) {
         checkValidEnterpriseId(enterpriseId);
         mEnterpriseId |= 1 << enterpriseId;
+        onMutated();
         return this;
     }
 
@@ -847,6 +880,7 @@ public final class NetworkCapabilities implements Parcelable {
         checkValidEnterpriseId(enterpriseId);
         final int mask = ~(1 << enterpriseId);
         mEnterpriseId &= mask;
+        onMutated();
         return this;
     }
 
@@ -860,6 +894,7 @@ public final class NetworkCapabilities implements Parcelable {
     public void setUnderlyingNetworks(@Nullable List<Network> networks) {
         mUnderlyingNetworks =
                 (networks == null) ? null : Collections.unmodifiableList(new ArrayList<>(networks));
+        onMutated();
     }
 
     /**
@@ -1058,6 +1093,7 @@ public final class NetworkCapabilities implements Parcelable {
         mSignalStrength = originalSignalStrength;
         mTransportInfo = originalTransportInfo;
         mAllowedUids.addAll(originalAllowedUids);
+        onMutated();
 
         // Only retain the owner and administrator UIDs if they match the app registering the remote
         // caller that registered the network.
@@ -1190,6 +1226,7 @@ public final class NetworkCapabilities implements Parcelable {
     public @NonNull NetworkCapabilities addTransportType(@Transport int transportType) {
         checkValidTransportType(transportType);
         mTransportTypes |= 1 << transportType;
+        onMutated();
         setNetworkSpecifier(mNetworkSpecifier); // used for exception checking
         return this;
     }
@@ -1204,6 +1241,7 @@ public final class NetworkCapabilities implements Parcelable {
     public @NonNull NetworkCapabilities removeTransportType(@Transport int transportType) {
         checkValidTransportType(transportType);
         mTransportTypes &= ~(1 << transportType);
+        onMutated();
         setNetworkSpecifier(mNetworkSpecifier); // used for exception checking
         return this;
     }
@@ -1243,6 +1281,7 @@ public final class NetworkCapabilities implements Parcelable {
      */
     public void setTransportTypes(@Transport int[] transportTypes) {
         mTransportTypes = NetworkCapabilitiesUtils.packBits(transportTypes);
+        onMutated();
     }
 
     /**
@@ -1313,6 +1352,7 @@ public final class NetworkCapabilities implements Parcelable {
      */
     public @NonNull NetworkCapabilities setOwnerUid(final int uid) {
         mOwnerUid = uid;
+        onMutated();
         return this;
     }
 
@@ -1402,6 +1442,7 @@ public final class NetworkCapabilities implements Parcelable {
     @NonNull
     public NetworkCapabilities setAdministratorUids(@NonNull final int[] administratorUids) {
         mAdministratorUids = Arrays.copyOf(administratorUids, administratorUids.length);
+        onMutated();
         Arrays.sort(mAdministratorUids);
         for (int i = 0; i < mAdministratorUids.length - 1; i++) {
             if (mAdministratorUids[i] >= mAdministratorUids[i + 1]) {
@@ -1467,6 +1508,7 @@ public final class NetworkCapabilities implements Parcelable {
      */
     public @NonNull NetworkCapabilities setLinkUpstreamBandwidthKbps(int upKbps) {
         mLinkUpBandwidthKbps = upKbps;
+        onMutated();
         return this;
     }
 
@@ -1491,6 +1533,7 @@ public final class NetworkCapabilities implements Parcelable {
      */
     public @NonNull NetworkCapabilities setLinkDownstreamBandwidthKbps(int downKbps) {
         mLinkDownBandwidthKbps = downKbps;
+        onMutated();
         return this;
     }
 
@@ -1553,6 +1596,7 @@ public final class NetworkCapabilities implements Parcelable {
         }
 
         mNetworkSpecifier = networkSpecifier;
+        onMutated();
 
         return this;
     }
@@ -1567,6 +1611,7 @@ public final class NetworkCapabilities implements Parcelable {
      */
     public @NonNull NetworkCapabilities setTransportInfo(@NonNull TransportInfo transportInfo) {
         mTransportInfo = transportInfo;
+        onMutated();
         return this;
     }
 
@@ -1634,6 +1679,7 @@ public final class NetworkCapabilities implements Parcelable {
      */
     public @NonNull NetworkCapabilities setSignalStrength(int signalStrength) {
         mSignalStrength = signalStrength;
+        onMutated();
         return this;
     }
 
@@ -1708,6 +1754,7 @@ public final class NetworkCapabilities implements Parcelable {
     public @NonNull NetworkCapabilities setSingleUid(int uid) {
         mUids = new ArraySet<>(1);
         mUids.add(new UidRange(uid, uid));
+        onMutated();
         return this;
     }
 
@@ -1718,6 +1765,7 @@ public final class NetworkCapabilities implements Parcelable {
      */
     public @NonNull NetworkCapabilities setUids(@Nullable Set<Range<Integer>> uids) {
         mUids = UidRange.fromIntRanges(uids);
+        onMutated();
         return this;
     }
 
@@ -1858,6 +1906,7 @@ public final class NetworkCapabilities implements Parcelable {
         Objects.requireNonNull(uids);
         mAllowedUids.clear();
         mAllowedUids.addAll(uids);
+        onMutated();
     }
 
     /**
@@ -1921,6 +1970,7 @@ public final class NetworkCapabilities implements Parcelable {
      */
     public @NonNull NetworkCapabilities setSSID(@Nullable String ssid) {
         mSSID = ssid;
+        onMutated();
         return this;
     }
 
@@ -1984,6 +2034,79 @@ public final class NetworkCapabilities implements Parcelable {
         return satisfiedByNetworkCapabilities(nc, false);
     }
 
+    /** @hide */
+    public static final int MATCH_CONSTRAINT_SPECIFIER = 1 << 0;
+    /** @hide */
+    public static final int MATCH_CONSTRAINT_ENTERPRISE_ID = 1 << 1;
+    /** @hide */
+    public static final int MATCH_CONSTRAINT_SIGNAL_STRENGTH = 1 << 2;
+    /** @hide */
+    public static final int MATCH_CONSTRAINT_UIDS = 1 << 3;
+    /** @hide */
+    public static final int MATCH_CONSTRAINT_SSID = 1 << 4;
+    /** @hide */
+    public static final int MATCH_CONSTRAINT_REQUESTOR = 1 << 5;
+    /** @hide */
+    public static final int MATCH_CONSTRAINT_SUBSCRIPTION_IDS = 1 << 6;
+
+    /**
+     * Returns a bitmask of MATCH_CONSTRAINT_* values describing which fields of this object
+     * can cause {@link #satisfiedByNetworkCapabilities} to fail, in addition to the capability,
+     * transport and bandwidth fields which are always checked.
+     *
+     * Fields that are not constrained always satisfy any network, so the result can be passed to
+     * {@link #satisfiedByNetworkCapabilities(NetworkCapabilities, int)} to skip their checks.
+     * The result is only valid as long as {@link #getGeneration} does not change.
+     *
+     * @hide
+     */
+    public int getMatchConstraints() {
+        int constraints = 0;
+        if (mNetworkSpecifier != null) constraints |= MATCH_CONSTRAINT_SPECIFIER;
+        if (mEnterpriseId != 0) constraints |= MATCH_CONSTRAINT_ENTERPRISE_ID;
+        if (mSignalStrength != SIGNAL_STRENGTH_UNSPECIFIED) {
+            constraints |= MATCH_CONSTRAINT_SIGNAL_STRENGTH;
+        }
+        if (mUids != null) constraints |= MATCH_CONSTRAINT_UIDS;
+        if (mSSID != null) constraints |= MATCH_CONSTRAINT_SSID;
+        if (mRequestorUid != Process.INVALID_UID) constraints |= MATCH_CONSTRAINT_REQUESTOR;
+        if (!mSubIds.isEmpty()) constraints |= MATCH_CONSTRAINT_SUBSCRIPTION_IDS;
+        return constraints;
+    }
+
+    /**
+     * Equivalent to {@link #satisfiedByNetworkCapabilities(NetworkCapabilities)}, but skips the
+     * checks of fields that are not present in {@code constraints}.
+     *
+     * When only capabilities and transports are constrained, which is the case for most
+     * requests, this is a handful of mask operations.
+     *
+     * @param nc the {@code NetworkCapabilities} that may or may not satisfy our requirements.
+     * @param constraints the result of {@link #getMatchConstraints} for the current generation
+     *                    of this object.
+     * @hide
+     */
+    public boolean satisfiedByNetworkCapabilities(@Nullable NetworkCapabilities nc,
+            int constraints) {
+        if (nc == null
+                || !satisfiedByNetCapabilities(nc, false /* onlyImmutable */)
+                || !satisfiedByTransportTypes(nc)
+                || !satisfiedByLinkBandwidths(nc)) {
+            return false;
+        }
+        if (constraints == 0) return true;
+        return ((constraints & MATCH_CONSTRAINT_SPECIFIER) == 0 || satisfiedBySpecifier(nc))
+                && ((constraints & MATCH_CONSTRAINT_ENTERPRISE_ID) == 0
+                        || satisfiedByEnterpriseCapabilitiesId(nc))
+                && ((constraints & MATCH_CONSTRAINT_SIGNAL_STRENGTH) == 0
+                        || satisfiedBySignalStrength(nc))
+                && ((constraints & MATCH_CONSTRAINT_UIDS) == 0 || satisfiedByUids(nc))
+                && ((constraints & MATCH_CONSTRAINT_SSID) == 0 || satisfiedBySSID(nc))
+                && ((constraints & MATCH_CONSTRAINT_REQUESTOR) == 0 || satisfiedByRequestor(nc))
+                && ((constraints & MATCH_CONSTRAINT_SUBSCRIPTION_IDS) == 0
+                        || satisfiedBySubscriptionIds(nc));
+    }
+
     /**
      * Check if our immutable requirements are satisfied by the given {@code NetworkCapabilities}.
      *
@@ -2112,8 +2235,33 @@ public final class NetworkCapabilities implements Parcelable {
         }
     }
 
+    // Bits of the field mask of the compact parcel format, set when the field does not have the
+    // value it has after clearAll().
+    private static final int PARCEL_FIELD_LINK_UP_BANDWIDTH = 1 << 0;
+    private static final int PARCEL_FIELD_LINK_DOWN_BANDWIDTH = 1 << 1;
+    private static final int PARCEL_FIELD_NETWORK_SPECIFIER = 1 << 2;
+    private static final int PARCEL_FIELD_TRANSPORT_INFO = 1 << 3;
+    private static final int PARCEL_FIELD_SIGNAL_STRENGTH = 1 << 4;
+    private static final int PARCEL_FIELD_UIDS = 1 << 5;
+    private static final int PARCEL_FIELD_ALLOWED_UIDS = 1 << 6;
+    private static final int PARCEL_FIELD_SSID = 1 << 7;
+    private static final int PARCEL_FIELD_PRIVATE_DNS_BROKEN = 1 << 8;
+    private static final int PARCEL_FIELD_ADMINISTRATOR_UIDS = 1 << 9;
+    private static final int PARCEL_FIELD_OWNER_UID = 1 << 10;
+    private static final int PARCEL_FIELD_REQUESTOR_UID = 1 << 11;
+    private static final int PARCEL_FIELD_REQUESTOR_PACKAGE_NAME = 1 << 12;
+    private static final int PARCEL_FIELD_SUB_IDS = 1 << 13;
+    private static final int PARCEL_FIELD_UNDERLYING_NETWORKS = 1 << 14;
+    private static final int PARCEL_FIELD_ENTERPRISE_ID = 1 << 15;
+
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        final int version = NetworkStateParcelFormat.getWriteVersion();
+        dest.writeInt(version);
+        if (version == NetworkStateParcelFormat.VERSION_COMPACT) {
+            writeCompactToParcel(dest, flags);
+            return;
+        }
         dest.writeLong(mNetworkCapabilities);
         dest.writeLong(mForbiddenNetworkCapabilities);
         dest.writeLong(mTransportTypes);
@@ -2135,10 +2283,150 @@ public final class NetworkCapabilities implements Parcelable {
         dest.writeInt(mEnterpriseId);
     }
 
+    private int getParcelFieldMask() {
+        int mask = 0;
+        if (mLinkUpBandwidthKbps != LINK_BANDWIDTH_UNSPECIFIED) {
+            mask |= PARCEL_FIELD_LINK_UP_BANDWIDTH;
+        }
+        if (mLinkDownBandwidthKbps != LINK_BANDWIDTH_UNSPECIFIED) {
+            mask |= PARCEL_FIELD_LINK_DOWN_BANDWIDTH;
+        }
+        if (mNetworkSpecifier != null) mask |= PARCEL_FIELD_NETWORK_SPECIFIER;
+        if (mTransportInfo != null) mask |= PARCEL_FIELD_TRANSPORT_INFO;
+        if (mSignalStrength != SIGNAL_STRENGTH_UNSPECIFIED) mask |= PARCEL_FIELD_SIGNAL_STRENGTH;
+        if (mUids != null) mask |= PARCEL_FIELD_UIDS;
+        if (!mAllowedUids.isEmpty()) mask |= PARCEL_FIELD_ALLOWED_UIDS;
+        if (mSSID != null) mask |= PARCEL_FIELD_SSID;
+        if (mPrivateDnsBroken) mask |= PARCEL_FIELD_PRIVATE_DNS_BROKEN;
+        if (mAdministratorUids.length != 0) mask |= PARCEL_FIELD_ADMINISTRATOR_UIDS;
+        if (mOwnerUid != Process.INVALID_UID) mask |= PARCEL_FIELD_OWNER_UID;
+        if (mRequestorUid != Process.INVALID_UID) mask |= PARCEL_FIELD_REQUESTOR_UID;
+        if (mRequestorPackageName != null) mask |= PARCEL_FIELD_REQUESTOR_PACKAGE_NAME;
+        if (!mSubIds.isEmpty()) mask |= PARCEL_FIELD_SUB_IDS;
+        if (mUnderlyingNetworks != null) mask |= PARCEL_FIELD_UNDERLYING_NETWORKS;
+        if (mEnterpriseId != 0) mask |= PARCEL_FIELD_ENTERPRISE_ID;
+        return mask;
+    }
+
+    /**
+     * Write the compact parcel format: capabilities and transports are written as bitmasks
+     * followed by a mask of the other fields that are set, and only those fields are written.
+     * UID ranges and networks are written as plain ints instead of parcelables.
+     */
+    private void writeCompactToParcel(Parcel dest, int flags) {
+        final int mask = getParcelFieldMask();
+        dest.writeLong(mNetworkCapabilities);
+        dest.writeLong(mForbiddenNetworkCapabilities);
+        // Transports fit in an int, as MAX_TRANSPORT is less than 32.
+        dest.writeInt((int) mTransportTypes);
+        dest.writeInt(mask);
+        if ((mask & PARCEL_FIELD_LINK_UP_BANDWIDTH) != 0) dest.writeInt(mLinkUpBandwidthKbps);
+        if ((mask & PARCEL_FIELD_LINK_DOWN_BANDWIDTH) != 0) dest.writeInt(mLinkDownBandwidthKbps);
+        if ((mask & PARCEL_FIELD_NETWORK_SPECIFIER) != 0) {
+            dest.writeParcelable((Parcelable) mNetworkSpecifier, flags);
+        }
+        if ((mask & PARCEL_FIELD_TRANSPORT_INFO) != 0) {
+            dest.writeParcelable((Parcelable) mTransportInfo, flags);
+        }
+        if ((mask & PARCEL_FIELD_SIGNAL_STRENGTH) != 0) dest.writeInt(mSignalStrength);
+        if ((mask & PARCEL_FIELD_UIDS) != 0) {
+            dest.writeInt(mUids.size());
+            for (int i = 0; i < mUids.size(); i++) {
+                final UidRange range = mUids.valueAt(i);
+                dest.writeInt(range.start);
+                dest.writeInt(range.stop);
+            }
+        }
+        if ((mask & PARCEL_FIELD_ALLOWED_UIDS) != 0) {
+            dest.writeIntArray(CollectionUtils.toIntArray(mAllowedUids));
+        }
+        if ((mask & PARCEL_FIELD_SSID) != 0) dest.writeString(mSSID);
+        if ((mask & PARCEL_FIELD_ADMINISTRATOR_UIDS) != 0) dest.writeIntArray(mAdministratorUids);
+        if ((mask & PARCEL_FIELD_OWNER_UID) != 0) dest.writeInt(mOwnerUid);
+        if ((mask & PARCEL_FIELD_REQUESTOR_UID) != 0) dest.writeInt(mRequestorUid);
+        if ((mask & PARCEL_FIELD_REQUESTOR_PACKAGE_NAME) != 0) {
+            dest.writeString(mRequestorPackageName);
+        }
+        if ((mask & PARCEL_FIELD_SUB_IDS) != 0) {
+            dest.writeIntArray(CollectionUtils.toIntArray(mSubIds));
+        }
+        if ((mask & PARCEL_FIELD_UNDERLYING_NETWORKS) != 0) {
+            dest.writeInt(mUnderlyingNetworks.size());
+            for (Network network : mUnderlyingNetworks) {
+                dest.writeInt(network.netId);
+            }
+        }
+        if ((mask & PARCEL_FIELD_ENTERPRISE_ID) != 0) dest.writeInt(mEnterpriseId);
+    }
+
+    private static NetworkCapabilities readCompactFromParcel(Parcel in) {
+        final NetworkCapabilities netCap = new NetworkCapabilities();
+        netCap.mNetworkCapabilities = in.readLong();
+        netCap.mForbiddenNetworkCapabilities = in.readLong();
+        netCap.mTransportTypes = in.readInt() & 0xFFFFFFFFL;
+        final int mask = in.readInt();
+        if ((mask & PARCEL_FIELD_LINK_UP_BANDWIDTH) != 0) {
+            netCap.mLinkUpBandwidthKbps = in.readInt();
+        }
+        if ((mask & PARCEL_FIELD_LINK_DOWN_BANDWIDTH) != 0) {
+            netCap.mLinkDownBandwidthKbps = in.readInt();
+        }
+        if ((mask & PARCEL_FIELD_NETWORK_SPECIFIER) != 0) {
+            netCap.mNetworkSpecifier = in.readParcelable(null);
+        }
+        if ((mask & PARCEL_FIELD_TRANSPORT_INFO) != 0) {
+            netCap.mTransportInfo = in.readParcelable(null);
+        }
+        if ((mask & PARCEL_FIELD_SIGNAL_STRENGTH) != 0) netCap.mSignalStrength = in.readInt();
+        if ((mask & PARCEL_FIELD_UIDS) != 0) {
+            final int size = in.readInt();
+            netCap.mUids = new ArraySet<>(size);
+            for (int i = 0; i < size; i++) {
+                final int start = in.readInt();
+                netCap.mUids.add(new UidRange(start, in.readInt()));
+            }
+        }
+        if ((mask & PARCEL_FIELD_ALLOWED_UIDS) != 0) {
+            for (int uid : in.createIntArray()) {
+                netCap.mAllowedUids.add(uid);
+            }
+        }
+        if ((mask & PARCEL_FIELD_SSID) != 0) netCap.mSSID = in.readString();
+        netCap.mPrivateDnsBroken = (mask & PARCEL_FIELD_PRIVATE_DNS_BROKEN) != 0;
+        if ((mask & PARCEL_FIELD_ADMINISTRATOR_UIDS) != 0) {
+            netCap.setAdministratorUids(in.createIntArray());
+        }
+        if ((mask & PARCEL_FIELD_OWNER_UID) != 0) netCap.mOwnerUid = in.readInt();
+        if ((mask & PARCEL_FIELD_REQUESTOR_UID) != 0) netCap.mRequestorUid = in.readInt();
+        if ((mask & PARCEL_FIELD_REQUESTOR_PACKAGE_NAME) != 0) {
+            netCap.mRequestorPackageName = in.readString();
+        }
+        if ((mask & PARCEL_FIELD_SUB_IDS) != 0) {
+            for (int subId : in.createIntArray()) {
+                netCap.mSubIds.add(subId);
+            }
+        }
+        if ((mask & PARCEL_FIELD_UNDERLYING_NETWORKS) != 0) {
+            final int size = in.readInt();
+            final ArrayList<Network> networks = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                networks.add(new Network(in.readInt()));
+            }
+            netCap.setUnderlyingNetworks(networks);
+        }
+        if ((mask & PARCEL_FIELD_ENTERPRISE_ID) != 0) netCap.mEnterpriseId = in.readInt();
+        return netCap;
+    }
+
     public static final @android.annotation.NonNull Creator<NetworkCapabilities> CREATOR =
             new Creator<>() {
             @Override
             public NetworkCapabilities createFromParcel(Parcel in) {
+                final int version = NetworkStateParcelFormat.checkVersion(in.readInt(),
+                        "NetworkCapabilities");
+                if (version == NetworkStateParcelFormat.VERSION_COMPACT) {
+                    return readCompactFromParcel(in);
+                }
                 NetworkCapabilities netCap = new NetworkCapabilities();
 
                 netCap.mNetworkCapabilities = in.readLong();
@@ -2459,6 +2747,7 @@ public final class NetworkCapabilities implements Parcelable {
      */
     public void setPrivateDnsBroken(boolean broken) {
         mPrivateDnsBroken = broken;
+        onMutated();
     }
 
     private boolean equalsPrivateDnsBroken(NetworkCapabilities nc) {
@@ -2480,6 +2769,7 @@ public final class NetworkCapabilities implements Parcelable {
      */
     public @NonNull NetworkCapabilities setRequestorUid(int uid) {
         mRequestorUid = uid;
+        onMutated();
         return this;
     }
 
@@ -2512,6 +2802,7 @@ public final class NetworkCapabilities implements Parcelable {
      */
     public @NonNull NetworkCapabilities setRequestorPackageName(@NonNull String packageName) {
         mRequestorPackageName = packageName;
+        onMutated();
         return this;
     }
 
@@ -2589,6 +2880,7 @@ public final class NetworkCapabilities implements Parcelable {
     @NonNull
     public NetworkCapabilities setSubscriptionIds(@NonNull Set<Integer> subIds) {
         mSubIds = new ArraySet(Objects.requireNonNull(subIds));
+        onMutated();
         return this;
     }
 
@@ -2647,6 +2939,7 @@ public final class NetworkCapabilities implements Parcelable {
 
     private NetworkCapabilities removeDefaultCapabilites() {
         mNetworkCapabilities &= ~DEFAULT_CAPABILITIES;
+        onMutated();
         return this;
     }
 
@@ -660,7 +660,33 @@ public class NetworkRequest implements Parcelable {
      *           satisfy any request.
      */
     public boolean canBeSatisfiedBy(@Nullable NetworkCapabilities nc) {
-        return networkCapabilities.satisfiedByNetworkCapabilities(nc);
+        return networkCapabilities.satisfiedByNetworkCapabilities(nc, getMatchConstraints());
+    }
+
+    // Precomputed description of which fields of networkCapabilities constrain matching. The
+    // capabilities can be mutated, so the descriptor records the generation it was computed for.
+    // Immutable so it can be published to other threads through a single volatile write.
+    private static final class FastMatchDescriptor {
+        final long generation;
+        final int constraints;
+
+        FastMatchDescriptor(long generation, int constraints) {
+            this.generation = generation;
+            this.constraints = constraints;
+        }
+    }
+
+    private volatile FastMatchDescriptor mFastMatchDescriptor;
+
+    private int getMatchConstraints() {
+        final long generation = networkCapabilities.getGeneration();
+        FastMatchDescriptor descriptor = mFastMatchDescriptor;
+        if (descriptor == null || descriptor.generation != generation) {
+            descriptor = new FastMatchDescriptor(generation,
+                    networkCapabilities.getMatchConstraints());
+            mFastMatchDescriptor = descriptor;
+        }
+        return descriptor.constraints;
     }
 
     /**
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import android.os.BadParcelableException;
+
+/**
+ * Selects the wire format used to parcel {@link NetworkCapabilities} and {@link LinkProperties}.
+ *
+ * Both classes start their parcel with the version of the format they were written in, so
+ * readers accept either format regardless of the format the writer was configured with.
+ *
+ * The compact format writes nested objects inline instead of as parcelables, which avoids
+ * writing a class name for every address, route and UID range, and marks fields that have their
+ * default value in a bitmask instead of writing them.
+ * @hide
+ */
+public final class NetworkStateParcelFormat {
+    /** The original format, where nested objects are written as parcelables. */
+    static final int VERSION_LEGACY = 1;
+    /** The compact format. */
+    static final int VERSION_COMPACT = 2;
+
+    private static volatile boolean sCompactEnabled = false;
+
+    private NetworkStateParcelFormat() {}
+
+    /**
+     * Set whether {@link NetworkCapabilities} and {@link LinkProperties} are written to parcels
+     * in the compact format.
+     *
+     * This only affects the writer: parcels in any format can always be read.
+     */
+    public static void setCompactEnabled(boolean enabled) {
+        sCompactEnabled = enabled;
+    }
+
+    /**
+     * Whether {@link NetworkCapabilities} and {@link LinkProperties} are written to parcels in
+     * the compact format.
+     */
+    public static boolean isCompactEnabled() {
+        return sCompactEnabled;
+    }
+
+    /** Get the version of the format to write parcels in. */
+    static int getWriteVersion() {
+        return sCompactEnabled ? VERSION_COMPACT : VERSION_LEGACY;
+    }
+
+    /** Check that a version read from a parcel is supported. */
+    static int checkVersion(int version, String className) {
+        if (version != VERSION_LEGACY && version != VERSION_COMPACT) {
+            throw new BadParcelableException("Unknown " + className + " parcel version "
+                    + version);
+        }
+        return version;
+    }
+}
@@ -25,10 +25,14 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.net.InetAddresses;
 import android.net.Network;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
 import libcore.io.IoUtils;
 
 import java.io.FileDescriptor;
@@ -39,9 +43,14 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
 
 /**
  * @hide
@@ -49,11 +58,17 @@ import java.util.List;
 public class DnsUtils {
     private static final String TAG = "DnsUtils";
     private static final int CHAR_BIT = 8;
+    private static final int NETID_UNSET = 0;
     public static final int IPV6_ADDR_SCOPE_NODELOCAL = 0x01;
     public static final int IPV6_ADDR_SCOPE_LINKLOCAL = 0x02;
     public static final int IPV6_ADDR_SCOPE_SITELOCAL = 0x05;
     public static final int IPV6_ADDR_SCOPE_GLOBAL = 0x0e;
     private static final Comparator<SortableAddress> sRfc6724Comparator = new Rfc6724Comparator();
+    private static final int SRC_ADDRESS_CACHE_MAX_ENTRIES = 64;
+    private static final long SRC_ADDRESS_CACHE_TTL_MS = 5_000;
+    private static final SrcAddressCache sSrcAddressCache = new SrcAddressCache(
+            SRC_ADDRESS_CACHE_MAX_ENTRIES, SRC_ADDRESS_CACHE_TTL_MS, DnsUtils::findSrcAddress,
+            SystemClock::elapsedRealtime);
 
     /**
      * Comparator to sort SortableAddress in Rfc6724 style.
@@ -141,7 +156,7 @@ public class DnsUtils {
             @NonNull List<InetAddress> answers) {
         final ArrayList<SortableAddress> sortableAnswerList = new ArrayList<>();
         for (InetAddress addr : answers) {
-            sortableAnswerList.add(new SortableAddress(addr, findSrcAddress(network, addr)));
+            sortableAnswerList.add(new SortableAddress(addr, sSrcAddressCache.get(network, addr)));
         }
 
         Collections.sort(sortableAnswerList, sRfc6724Comparator);
@@ -154,6 +169,152 @@ public class DnsUtils {
         return sortedAnswers;
     }
 
+    /**
+     * Invalidate the source addresses cached for the given network, for example because its
+     * link properties changed. Also invalidates the addresses cached for the default network,
+     * which might be the given network.
+     */
+    public static void invalidateSrcAddressCache(@Nullable Network network) {
+        sSrcAddressCache.invalidate(network);
+    }
+
+    /**
+     * Interface to find the source address that the kernel would use for a destination.
+     */
+    @VisibleForTesting
+    public interface SrcAddressFinder {
+        /** Returns the source address, or null if the destination is not reachable. */
+        @Nullable InetAddress find(@Nullable Network network, @NonNull InetAddress addr);
+    }
+
+    /**
+     * Cache of the source addresses that the kernel selects for destinations on a network.
+     *
+     * Finding the source address for a destination takes four system calls, and the same
+     * destinations are often looked up again by queries sent in quick succession. Destinations
+     * are cached by full address, as routes more specific than the destination's prefix can
+     * select a different source address for addresses of the same prefix. Entries expire after a
+     * short time, so that changes are picked up even by processes that are not told about link
+     * properties changes, and are also removed when the link properties of the network are known
+     * to change.
+     */
+    @VisibleForTesting
+    public static class SrcAddressCache {
+        private final int mMaxEntries;
+        private final long mTtlMs;
+        @NonNull
+        private final SrcAddressFinder mFinder;
+        @NonNull
+        private final LongSupplier mClock;
+        @GuardedBy("mEntries")
+        private final LinkedHashMap<Key, Entry> mEntries;
+
+        private static final class Key {
+            final int mNetId;
+            @NonNull
+            final byte[] mAddr;
+
+            Key(int netId, @NonNull byte[] addr) {
+                mNetId = netId;
+                mAddr = addr;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key)) return false;
+                final Key other = (Key) o;
+                return mNetId == other.mNetId && Arrays.equals(mAddr, other.mAddr);
+            }
+
+            @Override
+            public int hashCode() {
+                return 31 * mNetId + Arrays.hashCode(mAddr);
+            }
+        }
+
+        private static final class Entry {
+            @Nullable
+            final InetAddress mSrcAddr;
+            final long mExpiryMs;
+
+            Entry(@Nullable InetAddress srcAddr, long expiryMs) {
+                mSrcAddr = srcAddr;
+                mExpiryMs = expiryMs;
+            }
+        }
+
+        public SrcAddressCache(int maxEntries, long ttlMs, @NonNull SrcAddressFinder finder,
+                @NonNull LongSupplier clock) {
+            mMaxEntries = maxEntries;
+            mTtlMs = ttlMs;
+            mFinder = finder;
+            mClock = clock;
+            mEntries = new LinkedHashMap<Key, Entry>(16 /* initialCapacity */,
+                    0.75f /* loadFactor */, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    return size() > mMaxEntries;
+                }
+            };
+        }
+
+        /**
+         * Get the source address for the given destination, finding it if it is not cached.
+         */
+        @Nullable
+        public InetAddress get(@Nullable Network network, @NonNull InetAddress addr) {
+            final Key key = makeKey(network, addr);
+            if (key == null) return mFinder.find(network, addr);
+
+            final long now = mClock.getAsLong();
+            synchronized (mEntries) {
+                final Entry entry = mEntries.get(key);
+                if (entry != null && entry.mExpiryMs > now) return entry.mSrcAddr;
+            }
+            // Do not hold the lock while making system calls.
+            final InetAddress srcAddr = mFinder.find(network, addr);
+            synchronized (mEntries) {
+                mEntries.put(key, new Entry(srcAddr, now + mTtlMs));
+            }
+            return srcAddr;
+        }
+
+        /**
+         * Remove the entries of the given network and of the default network.
+         */
+        public void invalidate(@Nullable Network network) {
+            final int netId = (network == null) ? NETID_UNSET : network.getNetId();
+            synchronized (mEntries) {
+                final Iterator<Key> it = mEntries.keySet().iterator();
+                while (it.hasNext()) {
+                    final int entryNetId = it.next().mNetId;
+                    if (entryNetId == netId || entryNetId == NETID_UNSET) it.remove();
+                }
+            }
+        }
+
+        /**
+         * Get the number of cached entries, including expired ones.
+         */
+        public int size() {
+            synchronized (mEntries) {
+                return mEntries.size();
+            }
+        }
+
+        @Nullable
+        private static Key makeKey(@Nullable Network network, @NonNull InetAddress addr) {
+            if (isIpv6Address(addr)) {
+                // Scoped addresses (e.g. link-local) depend on the interface, don't cache them.
+                if (((Inet6Address) addr).getScopeId() != 0) return null;
+            } else if (!isIpv4Address(addr)) {
+                return null;
+            }
+            return new Key((network == null) ? NETID_UNSET : network.getNetId(),
+                    addr.getAddress());
+        }
+    }
+
     private static @Nullable InetAddress findSrcAddress(@Nullable Network network,
             @NonNull InetAddress addr) {
         final int domain;
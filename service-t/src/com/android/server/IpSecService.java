@@ -26,6 +26,7 @@ import static android.system.OsConstants.IPPROTO_UDP;
 import static android.system.OsConstants.SOCK_DGRAM;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.app.AppOpsManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -55,6 +56,7 @@ import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.text.TextUtils;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Range;
 import android.util.SparseArray;
@@ -77,9 +79,16 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A service to manage multiple clients that want to access the IpSec API. The service is
@@ -116,18 +125,21 @@ public class IpSecService extends IIpSecService.Stub {
     static final int FREE_PORT_MIN = 1024; // ports 1-1023 are reserved
     static final int PORT_MAX = 0xFFFF; // ports are an unsigned 16-bit integer
 
+    private static final String LOCAL_PORT_RANGE_PATH = "/proc/sys/net/ipv4/ip_local_port_range";
+    private static final String LOCAL_RESERVED_PORTS_PATH =
+            "/proc/sys/net/ipv4/ip_local_reserved_ports";
+
     /* Binder context for this service */
     private final Context mContext;
     private final Dependencies mDeps;
 
     /**
      * The next non-repeating global ID for tracking resources between users, this service, and
-     * kernel data structures. Accessing this variable is not thread safe, so it is only read or
-     * modified within blocks synchronized on IpSecService.this. We want to avoid -1
-     * (INVALID_RESOURCE_ID) and 0 (we probably forgot to initialize it).
+     * kernel data structures. This is shared by all users, so it is atomic rather than guarded by
+     * any UserRecord. We want to avoid -1 (INVALID_RESOURCE_ID) and 0 (we probably forgot to
+     * initialize it).
      */
-    @GuardedBy("IpSecService.this")
-    private int mNextResourceId = 1;
+    private final AtomicInteger mNextResourceId = new AtomicInteger(1);
 
     /**
      * Dependencies of IpSecService, for injection in tests.
@@ -145,10 +157,82 @@ public class IpSecService extends IIpSecService.Stub {
             }
             return netd;
         }
+
+        /**
+         * Get the range of local ports that the kernel assigns automatically, or null if it cannot
+         * be read.
+         */
+        @Nullable
+        public Range<Integer> getLocalPortRange() {
+            final List<Range<Integer>> ranges = readPortRanges(LOCAL_PORT_RANGE_PATH);
+            return (ranges == null || ranges.size() != 1) ? null : ranges.get(0);
+        }
+
+        /**
+         * Get the local ports that the kernel never assigns automatically, or null if they cannot
+         * be read.
+         */
+        @Nullable
+        public List<Range<Integer>> getLocalReservedPorts() {
+            return readPortRanges(LOCAL_RESERVED_PORTS_PATH);
+        }
+
+        /**
+         * Make the random number generator used to pick local ports.
+         */
+        public Random makePortRandom() {
+            return new SecureRandom();
+        }
+
+        @Nullable
+        private static List<Range<Integer>> readPortRanges(String path) {
+            try {
+                return parsePortRanges(new String(
+                        Files.readAllBytes(Paths.get(path)), StandardCharsets.US_ASCII));
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Failed to read " + path, e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Parses port ranges in the formats used by the ip_local_port_range ("32768\t60999") and
+     * ip_local_reserved_ports ("8080,9000-9010") sysctls.
+     */
+    @VisibleForTesting
+    static List<Range<Integer>> parsePortRanges(String ranges) {
+        final List<Range<Integer>> result = new ArrayList<>();
+        final String trimmed = ranges.trim();
+        if (trimmed.isEmpty()) return result;
+        if (!trimmed.contains(",") && !trimmed.contains("-")) {
+            final String[] bounds = trimmed.split("\\s+");
+            if (bounds.length == 2) {
+                result.add(new Range<>(Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1])));
+                return result;
+            }
+        }
+        for (String range : trimmed.split(",")) {
+            final String[] bounds = range.trim().split("-");
+            final int lower = Integer.parseInt(bounds[0]);
+            final int upper = (bounds.length > 1) ? Integer.parseInt(bounds[1]) : lower;
+            result.add(new Range<>(lower, upper));
+        }
+        return result;
     }
 
     final UidFdTagger mUidFdTagger;
 
+    /**
+     * The ports that bindToRandomPort picks from, read once from the kernel. If null, ports are
+     * picked by the kernel through a probe socket instead.
+     */
+    @Nullable private final Range<Integer> mLocalPortRange;
+    @NonNull private final List<Range<Integer>> mLocalReservedPorts;
+    @Nullable private final Random mPortRandom;
+    private final AtomicInteger mDirectPortBinds = new AtomicInteger();
+    private final AtomicInteger mProbePortBinds = new AtomicInteger();
+
     /**
      * Interface for user-reference and kernel-resource cleanup.
      *
@@ -197,11 +281,14 @@ public class IpSecService extends IIpSecService.Stub {
     public class RefcountedResource<T extends IResource> implements IBinder.DeathRecipient {
         private final T mResource;
         private final List<RefcountedResource> mChildren;
+        // The lock guarding this resource and its children. See #getLockForResource.
+        private final Object mLock;
         int mRefCount = 1; // starts at 1 for user's reference.
         IBinder mBinder;
 
         RefcountedResource(T resource, IBinder binder, RefcountedResource... children) {
-            synchronized (IpSecService.this) {
+            mLock = getLockForResource(resource);
+            synchronized (mLock) {
                 this.mResource = resource;
                 this.mChildren = new ArrayList<>(children.length);
                 this.mBinder = binder;
@@ -227,7 +314,7 @@ public class IpSecService extends IIpSecService.Stub {
          */
         @Override
         public void binderDied() {
-            synchronized (IpSecService.this) {
+            synchronized (mLock) {
                 try {
                     userRelease();
                 } catch (Exception e) {
@@ -251,7 +338,7 @@ public class IpSecService extends IIpSecService.Stub {
          * this time, or that the related quota will be returned. Such actions will only be
          * performed upon the reference count reaching zero.
          */
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mLock")
         public void userRelease() throws RemoteException {
             // Prevent users from putting reference counts into a bad state by calling
             // userRelease() multiple times.
@@ -278,7 +365,7 @@ public class IpSecService extends IIpSecService.Stub {
          * released
          */
         @VisibleForTesting
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mLock")
         public void releaseReference() throws RemoteException {
             mRefCount--;
 
@@ -317,11 +404,26 @@ public class IpSecService extends IIpSecService.Stub {
         }
     }
 
+    /**
+     * Returns the lock that guards a resource.
+     *
+     * <p>Resources owned by a UID only ever reference other resources of the same UID, so each
+     * UID's resources are guarded by that UID's {@link UserRecord}. This lets calls from different
+     * UIDs, including the netd calls they make, proceed in parallel. Resources that are not
+     * associated with a UID fall back to the service-wide lock.
+     */
+    private Object getLockForResource(IResource resource) {
+        if (resource instanceof OwnedResourceRecord) {
+            return ((OwnedResourceRecord) resource).getUserRecord();
+        }
+        return IpSecService.this;
+    }
+
     /**
      * Very simple counting class that looks much like a counting semaphore
      *
      * <p>This class is not thread-safe, and expects that that users of this class will ensure
-     * synchronization and thread safety by holding the IpSecService.this instance lock.
+     * synchronization and thread safety by holding the lock of the owning UserRecord.
      */
     @VisibleForTesting
     static class ResourceTracker {
@@ -337,6 +439,10 @@ public class IpSecService extends IIpSecService.Stub {
             return (mCurrent < mMax);
         }
 
+        boolean isAvailable(int count) {
+            return (mCurrent + count <= mMax);
+        }
+
         void take() {
             if (!isAvailable()) {
                 Log.wtf(TAG, "Too many resources allocated!");
@@ -363,6 +469,12 @@ public class IpSecService extends IIpSecService.Stub {
         }
     }
 
+    /**
+     * Resources and quotas of a single UID.
+     *
+     * <p>The UserRecord object is also the lock for all of these resources: all accesses to the
+     * fields of a UserRecord, and to the resources it tracks, must hold its monitor.
+     */
     @VisibleForTesting
     static final class UserRecord {
         /* Maximum number of each type of resource that a single UID may possess */
@@ -448,23 +560,29 @@ public class IpSecService extends IIpSecService.Stub {
     }
 
     /**
-     * This class is not thread-safe, and expects that that users of this class will ensure
-     * synchronization and thread safety by holding the IpSecService.this instance lock.
+     * Map of UID to UserRecord.
+     *
+     * <p>This class is thread-safe. It only guards the map itself; the contents of each UserRecord
+     * are guarded by that UserRecord. To avoid lock inversion, this class never acquires the lock
+     * of a UserRecord while holding its own lock.
      */
     @VisibleForTesting
     static final class UserResourceTracker {
+        @GuardedBy("mUserRecords")
         private final SparseArray<UserRecord> mUserRecords = new SparseArray<>();
 
         /** Lazy-initialization/getter that populates or retrieves the UserRecord as needed */
         public UserRecord getUserRecord(int uid) {
             checkCallerUid(uid);
 
-            UserRecord r = mUserRecords.get(uid);
-            if (r == null) {
-                r = new UserRecord();
-                mUserRecords.put(uid, r);
+            synchronized (mUserRecords) {
+                UserRecord r = mUserRecords.get(uid);
+                if (r == null) {
+                    r = new UserRecord();
+                    mUserRecords.put(uid, r);
+                }
+                return r;
             }
-            return r;
         }
 
         /** Safety method; guards against access of other user's UserRecords */
@@ -476,7 +594,19 @@ public class IpSecService extends IIpSecService.Stub {
 
         @Override
         public String toString() {
-            return mUserRecords.toString();
+            final SparseArray<UserRecord> records;
+            synchronized (mUserRecords) {
+                records = mUserRecords.clone();
+            }
+            final StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < records.size(); i++) {
+                if (i > 0) sb.append(", ");
+                final UserRecord record = records.valueAt(i);
+                synchronized (record) {
+                    sb.append(records.keyAt(i)).append("=").append(record);
+                }
+            }
+            return sb.append("}").toString();
         }
     }
 
@@ -598,6 +728,8 @@ public class IpSecService extends IIpSecService.Stub {
         private final IpSecConfig mConfig;
         private final SpiRecord mSpi;
         private final EncapSocketRecord mSocket;
+        // Whether the SA was handed back to the SpiRecord, which then frees it.
+        private boolean mSaReturnedToSpi = false;
 
         TransformRecord(
                 int resourceId, IpSecConfig config, SpiRecord spi, EncapSocketRecord socket) {
@@ -621,19 +753,30 @@ public class IpSecService extends IIpSecService.Stub {
             return mSocket;
         }
 
-        /** always guarded by IpSecService#this */
+        /**
+         * Hand the SA back to the SpiRecord, so that releasing this transform does not delete it
+         * and the SPI can be used by a new transform. Used to roll back a batch of transforms.
+         */
+        public void returnSaToSpi() {
+            mSaReturnedToSpi = true;
+            mSpi.clearOwnedByTransform();
+        }
+
+        /** always guarded by the UserRecord of mUid */
         @Override
         public void freeUnderlyingResources() {
             int spi = mSpi.getSpi();
             try {
-                mNetd.ipSecDeleteSecurityAssociation(
-                        mUid,
-                        mConfig.getSourceAddress(),
-                        mConfig.getDestinationAddress(),
-                        spi,
-                        mConfig.getMarkValue(),
-                        mConfig.getMarkMask(),
-                        mConfig.getXfrmInterfaceId());
+                if (!mSaReturnedToSpi) {
+                    mNetd.ipSecDeleteSecurityAssociation(
+                            mUid,
+                            mConfig.getSourceAddress(),
+                            mConfig.getDestinationAddress(),
+                            spi,
+                            mConfig.getMarkValue(),
+                            mConfig.getMarkMask(),
+                            mConfig.getXfrmInterfaceId());
+                }
             } catch (RemoteException | ServiceSpecificException e) {
                 Log.e(TAG, "Failed to delete SA with ID: " + mResourceId, e);
             }
@@ -688,7 +831,7 @@ public class IpSecService extends IIpSecService.Stub {
             mSpi = spi;
         }
 
-        /** always guarded by IpSecService#this */
+        /** always guarded by the UserRecord of mUid */
         @Override
         public void freeUnderlyingResources() {
             try {
@@ -727,6 +870,11 @@ public class IpSecService extends IIpSecService.Stub {
             return mOwnedByTransform;
         }
 
+        /** Take back the responsibility of freeing the SA from a transform being rolled back. */
+        public void clearOwnedByTransform() {
+            mOwnedByTransform = false;
+        }
+
         @Override
         public void invalidate() throws RemoteException {
             getUserRecord().removeSpiRecord(mResourceId);
@@ -798,7 +946,7 @@ public class IpSecService extends IIpSecService.Stub {
      * Tracks an tunnel interface, and manages cleanup paths.
      *
      * <p>This class is not thread-safe, and expects that that users of this class will ensure
-     * synchronization and thread safety by holding the IpSecService.this instance lock
+     * synchronization and thread safety by holding the lock of the owning UserRecord.
      */
     @VisibleForTesting
     final class TunnelInterfaceRecord extends OwnedResourceRecord {
@@ -835,7 +983,7 @@ public class IpSecService extends IIpSecService.Stub {
             mIfId = intfId;
         }
 
-        /** always guarded by IpSecService#this */
+        /** always guarded by the UserRecord of mUid */
         @Override
         public void freeUnderlyingResources() {
             // Calls to netd
@@ -874,14 +1022,14 @@ public class IpSecService extends IIpSecService.Stub {
             releaseNetId(mOkey);
         }
 
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("getUserRecord()")
         public void setUnderlyingNetwork(Network underlyingNetwork) {
             // When #applyTunnelModeTransform is called, this new underlying network will be used to
             // update the output mark of the input transform.
             mUnderlyingNetwork = underlyingNetwork;
         }
 
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("getUserRecord()")
         public Network getUnderlyingNetwork() {
             return mUnderlyingNetwork;
         }
@@ -961,7 +1109,7 @@ public class IpSecService extends IIpSecService.Stub {
             mPort = port;
         }
 
-        /** always guarded by IpSecService#this */
+        /** always guarded by the UserRecord of mUid */
         @Override
         public void freeUnderlyingResources() {
             Log.d(TAG, "Closing port " + mPort);
@@ -1046,6 +1194,12 @@ public class IpSecService extends IIpSecService.Stub {
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
+
+        final List<Range<Integer>> reservedPorts = mDeps.getLocalReservedPorts();
+        mLocalPortRange = (reservedPorts == null) ? null : mDeps.getLocalPortRange();
+        mLocalReservedPorts =
+                (reservedPorts == null) ? Collections.emptyList() : reservedPorts;
+        mPortRandom = (mLocalPortRange == null) ? null : mDeps.makePortRandom();
     }
 
     /**
@@ -1083,7 +1237,7 @@ public class IpSecService extends IIpSecService.Stub {
 
     /** Get a new SPI and maintain the reservation in the system server */
     @Override
-    public synchronized IpSecSpiResponse allocateSecurityParameterIndex(
+    public IpSecSpiResponse allocateSecurityParameterIndex(
             String destinationAddress, int requestedSpi, IBinder binder) throws RemoteException {
         checkInetAddress(destinationAddress);
         // RFC 4303 Section 2.1 - 0=local, 1-255=reserved.
@@ -1094,32 +1248,34 @@ public class IpSecService extends IIpSecService.Stub {
 
         int callingUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
-        final int resourceId = mNextResourceId++;
+        synchronized (userRecord) {
+            final int resourceId = mNextResourceId.getAndIncrement();
 
-        int spi = IpSecManager.INVALID_SECURITY_PARAMETER_INDEX;
-        try {
-            if (!userRecord.mSpiQuotaTracker.isAvailable()) {
-                return new IpSecSpiResponse(
-                        IpSecManager.Status.RESOURCE_UNAVAILABLE, INVALID_RESOURCE_ID, spi);
-            }
+            int spi = IpSecManager.INVALID_SECURITY_PARAMETER_INDEX;
+            try {
+                if (!userRecord.mSpiQuotaTracker.isAvailable()) {
+                    return new IpSecSpiResponse(
+                            IpSecManager.Status.RESOURCE_UNAVAILABLE, INVALID_RESOURCE_ID, spi);
+                }
 
-            spi = mNetd.ipSecAllocateSpi(callingUid, "", destinationAddress, requestedSpi);
-            Log.d(TAG, "Allocated SPI " + spi);
-            userRecord.mSpiRecords.put(
-                    resourceId,
-                    new RefcountedResource<SpiRecord>(
-                            new SpiRecord(resourceId, "",
-                            destinationAddress, spi), binder));
-        } catch (ServiceSpecificException e) {
-            if (e.errorCode == OsConstants.ENOENT) {
-                return new IpSecSpiResponse(
-                        IpSecManager.Status.SPI_UNAVAILABLE, INVALID_RESOURCE_ID, spi);
+                spi = mNetd.ipSecAllocateSpi(callingUid, "", destinationAddress, requestedSpi);
+                Log.d(TAG, "Allocated SPI " + spi);
+                userRecord.mSpiRecords.put(
+                        resourceId,
+                        new RefcountedResource<SpiRecord>(
+                                new SpiRecord(resourceId, "",
+                                destinationAddress, spi), binder));
+            } catch (ServiceSpecificException e) {
+                if (e.errorCode == OsConstants.ENOENT) {
+                    return new IpSecSpiResponse(
+                            IpSecManager.Status.SPI_UNAVAILABLE, INVALID_RESOURCE_ID, spi);
+                }
+                throw e;
+            } catch (RemoteException e) {
+                throw e.rethrowFromSystemServer();
             }
-            throw e;
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
+            return new IpSecSpiResponse(IpSecManager.Status.OK, resourceId, spi);
         }
-        return new IpSecSpiResponse(IpSecManager.Status.OK, resourceId, spi);
     }
 
     /* This method should only be called from Binder threads. Do not call this from
@@ -1132,26 +1288,80 @@ public class IpSecService extends IIpSecService.Stub {
 
     /** Release a previously allocated SPI that has been registered with the system server */
     @Override
-    public synchronized void releaseSecurityParameterIndex(int resourceId) throws RemoteException {
+    public void releaseSecurityParameterIndex(int resourceId) throws RemoteException {
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        releaseResource(userRecord.mSpiRecords, resourceId);
+        synchronized (userRecord) {
+            releaseResource(userRecord.mSpiRecords, resourceId);
+        }
     }
 
     /**
      * This function finds and forcibly binds to a random system port, ensuring that the port cannot
      * be unbound.
      *
-     * <p>A socket cannot be un-bound from a port if it was bound to that port by number. To select
-     * a random open port and then bind by number, this function creates a temp socket, binds to a
-     * random port (specifying 0), gets that port number, and then uses is to bind the user's UDP
-     * Encapsulation Socket forcibly, so that it cannot be un-bound by the user with the returned
-     * FileHandle.
+     * <p>A socket cannot be un-bound from a port if it was bound to that port by number. Where
+     * possible, this function picks a random port from the kernel's local port range and binds the
+     * user's UDP Encapsulation Socket to it directly, which only takes one system call. If the port
+     * range is not known, or no free port is found after a few attempts, it falls back to asking
+     * the kernel for a port through a temporary probe socket.
+     */
+    private int bindToRandomPort(FileDescriptor sockFd) throws IOException {
+        if (mLocalPortRange != null) {
+            final int port = bindToRandomPortInRange(sockFd, mLocalPortRange);
+            if (port != 0) {
+                mDirectPortBinds.incrementAndGet();
+                return port;
+            }
+        }
+        final int port = bindToRandomPortWithProbe(sockFd);
+        mProbePortBinds.incrementAndGet();
+        return port;
+    }
+
+    /**
+     * Binds to a random free port of the given range that is not reserved by the system.
+     *
+     * @return the port, or 0 if no free port was found after MAX_PORT_BIND_ATTEMPTS attempts.
+     */
+    private int bindToRandomPortInRange(FileDescriptor sockFd, Range<Integer> range)
+            throws IOException {
+        final int lower = Math.max(range.getLower(), FREE_PORT_MIN);
+        final int upper = Math.min(range.getUpper(), PORT_MAX);
+        if (lower > upper) return 0;
+
+        for (int i = MAX_PORT_BIND_ATTEMPTS; i > 0; i--) {
+            final int port = lower + mPortRandom.nextInt(upper - lower + 1);
+            if (isLocalReservedPort(port)) continue;
+            try {
+                Log.v(TAG, "Binding to port " + port);
+                Os.bind(sockFd, INADDR_ANY, port);
+                return port;
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EADDRINUSE) {
+                    continue;
+                }
+                throw e.rethrowAsIOException();
+            }
+        }
+        return 0;
+    }
+
+    private boolean isLocalReservedPort(int port) {
+        for (Range<Integer> reserved : mLocalReservedPorts) {
+            if (reserved.contains(port)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Binds to a random port by creating a temp socket, binding it to a random port (specifying
+     * 0), getting that port number, and then binding the user's socket to it by number.
      *
      * <p>The loop in this function handles the inherent race window between un-binding to a port
      * and re-binding, during which the system could *technically* hand that port out to someone
      * else.
      */
-    private int bindToRandomPort(FileDescriptor sockFd) throws IOException {
+    private int bindToRandomPortWithProbe(FileDescriptor sockFd) throws IOException {
         for (int i = MAX_PORT_BIND_ATTEMPTS; i > 0; i--) {
             try {
                 FileDescriptor probeSocket = Os.socket(AF_INET, SOCK_DGRAM, IPPROTO_UDP);
@@ -1199,7 +1409,7 @@ public class IpSecService extends IIpSecService.Stub {
      * needed.
      */
     @Override
-    public synchronized IpSecUdpEncapResponse openUdpEncapsulationSocket(int port, IBinder binder)
+    public IpSecUdpEncapResponse openUdpEncapsulationSocket(int port, IBinder binder)
             throws RemoteException {
         if (port != 0 && (port < FREE_PORT_MIN || port > PORT_MAX)) {
             throw new IllegalArgumentException(
@@ -1209,65 +1419,69 @@ public class IpSecService extends IIpSecService.Stub {
 
         int callingUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
-        final int resourceId = mNextResourceId++;
+        synchronized (userRecord) {
+            final int resourceId = mNextResourceId.getAndIncrement();
 
-        ParcelFileDescriptor pFd = null;
-        try {
-            if (!userRecord.mSocketQuotaTracker.isAvailable()) {
-                return new IpSecUdpEncapResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
-            }
-
-            FileDescriptor sockFd = null;
+            ParcelFileDescriptor pFd = null;
             try {
-                sockFd = Os.socket(AF_INET, SOCK_DGRAM, IPPROTO_UDP);
-                pFd = ParcelFileDescriptor.dup(sockFd);
-            } finally {
-                IoUtils.closeQuietly(sockFd);
-            }
+                if (!userRecord.mSocketQuotaTracker.isAvailable()) {
+                    return new IpSecUdpEncapResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
+                }
 
-            mUidFdTagger.tag(pFd.getFileDescriptor(), callingUid);
-            // This code is common to both the unspecified and specified port cases
-            Os.setsockoptInt(
-                    pFd.getFileDescriptor(),
-                    OsConstants.IPPROTO_UDP,
-                    OsConstants.UDP_ENCAP,
-                    OsConstants.UDP_ENCAP_ESPINUDP);
+                FileDescriptor sockFd = null;
+                try {
+                    sockFd = Os.socket(AF_INET, SOCK_DGRAM, IPPROTO_UDP);
+                    pFd = ParcelFileDescriptor.dup(sockFd);
+                } finally {
+                    IoUtils.closeQuietly(sockFd);
+                }
 
-            mNetd.ipSecSetEncapSocketOwner(pFd, callingUid);
-            if (port != 0) {
-                Log.v(TAG, "Binding to port " + port);
-                Os.bind(pFd.getFileDescriptor(), INADDR_ANY, port);
-            } else {
-                port = bindToRandomPort(pFd.getFileDescriptor());
-            }
+                mUidFdTagger.tag(pFd.getFileDescriptor(), callingUid);
+                // This code is common to both the unspecified and specified port cases
+                Os.setsockoptInt(
+                        pFd.getFileDescriptor(),
+                        OsConstants.IPPROTO_UDP,
+                        OsConstants.UDP_ENCAP,
+                        OsConstants.UDP_ENCAP_ESPINUDP);
+
+                mNetd.ipSecSetEncapSocketOwner(pFd, callingUid);
+                if (port != 0) {
+                    Log.v(TAG, "Binding to port " + port);
+                    Os.bind(pFd.getFileDescriptor(), INADDR_ANY, port);
+                } else {
+                    port = bindToRandomPort(pFd.getFileDescriptor());
+                }
 
-            userRecord.mEncapSocketRecords.put(
-                    resourceId,
-                    new RefcountedResource<EncapSocketRecord>(
-                            new EncapSocketRecord(resourceId, pFd.getFileDescriptor(), port),
-                            binder));
-            return new IpSecUdpEncapResponse(IpSecManager.Status.OK, resourceId, port,
-                    pFd.getFileDescriptor());
-        } catch (IOException | ErrnoException e) {
-            try {
-                if (pFd != null) {
-                    pFd.close();
+                userRecord.mEncapSocketRecords.put(
+                        resourceId,
+                        new RefcountedResource<EncapSocketRecord>(
+                                new EncapSocketRecord(resourceId, pFd.getFileDescriptor(), port),
+                                binder));
+                return new IpSecUdpEncapResponse(IpSecManager.Status.OK, resourceId, port,
+                        pFd.getFileDescriptor());
+            } catch (IOException | ErrnoException e) {
+                try {
+                    if (pFd != null) {
+                        pFd.close();
+                    }
+                } catch (IOException ex) {
+                    // Nothing can be done at this point
+                    Log.e(TAG, "Failed to close pFd.");
                 }
-            } catch (IOException ex) {
-                // Nothing can be done at this point
-                Log.e(TAG, "Failed to close pFd.");
             }
+            // If we make it to here, then something has gone wrong and we couldn't open a socket.
+            // The only reasonable condition that would cause that is resource unavailable.
+            return new IpSecUdpEncapResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
         }
-        // If we make it to here, then something has gone wrong and we couldn't open a socket.
-        // The only reasonable condition that would cause that is resource unavailable.
-        return new IpSecUdpEncapResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
     }
 
     /** close a socket that has been been allocated by and registered with the system server */
     @Override
-    public synchronized void closeUdpEncapsulationSocket(int resourceId) throws RemoteException {
+    public void closeUdpEncapsulationSocket(int resourceId) throws RemoteException {
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        releaseResource(userRecord.mEncapSocketRecords, resourceId);
+        synchronized (userRecord) {
+            releaseResource(userRecord.mEncapSocketRecords, resourceId);
+        }
     }
 
     /**
@@ -1276,7 +1490,7 @@ public class IpSecService extends IIpSecService.Stub {
      * needed.
      */
     @Override
-    public synchronized IpSecTunnelInterfaceResponse createTunnelInterface(
+    public IpSecTunnelInterfaceResponse createTunnelInterface(
             String localAddr, String remoteAddr, Network underlyingNetwork, IBinder binder,
             String callingPackage) {
         enforceTunnelFeatureAndPermissions(callingPackage);
@@ -1290,94 +1504,99 @@ public class IpSecService extends IIpSecService.Stub {
 
         int callerUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callerUid);
-        if (!userRecord.mTunnelQuotaTracker.isAvailable()) {
-            return new IpSecTunnelInterfaceResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
-        }
+        synchronized (userRecord) {
+            if (!userRecord.mTunnelQuotaTracker.isAvailable()) {
+                return new IpSecTunnelInterfaceResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
+            }
 
-        final int resourceId = mNextResourceId++;
-        final int ikey = reserveNetId();
-        final int okey = reserveNetId();
-        String intfName = String.format("%s%d", INetd.IPSEC_INTERFACE_PREFIX, resourceId);
+            final int resourceId = mNextResourceId.getAndIncrement();
+            final int ikey = reserveNetId();
+            final int okey = reserveNetId();
+            String intfName = String.format("%s%d", INetd.IPSEC_INTERFACE_PREFIX, resourceId);
 
-        try {
-            // Calls to netd:
-            //       Create VTI
-            //       Add inbound/outbound global policies
-            //              (use reqid = 0)
-            mNetd.ipSecAddTunnelInterface(intfName, localAddr, remoteAddr, ikey, okey, resourceId);
-
-            BinderUtils.withCleanCallingIdentity(() -> {
-                NetdUtils.setInterfaceUp(mNetd, intfName);
-            });
-
-            for (int selAddrFamily : ADDRESS_FAMILIES) {
-                // Always send down correct local/remote addresses for template.
-                mNetd.ipSecAddSecurityPolicy(
-                        callerUid,
-                        selAddrFamily,
-                        IpSecManager.DIRECTION_OUT,
-                        localAddr,
-                        remoteAddr,
-                        0,
-                        okey,
-                        0xffffffff,
-                        resourceId);
-                mNetd.ipSecAddSecurityPolicy(
-                        callerUid,
-                        selAddrFamily,
-                        IpSecManager.DIRECTION_IN,
-                        remoteAddr,
-                        localAddr,
-                        0,
-                        ikey,
-                        0xffffffff,
-                        resourceId);
-
-                // Add a forwarding policy on the tunnel interface. In order to support forwarding
-                // the IpSecTunnelInterface must have a forwarding policy matching the incoming SA.
-                //
-                // Unless a IpSecTransform is also applied against this interface in DIRECTION_FWD,
-                // forwarding will be blocked by default (as would be the case if this policy was
-                // absent).
-                //
-                // This is necessary only on the tunnel interface, and not any the interface to
-                // which traffic will be forwarded to.
-                mNetd.ipSecAddSecurityPolicy(
-                        callerUid,
-                        selAddrFamily,
-                        IpSecManager.DIRECTION_FWD,
-                        remoteAddr,
-                        localAddr,
-                        0,
-                        ikey,
-                        0xffffffff,
-                        resourceId);
-            }
+            try {
+                // Calls to netd:
+                //       Create VTI
+                //       Add inbound/outbound global policies
+                //              (use reqid = 0)
+                mNetd.ipSecAddTunnelInterface(
+                        intfName, localAddr, remoteAddr, ikey, okey, resourceId);
+
+                BinderUtils.withCleanCallingIdentity(() -> {
+                    NetdUtils.setInterfaceUp(mNetd, intfName);
+                });
 
-            userRecord.mTunnelInterfaceRecords.put(
-                    resourceId,
-                    new RefcountedResource<TunnelInterfaceRecord>(
-                            new TunnelInterfaceRecord(
-                                    resourceId,
-                                    intfName,
-                                    underlyingNetwork,
-                                    localAddr,
-                                    remoteAddr,
-                                    ikey,
-                                    okey,
-                                    resourceId),
-                            binder));
-            return new IpSecTunnelInterfaceResponse(IpSecManager.Status.OK, resourceId, intfName);
-        } catch (RemoteException e) {
-            // Release keys if we got an error.
-            releaseNetId(ikey);
-            releaseNetId(okey);
-            throw e.rethrowFromSystemServer();
-        } catch (Throwable t) {
-            // Release keys if we got an error.
-            releaseNetId(ikey);
-            releaseNetId(okey);
-            throw t;
+                for (int selAddrFamily : ADDRESS_FAMILIES) {
+                    // Always send down correct local/remote addresses for template.
+                    mNetd.ipSecAddSecurityPolicy(
+                            callerUid,
+                            selAddrFamily,
+                            IpSecManager.DIRECTION_OUT,
+                            localAddr,
+                            remoteAddr,
+                            0,
+                            okey,
+                            0xffffffff,
+                            resourceId);
+                    mNetd.ipSecAddSecurityPolicy(
+                            callerUid,
+                            selAddrFamily,
+                            IpSecManager.DIRECTION_IN,
+                            remoteAddr,
+                            localAddr,
+                            0,
+                            ikey,
+                            0xffffffff,
+                            resourceId);
+
+                    // Add a forwarding policy on the tunnel interface. In order to support
+                    // forwarding the IpSecTunnelInterface must have a forwarding policy matching
+                    // the incoming SA.
+                    //
+                    // Unless a IpSecTransform is also applied against this interface in
+                    // DIRECTION_FWD, forwarding will be blocked by default (as would be the case
+                    // if this policy was absent).
+                    //
+                    // This is necessary only on the tunnel interface, and not any the interface
+                    // to which traffic will be forwarded to.
+                    mNetd.ipSecAddSecurityPolicy(
+                            callerUid,
+                            selAddrFamily,
+                            IpSecManager.DIRECTION_FWD,
+                            remoteAddr,
+                            localAddr,
+                            0,
+                            ikey,
+                            0xffffffff,
+                            resourceId);
+                }
+
+                userRecord.mTunnelInterfaceRecords.put(
+                        resourceId,
+                        new RefcountedResource<TunnelInterfaceRecord>(
+                                new TunnelInterfaceRecord(
+                                        resourceId,
+                                        intfName,
+                                        underlyingNetwork,
+                                        localAddr,
+                                        remoteAddr,
+                                        ikey,
+                                        okey,
+                                        resourceId),
+                                binder));
+                return new IpSecTunnelInterfaceResponse(
+                        IpSecManager.Status.OK, resourceId, intfName);
+            } catch (RemoteException e) {
+                // Release keys if we got an error.
+                releaseNetId(ikey);
+                releaseNetId(okey);
+                throw e.rethrowFromSystemServer();
+            } catch (Throwable t) {
+                // Release keys if we got an error.
+                releaseNetId(ikey);
+                releaseNetId(okey);
+                throw t;
+            }
         }
     }
 
@@ -1386,25 +1605,27 @@ public class IpSecService extends IIpSecService.Stub {
      * from multiple local IP addresses over the same tunnel.
      */
     @Override
-    public synchronized void addAddressToTunnelInterface(
+    public void addAddressToTunnelInterface(
             int tunnelResourceId, LinkAddress localAddr, String callingPackage) {
         enforceTunnelFeatureAndPermissions(callingPackage);
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
+        synchronized (userRecord) {
 
-        // Get tunnelInterface record; if no such interface is found, will throw
-        // IllegalArgumentException
-        TunnelInterfaceRecord tunnelInterfaceInfo =
-                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+            // Get tunnelInterface record; if no such interface is found, will throw
+            // IllegalArgumentException
+            TunnelInterfaceRecord tunnelInterfaceInfo =
+                    userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
 
-        try {
-            // We can assume general validity of the IP address, since we get them as a
-            // LinkAddress, which does some validation.
-            mNetd.interfaceAddAddress(
-                    tunnelInterfaceInfo.mInterfaceName,
-                    localAddr.getAddress().getHostAddress(),
-                    localAddr.getPrefixLength());
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
+            try {
+                // We can assume general validity of the IP address, since we get them as a
+                // LinkAddress, which does some validation.
+                mNetd.interfaceAddAddress(
+                        tunnelInterfaceInfo.mInterfaceName,
+                        localAddr.getAddress().getHostAddress(),
+                        localAddr.getPrefixLength());
+            } catch (RemoteException e) {
+                throw e.rethrowFromSystemServer();
+            }
         }
     }
 
@@ -1413,59 +1634,63 @@ public class IpSecService extends IIpSecService.Stub {
      * longer be available to send from, or receive on.
      */
     @Override
-    public synchronized void removeAddressFromTunnelInterface(
+    public void removeAddressFromTunnelInterface(
             int tunnelResourceId, LinkAddress localAddr, String callingPackage) {
         enforceTunnelFeatureAndPermissions(callingPackage);
 
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        // Get tunnelInterface record; if no such interface is found, will throw
-        // IllegalArgumentException
-        TunnelInterfaceRecord tunnelInterfaceInfo =
-                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        synchronized (userRecord) {
+            // Get tunnelInterface record; if no such interface is found, will throw
+            // IllegalArgumentException
+            TunnelInterfaceRecord tunnelInterfaceInfo =
+                    userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
 
-        try {
-            // We can assume general validity of the IP address, since we get them as a
-            // LinkAddress, which does some validation.
-            mNetd.interfaceDelAddress(
-                            tunnelInterfaceInfo.mInterfaceName,
-                            localAddr.getAddress().getHostAddress(),
-                            localAddr.getPrefixLength());
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
+            try {
+                // We can assume general validity of the IP address, since we get them as a
+                // LinkAddress, which does some validation.
+                mNetd.interfaceDelAddress(
+                                tunnelInterfaceInfo.mInterfaceName,
+                                localAddr.getAddress().getHostAddress(),
+                                localAddr.getPrefixLength());
+            } catch (RemoteException e) {
+                throw e.rethrowFromSystemServer();
+            }
         }
     }
 
     /** Set TunnelInterface to use a specific underlying network. */
     @Override
-    public synchronized void setNetworkForTunnelInterface(
+    public void setNetworkForTunnelInterface(
             int tunnelResourceId, Network underlyingNetwork, String callingPackage) {
         enforceTunnelFeatureAndPermissions(callingPackage);
         Objects.requireNonNull(underlyingNetwork, "No underlying network was specified");
 
         final UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
+        synchronized (userRecord) {
 
-        // Get tunnelInterface record; if no such interface is found, will throw
-        // IllegalArgumentException. userRecord.mTunnelInterfaceRecords is never null
-        final TunnelInterfaceRecord tunnelInterfaceInfo =
-                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+            // Get tunnelInterface record; if no such interface is found, will throw
+            // IllegalArgumentException. userRecord.mTunnelInterfaceRecords is never null
+            final TunnelInterfaceRecord tunnelInterfaceInfo =
+                    userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
 
-        final ConnectivityManager connectivityManager =
-                mContext.getSystemService(ConnectivityManager.class);
-        final LinkProperties lp = connectivityManager.getLinkProperties(underlyingNetwork);
-        if (lp == null) {
-            throw new IllegalArgumentException(
-                    "LinkProperties is null. The underlyingNetwork may not be functional");
-        }
+            final ConnectivityManager connectivityManager =
+                    mContext.getSystemService(ConnectivityManager.class);
+            final LinkProperties lp = connectivityManager.getLinkProperties(underlyingNetwork);
+            if (lp == null) {
+                throw new IllegalArgumentException(
+                        "LinkProperties is null. The underlyingNetwork may not be functional");
+            }
 
-        if (tunnelInterfaceInfo.getInterfaceName().equals(lp.getInterfaceName())) {
-            throw new IllegalArgumentException(
-                    "Underlying network cannot be the network being exposed by this tunnel");
-        }
+            if (tunnelInterfaceInfo.getInterfaceName().equals(lp.getInterfaceName())) {
+                throw new IllegalArgumentException(
+                        "Underlying network cannot be the network being exposed by this tunnel");
+            }
 
-        // It is meaningless to check if the network exists or is valid because the network might
-        // disconnect at any time after it passes the check.
+            // It is meaningless to check if the network exists or is valid because the network
+            // might disconnect at any time after it passes the check.
 
-        tunnelInterfaceInfo.setUnderlyingNetwork(underlyingNetwork);
+            tunnelInterfaceInfo.setUnderlyingNetwork(underlyingNetwork);
+        }
     }
 
     /**
@@ -1473,11 +1698,13 @@ public class IpSecService extends IIpSecService.Stub {
      * server
      */
     @Override
-    public synchronized void deleteTunnelInterface(
+    public void deleteTunnelInterface(
             int resourceId, String callingPackage) throws RemoteException {
         enforceTunnelFeatureAndPermissions(callingPackage);
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        releaseResource(userRecord.mTunnelInterfaceRecords, resourceId);
+        synchronized (userRecord) {
+            releaseResource(userRecord.mTunnelInterfaceRecords, resourceId);
+        }
     }
 
     @VisibleForTesting
@@ -1675,22 +1902,89 @@ public class IpSecService extends IIpSecService.Stub {
      * result in all of those sockets becoming unable to send or receive data.
      */
     @Override
-    public synchronized IpSecTransformResponse createTransform(
+    public IpSecTransformResponse createTransform(
             IpSecConfig c, IBinder binder, String callingPackage) throws RemoteException {
         Objects.requireNonNull(c);
         if (c.getMode() == IpSecTransform.MODE_TUNNEL) {
             enforceTunnelFeatureAndPermissions(callingPackage);
         }
-        checkIpSecConfig(c);
         Objects.requireNonNull(binder, "Null Binder passed to createTransform");
-        final int resourceId = mNextResourceId++;
 
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        List<RefcountedResource> dependencies = new ArrayList<>();
+        synchronized (userRecord) {
+            checkIpSecConfig(c);
+            if (!userRecord.mTransformQuotaTracker.isAvailable()) {
+                return new IpSecTransformResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
+            }
+            return createTransformLocked(userRecord, c, binder);
+        }
+    }
+
+    /**
+     * Create several IPsec transforms at once, typically the inbound and outbound security
+     * associations of a connection.
+     *
+     * <p>The transforms are created atomically with respect to the caller: either all of them are
+     * created, or none of them are. If the caller does not have enough quota left for all of the
+     * transforms, a single response with RESOURCE_UNAVAILABLE status is returned.
+     */
+    @Override
+    public IpSecTransformResponse[] createTransforms(
+            IpSecConfig[] configs, IBinder binder, String callingPackage) throws RemoteException {
+        Objects.requireNonNull(configs);
+        for (IpSecConfig c : configs) {
+            Objects.requireNonNull(c);
+            if (c.getMode() == IpSecTransform.MODE_TUNNEL) {
+                enforceTunnelFeatureAndPermissions(callingPackage);
+            }
+        }
+        Objects.requireNonNull(binder, "Null Binder passed to createTransforms");
 
-        if (!userRecord.mTransformQuotaTracker.isAvailable()) {
-            return new IpSecTransformResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
+        UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
+        synchronized (userRecord) {
+            final ArraySet<Integer> spiResourceIds = new ArraySet<>();
+            for (IpSecConfig c : configs) {
+                checkIpSecConfig(c);
+                if (!spiResourceIds.add(c.getSpiResourceId())) {
+                    throw new IllegalStateException(
+                            "SPI already in use; cannot be used in new Transforms");
+                }
+            }
+            if (!userRecord.mTransformQuotaTracker.isAvailable(configs.length)) {
+                return new IpSecTransformResponse[] {
+                    new IpSecTransformResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE)
+                };
+            }
+
+            final IpSecTransformResponse[] responses = new IpSecTransformResponse[configs.length];
+            try {
+                for (int i = 0; i < configs.length; i++) {
+                    responses[i] = createTransformLocked(userRecord, configs[i], binder);
+                }
+            } catch (RemoteException | RuntimeException e) {
+                // Roll back the transforms that were already created. Their SAs are handed back
+                // to their SPIs, so that the caller can retry with the same SPIs.
+                for (IpSecTransformResponse response : responses) {
+                    if (response == null) break;
+                    try {
+                        userRecord.mTransformRecords.getResourceOrThrow(response.resourceId)
+                                .returnSaToSpi();
+                        releaseResource(userRecord.mTransformRecords, response.resourceId);
+                    } catch (RemoteException | RuntimeException ignored) {
+                        Log.e(TAG, "Failed to roll back transform " + response.resourceId);
+                    }
+                }
+                throw e;
+            }
+            return responses;
         }
+    }
+
+    @GuardedBy("userRecord")
+    private IpSecTransformResponse createTransformLocked(
+            UserRecord userRecord, IpSecConfig c, IBinder binder) throws RemoteException {
+        final int resourceId = mNextResourceId.getAndIncrement();
+        List<RefcountedResource> dependencies = new ArrayList<>();
 
         EncapSocketRecord socketRecord = null;
         if (c.getEncapType() != IpSecTransform.ENCAP_NONE) {
@@ -1725,9 +2019,11 @@ public class IpSecService extends IIpSecService.Stub {
      * other reasons.
      */
     @Override
-    public synchronized void deleteTransform(int resourceId) throws RemoteException {
+    public void deleteTransform(int resourceId) throws RemoteException {
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        releaseResource(userRecord.mTransformRecords, resourceId);
+        synchronized (userRecord) {
+            releaseResource(userRecord.mTransformRecords, resourceId);
+        }
     }
 
     /**
@@ -1735,32 +2031,34 @@ public class IpSecService extends IIpSecService.Stub {
      * association as a correspondent policy to the provided socket
      */
     @Override
-    public synchronized void applyTransportModeTransform(
+    public void applyTransportModeTransform(
             ParcelFileDescriptor socket, int direction, int resourceId) throws RemoteException {
         int callingUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
-        checkDirection(direction);
-        // Get transform record; if no transform is found, will throw IllegalArgumentException
-        TransformRecord info = userRecord.mTransformRecords.getResourceOrThrow(resourceId);
-
-        // TODO: make this a function.
-        if (info.mPid != getCallingPid() || info.mUid != callingUid) {
-            throw new SecurityException("Only the owner of an IpSec Transform may apply it!");
-        }
+        synchronized (userRecord) {
+            checkDirection(direction);
+            // Get transform record; if no transform is found, will throw IllegalArgumentException
+            TransformRecord info = userRecord.mTransformRecords.getResourceOrThrow(resourceId);
+
+            // TODO: make this a function.
+            if (info.mPid != getCallingPid() || info.mUid != callingUid) {
+                throw new SecurityException("Only the owner of an IpSec Transform may apply it!");
+            }
 
-        // Get config and check that to-be-applied transform has the correct mode
-        IpSecConfig c = info.getConfig();
-        Preconditions.checkArgument(
-                c.getMode() == IpSecTransform.MODE_TRANSPORT,
-                "Transform mode was not Transport mode; cannot be applied to a socket");
+            // Get config and check that to-be-applied transform has the correct mode
+            IpSecConfig c = info.getConfig();
+            Preconditions.checkArgument(
+                    c.getMode() == IpSecTransform.MODE_TRANSPORT,
+                    "Transform mode was not Transport mode; cannot be applied to a socket");
 
-        mNetd.ipSecApplyTransportModeTransform(
-                socket,
-                callingUid,
-                direction,
-                c.getSourceAddress(),
-                c.getDestinationAddress(),
-                info.getSpiRecord().getSpi());
+            mNetd.ipSecApplyTransportModeTransform(
+                    socket,
+                    callingUid,
+                    direction,
+                    c.getSourceAddress(),
+                    c.getDestinationAddress(),
+                    info.getSpiRecord().getSpi());
+        }
     }
 
     /**
@@ -1770,7 +2068,7 @@ public class IpSecService extends IIpSecService.Stub {
      * reserved for future improved input validation.
      */
     @Override
-    public synchronized void removeTransportModeTransforms(ParcelFileDescriptor socket)
+    public void removeTransportModeTransforms(ParcelFileDescriptor socket)
             throws RemoteException {
         mNetd.ipSecRemoveTransportModeTransform(socket);
     }
@@ -1780,7 +2078,7 @@ public class IpSecService extends IIpSecService.Stub {
      * security association as a correspondent policy to the provided interface
      */
     @Override
-    public synchronized void applyTunnelModeTransform(
+    public void applyTunnelModeTransform(
             int tunnelResourceId, int direction,
             int transformResourceId, String callingPackage) throws RemoteException {
         enforceTunnelFeatureAndPermissions(callingPackage);
@@ -1788,90 +2086,93 @@ public class IpSecService extends IIpSecService.Stub {
 
         int callingUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
+        synchronized (userRecord) {
+
+            // Get transform record; if no transform is found, will throw IllegalArgumentException
+            TransformRecord transformInfo =
+                    userRecord.mTransformRecords.getResourceOrThrow(transformResourceId);
+
+            // Get tunnelInterface record; if no such interface is found, will throw
+            // IllegalArgumentException
+            TunnelInterfaceRecord tunnelInterfaceInfo =
+                    userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+
+            // Get config and check that to-be-applied transform has the correct mode
+            IpSecConfig c = transformInfo.getConfig();
+            Preconditions.checkArgument(
+                    c.getMode() == IpSecTransform.MODE_TUNNEL,
+                    "Transform mode was not Tunnel mode; cannot be applied to a tunnel interface");
+
+            EncapSocketRecord socketRecord = null;
+            if (c.getEncapType() != IpSecTransform.ENCAP_NONE) {
+                socketRecord = userRecord.mEncapSocketRecords.getResourceOrThrow(
+                        c.getEncapSocketResourceId());
+            }
+            SpiRecord spiRecord = transformInfo.getSpiRecord();
 
-        // Get transform record; if no transform is found, will throw IllegalArgumentException
-        TransformRecord transformInfo =
-                userRecord.mTransformRecords.getResourceOrThrow(transformResourceId);
-
-        // Get tunnelInterface record; if no such interface is found, will throw
-        // IllegalArgumentException
-        TunnelInterfaceRecord tunnelInterfaceInfo =
-                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+            int mark =
+                    (direction == IpSecManager.DIRECTION_OUT)
+                            ? tunnelInterfaceInfo.getOkey()
+                            : tunnelInterfaceInfo.getIkey(); // Ikey also used for FWD policies
 
-        // Get config and check that to-be-applied transform has the correct mode
-        IpSecConfig c = transformInfo.getConfig();
-        Preconditions.checkArgument(
-                c.getMode() == IpSecTransform.MODE_TUNNEL,
-                "Transform mode was not Tunnel mode; cannot be applied to a tunnel interface");
-
-        EncapSocketRecord socketRecord = null;
-        if (c.getEncapType() != IpSecTransform.ENCAP_NONE) {
-            socketRecord =
-                    userRecord.mEncapSocketRecords.getResourceOrThrow(c.getEncapSocketResourceId());
-        }
-        SpiRecord spiRecord = transformInfo.getSpiRecord();
+            try {
+                // Default to using the invalid SPI of 0 for inbound SAs. This allows policies to
+                // skip SPI matching as part of the template resolution.
+                int spi = IpSecManager.INVALID_SECURITY_PARAMETER_INDEX;
+                c.setXfrmInterfaceId(tunnelInterfaceInfo.getIfId());
+
+                // TODO: enable this when UPDSA supports updating marks. Adding kernel support
+                //     upstream (and backporting) would allow us to narrow the mark space, and
+                //     ensure that the SA and SPs have matching marks (as VTI are meant to be
+                //     built).
+                // Currently update does nothing with marks. Leave empty (defaulting to 0) to ensure
+                //     the config matches the actual allocated resources in the kernel.
+                // All SAs will have zero marks (from creation time), and any policy that matches
+                //     the same src/dst could match these SAs. Non-IpSecService governed processes
+                //     that establish floating policies with the same src/dst may result in
+                //     undefined behavior. This is generally limited to vendor code due to the
+                //     permissions (CAP_NET_ADMIN) required.
+                //
+                // c.setMarkValue(mark);
+                // c.setMarkMask(0xffffffff);
 
-        int mark =
-                (direction == IpSecManager.DIRECTION_OUT)
-                        ? tunnelInterfaceInfo.getOkey()
-                        : tunnelInterfaceInfo.getIkey(); // Ikey also used for FWD policies
+                if (direction == IpSecManager.DIRECTION_OUT) {
+                    // Set output mark via underlying network (output only)
+                    c.setNetwork(tunnelInterfaceInfo.getUnderlyingNetwork());
 
-        try {
-            // Default to using the invalid SPI of 0 for inbound SAs. This allows policies to skip
-            // SPI matching as part of the template resolution.
-            int spi = IpSecManager.INVALID_SECURITY_PARAMETER_INDEX;
-            c.setXfrmInterfaceId(tunnelInterfaceInfo.getIfId());
-
-            // TODO: enable this when UPDSA supports updating marks. Adding kernel support upstream
-            //     (and backporting) would allow us to narrow the mark space, and ensure that the SA
-            //     and SPs have matching marks (as VTI are meant to be built).
-            // Currently update does nothing with marks. Leave empty (defaulting to 0) to ensure the
-            //     config matches the actual allocated resources in the kernel.
-            // All SAs will have zero marks (from creation time), and any policy that matches the
-            //     same src/dst could match these SAs. Non-IpSecService governed processes that
-            //     establish floating policies with the same src/dst may result in undefined
-            //     behavior. This is generally limited to vendor code due to the permissions
-            //     (CAP_NET_ADMIN) required.
-            //
-            // c.setMarkValue(mark);
-            // c.setMarkMask(0xffffffff);
-
-            if (direction == IpSecManager.DIRECTION_OUT) {
-                // Set output mark via underlying network (output only)
-                c.setNetwork(tunnelInterfaceInfo.getUnderlyingNetwork());
-
-                // Set outbound SPI only. We want inbound to use any valid SA (old, new) on rekeys,
-                // but want to guarantee outbound packets are sent over the new SA.
-                spi = spiRecord.getSpi();
-            }
+                    // Set outbound SPI only. We want inbound to use any valid SA (old, new) on
+                    // rekeys, but want to guarantee outbound packets are sent over the new SA.
+                    spi = spiRecord.getSpi();
+                }
 
-            // Always update the policy with the relevant XFRM_IF_ID
-            for (int selAddrFamily : ADDRESS_FAMILIES) {
-                mNetd.ipSecUpdateSecurityPolicy(
-                        callingUid,
-                        selAddrFamily,
-                        direction,
-                        transformInfo.getConfig().getSourceAddress(),
-                        transformInfo.getConfig().getDestinationAddress(),
-                        spi, // If outbound, also add SPI to the policy.
-                        mark, // Must always set policy mark; ikey/okey for VTIs
-                        0xffffffff,
-                        c.getXfrmInterfaceId());
-            }
+                // Always update the policy with the relevant XFRM_IF_ID
+                for (int selAddrFamily : ADDRESS_FAMILIES) {
+                    mNetd.ipSecUpdateSecurityPolicy(
+                            callingUid,
+                            selAddrFamily,
+                            direction,
+                            transformInfo.getConfig().getSourceAddress(),
+                            transformInfo.getConfig().getDestinationAddress(),
+                            spi, // If outbound, also add SPI to the policy.
+                            mark, // Must always set policy mark; ikey/okey for VTIs
+                            0xffffffff,
+                            c.getXfrmInterfaceId());
+                }
 
-            // Update SA with tunnel mark (ikey or okey based on direction)
-            createOrUpdateTransform(c, transformResourceId, spiRecord, socketRecord);
-        } catch (ServiceSpecificException e) {
-            if (e.errorCode == EINVAL) {
-                throw new IllegalArgumentException(e.toString());
-            } else {
-                throw e;
+                // Update SA with tunnel mark (ikey or okey based on direction)
+                createOrUpdateTransform(c, transformResourceId, spiRecord, socketRecord);
+            } catch (ServiceSpecificException e) {
+                if (e.errorCode == EINVAL) {
+                    throw new IllegalArgumentException(e.toString());
+                } else {
+                    throw e;
+                }
             }
         }
     }
 
     @Override
-    protected synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         mContext.enforceCallingOrSelfPermission(DUMP, TAG);
 
         pw.println("IpSecService dump:");
@@ -1879,5 +2180,10 @@ public class IpSecService extends IIpSecService.Stub {
 
         pw.println("mUserResourceTracker:");
         pw.println(mUserResourceTracker);
+        pw.println();
+
+        pw.println("Encap socket ports: localPortRange=" + mLocalPortRange
+                + " directBinds=" + mDirectPortBinds.get()
+                + " probeBinds=" + mProbePortBinds.get());
     }
 }
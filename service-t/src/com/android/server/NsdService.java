@@ -42,7 +42,9 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
 import android.util.SparseArray;
@@ -59,6 +61,10 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
 /**
  * Network Service Discovery Service handles remote service discovery operation requests by
@@ -73,6 +79,13 @@ public class NsdService extends INsdManager.Stub {
     private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
     private static final long CLEANUP_DELAY_MS = 10000;
     private static final int IFACE_IDX_ANY = 0;
+    // How long a resolved service is used to answer new resolve requests for the same service.
+    private static final long RESOLVE_CACHE_TTL_MS = 10_000;
+    private static final int RESOLVE_CACHE_MAX_ENTRIES = 32;
+    // How many found services a shared discovery keeps to report to requests joining it, in case
+    // mdnsresponder never reports some of them as lost.
+    @VisibleForTesting
+    static final int MAX_FOUND_SERVICES_PER_DISCOVERY = 256;
 
     private final Context mContext;
     private final NsdStateMachine mNsdStateMachine;
@@ -91,6 +104,19 @@ public class NsdService extends INsdManager.Stub {
     /* A map from unique id to client info */
     private final SparseArray<ClientInfo> mIdToClientInfoMap= new SparseArray<>();
 
+    /* Discoveries running in mdnsresponder, by service type and interface index */
+    private final HashMap<Pair<String, Integer>, SharedDiscovery> mDiscoveries = new HashMap<>();
+
+    /* A map from the id of a discovery in mdnsresponder to the discovery */
+    private final SparseArray<SharedDiscovery> mMdnsIdToDiscovery = new SparseArray<>();
+
+    /* A map from the unique id of a client discovery request to the discovery it uses */
+    private final SparseArray<SharedDiscovery> mRequestIdToDiscovery = new SparseArray<>();
+
+    /* Recently resolved services, in insertion order */
+    private final LinkedHashMap<ResolveKey, CachedResolution> mResolveCache =
+            new LinkedHashMap<>();
+
     private final long mCleanupDelayMs;
 
     private static final int INVALID_ID = 0;
@@ -271,6 +297,7 @@ public class NsdService extends INsdManager.Stub {
 
             private void storeRequestMap(int clientId, int globalId, ClientInfo clientInfo, int what) {
                 clientInfo.mClientIds.put(clientId, globalId);
+                clientInfo.mGlobalIds.put(globalId, clientId);
                 clientInfo.mClientRequests.put(clientId, what);
                 mIdToClientInfoMap.put(globalId, clientInfo);
                 // Remove the cleanup event because here comes a new request.
@@ -278,6 +305,7 @@ public class NsdService extends INsdManager.Stub {
             }
 
             private void removeRequestMap(int clientId, int globalId, ClientInfo clientInfo) {
+                clientInfo.mGlobalIds.delete(globalId);
                 clientInfo.mClientIds.delete(clientId);
                 clientInfo.mClientRequests.delete(clientId);
                 mIdToClientInfoMap.remove(globalId);
@@ -304,15 +332,20 @@ public class NsdService extends INsdManager.Stub {
 
                         maybeStartDaemon();
                         id = getUniqueId();
-                        if (discoverServices(id, args.serviceInfo)) {
+                        final SharedDiscovery discovery = discoverServices(id, args.serviceInfo);
+                        if (discovery != null) {
                             if (DBG) {
                                 Log.d(TAG, "Discover " + msg.arg2 + " " + id
-                                        + args.serviceInfo.getServiceType());
+                                        + args.serviceInfo.getServiceType()
+                                        + " using discovery " + discovery.mMdnsId);
                             }
                             storeRequestMap(clientId, id, clientInfo, msg.what);
                             clientInfo.onDiscoverServicesStarted(clientId, args.serviceInfo);
+                            // Report the services already found by a discovery that was running.
+                            for (DiscoveryInfo info : discovery.mFoundServices.values()) {
+                                clientInfo.onServiceFound(clientId, makeFoundServiceInfo(info));
+                            }
                         } else {
-                            stopServiceDiscovery(id);
                             clientInfo.onDiscoverServicesFailed(clientId,
                                     NsdManager.FAILURE_INTERNAL_ERROR);
                         }
@@ -387,10 +420,19 @@ public class NsdService extends INsdManager.Stub {
                             break;
                         }
 
+                        final ResolveKey resolveKey = new ResolveKey(args.serviceInfo);
+                        final NsdServiceInfo cachedService = getCachedResolution(resolveKey);
+                        if (cachedService != null) {
+                            if (DBG) Log.d(TAG, "Resolved " + clientId + " from cache");
+                            clientInfo.onResolveServiceSucceeded(clientId, cachedService);
+                            break;
+                        }
+
                         maybeStartDaemon();
                         id = getUniqueId();
                         if (resolveService(id, args.serviceInfo)) {
                             clientInfo.mResolvedService = new NsdServiceInfo();
+                            clientInfo.mResolveKey = resolveKey;
                             storeRequestMap(clientId, id, clientInfo, msg.what);
                         } else {
                             clientInfo.onResolveServiceFailed(
@@ -408,7 +450,82 @@ public class NsdService extends INsdManager.Stub {
                 return HANDLED;
             }
 
+            private boolean handleDiscoveryEvent(SharedDiscovery discovery, int code, Object obj) {
+                if (DBG) {
+                    Log.d(TAG, String.format("MDns discovery event code:%d id=%d", code,
+                            discovery.mMdnsId));
+                }
+                final NsdServiceInfo servInfo;
+                switch (code) {
+                    case IMDnsEventListener.SERVICE_FOUND: {
+                        final DiscoveryInfo info = (DiscoveryInfo) obj;
+                        if (info.netId == 0L) {
+                            // Ignore services that do not have a Network: they are not usable
+                            // by apps, as they would need privileged permissions to use
+                            // interfaces that do not have an associated Network.
+                            return true;
+                        }
+                        discovery.addFoundService(info);
+                        servInfo = makeFoundServiceInfo(info);
+                        break;
+                    }
+                    case IMDnsEventListener.SERVICE_LOST: {
+                        final DiscoveryInfo info = (DiscoveryInfo) obj;
+                        discovery.mFoundServices.remove(SharedDiscovery.getServiceKey(info));
+                        invalidateCachedResolutions(info.serviceName);
+                        servInfo = new NsdServiceInfo(info.serviceName, info.registrationType);
+                        // The network could be set to null (netId 0) if it was torn down when the
+                        // service is lost
+                        // TODO: avoid returning null in that case, possibly by remembering
+                        // found services on the same interface index and their network at the time
+                        setServiceNetworkForCallback(servInfo, info.netId, info.interfaceIdx);
+                        break;
+                    }
+                    case IMDnsEventListener.SERVICE_DISCOVERY_FAILED:
+                        // Requests for the same service type and interface will start a new
+                        // discovery; the failed one is still stopped when its requests are.
+                        mDiscoveries.remove(discovery.mKey, discovery);
+                        mMdnsIdToDiscovery.remove(discovery.mMdnsId);
+                        discovery.mFoundServices.clear();
+                        servInfo = null;
+                        break;
+                    default:
+                        return false;
+                }
+
+                for (int requestId : discovery.mRequestIds) {
+                    final ClientInfo clientInfo = mIdToClientInfoMap.get(requestId);
+                    final int clientId = (clientInfo == null) ? -1
+                            : clientInfo.getClientId(requestId);
+                    if (clientId < 0) {
+                        Log.d(TAG, String.format("%d for listener id %d that is no longer active",
+                                code, requestId));
+                        if (clientInfo != null) clientInfo.mDroppedEventCount++;
+                        continue;
+                    }
+                    clientInfo.countEvent(code);
+                    switch (code) {
+                        case IMDnsEventListener.SERVICE_FOUND:
+                            clientInfo.onServiceFound(clientId, servInfo);
+                            break;
+                        case IMDnsEventListener.SERVICE_LOST:
+                            clientInfo.onServiceLost(clientId, servInfo);
+                            break;
+                        case IMDnsEventListener.SERVICE_DISCOVERY_FAILED:
+                            clientInfo.onDiscoverServicesFailed(
+                                    clientId, NsdManager.FAILURE_INTERNAL_ERROR);
+                            break;
+                    }
+                }
+                return true;
+            }
+
             private boolean handleMDnsServiceEvent(int code, int id, Object obj) {
+                final SharedDiscovery discovery = mMdnsIdToDiscovery.get(id);
+                if (discovery != null) {
+                    return handleDiscoveryEvent(discovery, code, obj);
+                }
+
                 NsdServiceInfo servInfo;
                 ClientInfo clientInfo = mIdToClientInfoMap.get(id);
                 if (clientInfo == null) {
@@ -424,46 +541,14 @@ public class NsdService extends INsdManager.Stub {
                     // and we may get in this situation.
                     Log.d(TAG, String.format("%d for listener id %d that is no longer active",
                             code, id));
+                    clientInfo.mDroppedEventCount++;
                     return false;
                 }
+                clientInfo.countEvent(code);
                 if (DBG) {
                     Log.d(TAG, String.format("MDns service event code:%d id=%d", code, id));
                 }
                 switch (code) {
-                    case IMDnsEventListener.SERVICE_FOUND: {
-                        final DiscoveryInfo info = (DiscoveryInfo) obj;
-                        final String name = info.serviceName;
-                        final String type = info.registrationType;
-                        servInfo = new NsdServiceInfo(name, type);
-                        final int foundNetId = info.netId;
-                        if (foundNetId == 0L) {
-                            // Ignore services that do not have a Network: they are not usable
-                            // by apps, as they would need privileged permissions to use
-                            // interfaces that do not have an associated Network.
-                            break;
-                        }
-                        setServiceNetworkForCallback(servInfo, info.netId, info.interfaceIdx);
-                        clientInfo.onServiceFound(clientId, servInfo);
-                        break;
-                    }
-                    case IMDnsEventListener.SERVICE_LOST: {
-                        final DiscoveryInfo info = (DiscoveryInfo) obj;
-                        final String name = info.serviceName;
-                        final String type = info.registrationType;
-                        final int lostNetId = info.netId;
-                        servInfo = new NsdServiceInfo(name, type);
-                        // The network could be set to null (netId 0) if it was torn down when the
-                        // service is lost
-                        // TODO: avoid returning null in that case, possibly by remembering
-                        // found services on the same interface index and their network at the time
-                        setServiceNetworkForCallback(servInfo, lostNetId, info.interfaceIdx);
-                        clientInfo.onServiceLost(clientId, servInfo);
-                        break;
-                    }
-                    case IMDnsEventListener.SERVICE_DISCOVERY_FAILED:
-                        clientInfo.onDiscoverServicesFailed(
-                                clientId, NsdManager.FAILURE_INTERNAL_ERROR);
-                        break;
                     case IMDnsEventListener.SERVICE_REGISTERED: {
                         final RegistrationInfo info = (RegistrationInfo) obj;
                         final String name = info.serviceName;
@@ -548,6 +633,7 @@ public class NsdService extends INsdManager.Stub {
                             clientInfo.mResolvedService.setHost(serviceHost);
                             setServiceNetworkForCallback(clientInfo.mResolvedService,
                                     netId, info.interfaceIdx);
+                            cacheResolution(clientInfo.mResolveKey, clientInfo.mResolvedService);
                             clientInfo.onResolveServiceSucceeded(
                                     clientId, clientInfo.mResolvedService);
                         } else {
@@ -776,18 +862,99 @@ public class NsdService extends INsdManager.Stub {
         return mMDnsManager.stopOperation(regId);
     }
 
-    private boolean discoverServices(int discoveryId, NsdServiceInfo serviceInfo) {
+    /**
+     * Add a discovery request to the discovery of the same service type on the same interface,
+     * starting that discovery in mdnsresponder with the id of the request if it is not running.
+     *
+     * @return the discovery used by the request, or null if it could not be started.
+     */
+    private SharedDiscovery discoverServices(int discoveryId, NsdServiceInfo serviceInfo) {
         final String type = serviceInfo.getServiceType();
         final int discoverInterface = getNetworkInterfaceIndex(serviceInfo);
         if (serviceInfo.getNetwork() != null && discoverInterface == IFACE_IDX_ANY) {
             Log.e(TAG, "Interface to discover service on not found");
-            return false;
+            return null;
+        }
+        final Pair<String, Integer> key = new Pair<>(type, discoverInterface);
+        SharedDiscovery discovery = mDiscoveries.get(key);
+        if (discovery == null) {
+            if (!mMDnsManager.discover(discoveryId, type, discoverInterface)) {
+                mMDnsManager.stopOperation(discoveryId);
+                return null;
+            }
+            discovery = new SharedDiscovery(discoveryId, key);
+            mDiscoveries.put(key, discovery);
+            mMdnsIdToDiscovery.put(discoveryId, discovery);
         }
-        return mMDnsManager.discover(discoveryId, type, discoverInterface);
+        discovery.mRequestIds.add(discoveryId);
+        mRequestIdToDiscovery.put(discoveryId, discovery);
+        return discovery;
     }
 
+    /**
+     * Remove a discovery request from its discovery, stopping the discovery in mdnsresponder if
+     * no other request uses it.
+     */
     private boolean stopServiceDiscovery(int discoveryId) {
-        return mMDnsManager.stopOperation(discoveryId);
+        final SharedDiscovery discovery = mRequestIdToDiscovery.get(discoveryId);
+        if (discovery == null) return mMDnsManager.stopOperation(discoveryId);
+        mRequestIdToDiscovery.remove(discoveryId);
+        discovery.mRequestIds.remove(discoveryId);
+        if (!discovery.mRequestIds.isEmpty()) return true;
+
+        mDiscoveries.remove(discovery.mKey, discovery);
+        mMdnsIdToDiscovery.remove(discovery.mMdnsId);
+        return mMDnsManager.stopOperation(discovery.mMdnsId);
+    }
+
+    private static NsdServiceInfo makeFoundServiceInfo(DiscoveryInfo info) {
+        final NsdServiceInfo servInfo = new NsdServiceInfo(info.serviceName,
+                info.registrationType);
+        setServiceNetworkForCallback(servInfo, info.netId, info.interfaceIdx);
+        return servInfo;
+    }
+
+    /**
+     * Get a copy of a recently resolved service matching a resolve request, or null if there is
+     * none. A copy is returned so that cached entries cannot be modified by clients.
+     */
+    private NsdServiceInfo getCachedResolution(ResolveKey key) {
+        final CachedResolution cached = mResolveCache.get(key);
+        if (cached == null) return null;
+        if (SystemClock.elapsedRealtime() - cached.mResolvedTimeMs > RESOLVE_CACHE_TTL_MS) {
+            mResolveCache.remove(key);
+            return null;
+        }
+        return copyServiceInfo(cached.mServiceInfo);
+    }
+
+    private void cacheResolution(ResolveKey key, NsdServiceInfo service) {
+        // Re-insert so that the entry becomes the most recent one.
+        mResolveCache.remove(key);
+        mResolveCache.put(key, new CachedResolution(copyServiceInfo(service),
+                SystemClock.elapsedRealtime()));
+        final Iterator<ResolveKey> it = mResolveCache.keySet().iterator();
+        while (mResolveCache.size() > RESOLVE_CACHE_MAX_ENTRIES) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void invalidateCachedResolutions(String serviceName) {
+        mResolveCache.keySet().removeIf(key -> Objects.equals(key.mServiceName, serviceName));
+    }
+
+    private static NsdServiceInfo copyServiceInfo(NsdServiceInfo service) {
+        final NsdServiceInfo copy = new NsdServiceInfo(service.getServiceName(),
+                service.getServiceType());
+        copy.setHost(service.getHost());
+        copy.setPort(service.getPort());
+        for (Map.Entry<String, byte[]> attr : service.getAttributes().entrySet()) {
+            copy.setAttribute(attr.getKey(), attr.getValue());
+        }
+        copy.setNetwork(service.getNetwork());
+        copy.setInterfaceIndex(service.getInterfaceIndex());
+        return copy;
     }
 
     private boolean resolveService(int resolveId, NsdServiceInfo service) {
@@ -876,6 +1043,83 @@ public class NsdService extends INsdManager.Stub {
         mNsdStateMachine.dump(fd, pw, args);
     }
 
+    /**
+     * A discovery running in mdnsresponder, shared by all client requests discovering the same
+     * service type on the same interface. The discovery uses the id of the request that started
+     * it, and is stopped when the last request using it is stopped.
+     */
+    private static class SharedDiscovery {
+        private final int mMdnsId;
+        // Service type and interface index
+        private final Pair<String, Integer> mKey;
+        // Unique ids of the requests using this discovery
+        private final ArraySet<Integer> mRequestIds = new ArraySet<>();
+        // Services currently found, reported to requests joining the discovery, oldest first
+        private final LinkedHashMap<String, DiscoveryInfo> mFoundServices = new LinkedHashMap<>();
+
+        private SharedDiscovery(int mdnsId, Pair<String, Integer> key) {
+            mMdnsId = mdnsId;
+            mKey = key;
+        }
+
+        private void addFoundService(DiscoveryInfo info) {
+            final String key = getServiceKey(info);
+            // Re-insert so that the entry becomes the most recent one.
+            mFoundServices.remove(key);
+            mFoundServices.put(key, info);
+            final Iterator<String> it = mFoundServices.keySet().iterator();
+            while (mFoundServices.size() > MAX_FOUND_SERVICES_PER_DISCOVERY) {
+                it.next();
+                it.remove();
+            }
+        }
+
+        private static String getServiceKey(DiscoveryInfo info) {
+            // The netId is not part of the key, as it may be unset when a service is lost.
+            return info.interfaceIdx + "/" + info.registrationType + "/" + info.serviceName;
+        }
+    }
+
+    /* Parameters of a resolve request that identify the service to resolve */
+    private static class ResolveKey {
+        private final String mServiceName;
+        private final String mServiceType;
+        private final Network mNetwork;
+        private final int mInterfaceIndex;
+
+        private ResolveKey(NsdServiceInfo service) {
+            mServiceName = service.getServiceName();
+            mServiceType = service.getServiceType();
+            mNetwork = service.getNetwork();
+            mInterfaceIndex = service.getInterfaceIndex();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ResolveKey)) return false;
+            final ResolveKey other = (ResolveKey) o;
+            return Objects.equals(mServiceName, other.mServiceName)
+                    && Objects.equals(mServiceType, other.mServiceType)
+                    && Objects.equals(mNetwork, other.mNetwork)
+                    && mInterfaceIndex == other.mInterfaceIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mServiceName, mServiceType, mNetwork, mInterfaceIndex);
+        }
+    }
+
+    private static class CachedResolution {
+        private final NsdServiceInfo mServiceInfo;
+        private final long mResolvedTimeMs;
+
+        private CachedResolution(NsdServiceInfo serviceInfo, long resolvedTimeMs) {
+            mServiceInfo = serviceInfo;
+            mResolvedTimeMs = resolvedTimeMs;
+        }
+    }
+
     /* Information tracked per client */
     private class ClientInfo {
 
@@ -883,13 +1127,23 @@ public class NsdService extends INsdManager.Stub {
         private final INsdManagerCallback mCb;
         /* Remembers a resolved service until getaddrinfo completes */
         private NsdServiceInfo mResolvedService;
+        /* The request for mResolvedService, used to cache the result */
+        private ResolveKey mResolveKey;
 
         /* A map from client id to unique id sent to mDns */
         private final SparseIntArray mClientIds = new SparseIntArray();
 
+        /* A map from unique id sent to mDns to client id, the reverse of mClientIds */
+        private final SparseIntArray mGlobalIds = new SparseIntArray();
+
         /* A map from client id to the type of the request we had received */
         private final SparseIntArray mClientRequests = new SparseIntArray();
 
+        /* Number of mDns events received for this client, by event code */
+        private final SparseIntArray mEventCounts = new SparseIntArray();
+        /* Number of mDns events received for requests that were no longer active */
+        private int mDroppedEventCount;
+
         // The target SDK of this client < Build.VERSION_CODES.S
         private boolean mIsLegacy = false;
 
@@ -909,9 +1163,18 @@ public class NsdService extends INsdManager.Stub {
                     append(" mDnsId ").append(mClientIds.valueAt(i)).
                     append(" type ").append(mClientRequests.get(clientID)).append("\n");
             }
+            for (int i = 0; i < mEventCounts.size(); i++) {
+                sb.append("event ").append(mEventCounts.keyAt(i))
+                        .append(" count ").append(mEventCounts.valueAt(i)).append("\n");
+            }
+            sb.append("dropped events ").append(mDroppedEventCount).append("\n");
             return sb.toString();
         }
 
+        private void countEvent(int code) {
+            mEventCounts.put(code, mEventCounts.get(code) + 1);
+        }
+
         private boolean isLegacy() {
             return mIsLegacy;
         }
@@ -948,17 +1211,15 @@ public class NsdService extends INsdManager.Stub {
                 }
             }
             mClientIds.clear();
+            mGlobalIds.clear();
             mClientRequests.clear();
         }
 
         // mClientIds is a sparse array of listener id -> mDnsClient id.  For a given mDnsClient id,
-        // return the corresponding listener id.  mDnsClient id is also called a global id.
+        // return the corresponding listener id, or -1 if there is none.  mDnsClient id is also
+        // called a global id.
         private int getClientId(final int globalId) {
-            int idx = mClientIds.indexOfValue(globalId);
-            if (idx < 0) {
-                return idx;
-            }
-            return mClientIds.keyAt(idx);
+            return mGlobalIds.get(globalId, -1);
         }
 
         void onDiscoverServicesStarted(int listenerKey, NsdServiceInfo info) {
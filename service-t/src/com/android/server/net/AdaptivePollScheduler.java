@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.net;
+
+import android.annotation.NonNull;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Decides when {@link NetworkStatsService} polls periodically, based on the byte counters of the
+ * active interfaces.
+ *
+ * Reading the interface counters is much cheaper than a poll, which reads all the BPF stats maps,
+ * computes deltas and persists them. When no counter changed since the last poll, the periodic
+ * poll is skipped and the interval is doubled, up to {@link #MAX_BACKOFF_FACTOR} times the base
+ * interval. When the traffic since the last poll is close to the global alert, the next poll is
+ * scheduled sooner.
+ *
+ * Stats providers (e.g. hardware offload) only update their counters when asked to, so they are
+ * asked at every periodic poll, and a change of their counters counts as traffic. Some providers,
+ * like the tethering offload one, are always registered, so their checks back off like the
+ * interface counters; providers enforce their own limits and alerts, so only the accounting of
+ * their traffic is delayed, by at most {@link #MAX_BACKOFF_FACTOR} base intervals.
+ *
+ * This class is not thread-safe.
+ */
+public class AdaptivePollScheduler {
+    /** Maximum ratio between the poll interval and the base poll interval. */
+    @VisibleForTesting
+    static final int MAX_BACKOFF_FACTOR = 8;
+    /** Ratio between the base poll interval and the interval used when traffic is heavy. */
+    @VisibleForTesting
+    static final int HEAVY_TRAFFIC_DIVISOR = 4;
+
+    private long mBaseIntervalMs;
+    private long mIntervalMs;
+    // Bytes of each active interface at the last poll, or null if they are unknown.
+    private ArrayMap<String, Long> mLastPollIfaceBytes;
+    // Bytes reported by stats providers at the last poll, or -1 if they are unknown. Their
+    // traffic is not counted by the interface counters.
+    private long mLastProviderBytes = -1;
+
+    private long mPollsPerformed;
+    private long mPollsSkipped;
+    private long mConsecutivePollsSkipped;
+
+    public AdaptivePollScheduler(long baseIntervalMs) {
+        mBaseIntervalMs = baseIntervalMs;
+        mIntervalMs = baseIntervalMs;
+    }
+
+    /** Get the delay until the next periodic poll. */
+    public long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    /**
+     * Called after every poll, periodic or not, with the counters at the time of the poll.
+     *
+     * @param ifaceBytes the rx + tx bytes of each active interface, or a negative value for the
+     *                   interfaces whose counters cannot be read.
+     * @param providerBytes the rx + tx bytes reported by stats providers.
+     */
+    public void onPollPerformed(@NonNull ArrayMap<String, Long> ifaceBytes, long providerBytes) {
+        mLastPollIfaceBytes = ifaceBytes;
+        mLastProviderBytes = providerBytes;
+    }
+
+    /**
+     * Called when the periodic poll is due, to decide whether to poll and update the interval
+     * until the next one.
+     *
+     * @param ifaceBytes the current rx + tx bytes of each active interface, see
+     *                   {@link #onPollPerformed}.
+     * @param providerBytes the current rx + tx bytes reported by stats providers, or a negative
+     *                      value if no provider is registered.
+     * @param globalAlertBytes the global alert quota, or a non-positive value if none.
+     * @return whether the poll should be performed.
+     */
+    public boolean shouldPoll(@NonNull ArrayMap<String, Long> ifaceBytes, long providerBytes,
+            long globalAlertBytes) {
+        final long delta = getBytesSinceLastPoll(ifaceBytes);
+        final boolean providerTraffic = providerBytes >= 0 && providerBytes != mLastProviderBytes;
+        if (delta == 0 && !providerTraffic) {
+            mPollsSkipped++;
+            mConsecutivePollsSkipped++;
+            mIntervalMs = Math.min(mIntervalMs * 2, mBaseIntervalMs * MAX_BACKOFF_FACTOR);
+            return false;
+        }
+
+        mPollsPerformed++;
+        mConsecutivePollsSkipped = 0;
+        if (delta > 0 && globalAlertBytes > 0 && delta >= globalAlertBytes / 2) {
+            // The global alert would fire soon at this rate, poll sooner to keep up.
+            mIntervalMs = mBaseIntervalMs / HEAVY_TRAFFIC_DIVISOR;
+        } else {
+            mIntervalMs = mBaseIntervalMs;
+        }
+        return true;
+    }
+
+    /**
+     * Get the bytes transferred on the active interfaces since the last poll, 0 if and only if
+     * nothing changed, or -1 if this is unknown.
+     */
+    private long getBytesSinceLastPoll(@NonNull ArrayMap<String, Long> ifaceBytes) {
+        if (mLastPollIfaceBytes == null) return -1;
+        // An interface that went away may have had traffic since the last poll.
+        if (!ifaceBytes.keySet().containsAll(mLastPollIfaceBytes.keySet())) {
+            return -1;
+        }
+        long delta = 0;
+        for (int i = 0; i < ifaceBytes.size(); i++) {
+            final long bytes = ifaceBytes.valueAt(i);
+            final Long lastBytes = mLastPollIfaceBytes.get(ifaceBytes.keyAt(i));
+            if (bytes < 0 || lastBytes == null || lastBytes < 0 || bytes < lastBytes) {
+                // Unknown counter, new interface or counter reset.
+                return -1;
+            }
+            delta += bytes - lastBytes;
+        }
+        return delta;
+    }
+
+    /** Dump the scheduler state. */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.print("base interval ms", mBaseIntervalMs);
+        pw.print("interval ms", mIntervalMs);
+        pw.print("polls performed", mPollsPerformed);
+        pw.print("polls skipped", mPollsSkipped);
+        pw.print("consecutive polls skipped", mConsecutivePollsSkipped);
+        pw.print("last provider bytes", mLastProviderBytes);
+        pw.println();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkStats;
+import android.net.NetworkStatsAccess;
+import android.net.NetworkStatsCollection;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.Process;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Older part of a long-lived in-memory {@link NetworkStatsCollection}, downsampled into coarse
+ * buckets and kept encoded with the variable-length encoding of the persisted stats files.
+ *
+ * {@link NetworkStatsRecorder} moves its since-boot data into this tier once it is older than a
+ * few days, so that the memory used by the since-boot collection does not grow with the uptime.
+ * The tier is decoded when its data is needed, which is rare except for totals, and totals are
+ * cached per template.
+ *
+ * Not inherently thread safe.
+ */
+public class NetworkStatsColdTier {
+    private static final String TAG = "NetworkStatsColdTier";
+
+    // Approximate heap cost of a history, besides its buckets: the key, the history object and
+    // its array headers.
+    private static final int HISTORY_OVERHEAD_BYTES = 200;
+    // Heap cost of a bucket: its start time and 6 values.
+    private static final int BUCKET_BYTES = 7 * Long.BYTES;
+
+    private final long mBucketDuration;
+    // Encoded collection, or null if this tier is empty.
+    @Nullable
+    private byte[] mEncoded;
+    private final ArrayMap<NetworkTemplate, NetworkStats.Entry> mTotals = new ArrayMap<>();
+
+    /**
+     * @param bucketDuration the bucket duration of this tier. It should be a multiple of the
+     *                       bucket duration of the collections moved into this tier, so that
+     *                       their buckets are not split.
+     */
+    public NetworkStatsColdTier(long bucketDuration) {
+        mBucketDuration = bucketDuration;
+    }
+
+    public long getBucketDuration() {
+        return mBucketDuration;
+    }
+
+    public boolean isEmpty() {
+        return mEncoded == null;
+    }
+
+    /**
+     * Move the buckets of the given collection that end before the cutoff into this tier.
+     *
+     * @param cutoffMillis the cutoff, which must be aligned on the bucket duration of the
+     *                     collection.
+     */
+    public void moveHistoryBefore(@NonNull NetworkStatsCollection collection,
+            long cutoffMillis) {
+        final NetworkStatsCollection cold = decode();
+        boolean moved = false;
+        for (Map.Entry<NetworkStatsCollection.Key, NetworkStatsHistory> entry
+                : collection.getEntries().entrySet()) {
+            final NetworkStatsHistory history = entry.getValue();
+            if (history.size() == 0 || history.getStart() >= cutoffMillis) continue;
+            final NetworkStatsHistory coarse = new NetworkStatsHistory(mBucketDuration,
+                    history.estimateResizeBuckets(mBucketDuration));
+            coarse.recordHistory(history, Long.MIN_VALUE, cutoffMillis);
+            cold.recordHistory(entry.getKey(), coarse);
+            moved = true;
+        }
+        if (!moved) return;
+        collection.removeHistoryBefore(cutoffMillis);
+        encode(cold);
+    }
+
+    /** Get the total of the data matching the template in this tier. */
+    @NonNull
+    public NetworkStats.Entry getTotal(@NonNull NetworkTemplate template) {
+        NetworkStats.Entry total = mTotals.get(template);
+        if (total == null) {
+            total = decode().getSummary(template, Long.MIN_VALUE, Long.MAX_VALUE,
+                    NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID).getTotal(null);
+            mTotals.put(template, total);
+        }
+        // Return a copy, since callers may modify the entry.
+        final NetworkStats.Entry copy = new NetworkStats.Entry();
+        copy.add(total);
+        return copy;
+    }
+
+    /** Migrate the given UIDs to {@link android.net.TrafficStats#UID_REMOVED}. */
+    public void removeUids(int[] uids) {
+        if (isEmpty()) return;
+        final NetworkStatsCollection cold = decode();
+        cold.removeUids(uids);
+        encode(cold);
+    }
+
+    /** Remove the buckets which contain or are before the cutoff timestamp. */
+    public void removeHistoryBefore(long cutoffMillis) {
+        if (isEmpty()) return;
+        final NetworkStatsCollection cold = decode();
+        cold.removeHistoryBefore(cutoffMillis);
+        encode(cold);
+    }
+
+    public void reset() {
+        mEncoded = null;
+        mTotals.clear();
+    }
+
+    /** Get the heap used by this tier, in bytes. */
+    public long getHeapBytes() {
+        return mEncoded != null ? mEncoded.length : 0;
+    }
+
+    /** Estimate the heap used by the histories of a decoded collection, in bytes. */
+    public static long estimateHeapBytes(@NonNull NetworkStatsCollection collection) {
+        long bytes = 0;
+        for (NetworkStatsHistory history : collection.getEntries().values()) {
+            bytes += HISTORY_OVERHEAD_BYTES + (long) history.size() * BUCKET_BYTES;
+        }
+        return bytes;
+    }
+
+    @NonNull
+    private NetworkStatsCollection decode() {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(mBucketDuration);
+        if (mEncoded == null) return collection;
+        try {
+            collection.read(new ByteArrayInputStream(mEncoded));
+        } catch (IOException e) {
+            // Cannot happen with data written by encode().
+            Log.wtf(TAG, "problem decoding cold stats", e);
+            reset();
+        }
+        return collection;
+    }
+
+    private void encode(@NonNull NetworkStatsCollection collection) {
+        mTotals.clear();
+        if (collection.isEmpty()) {
+            mEncoded = null;
+            return;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            collection.write(out);
+        } catch (IOException e) {
+            // Cannot happen when writing to memory.
+            Log.wtf(TAG, "problem encoding cold stats", e);
+            mEncoded = null;
+            return;
+        }
+        mEncoded = out.toByteArray();
+    }
+
+    /** Dump the decoded data of this tier. */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        decode().dump(pw);
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.server.net;
 
 import static android.app.usage.NetworkStatsManager.MIN_THRESHOLD_BYTES;
+import static android.net.NetworkStats.TAG_NONE;
 
 import android.annotation.NonNull;
 import android.app.usage.NetworkStatsManager;
@@ -27,8 +28,6 @@ import android.net.NetworkIdentitySet;
 import android.net.NetworkStack;
 import android.net.NetworkStats;
 import android.net.NetworkStatsAccess;
-import android.net.NetworkStatsCollection;
-import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.netstats.IUsageCallback;
 import android.os.Handler;
@@ -42,6 +41,7 @@ import android.util.ArrayMap;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseLongArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.PerUidCounter;
@@ -52,6 +52,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Manages observers of {@link NetworkStats}. Allows observers to be notified when
  * data usage has been reported in {@link NetworkStatsService}. An observer can set
  * a threshold of how much data it cares about to be notified.
+ *
+ * <p>Observers of the same {@link NetworkTemplate} share a {@link StatsGroup}, so the usage is
+ * aggregated once per template and per poll, and checking the threshold of an observer does not
+ * depend on the size of the stats.
  */
 class NetworkStatsObservers {
     private static final String TAG = "NetworkStatsObservers";
@@ -72,6 +76,11 @@ class NetworkStatsObservers {
     // indexed by DataUsageRequest#requestId
     private final SparseArray<RequestInfo> mDataUsageRequests = new SparseArray<>();
 
+    // All access to these maps must be done from the handler thread.
+    // Groups of network usage requests and of uid usage requests, indexed by template.
+    private final ArrayMap<NetworkTemplate, StatsGroup> mNetworkStatsGroups = new ArrayMap<>();
+    private final ArrayMap<NetworkTemplate, StatsGroup> mUidStatsGroups = new ArrayMap<>();
+
     // Request counters per uid, this is thread safe.
     private final PerUidCounter mDataUsageRequestsPerUid = new PerUidCounter(MAX_REQUESTS_PER_UID);
 
@@ -177,6 +186,19 @@ class NetworkStatsObservers {
      */
     private void handleRegister(RequestInfo requestInfo) {
         mDataUsageRequests.put(requestInfo.mRequest.requestId, requestInfo);
+        final ArrayMap<NetworkTemplate, StatsGroup> groups = getStatsGroups(requestInfo);
+        final NetworkTemplate template = requestInfo.mRequest.template;
+        StatsGroup group = groups.get(template);
+        if (group == null) {
+            group = new StatsGroup(template);
+            groups.put(template, group);
+        }
+        group.mRequestCount++;
+        requestInfo.mGroup = group;
+    }
+
+    private ArrayMap<NetworkTemplate, StatsGroup> getStatsGroups(RequestInfo requestInfo) {
+        return requestInfo.isPerUid() ? mUidStatsGroups : mNetworkStatsGroups;
     }
 
     /**
@@ -199,6 +221,9 @@ class NetworkStatsObservers {
         if (LOG) Log.d(TAG, "Unregistering " + requestInfo);
         mDataUsageRequests.remove(request.requestId);
         mDataUsageRequestsPerUid.decrementCountOrThrow(requestInfo.mCallingUid);
+        if (--requestInfo.mGroup.mRequestCount == 0) {
+            getStatsGroups(requestInfo).remove(requestInfo.mRequest.template);
+        }
         requestInfo.unlinkDeathRecipient();
         requestInfo.callCallback(NetworkStatsManager.CALLBACK_RELEASED);
     }
@@ -208,12 +233,28 @@ class NetworkStatsObservers {
             return;
         }
 
+        // Aggregate the usage once per group, so that each request only compares the totals of
+        // its group with its threshold.
+        for (int i = 0; i < mNetworkStatsGroups.size(); i++) {
+            mNetworkStatsGroups.valueAt(i).recordSample(statsContext.mXtSnapshot,
+                    statsContext.mActiveIfaces, statsContext.mCurrentTime, false /* perUid */);
+        }
+        for (int i = 0; i < mUidStatsGroups.size(); i++) {
+            mUidStatsGroups.valueAt(i).recordSample(statsContext.mUidSnapshot,
+                    statsContext.mActiveUidIfaces, statsContext.mCurrentTime, true /* perUid */);
+        }
+
         for (int i = 0; i < mDataUsageRequests.size(); i++) {
             RequestInfo requestInfo = mDataUsageRequests.valueAt(i);
-            requestInfo.updateStats(statsContext);
+            requestInfo.updateStats();
         }
     }
 
+    @VisibleForTesting
+    int getStatsGroupCount() {
+        return mNetworkStatsGroups.size() + mUidStatsGroups.size();
+    }
+
     private DataUsageRequest buildRequest(Context context, DataUsageRequest request,
                 int callingUid) {
         // For non-NETWORK_STACK permission uid, cap the minimum threshold to a safe default to
@@ -259,8 +300,9 @@ class NetworkStatsObservers {
         protected final int mCallingUid;
         protected final String mCallingPackage;
         protected final @NetworkStatsAccess.Level int mAccessLevel;
-        protected NetworkStatsRecorder mRecorder;
-        protected NetworkStatsCollection mCollection;
+        // The group of the request, set when the request is registered on the handler thread.
+        protected StatsGroup mGroup;
+        private boolean mHasBaseline;
 
         RequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
@@ -301,19 +343,18 @@ class NetworkStatsObservers {
         }
 
         /**
-         * Update stats given the samples and interface to identity mappings.
+         * Update stats after the group of this request recorded the latest sample.
          */
-        private void updateStats(StatsContext statsContext) {
-            if (mRecorder == null) {
+        private void updateStats() {
+            if (!mHasBaseline) {
                 // First run; establish baseline stats
-                resetRecorder();
-                recordSample(statsContext);
+                resetBaseline();
+                mHasBaseline = true;
                 return;
             }
-            recordSample(statsContext);
 
             if (checkStats()) {
-                resetRecorder();
+                resetBaseline();
                 callCallback(NetworkStatsManager.CALLBACK_LIMIT_REACHED);
             }
         }
@@ -338,14 +379,13 @@ class NetworkStatsObservers {
             }
         }
 
-        private void resetRecorder() {
-            mRecorder = new NetworkStatsRecorder();
-            mCollection = mRecorder.getSinceBoot();
-        }
+        /** Whether this request observes the usage of each uid, or of the whole network. */
+        protected abstract boolean isPerUid();
 
-        protected abstract boolean checkStats();
+        /** Start counting usage from the current totals of the group. */
+        protected abstract void resetBaseline();
 
-        protected abstract void recordSample(StatsContext statsContext);
+        protected abstract boolean checkStats();
 
         private String callbackTypeToName(int callbackType) {
             switch (callbackType) {
@@ -360,6 +400,8 @@ class NetworkStatsObservers {
     }
 
     private static class NetworkUsageRequestInfo extends RequestInfo {
+        private long mBaselineBytes;
+
         NetworkUsageRequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
                 @NonNull String callingPackage, @NetworkStatsAccess.Level int accessLevel) {
@@ -367,9 +409,21 @@ class NetworkStatsObservers {
                     accessLevel);
         }
 
+        @Override
+        protected boolean isPerUid() {
+            return false;
+        }
+
+        @Override
+        protected void resetBaseline() {
+            mBaselineBytes = mGroup.mTotalBytes;
+        }
+
         @Override
         protected boolean checkStats() {
-            long bytesSoFar = getTotalBytesForNetwork(mRequest.template);
+            // The xt stats are only recorded for UID_ALL, which is accessible at every access
+            // level of network usage requests, so the total of the group applies to any caller.
+            long bytesSoFar = mGroup.mTotalBytes - mBaselineBytes;
             if (LOGV) {
                 Log.v(TAG, bytesSoFar + " bytes so far since notification for "
                         + mRequest.template);
@@ -379,30 +433,13 @@ class NetworkStatsObservers {
             }
             return false;
         }
-
-        @Override
-        protected void recordSample(StatsContext statsContext) {
-            // Recorder does not need to be locked in this context since only the handler
-            // thread will update it. We pass a null VPN array because usage is aggregated by uid
-            // for this snapshot, so VPN traffic can't be reattributed to responsible apps.
-            mRecorder.recordSnapshotLocked(statsContext.mXtSnapshot, statsContext.mActiveIfaces,
-                    statsContext.mCurrentTime);
-        }
-
-        /**
-         * Reads stats matching the given template. {@link NetworkStatsCollection} will aggregate
-         * over all buckets, which in this case should be only one since we built it big enough
-         * that it will outlive the caller. If it doesn't, then there will be multiple buckets.
-         */
-        private long getTotalBytesForNetwork(NetworkTemplate template) {
-            NetworkStats stats = mCollection.getSummary(template,
-                    Long.MIN_VALUE /* start */, Long.MAX_VALUE /* end */,
-                    mAccessLevel, mCallingUid);
-            return stats.getTotalBytes();
-        }
     }
 
     private static class UserUsageRequestInfo extends RequestInfo {
+        // Per uid totals of the group when the baseline was established. The group replaces its
+        // totals instead of modifying them, so this does not need to be copied.
+        private SparseLongArray mBaselineUidBytes;
+
         UserUsageRequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
                 @NonNull String callingPackage, @NetworkStatsAccess.Level int accessLevel) {
@@ -411,47 +448,89 @@ class NetworkStatsObservers {
         }
 
         @Override
-        protected boolean checkStats() {
-            int[] uidsToMonitor = mCollection.getRelevantUids(mAccessLevel, mCallingUid);
+        protected boolean isPerUid() {
+            return true;
+        }
+
+        @Override
+        protected void resetBaseline() {
+            mBaselineUidBytes = mGroup.mUidBytes;
+        }
 
-            for (int i = 0; i < uidsToMonitor.length; i++) {
-                long bytesSoFar = getTotalBytesForNetworkUid(mRequest.template, uidsToMonitor[i]);
+        @Override
+        protected boolean checkStats() {
+            // The usage of every uid was below the threshold at the previous check, so only the
+            // uids whose usage changed in the last sample can have reached it.
+            final SparseLongArray changedUidBytes = mGroup.mChangedUidBytes;
+            for (int i = 0; i < changedUidBytes.size(); i++) {
+                final int uid = changedUidBytes.keyAt(i);
+                if (!NetworkStatsAccess.isAccessibleToUser(uid, mCallingUid, mAccessLevel)) {
+                    continue;
+                }
+                long bytesSoFar = changedUidBytes.valueAt(i) - mBaselineUidBytes.get(uid, 0L);
                 if (bytesSoFar > mRequest.thresholdInBytes) {
                     return true;
                 }
             }
             return false;
         }
+    }
 
-        @Override
-        protected void recordSample(StatsContext statsContext) {
-            // Recorder does not need to be locked in this context since only the handler
-            // thread will update it. We pass the VPN info so VPN traffic is reattributed to
-            // responsible apps.
-            mRecorder.recordSnapshotLocked(statsContext.mUidSnapshot, statsContext.mActiveUidIfaces,
-                    statsContext.mCurrentTime);
+    /**
+     * Tracks the usage matching a {@link NetworkTemplate} for all the requests observing it.
+     * Should only be accessed from the handler thread.
+     */
+    private static class StatsGroup {
+        private final NetworkTemplate mTemplate;
+        // Non-persisted recorder with a single bucket, which is never reset while the group has
+        // requests.
+        private final NetworkStatsRecorder mRecorder = new NetworkStatsRecorder();
+        // Running totals since the group was created, excluding tagged traffic. Per uid totals
+        // are only kept for groups of uid usage requests.
+        long mTotalBytes;
+        SparseLongArray mUidBytes = new SparseLongArray();
+        // New per uid totals of the uids whose usage changed in the last sample.
+        final SparseLongArray mChangedUidBytes = new SparseLongArray();
+        int mRequestCount;
+
+        StatsGroup(NetworkTemplate template) {
+            mTemplate = template;
         }
 
         /**
-         * Reads all stats matching the given template and uid. Ther history will likely only
-         * contain one bucket per ident since we build it big enough that it will outlive the
-         * caller lifetime.
+         * Record a sample and update the running totals.
          */
-        private long getTotalBytesForNetworkUid(NetworkTemplate template, int uid) {
-            try {
-                NetworkStatsHistory history = mCollection.getHistory(template, null, uid,
-                        NetworkStats.SET_ALL, NetworkStats.TAG_NONE,
-                        NetworkStatsHistory.FIELD_ALL,
-                        Long.MIN_VALUE /* start */, Long.MAX_VALUE /* end */,
-                        mAccessLevel, mCallingUid);
-                return history.getTotalBytes();
-            } catch (SecurityException e) {
-                if (LOGV) {
-                    Log.w(TAG, "CallerUid " + mCallingUid + " may have lost access to uid "
-                            + uid);
-                }
-                return 0;
+        void recordSample(NetworkStats snapshot, ArrayMap<String, NetworkIdentitySet> ifaces,
+                long currentTime, boolean perUid) {
+            mChangedUidBytes.clear();
+            // Recorder does not need to be locked in this context since only the handler
+            // thread will update it.
+            mRecorder.recordSnapshotLocked(snapshot, ifaces, currentTime);
+            // Nothing was recorded.
+            if (snapshot == null) return;
+
+            // The collection aggregates over all buckets, which in this case should be only one
+            // since it is built big enough to outlive the group.
+            final NetworkStats summary = mRecorder.getSinceBoot().getSummary(mTemplate,
+                    Long.MIN_VALUE /* start */, Long.MAX_VALUE /* end */,
+                    NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+            mTotalBytes = summary.getTotalBytes();
+            if (!perUid) return;
+
+            final SparseLongArray uidBytes = new SparseLongArray(mUidBytes.size());
+            NetworkStats.Entry entry = null;
+            for (int i = 0; i < summary.size(); i++) {
+                entry = summary.getValues(i, entry);
+                if (entry.tag != TAG_NONE) continue;
+                uidBytes.put(entry.uid,
+                        uidBytes.get(entry.uid, 0L) + entry.rxBytes + entry.txBytes);
+            }
+            for (int i = 0; i < uidBytes.size(); i++) {
+                final int uid = uidBytes.keyAt(i);
+                final long bytes = uidBytes.valueAt(i);
+                if (bytes != mUidBytes.get(uid, 0L)) mChangedUidBytes.put(uid, bytes);
             }
+            mUidBytes = uidBytes;
         }
     }
 
@@ -475,6 +554,8 @@ class NetworkStatsObservers {
     }
 
     public void dump(IndentingPrintWriter pw) {
+        pw.println("Network stats groups: " + mNetworkStatsGroups.size()
+                + ", uid stats groups: " + mUidStatsGroups.size());
         for (int i = 0; i < Math.min(mDataUsageRequests.size(), DUMP_USAGE_REQUESTS_COUNT); i++) {
             pw.println(mDataUsageRequests.valueAt(i));
         }
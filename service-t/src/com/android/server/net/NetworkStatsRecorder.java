@@ -19,9 +19,11 @@ package com.android.server.net;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.TrafficStats.KB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.YEAR_IN_MILLIS;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.net.NetworkIdentitySet;
 import android.net.NetworkStats;
 import android.net.NetworkStats.NonMonotonicObserver;
@@ -33,16 +35,25 @@ import android.net.TrafficStats;
 import android.os.Binder;
 import android.os.DropBoxManager;
 import android.service.NetworkStatsRecorderProto;
+import android.util.ArraySet;
+import android.util.AtomicFile;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.FileRotator;
+import com.android.net.module.util.CollectionUtils;
 import com.android.net.module.util.NetworkStatsUtils;
 
 import libcore.io.IoUtils;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -52,6 +63,8 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Logic to record deltas between periodic {@link NetworkStats} snapshots into
@@ -71,6 +84,15 @@ public class NetworkStatsRecorder {
     /** Dump before deleting in {@link #recoverAndDeleteData()}. */
     private static final boolean DUMP_BEFORE_DELETE = true;
 
+    /** Since-boot data older than this is moved to {@link #mSinceBootCold}. */
+    private static final long SINCE_BOOT_FINE_RETENTION_MILLIS = 2 * DAY_IN_MILLIS;
+    /** Target bucket duration of {@link #mSinceBootCold}. */
+    private static final long SINCE_BOOT_COLD_BUCKET_DURATION = DAY_IN_MILLIS;
+
+    // Suffix of the file keeping the UIDs removed from a recorder until compaction is done.
+    // It does not contain '.', so that FileRotator ignores this file.
+    private static final String TOMBSTONE_FILE_SUFFIX = "_tombstones";
+
     private final FileRotator mRotator;
     private final NonMonotonicObserver<String> mObserver;
     private final DropBoxManager mDropBox;
@@ -83,13 +105,39 @@ public class NetworkStatsRecorder {
     private long mPersistThresholdBytes = 2 * MB_IN_BYTES;
     private NetworkStats mLastSnapshot;
 
-    private final NetworkStatsCollection mPending;
+    private NetworkStatsCollection mPending;
     private final NetworkStatsCollection mSinceBoot;
-
-    private final CombiningRewriter mPendingRewriter;
+    // Since-boot data older than SINCE_BOOT_FINE_RETENTION_MILLIS, at a coarser resolution, or
+    // null for non-persisted recorders.
+    @Nullable
+    private final NetworkStatsColdTier mSinceBootCold;
+    private long mSinceBootColdCutoff = Long.MIN_VALUE;
+
+    // Guards mRotator. Pending data is written to disk without the lock of the callers, see
+    // startForcePersistLocked, so every access to mRotator first writes the data handed over.
+    private final Object mRotatorLock = new Object();
+    // Pending data handed over to be written to disk, in order.
+    private final ConcurrentLinkedQueue<PendingWrite> mWriteQueue = new ConcurrentLinkedQueue<>();
+    // Pending data that failed to be written, to be written again with the next pending data.
+    private final AtomicReference<NetworkStatsCollection> mUnpersisted = new AtomicReference<>();
 
     private WeakReference<NetworkStatsCollection> mComplete;
 
+    // UIDs removed by removeUidsLocked that may still be in some persisted files, or null if
+    // removed UIDs are migrated in all files immediately. See compactStep.
+    @Nullable
+    private final TombstoneLog mTombstones;
+    // Directory and prefix of the files of mRotator, to list them for compaction, or null if
+    // mTombstones is null.
+    @Nullable
+    private final File mBaseDir;
+    @Nullable
+    private final String mPrefix;
+    // Names of the persisted files compacted since UIDs were last removed. Files are tracked by
+    // name, since files may be rotated in or deleted while the compaction is in progress.
+    @GuardedBy("mRotatorLock")
+    private final ArraySet<String> mCompactedFiles = new ArraySet<>();
+
     /**
      * Non-persisted recorder, with only one bucket. Used by {@link NetworkStatsObservers}.
      */
@@ -107,8 +155,11 @@ public class NetworkStatsRecorder {
 
         mPending = null;
         mSinceBoot = new NetworkStatsCollection(mBucketDuration);
+        mSinceBootCold = null;
 
-        mPendingRewriter = null;
+        mTombstones = null;
+        mBaseDir = null;
+        mPrefix = null;
     }
 
     /**
@@ -117,6 +168,21 @@ public class NetworkStatsRecorder {
     public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
             DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags,
             boolean wipeOnError) {
+        this(rotator, observer, dropBox, cookie, bucketDuration, onlyTags, wipeOnError,
+                null /* baseDir */, null /* prefix */);
+    }
+
+    /**
+     * Persisted recorder, which defers migrating removed UIDs in the persisted files.
+     *
+     * @param baseDir the directory of the files of the rotator, which also keeps the removed
+     *                UIDs until all files are compacted, or null to rewrite all files every
+     *                time UIDs are removed.
+     * @param prefix the prefix of the files of the rotator.
+     */
+    public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
+            DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags,
+            boolean wipeOnError, @Nullable File baseDir, @Nullable String prefix) {
         mRotator = Objects.requireNonNull(rotator, "missing FileRotator");
         mObserver = Objects.requireNonNull(observer, "missing NonMonotonicObserver");
         mDropBox = Objects.requireNonNull(dropBox, "missing DropBoxManager");
@@ -128,8 +194,18 @@ public class NetworkStatsRecorder {
 
         mPending = new NetworkStatsCollection(bucketDuration);
         mSinceBoot = new NetworkStatsCollection(bucketDuration);
+        // Use a multiple of the bucket duration, so that buckets are not split when moved.
+        mSinceBootCold = new NetworkStatsColdTier(bucketDuration
+                * Math.max(1, SINCE_BOOT_COLD_BUCKET_DURATION / bucketDuration));
 
-        mPendingRewriter = new CombiningRewriter(mPending);
+        if (baseDir != null) {
+            mTombstones = new TombstoneLog(new File(baseDir,
+                    Objects.requireNonNull(prefix, "missing prefix") + TOMBSTONE_FILE_SUFFIX));
+        } else {
+            mTombstones = null;
+        }
+        mBaseDir = baseDir;
+        mPrefix = prefix;
     }
 
     public void setPersistThreshold(long thresholdBytes) {
@@ -146,16 +222,29 @@ public class NetworkStatsRecorder {
         if (mSinceBoot != null) {
             mSinceBoot.reset();
         }
+        if (mSinceBootCold != null) {
+            mSinceBootCold.reset();
+            mSinceBootColdCutoff = Long.MIN_VALUE;
+        }
         if (mComplete != null) {
             mComplete.clear();
         }
     }
 
     public NetworkStats.Entry getTotalSinceBootLocked(NetworkTemplate template) {
-        return mSinceBoot.getSummary(template, Long.MIN_VALUE, Long.MAX_VALUE,
-                NetworkStatsAccess.Level.DEVICE, Binder.getCallingUid()).getTotal(null);
+        final NetworkStats.Entry total = mSinceBoot.getSummary(template, Long.MIN_VALUE,
+                Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE, Binder.getCallingUid())
+                .getTotal(null);
+        if (mSinceBootCold != null && !mSinceBootCold.isEmpty()) {
+            total.add(mSinceBootCold.getTotal(template));
+        }
+        return total;
     }
 
+    /**
+     * Get the recent since-boot data. For persisted recorders, data older than a few days is
+     * only included in {@link #getTotalSinceBootLocked}.
+     */
     public NetworkStatsCollection getSinceBoot() {
         return mSinceBoot;
     }
@@ -198,7 +287,17 @@ public class NetworkStatsRecorder {
         if (LOGD) Log.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
         try {
-            mRotator.readMatching(res, start, end);
+            synchronized (mRotatorLock) {
+                drainWritesLocked();
+                mRotator.readMatching(res, start, end);
+                if (mTombstones != null && !mTombstones.isEmpty()) {
+                    // Migrate the removed UIDs that are not compacted yet. This is done with
+                    // mRotatorLock held, since compactStep clears them once all files are
+                    // compacted.
+                    res.removeUids(mTombstones.toArray());
+                }
+            }
+            takeUnpersistedLocked();
             res.recordCollection(mPending);
         } catch (IOException e) {
             Log.wtf(TAG, "problem completely reading network stats", e);
@@ -218,6 +317,7 @@ public class NetworkStatsRecorder {
     public void recordSnapshotLocked(NetworkStats snapshot,
             Map<String, NetworkIdentitySet> ifaceIdent, long currentTimeMillis) {
         final HashSet<String> unknownIfaces = new HashSet<>();
+        ArraySet<Integer> reusedUids = null;
 
         // skip recording when snapshot missing
         if (snapshot == null) return;
@@ -263,6 +363,11 @@ public class NetworkStatsRecorder {
 
             // only record tag data when requested
             if ((entry.tag == TAG_NONE) != mOnlyTags) {
+                if (mTombstones != null && mTombstones.contains(entry.uid)) {
+                    if (reusedUids == null) reusedUids = new ArraySet<>();
+                    reusedUids.add(entry.uid);
+                }
+
                 if (mPending != null) {
                     mPending.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
                 }
@@ -281,6 +386,13 @@ public class NetworkStatsRecorder {
 
         mLastSnapshot = snapshot;
 
+        if (reusedUids != null) {
+            // The UIDs were reused by new apps. Data of the new apps could not be told apart
+            // from data of the removed ones once persisted, so migrate the latter right away.
+            removeUidsFromAllFilesLocked(CollectionUtils.toIntArray(reusedUids));
+            mTombstones.removeAll(reusedUids);
+        }
+
         if (LOGV && unknownIfaces.size() > 0) {
             Log.w(TAG, "unknown interfaces " + unknownIfaces + ", ignoring those stats");
         }
@@ -291,52 +403,155 @@ public class NetworkStatsRecorder {
      * {@link #mPersistThresholdBytes}.
      */
     public void maybePersistLocked(long currentTimeMillis) {
+        startMaybePersistLocked(currentTimeMillis).run();
+    }
+
+    /**
+     * Same as {@link #maybePersistLocked}, but only hand the pending deltas over to be written,
+     * and return the task writing them to disk.
+     *
+     * The task can run on any thread, without the lock of the caller. Until it has run, the
+     * data handed over is written by any other call of this recorder that accesses the disk.
+     */
+    @NonNull
+    public Runnable startMaybePersistLocked(long currentTimeMillis) {
         Objects.requireNonNull(mRotator, "missing FileRotator");
+        maybeMoveSinceBootToColdLocked(currentTimeMillis);
+        takeUnpersistedLocked();
         final long pendingBytes = mPending.getTotalBytes();
-        if (pendingBytes >= mPersistThresholdBytes) {
-            forcePersistLocked(currentTimeMillis);
-        } else {
-            mRotator.maybeRotate(currentTimeMillis);
-        }
+        final boolean persist = pendingBytes >= mPersistThresholdBytes && mPending.isDirty();
+        mWriteQueue.add(new PendingWrite(persist ? takePendingLocked() : null,
+                currentTimeMillis));
+        return this::drainWrites;
+    }
+
+    /**
+     * Move since-boot data older than {@link #SINCE_BOOT_FINE_RETENTION_MILLIS} to
+     * {@link #mSinceBootCold}, at most once per bucket of the latter.
+     */
+    private void maybeMoveSinceBootToColdLocked(long currentTimeMillis) {
+        final long coldBucketDuration = mSinceBootCold.getBucketDuration();
+        long cutoff = currentTimeMillis - SINCE_BOOT_FINE_RETENTION_MILLIS;
+        cutoff -= Math.floorMod(cutoff, coldBucketDuration);
+        if (cutoff <= mSinceBootColdCutoff) return;
+        mSinceBootColdCutoff = cutoff;
+        mSinceBootCold.moveHistoryBefore(mSinceBoot, cutoff);
     }
 
     /**
      * Force persisting any pending deltas.
      */
     public void forcePersistLocked(long currentTimeMillis) {
+        startForcePersistLocked(currentTimeMillis).run();
+    }
+
+    /**
+     * Same as {@link #forcePersistLocked}, but only hand the pending deltas over to be written,
+     * and return the task writing them to disk. See {@link #startMaybePersistLocked}.
+     */
+    @NonNull
+    public Runnable startForcePersistLocked(long currentTimeMillis) {
         Objects.requireNonNull(mRotator, "missing FileRotator");
+        takeUnpersistedLocked();
         if (mPending.isDirty()) {
-            if (LOGD) Log.d(TAG, "forcePersistLocked() writing for " + mCookie);
+            mWriteQueue.add(new PendingWrite(takePendingLocked(), currentTimeMillis));
+        }
+        return this::drainWrites;
+    }
+
+    /**
+     * Wait until the pending deltas handed over to be written are on disk, writing them on the
+     * calling thread if their task has not started yet.
+     */
+    public void awaitPersistLocked() {
+        drainWrites();
+    }
+
+    private NetworkStatsCollection takePendingLocked() {
+        final NetworkStatsCollection pending = mPending;
+        mPending = new NetworkStatsCollection(mBucketDuration);
+        return pending;
+    }
+
+    // Take back the data that failed to be written, to include it in loaded data and in the
+    // next write.
+    private void takeUnpersistedLocked() {
+        final NetworkStatsCollection unpersisted = mUnpersisted.getAndSet(null);
+        if (unpersisted != null) {
+            mPending.recordCollection(unpersisted);
+        }
+    }
+
+    private void drainWrites() {
+        synchronized (mRotatorLock) {
+            drainWritesLocked();
+        }
+    }
+
+    @GuardedBy("mRotatorLock")
+    private void drainWritesLocked() {
+        PendingWrite write;
+        while ((write = mWriteQueue.poll()) != null) {
             try {
-                mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
-                mRotator.maybeRotate(currentTimeMillis);
-                mPending.reset();
+                if (write.pending != null) {
+                    if (LOGD) Log.d(TAG, "drainWritesLocked() writing for " + mCookie);
+                    mRotator.rewriteActive(new CombiningRewriter(write.pending),
+                            write.currentTimeMillis);
+                }
+                mRotator.maybeRotate(write.currentTimeMillis);
             } catch (IOException e) {
                 Log.wtf(TAG, "problem persisting pending stats", e);
+                keepUnpersisted(write.pending);
                 recoverAndDeleteData();
             } catch (OutOfMemoryError e) {
                 Log.wtf(TAG, "problem persisting pending stats", e);
+                keepUnpersisted(write.pending);
                 recoverAndDeleteData();
             }
         }
     }
 
+    private void keepUnpersisted(@Nullable NetworkStatsCollection pending) {
+        if (pending == null) return;
+        // Only this method sets mUnpersisted, and it is called with mRotatorLock held.
+        final NetworkStatsCollection previous = mUnpersisted.getAndSet(null);
+        if (previous != null) {
+            pending.recordCollection(previous);
+        }
+        mUnpersisted.set(pending);
+    }
+
+    /** Pending deltas handed over to be written to disk. */
+    private static class PendingWrite {
+        // The deltas, or null to only rotate the files.
+        @Nullable
+        public final NetworkStatsCollection pending;
+        public final long currentTimeMillis;
+
+        PendingWrite(@Nullable NetworkStatsCollection pending, long currentTimeMillis) {
+            this.pending = pending;
+            this.currentTimeMillis = currentTimeMillis;
+        }
+    }
+
     /**
      * Remove the given UID from all {@link FileRotator} history, migrating it
      * to {@link TrafficStats#UID_REMOVED}.
+     *
+     * If this recorder has a tombstone file, the removal is only recorded there and applied to
+     * the data loaded from disk, and the persisted files are migrated one at a time by
+     * {@link #compactStep()}.
      */
     public void removeUidsLocked(int[] uids) {
         if (mRotator != null) {
-            try {
-                // Rewrite all persisted data to migrate UID stats
-                mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
-            } catch (IOException e) {
-                Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
-                recoverAndDeleteData();
-            } catch (OutOfMemoryError e) {
-                Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
-                recoverAndDeleteData();
+            synchronized (mRotatorLock) {
+                // Write the data handed over first, so that it is migrated too.
+                drainWritesLocked();
+                if (!deferRemoveUidsLocked(uids)) {
+                    removeUidsFromAllFilesLocked(uids);
+                }
             }
+            takeUnpersistedLocked();
         }
 
         // Remove any pending stats
@@ -346,6 +561,9 @@ public class NetworkStatsRecorder {
         if (mSinceBoot != null) {
             mSinceBoot.removeUids(uids);
         }
+        if (mSinceBootCold != null) {
+            mSinceBootCold.removeUids(uids);
+        }
 
         // Clear UID from current stats snapshot
         if (mLastSnapshot != null) {
@@ -358,6 +576,125 @@ public class NetworkStatsRecorder {
         }
     }
 
+    @GuardedBy("mRotatorLock")
+    private boolean deferRemoveUidsLocked(int[] uids) {
+        if (mTombstones == null) return false;
+        try {
+            mTombstones.add(uids);
+        } catch (IOException e) {
+            Log.e(TAG, "problem recording removed UIDs " + Arrays.toString(uids), e);
+            return false;
+        }
+        // Files compacted so far may contain the new UIDs, start over.
+        mCompactedFiles.clear();
+        return true;
+    }
+
+    private void removeUidsFromAllFilesLocked(int[] uids) {
+        synchronized (mRotatorLock) {
+            drainWritesLocked();
+            try {
+                // Rewrite all persisted data to migrate UID stats
+                mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
+            } catch (IOException e) {
+                Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
+                recoverAndDeleteData();
+            } catch (OutOfMemoryError e) {
+                Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
+                recoverAndDeleteData();
+            }
+        }
+    }
+
+    /**
+     * Whether some persisted files may still contain UIDs removed by {@link #removeUidsLocked}.
+     */
+    public boolean hasPendingCompactionLocked() {
+        return mTombstones != null && !mTombstones.isEmpty();
+    }
+
+    /**
+     * Migrate the UIDs removed by {@link #removeUidsLocked} in at most one persisted file.
+     * Once all files are compacted, the removed UIDs are forgotten.
+     *
+     * This only holds the lock of the persisted files of this recorder, so it can be called
+     * without the lock of the callers, like the tasks returned by
+     * {@link #startForcePersistLocked}.
+     *
+     * @return whether more files remain to be compacted.
+     */
+    public boolean compactStep() {
+        if (!hasPendingCompactionLocked()) return false;
+        synchronized (mRotatorLock) {
+            drainWritesLocked();
+            final String[] names = listPersistedFilesLocked();
+            // Forget the files that were deleted or renamed by a rotation.
+            mCompactedFiles.retainAll(Arrays.asList(names));
+            String target = null;
+            for (String name : names) {
+                if (!mCompactedFiles.contains(name)) {
+                    target = name;
+                    break;
+                }
+            }
+            if (target != null) {
+                final long[] startAndEnd = parseFileName(target);
+                try {
+                    mRotator.rewriteSingle(new RemoveUidRewriter(mBucketDuration,
+                            mTombstones.toArray()), startAndEnd[0], startAndEnd[1]);
+                } catch (IOException e) {
+                    Log.wtf(TAG, "problem compacting removed UIDs", e);
+                    recoverAndDeleteData();
+                    return false;
+                } catch (OutOfMemoryError e) {
+                    Log.wtf(TAG, "problem compacting removed UIDs", e);
+                    recoverAndDeleteData();
+                    return false;
+                }
+                mCompactedFiles.add(target);
+                if (mCompactedFiles.size() < names.length) return true;
+            }
+
+            mTombstones.clear();
+            mCompactedFiles.clear();
+            return false;
+        }
+    }
+
+    /**
+     * List the names of the persisted files of {@link #mRotator}, which are
+     * {@code <prefix>.<start>-<end>}, with an empty end for the active file. The names are sorted
+     * so that the oldest files are compacted first.
+     */
+    @GuardedBy("mRotatorLock")
+    @NonNull
+    private String[] listPersistedFilesLocked() {
+        final String[] names = mBaseDir.list((dir, name) -> parseFileName(name) != null);
+        if (names == null) return new String[0];
+        Arrays.sort(names, (a, b) -> Long.compare(parseFileName(a)[0], parseFileName(b)[0]));
+        return names;
+    }
+
+    /**
+     * Parse the start and end timestamps of a persisted file name, or return null if the name
+     * is not the name of a persisted file. The end of the active file is {@link Long#MAX_VALUE}.
+     */
+    @Nullable
+    private long[] parseFileName(@NonNull String name) {
+        if (!name.startsWith(mPrefix + ".")) return null;
+        final String times = name.substring(mPrefix.length() + 1);
+        final int dashIndex = times.indexOf('-');
+        if (dashIndex == -1) return null;
+        try {
+            final long start = Long.parseLong(times.substring(0, dashIndex));
+            final String end = times.substring(dashIndex + 1);
+            return new long[] { start, end.isEmpty() ? Long.MAX_VALUE : Long.parseLong(end) };
+        } catch (NumberFormatException e) {
+            // Backup files and other files of the directory.
+            return null;
+        }
+    }
+
     /**
      * Rewriter that will combine current {@link NetworkStatsCollection} values
      * with anything read from disk, and write combined set to disk.
@@ -426,6 +763,109 @@ public class NetworkStatsRecorder {
         }
     }
 
+    /**
+     * UIDs removed from a recorder that may still be in some of its persisted files, backed by a
+     * small {@link AtomicFile} so that they are still migrated after a reboot.
+     *
+     * Thread-safe, since it is cleared when writing pending data fails, see drainWritesLocked.
+     */
+    private static class TombstoneLog {
+        private static final int VERSION = 1;
+
+        private final AtomicFile mFile;
+        private final ArraySet<Integer> mUids = new ArraySet<>();
+
+        TombstoneLog(@NonNull File file) {
+            mFile = new AtomicFile(file);
+            try (DataInputStream in = new DataInputStream(mFile.openRead())) {
+                final int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unknown removed UIDs version " + version);
+                }
+                final int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    mUids.add(in.readInt());
+                }
+            } catch (FileNotFoundException e) {
+                // No removed UIDs.
+            } catch (IOException e) {
+                Log.wtf(TAG, "problem reading removed UIDs from " + file, e);
+            }
+        }
+
+        synchronized boolean isEmpty() {
+            return mUids.isEmpty();
+        }
+
+        synchronized int size() {
+            return mUids.size();
+        }
+
+        synchronized boolean contains(int uid) {
+            return mUids.contains(uid);
+        }
+
+        synchronized int[] toArray() {
+            return CollectionUtils.toIntArray(mUids);
+        }
+
+        /** Add the given UIDs, or throw if they cannot be persisted. */
+        synchronized void add(int[] uids) throws IOException {
+            final ArraySet<Integer> added = new ArraySet<>();
+            for (int uid : uids) {
+                if (mUids.add(uid)) added.add(uid);
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                mUids.removeAll(added);
+                throw e;
+            }
+        }
+
+        synchronized void removeAll(ArraySet<Integer> uids) {
+            mUids.removeAll(uids);
+            writeOrLog();
+        }
+
+        synchronized void clear() {
+            mUids.clear();
+            writeOrLog();
+        }
+
+        private void writeOrLog() {
+            try {
+                write();
+            } catch (IOException e) {
+                Log.e(TAG, "problem writing removed UIDs", e);
+            }
+        }
+
+        private void write() throws IOException {
+            if (mUids.isEmpty()) {
+                mFile.delete();
+                return;
+            }
+            FileOutputStream fout = null;
+            try {
+                fout = mFile.startWrite();
+                final DataOutputStream out = new DataOutputStream(fout);
+                out.writeInt(VERSION);
+                out.writeInt(mUids.size());
+                for (int i = 0; i < mUids.size(); i++) {
+                    out.writeInt(mUids.valueAt(i));
+                }
+                out.flush();
+                mFile.finishWrite(fout);
+            } catch (IOException e) {
+                if (fout != null) {
+                    mFile.failWrite(fout);
+                }
+                throw e;
+            }
+        }
+    }
+
     /**
      * Import a specified {@link NetworkStatsCollection} instance into this recorder,
      * and write it into a standalone file.
@@ -434,8 +874,11 @@ public class NetworkStatsRecorder {
     public void importCollectionLocked(@NonNull NetworkStatsCollection collection)
             throws IOException {
         if (mRotator != null) {
-            mRotator.rewriteSingle(new CombiningRewriter(collection), collection.getStartMillis(),
-                    collection.getEndMillis());
+            synchronized (mRotatorLock) {
+                drainWritesLocked();
+                mRotator.rewriteSingle(new CombiningRewriter(collection),
+                        collection.getStartMillis(), collection.getEndMillis());
+            }
         }
 
         if (mComplete != null) {
@@ -484,16 +927,20 @@ public class NetworkStatsRecorder {
      */
     public void removeDataBefore(long cutoffMillis) throws IOException {
         if (mRotator != null) {
-            try {
-                mRotator.rewriteAll(new RemoveDataBeforeRewriter(
-                        mBucketDuration, cutoffMillis));
-            } catch (IOException e) {
-                Log.wtf(TAG, "problem importing netstats", e);
-                recoverAndDeleteData();
-            } catch (OutOfMemoryError e) {
-                Log.wtf(TAG, "problem importing netstats", e);
-                recoverAndDeleteData();
+            synchronized (mRotatorLock) {
+                drainWritesLocked();
+                try {
+                    mRotator.rewriteAll(new RemoveDataBeforeRewriter(
+                            mBucketDuration, cutoffMillis));
+                } catch (IOException e) {
+                    Log.wtf(TAG, "problem importing netstats", e);
+                    recoverAndDeleteData();
+                } catch (OutOfMemoryError e) {
+                    Log.wtf(TAG, "problem importing netstats", e);
+                    recoverAndDeleteData();
+                }
             }
+            takeUnpersistedLocked();
         }
 
         // Clean up any pending stats
@@ -503,6 +950,9 @@ public class NetworkStatsRecorder {
         if (mSinceBoot != null) {
             mSinceBoot.removeHistoryBefore(cutoffMillis);
         }
+        if (mSinceBootCold != null) {
+            mSinceBootCold.removeHistoryBefore(cutoffMillis);
+        }
 
         final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
         if (complete != null) {
@@ -514,13 +964,27 @@ public class NetworkStatsRecorder {
         if (mPending != null) {
             pw.print("Pending bytes: "); pw.println(mPending.getTotalBytes());
         }
+        if (hasPendingCompactionLocked()) {
+            pw.print("Removed UIDs pending compaction: "); pw.println(mTombstones.size());
+        }
         if (fullHistory) {
             pw.println("Complete history:");
             getOrLoadCompleteLocked().dump(pw);
         } else {
             pw.println("History since boot:");
             mSinceBoot.dump(pw);
+            if (mSinceBootCold != null && !mSinceBootCold.isEmpty()) {
+                pw.println("Older history since boot:");
+                mSinceBootCold.dump(pw);
+            }
         }
+        pw.print("History since boot heap bytes: ");
+        pw.print(NetworkStatsColdTier.estimateHeapBytes(mSinceBoot));
+        if (mSinceBootCold != null) {
+            pw.print(" (older history: "); pw.print(mSinceBootCold.getHeapBytes());
+            pw.print(")");
+        }
+        pw.println();
     }
 
     public void dumpDebugLocked(ProtoOutputStream proto, long tag) {
@@ -544,21 +1008,27 @@ public class NetworkStatsRecorder {
      * {@link DropBoxManager} and deleting contents.
      */
     void recoverAndDeleteData() {
-        if (DUMP_BEFORE_DELETE) {
-            final ByteArrayOutputStream os = new ByteArrayOutputStream();
-            try {
-                mRotator.dumpAll(os);
-            } catch (IOException e) {
-                // ignore partial contents
-                os.reset();
-            } finally {
-                IoUtils.closeQuietly(os);
+        synchronized (mRotatorLock) {
+            if (DUMP_BEFORE_DELETE) {
+                final ByteArrayOutputStream os = new ByteArrayOutputStream();
+                try {
+                    mRotator.dumpAll(os);
+                } catch (IOException e) {
+                    // ignore partial contents
+                    os.reset();
+                } finally {
+                    IoUtils.closeQuietly(os);
+                }
+                mDropBox.addData(TAG_NETSTATS_DUMP, os.toByteArray(), 0);
+            }
+            // Delete all files if this recorder is set wipe on error.
+            if (mWipeOnError) {
+                mRotator.deleteAll();
+                if (mTombstones != null) {
+                    mTombstones.clear();
+                    mCompactedFiles.clear();
+                }
             }
-            mDropBox.addData(TAG_NETSTATS_DUMP, os.toByteArray(), 0);
-        }
-        // Delete all files if this recorder is set wipe on error.
-        if (mWipeOnError) {
-            mRotator.deleteAll();
         }
     }
 }
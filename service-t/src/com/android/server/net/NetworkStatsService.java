@@ -182,7 +182,9 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -207,6 +209,14 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     // A message for broadcasting ACTION_NETWORK_STATS_UPDATED in handler thread to prevent
     // deadlock.
     private static final int MSG_BROADCAST_NETWORK_STATS_UPDATED = 4;
+    // Migrate removed UIDs in one more persisted file of each UID recorder.
+    private static final int MSG_COMPACT_STATS = 5;
+
+    // Delay between two steps of the compaction of removed UIDs in the persisted files. A step
+    // is also postponed by this delay when stats were queried more recently.
+    private static final long COMPACT_STATS_DELAY_MS = MINUTE_IN_MILLIS;
+    // Number of persisted recorders: dev, xt, uid and uid tag.
+    private static final int RECORDER_COUNT = 4;
 
     /** Flags to control detail level of poll event. */
     private static final int FLAG_PERSIST_NETWORK = 0x1;
@@ -411,6 +421,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
     @NonNull
     private final Handler mHandler;
+    // Writes the pending data of the recorders to disk, in parallel and without mStatsLock.
+    @NonNull
+    private final Executor mPersistExecutor;
 
     private volatile boolean mSystemReady;
     private long mPersistThreshold = 2 * MB_IN_BYTES;
@@ -419,6 +432,15 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     private static final long POLL_RATE_LIMIT_MS = 15_000;
 
     private long mLastStatsSessionPoll;
+    // Time of the last stats session opening, in elapsed realtime, to only compact the persisted
+    // stats when they are not being queried.
+    private volatile long mLastStatsQueryTime;
+
+    /** Schedules the periodic polls, created when the system is ready. */
+    @GuardedBy("mStatsLock")
+    private AdaptivePollScheduler mPollScheduler;
+
+    private final AlarmManager.OnAlarmListener mPollAlarmListener = this::onPollAlarm;
 
     private final Object mOpenSessionCallsLock = new Object();
     /**
@@ -523,6 +545,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                             READ_NETWORK_USAGE_HISTORY);
                     break;
                 }
+                case MSG_COMPACT_STATS: {
+                    compactStats();
+                    break;
+                }
             }
         }
     }
@@ -568,6 +594,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         final HandlerThread handlerThread = mDeps.makeHandlerThread();
         handlerThread.start();
         mHandler = new NetworkStatsHandler(handlerThread.getLooper());
+        mPersistExecutor = mDeps.makePersistExecutor();
         mNetworkStatsSubscriptionsMonitor = deps.makeSubscriptionsMonitor(mContext,
                 (command) -> mHandler.post(command) , this);
         mContentResolver = mContext.getContentResolver();
@@ -737,6 +764,19 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             return new HandlerThread(TAG);
         }
 
+        /**
+         * Create the executor writing the pending data of the recorders to disk. It has one
+         * thread per recorder, so that they are written in parallel.
+         */
+        @NonNull
+        public Executor makePersistExecutor() {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(RECORDER_COUNT,
+                    RECORDER_COUNT, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    r -> new Thread(r, TAG + "Persist"));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+
         /**
          * Create a {@link NetworkStatsSubscriptionsMonitor}, can be used to monitor RAT change
          * event in NetworkStatsService.
@@ -842,6 +882,14 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         public boolean isDebuggable() {
             return Build.isDebuggable();
         }
+
+        /**
+         * Gets the stats of an interface, see {@link TrafficStats}. This only reads the counters
+         * of the interface, and is much cheaper than reading the stats maps.
+         */
+        public long getIfaceStat(@NonNull String iface, int type) {
+            return nativeGetIfaceStat(iface, type);
+        }
     }
 
     /**
@@ -867,6 +915,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     public void systemReady() {
         synchronized (mStatsLock) {
             mSystemReady = true;
+            mPollScheduler = new AdaptivePollScheduler(mSettings.getPollInterval());
 
             // create data recorders along with historical rotators
             mDevRecorder = buildRecorder(PREFIX_DEV, mSettings.getDevConfig(), false, mStatsDir,
@@ -889,6 +938,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
             // bootstrap initial stats to prevent double-counting later
             bootstrapStatsLocked();
+
+            // finish migrating UIDs removed before the last reboot
+            scheduleStatsCompactionLocked();
         }
 
         // watch for tethering changes
@@ -918,14 +970,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             Log.wtf(TAG, "Error registering event listener :", e);
         }
 
-        //  schedule periodic pall alarm based on {@link NetworkStatsSettings#getPollInterval()}.
-        final PendingIntent pollIntent =
-                PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_NETWORK_STATS_POLL),
-                        PendingIntent.FLAG_IMMUTABLE);
-
-        final long currentRealtime = SystemClock.elapsedRealtime();
-        mAlarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME, currentRealtime,
-                mSettings.getPollInterval(), pollIntent);
+        // schedule periodic poll alarm based on {@link NetworkStatsSettings#getPollInterval()},
+        // adapted to the traffic by mPollScheduler. The first poll happens right away.
+        schedulePollAlarm(0 /* delayMs */);
 
         mContentResolver.registerContentObserver(Settings.Global
                 .getUriFor(NETSTATS_COMBINE_SUBTYPE_ENABLED),
@@ -947,7 +994,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         return new NetworkStatsRecorder(new FileRotator(
                 baseDir, prefix, config.rotateAgeMillis, config.deleteAgeMillis),
                 mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags,
-                wipeOnError);
+                wipeOnError, baseDir, prefix);
     }
 
     @GuardedBy("mStatsLock")
@@ -958,6 +1005,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         mContext.unregisterReceiver(mRemovedReceiver);
         mContext.unregisterReceiver(mUserReceiver);
         mContext.unregisterReceiver(mShutdownReceiver);
+        mAlarmManager.cancel(mPollAlarmListener);
 
         if (!mSettings.getCombineSubtypeEnabled()) {
             mNetworkStatsSubscriptionsMonitor.stop();
@@ -967,11 +1015,15 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
         final long currentTime = mClock.millis();
 
-        // persist any pending stats
-        mDevRecorder.forcePersistLocked(currentTime);
-        mXtRecorder.forcePersistLocked(currentTime);
-        mUidRecorder.forcePersistLocked(currentTime);
-        mUidTagRecorder.forcePersistLocked(currentTime);
+        // persist any pending stats, and wait until they are on disk
+        persistAsync(mDevRecorder.startForcePersistLocked(currentTime),
+                mXtRecorder.startForcePersistLocked(currentTime),
+                mUidRecorder.startForcePersistLocked(currentTime),
+                mUidTagRecorder.startForcePersistLocked(currentTime));
+        mDevRecorder.awaitPersistLocked();
+        mXtRecorder.awaitPersistLocked();
+        mUidRecorder.awaitPersistLocked();
+        mUidTagRecorder.awaitPersistLocked();
 
         mSystemReady = false;
     }
@@ -1415,6 +1467,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     }
 
     private INetworkStatsSession openSessionInternal(final int flags, final String callingPackage) {
+        mLastStatsQueryTime = SystemClock.elapsedRealtime();
         final int restrictedFlags = restrictFlagsForCaller(flags, callingPackage);
         if ((restrictedFlags & (NetworkStatsManager.FLAG_POLL_ON_OPEN
                 | NetworkStatsManager.FLAG_POLL_FORCE)) != 0) {
@@ -1862,10 +1915,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
             updatePersistThresholdsLocked();
 
-            mDevRecorder.maybePersistLocked(currentTime);
-            mXtRecorder.maybePersistLocked(currentTime);
-            mUidRecorder.maybePersistLocked(currentTime);
-            mUidTagRecorder.maybePersistLocked(currentTime);
+            persistAsync(mDevRecorder.startMaybePersistLocked(currentTime),
+                    mXtRecorder.startMaybePersistLocked(currentTime),
+                    mUidRecorder.startMaybePersistLocked(currentTime),
+                    mUidTagRecorder.startMaybePersistLocked(currentTime));
         }
 
         if (oldGlobalAlertBytes != mGlobalAlertBytes) {
@@ -1996,6 +2049,63 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             };
 
+    private void schedulePollAlarm(long delayMs) {
+        mAlarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delayMs,
+                TAG, mPollAlarmListener, mHandler);
+    }
+
+    /**
+     * Called on the handler thread when the periodic poll is due. Unlike a poll requested with
+     * {@link #ACTION_NETWORK_STATS_POLL}, the poll is skipped when the interface and stats
+     * provider counters show that nothing changed since the last poll.
+     */
+    private void onPollAlarm() {
+        final long intervalMs;
+        synchronized (mStatsLock) {
+            if (!mSystemReady) return;
+            // Providers only update their counters when asked to. Ask them once, and reuse their
+            // answer for the poll if it is performed.
+            final boolean hasProviders = !mStatsProviderCbList.isEmpty();
+            if (hasProviders) performPollFromProvidersLocked();
+            final ArrayMap<String, Long> ifaceBytes = readActiveIfaceBytesLocked();
+            final long providerBytes = hasProviders
+                    ? getNetworkStatsFromProviders(STATS_PER_IFACE).getTotalBytes() : -1;
+            if (mPollScheduler.shouldPoll(ifaceBytes, providerBytes, mGlobalAlertBytes)) {
+                mWakeLock.acquire();
+                try {
+                    performPollLocked(FLAG_PERSIST_ALL, false /* requestProviderStats */);
+                } finally {
+                    mWakeLock.release();
+                }
+            } else if (LOGV) {
+                Log.v(TAG, "Skipping poll, no traffic since last poll");
+            }
+            intervalMs = mPollScheduler.getIntervalMs();
+        }
+
+        // verify that we're watching global alert
+        registerGlobalAlert();
+        schedulePollAlarm(intervalMs);
+    }
+
+    /**
+     * Reads the rx + tx bytes of each active interface, or -1 for interfaces whose counters
+     * cannot be read.
+     */
+    @GuardedBy("mStatsLock")
+    private ArrayMap<String, Long> readActiveIfaceBytesLocked() {
+        final ArrayMap<String, Long> ifaceBytes = new ArrayMap<>(mActiveIfaces.size());
+        for (int i = 0; i < mActiveIfaces.size() + mActiveUidIfaces.size(); i++) {
+            final String iface = i < mActiveIfaces.size() ? mActiveIfaces.keyAt(i)
+                    : mActiveUidIfaces.keyAt(i - mActiveIfaces.size());
+            if (ifaceBytes.containsKey(iface)) continue;
+            final long rxBytes = mDeps.getIfaceStat(iface, TrafficStats.TYPE_RX_BYTES);
+            final long txBytes = mDeps.getIfaceStat(iface, TrafficStats.TYPE_TX_BYTES);
+            ifaceBytes.put(iface, rxBytes < 0 || txBytes < 0 ? -1L : rxBytes + txBytes);
+        }
+        return ifaceBytes;
+    }
+
     private BroadcastReceiver mPollReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -2329,12 +2439,20 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         }
     }
 
+    @GuardedBy("mStatsLock")
+    private void performPollLocked(int flags) {
+        performPollLocked(flags, true /* requestProviderStats */);
+    }
+
     /**
      * Periodic poll operation, reading current statistics and recording into
      * {@link NetworkStatsHistory}.
+     *
+     * @param requestProviderStats whether to ask the stats providers for an update first. This is
+     *                             false if the caller has just done it.
      */
     @GuardedBy("mStatsLock")
-    private void performPollLocked(int flags) {
+    private void performPollLocked(int flags, boolean requestProviderStats) {
         if (!mSystemReady) return;
         if (LOGV) Log.v(TAG, "performPollLocked(flags=0x" + Integer.toHexString(flags) + ")");
         Trace.traceBegin(TRACE_TAG_NETWORK, "performPollLocked");
@@ -2343,7 +2461,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         final boolean persistUid = (flags & FLAG_PERSIST_UID) != 0;
         final boolean persistForce = (flags & FLAG_PERSIST_FORCE) != 0;
 
-        performPollFromProvidersLocked();
+        if (requestProviderStats) performPollFromProvidersLocked();
+        // Read the interface counters before the snapshot, so traffic happening in between is
+        // seen by the next periodic poll.
+        final ArrayMap<String, Long> ifaceBytes = readActiveIfaceBytesLocked();
+        final long providerBytes = getNetworkStatsFromProviders(STATS_PER_IFACE).getTotalBytes();
 
         // TODO: consider marking "untrusted" times in historical stats
         final long currentTime = mClock.millis();
@@ -2357,22 +2479,23 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             // ignored; service lives in system_server
             return;
         }
+        mPollScheduler.onPollPerformed(ifaceBytes, providerBytes);
 
         // persist any pending data depending on requested flags
         Trace.traceBegin(TRACE_TAG_NETWORK, "[persisting]");
         if (persistForce) {
-            mDevRecorder.forcePersistLocked(currentTime);
-            mXtRecorder.forcePersistLocked(currentTime);
-            mUidRecorder.forcePersistLocked(currentTime);
-            mUidTagRecorder.forcePersistLocked(currentTime);
+            persistAsync(mDevRecorder.startForcePersistLocked(currentTime),
+                    mXtRecorder.startForcePersistLocked(currentTime),
+                    mUidRecorder.startForcePersistLocked(currentTime),
+                    mUidTagRecorder.startForcePersistLocked(currentTime));
         } else {
             if (persistNetwork) {
-                mDevRecorder.maybePersistLocked(currentTime);
-                mXtRecorder.maybePersistLocked(currentTime);
+                persistAsync(mDevRecorder.startMaybePersistLocked(currentTime),
+                        mXtRecorder.startMaybePersistLocked(currentTime));
             }
             if (persistUid) {
-                mUidRecorder.maybePersistLocked(currentTime);
-                mUidTagRecorder.maybePersistLocked(currentTime);
+                persistAsync(mUidRecorder.startMaybePersistLocked(currentTime),
+                        mUidTagRecorder.startMaybePersistLocked(currentTime));
             }
         }
         Trace.traceEnd(TRACE_TAG_NETWORK);
@@ -2415,6 +2538,17 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         Trace.traceEnd(TRACE_TAG_NETWORK);
     }
 
+    /**
+     * Write the data handed over by the recorders to disk, in parallel and without
+     * {@link #mStatsLock}. Each recorder writes the data it handed over in order, and before
+     * any other access to its files, so reads stay consistent.
+     */
+    private void persistAsync(@NonNull Runnable... writes) {
+        for (Runnable write : writes) {
+            mPersistExecutor.execute(write);
+        }
+    }
+
     /**
      * Sample recent statistics summary into {@link EventLog}.
      */
@@ -2528,6 +2662,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
         mUidRecorder.removeUidsLocked(uids);
         mUidTagRecorder.removeUidsLocked(uids);
+        scheduleStatsCompactionLocked();
 
         // Clear kernel stats associated with UID
         for (int uid : uids) {
@@ -2538,6 +2673,47 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
        // mOpenSessionCallsPerCaller
     }
 
+    @GuardedBy("mStatsLock")
+    private void scheduleStatsCompactionLocked() {
+        if (!mUidRecorder.hasPendingCompactionLocked()
+                && !mUidTagRecorder.hasPendingCompactionLocked()) {
+            return;
+        }
+        if (!mHandler.hasMessages(MSG_COMPACT_STATS)) {
+            mHandler.sendEmptyMessageDelayed(MSG_COMPACT_STATS, COMPACT_STATS_DELAY_MS);
+        }
+    }
+
+    /**
+     * Migrate the removed UIDs in one persisted file of each UID recorder, so that removing
+     * UIDs does not hold {@link #mStatsLock} while rewriting the whole history.
+     *
+     * The step is postponed while a poll is pending or stats were recently queried, and it
+     * runs without {@link #mStatsLock}, so that it does not delay polls and queries.
+     */
+    private void compactStats() {
+        synchronized (mStatsLock) {
+            if (!mSystemReady) return;
+            if (!isIdleForCompaction()) {
+                scheduleStatsCompactionLocked();
+                return;
+            }
+        }
+        mUidRecorder.compactStep();
+        mUidTagRecorder.compactStep();
+        synchronized (mStatsLock) {
+            scheduleStatsCompactionLocked();
+        }
+    }
+
+    private boolean isIdleForCompaction() {
+        if (mHandler.hasMessages(MSG_PERFORM_POLL)
+                || mHandler.hasMessages(MSG_PERFORM_POLL_REGISTER_ALERT)) {
+            return false;
+        }
+        return SystemClock.elapsedRealtime() - mLastStatsQueryTime >= COMPACT_STATS_DELAY_MS;
+    }
+
     /**
      * Clean up {@link #mUidRecorder} after user is removed.
      */
@@ -2665,6 +2841,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
             pw.decreaseIndent();
 
+            pw.println("Poll scheduler:");
+            pw.increaseIndent();
+            if (mPollScheduler != null) mPollScheduler.dump(pw);
+            pw.decreaseIndent();
+
             pw.println("Active interfaces:");
             pw.increaseIndent();
             for (int i = 0; i < mActiveIfaces.size(); i++) {
@@ -117,6 +117,22 @@ static jint native_setUidRule(JNIEnv* env, jobject self, jint childChain, jint u
     return (jint)res;
 }
 
+static jint native_setUidRules(JNIEnv* env, jobject self, jint childChain, jintArray jUids,
+                               jintArray jRules) {
+    ScopedIntArrayRO uids(env, jUids);
+    if (uids.get() == nullptr) return -EINVAL;
+    ScopedIntArrayRO rules(env, jRules);
+    if (rules.get() == nullptr) return -EINVAL;
+
+    static_assert(sizeof(*(uids.get())) == sizeof(int32_t));
+    std::vector<int32_t> uidData ((int32_t *)&uids[0], (int32_t*)&uids[uids.size()]);
+    std::vector<int32_t> ruleData ((int32_t *)&rules[0], (int32_t*)&rules[rules.size()]);
+    auto chain = static_cast<ChildChain>(childChain);
+    int res = mTc.changeUidOwnerRules(chain, uidData, ruleData);
+    if (res) ALOGE("%s failed, error code = %d", __func__, res);
+    return (jint)res;
+}
+
 static jint native_addUidInterfaceRules(JNIEnv* env, jobject self, jstring ifName,
                                         jintArray jUids) {
     // Null ifName is a wildcard to allow apps to receive packets on all interfaces and ifIndex is
@@ -205,6 +221,8 @@ static const JNINativeMethod gMethods[] = {
     (void*)native_replaceUidChain},
     {"native_setUidRule", "(III)I",
     (void*)native_setUidRule},
+    {"native_setUidRules", "(I[I[I)I",
+    (void*)native_setUidRules},
     {"native_addUidInterfaceRules", "(Ljava/lang/String;[I)I",
     (void*)native_addUidInterfaceRules},
     {"native_removeUidInterfaceRules", "([I)I",
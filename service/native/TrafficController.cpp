@@ -229,6 +229,11 @@ Status TrafficController::start() {
 Status TrafficController::updateOwnerMapEntry(UidOwnerMatchType match, uid_t uid, FirewallRule rule,
                                               FirewallType type) {
     std::lock_guard guard(mMutex);
+    return updateOwnerMapEntryLocked(match, uid, rule, type);
+}
+
+Status TrafficController::updateOwnerMapEntryLocked(UidOwnerMatchType match, uid_t uid,
+                                                    FirewallRule rule, FirewallType type) {
     if ((rule == ALLOW && type == ALLOWLIST) || (rule == DENY && type == DENYLIST)) {
         RETURN_IF_NOT_OK(addRule(uid, match));
     } else if ((rule == ALLOW && type == DENYLIST) || (rule == DENY && type == ALLOWLIST)) {
@@ -419,6 +424,59 @@ Status TrafficController::updateUidLockdownRule(const uid_t uid, const bool add)
     return result;
 }
 
+static UidOwnerMatchType getMatchForChain(ChildChain chain) {
+    switch (chain) {
+        case DOZABLE:
+            return DOZABLE_MATCH;
+        case STANDBY:
+            return STANDBY_MATCH;
+        case POWERSAVE:
+            return POWERSAVE_MATCH;
+        case RESTRICTED:
+            return RESTRICTED_MATCH;
+        case LOW_POWER_STANDBY:
+            return LOW_POWER_STANDBY_MATCH;
+        case OEM_DENY_1:
+            return OEM_DENY_1_MATCH;
+        case OEM_DENY_2:
+            return OEM_DENY_2_MATCH;
+        case OEM_DENY_3:
+            return OEM_DENY_3_MATCH;
+        case NONE:
+        default:
+            return NO_MATCH;
+    }
+}
+
+int TrafficController::changeUidOwnerRules(ChildChain chain, const std::vector<int32_t>& uids,
+                                           const std::vector<int32_t>& rules) {
+    if (uids.size() != rules.size()) {
+        ALOGW("Mismatched uids (%zu) and rules (%zu)", uids.size(), rules.size());
+        return -EINVAL;
+    }
+    const UidOwnerMatchType match = getMatchForChain(chain);
+    if (match == NO_MATCH) {
+        ALOGW("Unknown child chain: %d", chain);
+        return -EINVAL;
+    }
+    const FirewallType type = getFirewallType(chain);
+
+    // Apply all the rules under one lock hold. A failure on one uid does not prevent the rules of
+    // the other uids from being applied, and the first error is returned.
+    std::lock_guard guard(mMutex);
+    int res = 0;
+    for (size_t i = 0; i < uids.size(); i++) {
+        const auto rule = static_cast<FirewallRule>(rules[i]);
+        Status status = updateOwnerMapEntryLocked(match, uids[i], rule, type);
+        if (!isOk(status)) {
+            ALOGE("change uid(%u) rule of %d failed: %s, rule: %d, type: %d", uids[i], chain,
+                  status.msg().c_str(), rule, type);
+            if (res == 0) res = -status.code();
+        }
+    }
+    return res;
+}
+
 int TrafficController::replaceUidOwnerMap(const std::string& name, bool isAllowlist __unused,
                                           const std::vector<int32_t>& uids) {
     // FirewallRule rule = isAllowlist ? ALLOW : DENY;
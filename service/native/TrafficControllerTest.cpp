@@ -16,6 +16,7 @@
  * TrafficControllerTest.cpp - unit tests for TrafficController.cpp
  */
 
+#include <chrono>
 #include <cstdint>
 #include <string>
 #include <vector>
@@ -414,6 +415,70 @@ TEST_F(TrafficControllerTest, TestChangeUidOwnerRule) {
     ASSERT_EQ(-EINVAL, mTc.changeUidOwnerRule(INVALID_CHAIN, TEST_UID, ALLOW, ALLOWLIST));
 }
 
+TEST_F(TrafficControllerTest, TestChangeUidOwnerRules) {
+    // DOZABLE is an allowlist chain.
+    std::vector<int32_t> uids = {TEST_UID, TEST_UID2};
+    ASSERT_EQ(0, mTc.changeUidOwnerRules(DOZABLE, uids, {ALLOW, ALLOW}));
+    checkEachUidValue(uids, DOZABLE_MATCH);
+    ASSERT_EQ(0, mTc.changeUidOwnerRules(DOZABLE, uids, {DENY, ALLOW}));
+    checkEachUidValue({TEST_UID2}, DOZABLE_MATCH);
+    ASSERT_EQ(0, mTc.changeUidOwnerRules(DOZABLE, {TEST_UID2}, {DENY}));
+    expectMapEmpty(mFakeUidOwnerMap);
+
+    // A failing uid does not prevent the other rules from being applied. STANDBY is a denylist
+    // chain, and allowing a uid that is not in the map fails.
+    ASSERT_EQ(-ENOENT, mTc.changeUidOwnerRules(STANDBY, {TEST_UID3, TEST_UID}, {ALLOW, DENY}));
+    checkEachUidValue({TEST_UID}, STANDBY_MATCH);
+
+    ASSERT_EQ(-EINVAL, mTc.changeUidOwnerRules(DOZABLE, uids, {ALLOW}));
+    ASSERT_EQ(-EINVAL, mTc.changeUidOwnerRules(NONE, uids, {ALLOW, ALLOW}));
+    ASSERT_EQ(-EINVAL, mTc.changeUidOwnerRules(INVALID_CHAIN, uids, {ALLOW, ALLOW}));
+}
+
+// Compares setting the rules of a 5,000 uid doze transition with one call per uid and with one
+// batch call. The durations are logged rather than asserted on.
+TEST_F(TrafficControllerTest, TestChangeUidOwnerRulesDozeTransitionBenchmark) {
+    constexpr int NUM_UIDS = 5000;
+    {
+        std::lock_guard guard(mTc.mMutex);
+        mFakeUidOwnerMap.resetMap(BPF_MAP_TYPE_HASH, NUM_UIDS);
+        ASSERT_VALID(mFakeUidOwnerMap);
+        mTc.mUidOwnerMap = mFakeUidOwnerMap;
+        ASSERT_VALID(mTc.mUidOwnerMap);
+    }
+    std::vector<int32_t> uids;
+    for (int i = 0; i < NUM_UIDS; i++) {
+        uids.push_back(10000 + i);
+    }
+    const std::vector<int32_t> allowRules(NUM_UIDS, ALLOW);
+    const std::vector<int32_t> denyRules(NUM_UIDS, DENY);
+
+    auto start = std::chrono::steady_clock::now();
+    for (int32_t uid : uids) {
+        ASSERT_EQ(0, mTc.changeUidOwnerRule(DOZABLE, uid, ALLOW, ALLOWLIST));
+    }
+    const auto singleDuration = std::chrono::steady_clock::now() - start;
+    checkEachUidValue(uids, DOZABLE_MATCH);
+    for (int32_t uid : uids) {
+        ASSERT_EQ(0, mTc.changeUidOwnerRule(DOZABLE, uid, DENY, ALLOWLIST));
+    }
+    expectMapEmpty(mFakeUidOwnerMap);
+
+    start = std::chrono::steady_clock::now();
+    ASSERT_EQ(0, mTc.changeUidOwnerRules(DOZABLE, uids, allowRules));
+    const auto batchDuration = std::chrono::steady_clock::now() - start;
+    checkEachUidValue(uids, DOZABLE_MATCH);
+    ASSERT_EQ(0, mTc.changeUidOwnerRules(DOZABLE, uids, denyRules));
+    expectMapEmpty(mFakeUidOwnerMap);
+
+    using std::chrono::microseconds;
+    LOG(INFO) << NUM_UIDS << " uid doze transition: "
+              << std::chrono::duration_cast<microseconds>(singleDuration).count()
+              << "us with one call per uid, "
+              << std::chrono::duration_cast<microseconds>(batchDuration).count()
+              << "us with one batch call";
+}
+
 TEST_F(TrafficControllerTest, TestReplaceUidOwnerMap) {
     std::vector<int32_t> uids = {TEST_UID, TEST_UID2, TEST_UID3};
     checkUidMapReplace("fw_dozable", uids, DOZABLE_MATCH);
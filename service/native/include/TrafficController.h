@@ -47,6 +47,13 @@ class TrafficController {
 
     int changeUidOwnerRule(ChildChain chain, const uid_t uid, FirewallRule rule, FirewallType type);
 
+    /*
+     * Set the firewall rule of each uid in |uids| to the rule at the same index in |rules|, in a
+     * single hold of the lock. Returns the first error, or 0 if all the rules were applied.
+     */
+    int changeUidOwnerRules(ChildChain chain, const std::vector<int32_t>& uids,
+                            const std::vector<int32_t>& rules) EXCLUDES(mMutex);
+
     int removeUidOwnerRule(const uid_t uid);
 
     int replaceUidOwnerMap(const std::string& name, bool isAllowlist,
@@ -171,6 +178,10 @@ class TrafficController {
 
     netdutils::Status removeRule(uint32_t uid, UidOwnerMatchType match) REQUIRES(mMutex);
 
+    netdutils::Status updateOwnerMapEntryLocked(UidOwnerMatchType match, uid_t uid,
+                                                FirewallRule rule, FirewallType type)
+            REQUIRES(mMutex);
+
     netdutils::Status addRule(uint32_t uid, UidOwnerMatchType match, uint32_t iif = 0)
             REQUIRES(mMutex);
 
@@ -16,18 +16,35 @@
 
 package com.android.server;
 
+import static android.net.ConnectivityManager.FIREWALL_CHAIN_DOZABLE;
+import static android.net.ConnectivityManager.FIREWALL_CHAIN_LOW_POWER_STANDBY;
+import static android.net.ConnectivityManager.FIREWALL_CHAIN_OEM_DENY_1;
+import static android.net.ConnectivityManager.FIREWALL_CHAIN_OEM_DENY_2;
+import static android.net.ConnectivityManager.FIREWALL_CHAIN_OEM_DENY_3;
+import static android.net.ConnectivityManager.FIREWALL_CHAIN_POWERSAVE;
+import static android.net.ConnectivityManager.FIREWALL_CHAIN_RESTRICTED;
+import static android.net.ConnectivityManager.FIREWALL_CHAIN_STANDBY;
+import static android.net.ConnectivityManager.FIREWALL_RULE_ALLOW;
+import static android.net.ConnectivityManager.FIREWALL_RULE_DENY;
 import static android.system.OsConstants.EOPNOTSUPP;
 
 import android.net.INetd;
 import android.os.RemoteException;
 import android.os.ServiceSpecificException;
 import android.system.Os;
+import android.util.IndentingPrintWriter;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.modules.utils.build.SdkLevel;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * BpfNetMaps is responsible for providing traffic controller relevant functionality.
@@ -41,6 +58,30 @@ public class BpfNetMaps {
     private static final boolean USE_NETD = !SdkLevel.isAtLeastT();
     private static boolean sInitialized = false;
 
+    // Mirror of the firewall rule last written for each uid, indexed by child chain then uid.
+    // A uid that is not in the mirror has an unknown rule, so its rule is always written, unless
+    // the chain is complete (see mCompleteChainDefaultRules).
+    @GuardedBy("mUidRules")
+    private final SparseArray<SparseIntArray> mUidRules = new SparseArray<>();
+    // For each chain whose contents were entirely written by replaceUidChain, the rule of the uids
+    // that are not in the chain. For these chains mUidRules is a shadow of the chain membership,
+    // and replaceUidChain only writes the uids that join or leave the chain.
+    @GuardedBy("mUidRules")
+    private final SparseIntArray mCompleteChainDefaultRules = new SparseIntArray();
+
+    @GuardedBy("mUidRules")
+    private long mReplaceUidChainCalls;
+    @GuardedBy("mUidRules")
+    private long mReplaceUidChainFullCalls;
+    @GuardedBy("mUidRules")
+    private long mReplaceUidChainWritesAvoided;
+    @GuardedBy("mUidRules")
+    private int mLastReplaceUidChainWrites;
+    @GuardedBy("mUidRules")
+    private int mLastReplaceUidChainWritesAvoided;
+    @GuardedBy("mUidRules")
+    private long mSetUidRulesWritesAvoided;
+
     /**
      * Initializes the class if it is not already initialized. This method will open maps but not
      * cause any other effects. This method may be called multiple times on any thread.
@@ -148,13 +189,114 @@ public class BpfNetMaps {
      */
     public int replaceUidChain(final String chainName, final boolean isAllowlist,
             final int[] uids) {
-        final int err = native_replaceUidChain(chainName, isAllowlist, uids);
+        final int childChain = getChildChain(chainName);
+        final int memberRule = isAllowlist ? FIREWALL_RULE_ALLOW : FIREWALL_RULE_DENY;
+        final int nonMemberRule = isAllowlist ? FIREWALL_RULE_DENY : FIREWALL_RULE_ALLOW;
+        int err;
+        synchronized (mUidRules) {
+            mReplaceUidChainCalls++;
+            if (childChain >= 0 && mCompleteChainDefaultRules.indexOfKey(childChain) >= 0
+                    && mCompleteChainDefaultRules.get(childChain) == nonMemberRule) {
+                err = replaceUidChainDeltaLocked(childChain, memberRule, nonMemberRule, uids);
+                if (err == 0) return 0;
+                Log.w(TAG, "replaceUidChain delta failed, replacing the whole chain: "
+                        + Os.strerror(-err));
+            }
+
+            mReplaceUidChainFullCalls++;
+            mLastReplaceUidChainWrites = uids.length;
+            mLastReplaceUidChainWritesAvoided = 0;
+            err = replaceUidChainNative(chainName, isAllowlist, uids);
+            if (childChain >= 0) {
+                forgetUidRulesLocked(childChain);
+                if (err == 0) {
+                    final SparseIntArray chainRules = getUidRulesLocked(childChain);
+                    for (final int uid : uids) {
+                        chainRules.put(uid, memberRule);
+                    }
+                    mCompleteChainDefaultRules.put(childChain, nonMemberRule);
+                }
+            }
+        }
         if (err != 0) {
             Log.e(TAG, "replaceUidChain failed: " + Os.strerror(-err));
         }
         return -err;
     }
 
+    /**
+     * Replace the contents of a complete chain by only writing the uids that join or leave it.
+     *
+     * A full replacement iterates over the whole uid owner map, and rewrites the rule of every uid
+     * in the chain even if it was already there.
+     *
+     * @return 0 if the chain was successfully replaced, negative errno otherwise. On failure the
+     *         chain is no longer complete.
+     */
+    @GuardedBy("mUidRules")
+    private int replaceUidChainDeltaLocked(final int childChain, final int memberRule,
+            final int nonMemberRule, final int[] uids) {
+        final SparseIntArray chainRules = getUidRulesLocked(childChain);
+        final SparseBooleanArray newMembers = new SparseBooleanArray(uids.length);
+        final SparseIntArray delta = new SparseIntArray();
+        for (final int uid : uids) {
+            newMembers.put(uid, true);
+            if (chainRules.get(uid, nonMemberRule) != memberRule) delta.put(uid, memberRule);
+        }
+        final int joining = delta.size();
+        for (int i = 0; i < chainRules.size(); i++) {
+            final int uid = chainRules.keyAt(i);
+            if (chainRules.valueAt(i) == memberRule && !newMembers.get(uid)) {
+                delta.put(uid, nonMemberRule);
+            }
+        }
+
+        // A full replacement would also rewrite the uids that were already in the chain.
+        mLastReplaceUidChainWrites = delta.size();
+        mLastReplaceUidChainWritesAvoided = newMembers.size() - joining;
+        mReplaceUidChainWritesAvoided += mLastReplaceUidChainWritesAvoided;
+        if (delta.size() == 0) return 0;
+
+        final int[] deltaUids = new int[delta.size()];
+        final int[] deltaRules = new int[delta.size()];
+        for (int i = 0; i < delta.size(); i++) {
+            deltaUids[i] = delta.keyAt(i);
+            deltaRules[i] = delta.valueAt(i);
+        }
+        final int err = setUidRulesNative(childChain, deltaUids, deltaRules);
+        if (err != 0) {
+            forgetUidRulesLocked(childChain);
+            return err;
+        }
+        for (int i = 0; i < deltaUids.length; i++) {
+            putUidRuleLocked(childChain, deltaUids[i], deltaRules[i]);
+        }
+        return 0;
+    }
+
+    private static int getChildChain(final String chainName) {
+        switch (chainName) {
+            case "fw_dozable":
+                return FIREWALL_CHAIN_DOZABLE;
+            case "fw_standby":
+                return FIREWALL_CHAIN_STANDBY;
+            case "fw_powersave":
+                return FIREWALL_CHAIN_POWERSAVE;
+            case "fw_restricted":
+                return FIREWALL_CHAIN_RESTRICTED;
+            case "fw_low_power_standby":
+                return FIREWALL_CHAIN_LOW_POWER_STANDBY;
+            case "fw_oem_deny_1":
+                return FIREWALL_CHAIN_OEM_DENY_1;
+            case "fw_oem_deny_2":
+                return FIREWALL_CHAIN_OEM_DENY_2;
+            case "fw_oem_deny_3":
+                return FIREWALL_CHAIN_OEM_DENY_3;
+            default:
+                return -1;
+        }
+    }
+
     /**
      * Set firewall rule for uid
      *
@@ -165,10 +307,119 @@ public class BpfNetMaps {
      *                                  cause of the failure.
      */
     public void setUidRule(final int childChain, final int uid, final int firewallRule) {
-        final int err = native_setUidRule(childChain, uid, firewallRule);
+        final int err;
+        synchronized (mUidRules) {
+            err = native_setUidRule(childChain, uid, firewallRule);
+            if (err == 0) {
+                putUidRuleLocked(childChain, uid, firewallRule);
+            } else {
+                forgetUidRulesLocked(childChain);
+            }
+        }
         maybeThrow(err, "Unable to set uid rule");
     }
 
+    /**
+     * Set firewall rules for multiple uids
+     *
+     * Uids whose rule is already the requested one are skipped, and the rules of the other uids
+     * are applied in a single call to the traffic controller.
+     *
+     * @param childChain    target chain
+     * @param uids          uids to allow/deny
+     * @param firewallRules for each uid at the same index, either FIREWALL_RULE_ALLOW or
+     *                      FIREWALL_RULE_DENY
+     * @throws IllegalArgumentException if uids and firewallRules have different lengths.
+     * @throws ServiceSpecificException in case of failure, with an error code indicating the
+     *                                  cause of the failure.
+     */
+    public void setUidRules(final int childChain, final int[] uids, final int[] firewallRules) {
+        if (uids.length != firewallRules.length) {
+            throw new IllegalArgumentException("Mismatched uids (" + uids.length
+                    + ") and rules (" + firewallRules.length + ")");
+        }
+        final int err;
+        synchronized (mUidRules) {
+            // Rules of uids already seen in this batch, so that a uid listed several times ends
+            // up with its last rule.
+            final SparseIntArray batchRules = new SparseIntArray();
+            final int[] changedUids = new int[uids.length];
+            final int[] changedRules = new int[uids.length];
+            int count = 0;
+            for (int i = 0; i < uids.length; i++) {
+                final int currentRule = batchRules.indexOfKey(uids[i]) >= 0
+                        ? batchRules.get(uids[i]) : getUidRuleLocked(childChain, uids[i]);
+                batchRules.put(uids[i], firewallRules[i]);
+                if (currentRule == firewallRules[i]) continue;
+                changedUids[count] = uids[i];
+                changedRules[count] = firewallRules[i];
+                count++;
+            }
+            mSetUidRulesWritesAvoided += uids.length - count;
+            if (count == 0) return;
+
+            err = setUidRulesNative(childChain, Arrays.copyOf(changedUids, count),
+                    Arrays.copyOf(changedRules, count));
+            if (err == 0) {
+                for (int i = 0; i < count; i++) {
+                    putUidRuleLocked(childChain, changedUids[i], changedRules[i]);
+                }
+            } else {
+                // The failing uids are unknown, so forget the rules of the whole chain.
+                forgetUidRulesLocked(childChain);
+            }
+        }
+        maybeThrow(err, "Unable to set uid rules");
+    }
+
+    @VisibleForTesting
+    int replaceUidChainNative(final String chainName, final boolean isAllowlist,
+            final int[] uids) {
+        return native_replaceUidChain(chainName, isAllowlist, uids);
+    }
+
+    @VisibleForTesting
+    int setUidRulesNative(final int childChain, final int[] uids, final int[] firewallRules) {
+        return native_setUidRules(childChain, uids, firewallRules);
+    }
+
+    /** Get the rule last written for a uid on a chain, or -1 if it is unknown. */
+    @GuardedBy("mUidRules")
+    private int getUidRuleLocked(final int childChain, final int uid) {
+        final SparseIntArray chainRules = mUidRules.get(childChain);
+        final int index = chainRules != null ? chainRules.indexOfKey(uid) : -1;
+        if (index >= 0) return chainRules.valueAt(index);
+        return mCompleteChainDefaultRules.get(childChain, -1);
+    }
+
+    @GuardedBy("mUidRules")
+    private void putUidRuleLocked(final int childChain, final int uid, final int firewallRule) {
+        final int index = mCompleteChainDefaultRules.indexOfKey(childChain);
+        if (index >= 0 && mCompleteChainDefaultRules.valueAt(index) == firewallRule) {
+            // Complete chains only keep track of the uids that are in the chain.
+            final SparseIntArray chainRules = mUidRules.get(childChain);
+            if (chainRules != null) chainRules.delete(uid);
+        } else {
+            getUidRulesLocked(childChain).put(uid, firewallRule);
+        }
+    }
+
+    @GuardedBy("mUidRules")
+    private void forgetUidRulesLocked(final int childChain) {
+        mUidRules.remove(childChain);
+        mCompleteChainDefaultRules.delete(childChain);
+    }
+
+    @GuardedBy("mUidRules")
+    private SparseIntArray getUidRulesLocked(final int childChain) {
+        SparseIntArray chainRules = mUidRules.get(childChain);
+        if (chainRules == null) {
+            chainRules = new SparseIntArray();
+            mUidRules.put(childChain, chainRules);
+        }
+        return chainRules;
+    }
+
     /**
      * Add ingress interface filtering rules to a list of UIDs
      *
@@ -257,6 +508,31 @@ public class BpfNetMaps {
         native_setPermissionForUids(permissions, uids);
     }
 
+    /**
+     * Dump the statistics of the firewall rule writes avoided thanks to the uid rule mirror.
+     */
+    public void dumpUidRuleStats(final IndentingPrintWriter pw) {
+        synchronized (mUidRules) {
+            pw.println("BpfNetMaps uid rules:");
+            pw.increaseIndent();
+            pw.println("replaceUidChain calls: " + mReplaceUidChainCalls
+                    + ", full replacements: " + mReplaceUidChainFullCalls
+                    + ", uid writes avoided: " + mReplaceUidChainWritesAvoided);
+            pw.println("Last replaceUidChain uid writes: " + mLastReplaceUidChainWrites
+                    + ", avoided: " + mLastReplaceUidChainWritesAvoided);
+            pw.println("setUidRules uid writes avoided: " + mSetUidRulesWritesAvoided);
+            pw.print("Complete chains:");
+            for (int i = 0; i < mCompleteChainDefaultRules.size(); i++) {
+                final int chain = mCompleteChainDefaultRules.keyAt(i);
+                final SparseIntArray chainRules = mUidRules.get(chain);
+                pw.print(" " + chain + "(" + (chainRules != null ? chainRules.size() : 0)
+                        + " uids)");
+            }
+            pw.println();
+            pw.decreaseIndent();
+        }
+    }
+
     /**
      * Dump BPF maps
      *
@@ -282,6 +558,7 @@ public class BpfNetMaps {
     private native int native_setChildChain(int childChain, boolean enable);
     private native int native_replaceUidChain(String name, boolean isAllowlist, int[] uids);
     private native int native_setUidRule(int childChain, int uid, int firewallRule);
+    private native int native_setUidRules(int childChain, int[] uids, int[] firewallRules);
     private native int native_addUidInterfaceRules(String ifName, int[] uids);
     private native int native_removeUidInterfaceRules(int[] uids);
     private native int native_updateUidLockdownRule(int uid, boolean add);
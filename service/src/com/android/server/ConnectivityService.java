@@ -169,6 +169,7 @@ import android.net.NetworkSpecifier;
 import android.net.NetworkStack;
 import android.net.NetworkState;
 import android.net.NetworkStateSnapshot;
+import android.net.NetworkStateParcelFormat;
 import android.net.NetworkTestResultParcelable;
 import android.net.NetworkUtils;
 import android.net.NetworkWatchlistManager;
@@ -250,8 +251,6 @@ import com.android.net.module.util.BaseNetdUnsolicitedEventListener;
 import com.android.net.module.util.CollectionUtils;
 import com.android.net.module.util.DeviceConfigUtils;
 import com.android.net.module.util.InterfaceParams;
-import com.android.net.module.util.LinkPropertiesUtils.CompareOrUpdateResult;
-import com.android.net.module.util.LinkPropertiesUtils.CompareResult;
 import com.android.net.module.util.LocationPermissionChecker;
 import com.android.net.module.util.NetworkCapabilitiesUtils;
 import com.android.net.module.util.PermissionUtils;
@@ -267,8 +266,10 @@ import com.android.server.connectivity.DscpPolicyTracker;
 import com.android.server.connectivity.FullScore;
 import com.android.server.connectivity.KeepaliveTracker;
 import com.android.server.connectivity.LingerMonitor;
+import com.android.server.connectivity.LinkPropertiesDiff;
 import com.android.server.connectivity.MockableSystemProperties;
 import com.android.server.connectivity.NetworkAgentInfo;
+import com.android.server.connectivity.NetworkAgentUpdateBatcher;
 import com.android.server.connectivity.NetworkDiagnostics;
 import com.android.server.connectivity.NetworkNotificationManager;
 import com.android.server.connectivity.NetworkNotificationManager.NotificationType;
@@ -401,6 +402,14 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private final Context mUserAllContext;
     private final Dependencies mDeps;
     private final ConnectivityFlags mFlags;
+
+    // Coalesces rematches and callbacks caused by consecutive updates from the same agent.
+    private final NetworkAgentUpdateBatcher mAgentUpdateBatcher;
+
+    // Link properties update statistics, only accessed on the handler thread.
+    private long mLinkPropertiesUpdates;
+    private long mLinkPropertiesUpdatesWithoutNetdChanges;
+    private long mLinkPropertiesNetdCalls;
     // 0 is full bad, 100 is full good
     private int mDefaultInetConditionPublished = 0;
 
@@ -721,6 +730,12 @@ public class ConnectivityService extends IConnectivityManager.Stub
      */
     private static final int EVENT_INGRESS_RATE_LIMIT_CHANGED = 56;
 
+    /**
+     * Used internally when the DNS resolver sample validity, success threshold or sample count
+     * settings change.
+     */
+    private static final int EVENT_DNS_RESOLVER_SETTINGS_CHANGED = 57;
+
     /**
      * Argument for {@link #EVENT_PROVISIONING_NOTIFICATION} to indicate that the notification
      * should be shown.
@@ -1473,6 +1488,20 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
         mDeps = Objects.requireNonNull(deps, "missing Dependencies");
         mFlags = new ConnectivityFlags();
+        mAgentUpdateBatcher = new NetworkAgentUpdateBatcher(mFlags::batchNetworkAgentUpdates,
+                new NetworkAgentUpdateBatcher.Callback() {
+                    @Override
+                    public void rematchAllNetworksAndRequests() {
+                        ConnectivityService.this.rematchAllNetworksAndRequests();
+                    }
+
+                    @Override
+                    public void notifyNetworkCallbacks(NetworkAgentInfo nai, int notifyType) {
+                        // The network may have disconnected while the callback was deferred.
+                        if (!mNetworkAgentInfos.contains(nai)) return;
+                        ConnectivityService.this.notifyNetworkCallbacks(nai, notifyType);
+                    }
+                });
         mSystemProperties = mDeps.getSystemProperties();
         mNetIdManager = mDeps.makeNetIdManager();
         mContext = Objects.requireNonNull(context, "missing Context");
@@ -1786,6 +1815,11 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 Settings.Global.getUriFor(
                         ConnectivitySettingsManager.INGRESS_RATE_LIMIT_BYTES_PER_SECOND),
                 EVENT_INGRESS_RATE_LIMIT_CHANGED);
+
+        // Watch for DNS resolver parameters changes.
+        for (Uri uri : DnsManager.getResolverParametersSettingsUris()) {
+            mSettingsObserver.observe(uri, EVENT_DNS_RESOLVER_SETTINGS_CHANGED);
+        }
     }
 
     private void registerPrivateDnsSettingsCallbacks() {
@@ -3089,6 +3123,15 @@ public class ConnectivityService extends IConnectivityManager.Stub
         systemReadyInternal();
     }
 
+    /**
+     * Reload the flags loaded in {@link #systemReadyInternal}, so that tests can change them.
+     * Must be called on the handler thread.
+     */
+    @VisibleForTesting
+    void reloadFlags() {
+        mFlags.loadFlags(mDeps, mContext);
+    }
+
     /**
      * Called when ConnectivityService can initialize remaining components.
      */
@@ -3096,6 +3139,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
     public void systemReadyInternal() {
         // Load flags after PackageManager is ready to query module version
         mFlags.loadFlags(mDeps, mContext);
+        NetworkStateParcelFormat.setCompactEnabled(mFlags.compactNetworkStateParcels());
 
         // Since mApps in PermissionMonitor needs to be populated first to ensure that
         // listening network request which is sent by MultipathPolicyTracker won't be added
@@ -3244,7 +3288,8 @@ public class ConnectivityService extends IConnectivityManager.Stub
                     nai.network,
                     new LinkProperties(nai.linkProperties),  // Must be a copy.
                     privateDnsCfg,
-                    DIAG_TIME_MS));
+                    DIAG_TIME_MS,
+                    mFlags.multiplexedNetworkDiagnostics()));
         }
 
         for (NetworkDiagnostics netDiag : netDiags) {
@@ -3359,6 +3404,18 @@ public class ConnectivityService extends IConnectivityManager.Stub
         pw.println();
         mKeepaliveTracker.dump(pw);
 
+        pw.println();
+        mAgentUpdateBatcher.dump(pw);
+
+        pw.println();
+        pw.println("LinkProperties updates: " + mLinkPropertiesUpdates
+                + ", without interface or route changes: "
+                + mLinkPropertiesUpdatesWithoutNetdChanges
+                + ", netd interface and route calls made: " + mLinkPropertiesNetdCalls);
+
+        pw.println();
+        mBpfNetMaps.dumpUidRuleStats(pw);
+
         pw.println();
         dumpAvoidBadWifiSettings(pw);
 
@@ -3598,6 +3655,8 @@ public class ConnectivityService extends IConnectivityManager.Stub
         private void maybeHandleNetworkAgentMessage(Message msg) {
             final Pair<NetworkAgentInfo, Object> arg = (Pair<NetworkAgentInfo, Object>) msg.obj;
             final NetworkAgentInfo nai = arg.first;
+            final boolean isStateUpdate = isNetworkAgentStateUpdate(msg);
+            if (isStateUpdate) nai.onStateUpdateDequeued();
             if (!mNetworkAgentInfos.contains(nai)) {
                 if (VDBG) {
                     log(String.format("%s from unknown NetworkAgent", eventName(msg.what)));
@@ -3610,6 +3669,24 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 return;
             }
 
+            if (isStateUpdate) mAgentUpdateBatcher.beginUpdate(nai);
+            handleNetworkAgentMessage(msg, nai, arg);
+            if (isStateUpdate) mAgentUpdateBatcher.endUpdate();
+        }
+
+        private boolean isNetworkAgentStateUpdate(Message msg) {
+            switch (msg.what) {
+                case NetworkAgent.EVENT_NETWORK_CAPABILITIES_CHANGED:
+                case NetworkAgent.EVENT_NETWORK_PROPERTIES_CHANGED:
+                case NetworkAgent.EVENT_NETWORK_SCORE_CHANGED:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private void handleNetworkAgentMessage(Message msg, NetworkAgentInfo nai,
+                Pair<NetworkAgentInfo, Object> arg) {
             switch (msg.what) {
                 case NetworkAgent.EVENT_NETWORK_CAPABILITIES_CHANGED: {
                     final NetworkCapabilities networkCapabilities = new NetworkCapabilities(
@@ -3959,6 +4036,17 @@ public class ConnectivityService extends IConnectivityManager.Stub
             return true;
         }
 
+        @Override
+        public void dispatchMessage(Message msg) {
+            // Deferred work must be done before running anything but another agent update,
+            // which commits or extends the open batch itself. This is done here rather than in
+            // handleMessage so that posted runnables also see the committed state.
+            if (msg.getCallback() != null || !isNetworkAgentStateUpdate(msg)) {
+                mAgentUpdateBatcher.commit();
+            }
+            super.dispatchMessage(msg);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             if (!maybeHandleNetworkMonitorMessage(msg)
@@ -4145,7 +4233,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
         // in order to restart a validation pass from within netd.
         final PrivateDnsConfig cfg = mDnsManager.getPrivateDnsConfig();
         if (cfg.useTls && TextUtils.isEmpty(cfg.hostname)) {
-            updateDnses(nai.linkProperties, null, nai.network.getNetId());
+            // The configuration is usually unchanged, so make sure it is not skipped as a
+            // duplicate of the one already sent.
+            mDnsManager.forgetSentDnsConfigurationForNetwork(nai.network.getNetId());
+            updateDnses(nai.linkProperties, nai.network.getNetId());
         }
     }
 
@@ -4178,7 +4269,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private void updatePrivateDns(NetworkAgentInfo nai, PrivateDnsConfig newCfg) {
         mDnsManager.updatePrivateDns(nai.network, newCfg);
-        updateDnses(nai.linkProperties, null, nai.network.getNetId());
+        updateDnses(nai.linkProperties, nai.network.getNetId());
     }
 
     private void handlePrivateDnsValidationUpdate(PrivateDnsValidationUpdate update) {
@@ -5332,6 +5423,14 @@ public class ConnectivityService extends IConnectivityManager.Stub
             super(looper);
         }
 
+        @Override
+        public void dispatchMessage(Message msg) {
+            // Run any work deferred by NetworkAgentUpdateBatcher first, including before
+            // runnables posted to this handler, which do not go through handleMessage.
+            mAgentUpdateBatcher.commit();
+            super.dispatchMessage(msg);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -5480,6 +5579,9 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 case EVENT_INGRESS_RATE_LIMIT_CHANGED:
                     handleIngressRateLimitChanged();
                     break;
+                case EVENT_DNS_RESOLVER_SETTINGS_CHANGED:
+                    mDnsManager.onResolverParametersSettingsChanged();
+                    break;
             }
         }
     }
@@ -7462,7 +7564,12 @@ public class ConnectivityService extends IConnectivityManager.Stub
         // the LinkProperties for the network are accurate.
         networkAgent.clatd.fixupLinkProperties(oldLp, newLp);
 
-        updateInterfaces(newLp, oldLp, netId, networkAgent.networkCapabilities);
+        // Compute all the interface, route and DNS changes at once, after the clat fixup.
+        final LinkPropertiesDiff diff = new LinkPropertiesDiff(oldLp, newLp);
+        mLinkPropertiesUpdates++;
+        if (!diff.hasInterfaceOrRouteChanges()) mLinkPropertiesUpdatesWithoutNetdChanges++;
+
+        updateInterfaces(diff, netId, networkAgent.networkCapabilities);
 
         // update filtering rules, need to happen after the interface update so netd knows about the
         // new interface (the interface name -> index map becomes initialized)
@@ -7477,8 +7584,8 @@ public class ConnectivityService extends IConnectivityManager.Stub
             updateTcpBufferSizes(newLp.getTcpBufferSizes());
         }
 
-        updateRoutes(newLp, oldLp, netId);
-        updateDnses(newLp, oldLp, netId);
+        updateRoutes(diff, netId);
+        if (diff.dnsChanged) updateDnses(newLp, netId);
         // Make sure LinkProperties represents the latest private DNS status.
         // This does not need to be done before updateDnses because the
         // LinkProperties are not the source of the private DNS configuration.
@@ -7510,7 +7617,8 @@ public class ConnectivityService extends IConnectivityManager.Stub
             networkAgent.networkMonitor().notifyLinkPropertiesChanged(
                     new LinkProperties(newLp, true /* parcelSensitiveFields */));
             if (networkAgent.everConnected) {
-                notifyNetworkCallbacks(networkAgent, ConnectivityManager.CALLBACK_IP_CHANGED);
+                mAgentUpdateBatcher.notifyNetworkCallbacks(networkAgent,
+                        ConnectivityManager.CALLBACK_IP_CHANGED);
             }
         }
 
@@ -7595,16 +7703,13 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     }
 
-    private void updateInterfaces(final @Nullable LinkProperties newLp,
-            final @Nullable LinkProperties oldLp, final int netId,
+    private void updateInterfaces(final @NonNull LinkPropertiesDiff diff, final int netId,
             final @NonNull NetworkCapabilities caps) {
-        final CompareResult<String> interfaceDiff = new CompareResult<>(
-                oldLp != null ? oldLp.getAllInterfaceNames() : null,
-                newLp != null ? newLp.getAllInterfaceNames() : null);
-        if (!interfaceDiff.added.isEmpty()) {
-            for (final String iface : interfaceDiff.added) {
+        if (!diff.interfacesAdded.isEmpty()) {
+            for (final String iface : diff.interfacesAdded) {
                 try {
                     if (DBG) log("Adding iface " + iface + " to network " + netId);
+                    mLinkPropertiesNetdCalls++;
                     mNetd.networkAddInterface(netId, iface);
                     wakeupModifyInterface(iface, caps, true);
                     mDeps.reportNetworkInterfaceForTransports(mContext, iface,
@@ -7614,10 +7719,11 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 }
             }
         }
-        for (final String iface : interfaceDiff.removed) {
+        for (final String iface : diff.interfacesRemoved) {
             try {
                 if (DBG) log("Removing iface " + iface + " from network " + netId);
                 wakeupModifyInterface(iface, caps, false);
+                mLinkPropertiesNetdCalls++;
                 mNetd.networkRemoveInterface(netId, iface);
             } catch (Exception e) {
                 loge("Exception removing interface: " + e);
@@ -7658,23 +7764,19 @@ public class ConnectivityService extends IConnectivityManager.Stub
     }
 
     /**
-     * Have netd update routes from oldLp to newLp.
-     * @return true if routes changed between oldLp and newLp
+     * Have netd apply the route changes of a link properties update.
+     * @return true if routes changed
      */
-    private boolean updateRoutes(LinkProperties newLp, LinkProperties oldLp, int netId) {
-        // compare the route diff to determine which routes have been updated
-        final CompareOrUpdateResult<RouteInfo.RouteKey, RouteInfo> routeDiff =
-                new CompareOrUpdateResult<>(
-                        oldLp != null ? oldLp.getAllRoutes() : null,
-                        newLp != null ? newLp.getAllRoutes() : null,
-                        (r) -> r.getRouteKey());
+    private boolean updateRoutes(@NonNull LinkPropertiesDiff diff, int netId) {
+        if (!diff.hasRouteChanges()) return false;
 
         // add routes before removing old in case it helps with continuous connectivity
 
         // do this twice, adding non-next-hop routes first, then routes they are dependent on
-        for (RouteInfo route : routeDiff.added) {
+        for (RouteInfo route : diff.routesAdded) {
             if (route.hasGateway()) continue;
             if (VDBG || DDBG) log("Adding Route [" + route + "] to network " + netId);
+            mLinkPropertiesNetdCalls++;
             try {
                 mNetd.networkAddRouteParcel(netId, convertRouteInfo(route));
             } catch (Exception e) {
@@ -7683,9 +7785,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 }
             }
         }
-        for (RouteInfo route : routeDiff.added) {
+        for (RouteInfo route : diff.routesAdded) {
             if (!route.hasGateway()) continue;
             if (VDBG || DDBG) log("Adding Route [" + route + "] to network " + netId);
+            mLinkPropertiesNetdCalls++;
             try {
                 mNetd.networkAddRouteParcel(netId, convertRouteInfo(route));
             } catch (Exception e) {
@@ -7695,8 +7798,9 @@ public class ConnectivityService extends IConnectivityManager.Stub
             }
         }
 
-        for (RouteInfo route : routeDiff.removed) {
+        for (RouteInfo route : diff.routesRemoved) {
             if (VDBG || DDBG) log("Removing Route [" + route + "] from network " + netId);
+            mLinkPropertiesNetdCalls++;
             try {
                 mNetd.networkRemoveRouteParcel(netId, convertRouteInfo(route));
             } catch (Exception e) {
@@ -7704,23 +7808,19 @@ public class ConnectivityService extends IConnectivityManager.Stub
             }
         }
 
-        for (RouteInfo route : routeDiff.updated) {
+        for (RouteInfo route : diff.routesUpdated) {
             if (VDBG || DDBG) log("Updating Route [" + route + "] from network " + netId);
+            mLinkPropertiesNetdCalls++;
             try {
                 mNetd.networkUpdateRouteParcel(netId, convertRouteInfo(route));
             } catch (Exception e) {
                 loge("Exception in networkUpdateRouteParcel: " + e);
             }
         }
-        return !routeDiff.added.isEmpty() || !routeDiff.removed.isEmpty()
-                || !routeDiff.updated.isEmpty();
+        return diff.hasRouteChanges();
     }
 
-    private void updateDnses(LinkProperties newLp, LinkProperties oldLp, int netId) {
-        if (oldLp != null && newLp.isIdenticalDnses(oldLp)) {
-            return;  // no updating necessary
-        }
-
+    private void updateDnses(LinkProperties newLp, int netId) {
         if (DBG) {
             final Collection<InetAddress> dnses = newLp.getDnsServers();
             log("Setting DNS servers for network " + netId + " to " + dnses);
@@ -7962,6 +8062,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
         final boolean prevRoaming = !prevNc.hasCapability(NET_CAPABILITY_NOT_ROAMING);
         final boolean roaming = !newNc.hasCapability(NET_CAPABILITY_NOT_ROAMING);
         if (prevSuspended != suspended) {
+            // Callbacks for the capabilities change may have been deferred. Send them first, so
+            // that apps see onCapabilitiesChanged before onSuspended or onResumed as they do when
+            // updates are not batched.
+            if (mAgentUpdateBatcher.isBatching(nai)) mAgentUpdateBatcher.commit();
             // TODO (b/73132094) : remove this call once the few users of onSuspended and
             // onResumed have been removed.
             notifyNetworkCallbacks(nai, suspended ? ConnectivityManager.CALLBACK_SUSPENDED
@@ -8009,9 +8113,11 @@ public class ConnectivityService extends IConnectivityManager.Stub
             processListenRequests(nai);
         } else {
             // If the requestable capabilities have changed or the score changed, we can't have been
-            // called by rematchNetworkAndRequests, so it's safe to start a rematch.
-            rematchAllNetworksAndRequests();
-            notifyNetworkCallbacks(nai, ConnectivityManager.CALLBACK_CAP_CHANGED);
+            // called by rematchNetworkAndRequests, so it's safe to start a rematch. If more
+            // updates from this agent are queued, this is deferred until they are processed.
+            mAgentUpdateBatcher.rematchAllNetworksAndRequests(nai);
+            mAgentUpdateBatcher.notifyNetworkCallbacks(nai,
+                    ConnectivityManager.CALLBACK_CAP_CHANGED);
         }
         updateNetworkInfoForRoamingAndSuspended(nai, prevNc, newNc);
 
@@ -8135,29 +8241,44 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
     }
 
-    private void updateVpnUidRanges(boolean add, NetworkAgentInfo nai, Set<UidRange> uidRanges) {
+    /**
+     * Update the VPN uid routing rules in netd.
+     *
+     * @param rangesToAdd ranges to add to the VPN network, as they will later be removed.
+     * @param rangesToRemove ranges to remove from the VPN network, as they were added.
+     * @param changedUids the uids that join or leave the VPN network, whose sockets are closed.
+     */
+    private void updateVpnUidRanges(NetworkAgentInfo nai, Set<UidRange> rangesToAdd,
+            Set<UidRange> rangesToRemove, Set<UidRange> changedUids) {
         int[] exemptUids = new int[2];
         // TODO: Excluding VPN_UID is necessary in order to not to kill the TCP connection used
         // by PPTP. Fix this by making Vpn set the owner UID to VPN_UID instead of system when
         // starting a legacy VPN, and remove VPN_UID here. (b/176542831)
         exemptUids[0] = VPN_UID;
         exemptUids[1] = nai.networkCapabilities.getOwnerUid();
-        UidRangeParcel[] ranges = toUidRangeStableParcels(uidRanges);
+        final UidRangeParcel[] changedRanges = toUidRangeStableParcels(changedUids);
 
-        maybeCloseSockets(nai, ranges, exemptUids);
-        try {
-            if (add) {
-                mNetd.networkAddUidRangesParcel(new NativeUidRangeConfig(
-                        nai.network.netId, ranges, PREFERENCE_ORDER_VPN));
-            } else {
-                mNetd.networkRemoveUidRangesParcel(new NativeUidRangeConfig(
-                        nai.network.netId, ranges, PREFERENCE_ORDER_VPN));
+        if (changedRanges.length > 0) maybeCloseSockets(nai, changedRanges, exemptUids);
+        // Add the new ranges first then remove the old ranges, see updateVpnUids.
+        if (!rangesToAdd.isEmpty()) {
+            try {
+                mNetd.networkAddUidRangesParcel(new NativeUidRangeConfig(nai.network.netId,
+                        toUidRangeStableParcels(rangesToAdd), PREFERENCE_ORDER_VPN));
+            } catch (Exception e) {
+                loge("Exception while adding uid ranges " + rangesToAdd
+                        + " on netId " + nai.network.netId + ". " + e);
             }
-        } catch (Exception e) {
-            loge("Exception while " + (add ? "adding" : "removing") + " uid ranges " + uidRanges +
-                    " on netId " + nai.network.netId + ". " + e);
         }
-        maybeCloseSockets(nai, ranges, exemptUids);
+        if (!rangesToRemove.isEmpty()) {
+            try {
+                mNetd.networkRemoveUidRangesParcel(new NativeUidRangeConfig(nai.network.netId,
+                        toUidRangeStableParcels(rangesToRemove), PREFERENCE_ORDER_VPN));
+            } catch (Exception e) {
+                loge("Exception while removing uid ranges " + rangesToRemove
+                        + " on netId " + nai.network.netId + ". " + e);
+            }
+        }
+        if (changedRanges.length > 0) maybeCloseSockets(nai, changedRanges, exemptUids);
     }
 
     private boolean isProxySetOnAnyDefaultNetwork() {
@@ -8193,9 +8314,11 @@ public class ConnectivityService extends IConnectivityManager.Stub
         if (null == prevRanges) prevRanges = new ArraySet<>();
         if (null == newRanges) newRanges = new ArraySet<>();
         final Set<UidRange> prevRangesCopy = new ArraySet<>(prevRanges);
+        final Set<UidRange> newRangesCopy = new ArraySet<>(newRanges);
 
         prevRanges.removeAll(newRanges);
         newRanges.removeAll(prevRangesCopy);
+        if (prevRanges.isEmpty() && newRanges.isEmpty()) return;
 
         try {
             // When updating the VPN uid routing rules, add the new range first then remove the old
@@ -8204,22 +8327,17 @@ public class ConnectivityService extends IConnectivityManager.Stub
             // in both ranges are not subject to any VPN routing rules. Adding new range before
             // removing old range works because, unlike the filtering rules below, it's possible to
             // add duplicate UID routing rules.
-            // TODO: calculate the intersection of add & remove. Imagining that we are trying to
-            // remove uid 3 from a set containing 1-5. Intersection of the prev and new sets is:
-            //   [1-5] & [1-2],[4-5] == [3]
-            // Then we can do:
+            // Netd removes routing rules by exact range, so the ranges themselves are added and
+            // removed, but only the sockets of the uids that join or leave the VPN are closed.
+            // For example when removing uid 3 from a set containing 1-5, this does:
             //   maybeCloseSockets([3])
             //   mNetd.networkAddUidRanges([1-2],[4-5])
             //   mNetd.networkRemoveUidRanges([1-5])
             //   maybeCloseSockets([3])
-            // This can prevent the sockets of uid 1-2, 4-5 from being closed. It also reduce the
-            // number of binder calls from 6 to 4.
-            if (!newRanges.isEmpty()) {
-                updateVpnUidRanges(true, nai, newRanges);
-            }
-            if (!prevRanges.isEmpty()) {
-                updateVpnUidRanges(false, nai, prevRanges);
-            }
+            final Set<UidRange> changedUids =
+                    UidRangeUtils.subtractRanges(prevRangesCopy, newRangesCopy);
+            changedUids.addAll(UidRangeUtils.subtractRanges(newRangesCopy, prevRangesCopy));
+            updateVpnUidRanges(nai, newRanges, prevRanges, changedUids);
             final String oldIface = getVpnIsolationInterface(nai, prevNc, nai.linkProperties);
             final String newIface = getVpnIsolationInterface(nai, newNc, nai.linkProperties);
             final boolean wasFiltering = requiresVpnAllowRule(nai, nai.linkProperties, oldIface);
@@ -8233,8 +8351,15 @@ public class ConnectivityService extends IConnectivityManager.Stub
             // there is now a window of opportunity when the UIDs are not subject to any filtering.
             // Note that this is in contrast with the (more robust) update of VPN routing rules
             // above, where the addition of new ranges happens before the removal of old ranges.
-            // TODO Fix this window by computing an accurate diff on Set<UidRange>, so the old range
-            // to be removed will never overlap with the new range to be added.
+            // When the filtering interface and the VPN app do not change, PermissionMonitor
+            // computes an accurate diff of the uids instead, and there is no such window.
+            if (prevNc != null && newNc != null && wasFiltering && shouldFilter
+                    && Objects.equals(oldIface, newIface)
+                    && prevNc.getOwnerUid() == newNc.getOwnerUid()) {
+                mPermissionMonitor.onVpnUidRangesUpdated(newIface, prevRangesCopy, newRangesCopy,
+                        newNc.getOwnerUid());
+                return;
+            }
             if (wasFiltering && !prevRanges.isEmpty()) {
                 mPermissionMonitor.onVpnUidRangesRemoved(oldIface, prevRanges,
                         prevNc.getOwnerUid());
@@ -9305,7 +9430,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private void updateNetworkScore(@NonNull final NetworkAgentInfo nai, final NetworkScore score) {
         if (VDBG || DDBG) log("updateNetworkScore for " + nai.toShortString() + " to " + score);
         nai.setScore(score);
-        rematchAllNetworksAndRequests();
+        mAgentUpdateBatcher.rematchAllNetworksAndRequests(nai);
     }
 
     // Notify only this one new request of the current state. Transfer all the
@@ -9837,6 +9962,13 @@ public class ConnectivityService extends IConnectivityManager.Stub
             super(looper);
         }
 
+        @Override
+        public void dispatchMessage(Message msg) {
+            // Reports must not see state that is stale because of NetworkAgentUpdateBatcher.
+            mAgentUpdateBatcher.commit();
+            super.dispatchMessage(msg);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -11349,6 +11481,32 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
     }
 
+    @Override
+    public void setUidFirewallRules(final int chain, final int[] uids, final int[] rules) {
+        enforceNetworkStackOrSettingsPermission();
+
+        if (uids.length != rules.length) {
+            throw new IllegalArgumentException("setUidFirewallRules with " + uids.length
+                    + " uids and " + rules.length + " rules");
+        }
+        // Validate the chain even if there are no rules.
+        getFirewallRuleType(chain, FIREWALL_RULE_DEFAULT);
+        final int[] firewallRules = new int[rules.length];
+        for (int i = 0; i < rules.length; i++) {
+            firewallRules[i] = getFirewallRuleType(chain, rules[i]);
+            if (firewallRules[i] != FIREWALL_RULE_ALLOW && firewallRules[i] != FIREWALL_RULE_DENY) {
+                throw new IllegalArgumentException("setUidFirewallRules with invalid rule: "
+                        + rules[i]);
+            }
+        }
+
+        try {
+            mBpfNetMaps.setUidRules(chain, uids, firewallRules);
+        } catch (ServiceSpecificException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private int getFirewallRuleType(int chain, int rule) {
         final int defaultRule;
         switch (chain) {
@@ -33,8 +33,35 @@ public final class ConnectivityFlags {
     public static final String NO_REMATCH_ALL_REQUESTS_ON_REGISTER =
             "no_rematch_all_requests_on_register";
 
+    /**
+     * Minimum module version at which to coalesce the rematches and callbacks caused by
+     * consecutive capabilities, link properties and score updates from the same network agent.
+     */
+    @VisibleForTesting
+    public static final String BATCH_NETWORK_AGENT_UPDATES = "batch_network_agent_updates";
+
+    /**
+     * Minimum module version at which to run the ICMP and DNS UDP checks of network diagnostics
+     * on a single thread.
+     */
+    @VisibleForTesting
+    public static final String MULTIPLEXED_NETWORK_DIAGNOSTICS = "multiplexed_network_diagnostics";
+
+    /**
+     * Minimum module version at which to write NetworkCapabilities and LinkProperties to parcels
+     * in the compact format.
+     */
+    @VisibleForTesting
+    public static final String COMPACT_NETWORK_STATE_PARCELS = "compact_network_state_parcels";
+
     private boolean mNoRematchAllRequestsOnRegister;
 
+    private boolean mBatchNetworkAgentUpdates;
+
+    private boolean mMultiplexedNetworkDiagnostics;
+
+    private boolean mCompactNetworkStateParcels;
+
     /**
      * Whether ConnectivityService should avoid avoid rematching all requests when a network
      * request is registered, and rematch only the registered requests instead.
@@ -55,6 +82,42 @@ public final class ConnectivityFlags {
         return mNoRematchAllRequestsOnRegister;
     }
 
+    /**
+     * Whether ConnectivityService should defer rematching and callback dispatch until all the
+     * queued capabilities, link properties and score updates from a network agent have been
+     * processed.
+     *
+     * This flag is disabled by default. Like {@link #noRematchAllRequestsOnRegister}, it is only
+     * loaded in ConnectivityService systemReady and is not volatile; this is fine because it
+     * only controls how many times the same work is done, not its outcome.
+     */
+    public boolean batchNetworkAgentUpdates() {
+        return mBatchNetworkAgentUpdates;
+    }
+
+    /**
+     * Whether network diagnostics should poll the sockets of all ICMP and DNS UDP checks on a
+     * single thread, instead of starting a thread per check.
+     *
+     * This flag is disabled by default. It is only loaded in ConnectivityService systemReady and
+     * is not volatile, which is fine as it is only read when dumping.
+     */
+    public boolean multiplexedNetworkDiagnostics() {
+        return mMultiplexedNetworkDiagnostics;
+    }
+
+    /**
+     * Whether NetworkCapabilities and LinkProperties sent by the system server should be written
+     * to parcels in the compact format.
+     *
+     * This flag is disabled by default. It is only loaded in ConnectivityService systemReady;
+     * parcels in either format can always be read, so it does not matter that objects parceled
+     * before then use the original format.
+     */
+    public boolean compactNetworkStateParcels() {
+        return mCompactNetworkStateParcels;
+    }
+
     /**
      * Load flag values. Should only be called once, and can only be called once PackageManager is
      * ready.
@@ -62,5 +125,11 @@ public final class ConnectivityFlags {
     public void loadFlags(ConnectivityService.Dependencies deps, Context ctx) {
         mNoRematchAllRequestsOnRegister = deps.isFeatureEnabled(
                 ctx, NO_REMATCH_ALL_REQUESTS_ON_REGISTER, false /* defaultEnabled */);
+        mBatchNetworkAgentUpdates = deps.isFeatureEnabled(
+                ctx, BATCH_NETWORK_AGENT_UPDATES, false /* defaultEnabled */);
+        mMultiplexedNetworkDiagnostics = deps.isFeatureEnabled(
+                ctx, MULTIPLEXED_NETWORK_DIAGNOSTICS, false /* defaultEnabled */);
+        mCompactNetworkStateParcels = deps.isFeatureEnabled(
+                ctx, COMPACT_NETWORK_STATE_PARCELS, false /* defaultEnabled */);
     }
 }
@@ -51,6 +51,7 @@ import android.util.Log;
 import android.util.Pair;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -152,6 +153,15 @@ public class DnsManager {
         };
     }
 
+    public static Uri[] getResolverParametersSettingsUris() {
+        return new Uri[]{
+            Settings.Global.getUriFor(DNS_RESOLVER_SAMPLE_VALIDITY_SECONDS),
+            Settings.Global.getUriFor(DNS_RESOLVER_SUCCESS_THRESHOLD_PERCENT),
+            Settings.Global.getUriFor(DNS_RESOLVER_MIN_SAMPLES),
+            Settings.Global.getUriFor(DNS_RESOLVER_MAX_SAMPLES),
+        };
+    }
+
     public static class PrivateDnsValidationUpdate {
         public final int netId;
         public final InetAddress ipAddress;
@@ -252,7 +262,11 @@ public class DnsManager {
     private final Map<Integer, PrivateDnsValidationStatuses> mPrivateDnsValidationMap;
     private final Map<Integer, LinkProperties> mLinkPropertiesMap;
     private final Map<Integer, int[]> mTransportsMap;
+    // Last configuration successfully sent to the resolver for each network.
+    private final Map<Integer, ResolverParamsParcel> mSentResolverConfigs;
 
+    // Whether the following parameters were read from settings since the settings last changed.
+    private boolean mParametersSettingsValid;
     private int mSampleValidity;
     private int mSuccessThreshold;
     private int mMinSamples;
@@ -266,9 +280,7 @@ public class DnsManager {
         mPrivateDnsValidationMap = new HashMap<>();
         mLinkPropertiesMap = new HashMap<>();
         mTransportsMap = new HashMap<>();
-
-        // TODO: Create and register ContentObservers to track every setting
-        // used herein, posting messages to respond to changes.
+        mSentResolverConfigs = new HashMap<>();
     }
 
     public PrivateDnsConfig getPrivateDnsConfig() {
@@ -280,6 +292,7 @@ public class DnsManager {
         mPrivateDnsValidationMap.remove(network.getNetId());
         mTransportsMap.remove(network.getNetId());
         mLinkPropertiesMap.remove(network.getNetId());
+        mSentResolverConfigs.remove(network.getNetId());
     }
 
     // This is exclusively called by ConnectivityService#dumpNetworkDiagnostics() which
@@ -346,8 +359,31 @@ public class DnsManager {
         sendDnsConfigurationForNetwork(netId);
     }
 
+    /**
+     * Forget the configuration last sent for a network, so that the next call to
+     * {@link #sendDnsConfigurationForNetwork} sends it even if it is unchanged.
+     *
+     * Re-sending an identical configuration makes the resolver restart private DNS validation.
+     */
+    public void forgetSentDnsConfigurationForNetwork(int netId) {
+        mSentResolverConfigs.remove(netId);
+    }
+
+    /**
+     * Called when the settings returned by {@link #getResolverParametersSettingsUris} change.
+     * Sends the new parameters to the resolver for all networks.
+     */
+    public void onResolverParametersSettingsChanged() {
+        mParametersSettingsValid = false;
+        for (int netId : new ArrayList<>(mLinkPropertiesMap.keySet())) {
+            sendDnsConfigurationForNetwork(netId);
+        }
+    }
+
     /**
      * Send dns configuration parameters to resolver for a given network.
+     *
+     * The configuration is not sent if it is identical to the last one sent for the network.
      */
     public void sendDnsConfigurationForNetwork(int netId) {
         final LinkProperties lp = mLinkPropertiesMap.get(netId);
@@ -396,6 +432,11 @@ public class DnsManager {
             mPrivateDnsValidationMap.remove(netId);
         }
 
+        final ResolverParamsParcel sentParams = mSentResolverConfigs.get(netId);
+        if (sentParams != null && isSameResolverConfiguration(sentParams, paramsParcel)) {
+            return;
+        }
+
         Log.d(TAG, String.format("sendDnsConfigurationForNetwork(%d, %s, %s, %d, %d, %d, %d, "
                 + "%d, %d, %s, %s)", paramsParcel.netId, Arrays.toString(paramsParcel.servers),
                 Arrays.toString(paramsParcel.domains), paramsParcel.sampleValiditySeconds,
@@ -408,8 +449,28 @@ public class DnsManager {
             mDnsResolver.setResolverConfiguration(paramsParcel);
         } catch (RemoteException | ServiceSpecificException e) {
             Log.e(TAG, "Error setting DNS configuration: " + e);
+            mSentResolverConfigs.remove(netId);
             return;
         }
+        mSentResolverConfigs.put(netId, paramsParcel);
+    }
+
+    /**
+     * Compare the fields of two configurations that are set by
+     * {@link #sendDnsConfigurationForNetwork}.
+     */
+    private static boolean isSameResolverConfiguration(@NonNull ResolverParamsParcel a,
+            @NonNull ResolverParamsParcel b) {
+        return a.netId == b.netId
+                && a.sampleValiditySeconds == b.sampleValiditySeconds
+                && a.successThreshold == b.successThreshold
+                && a.minSamples == b.minSamples
+                && a.maxSamples == b.maxSamples
+                && Arrays.equals(a.servers, b.servers)
+                && Arrays.equals(a.domains, b.domains)
+                && TextUtils.equals(a.tlsName, b.tlsName)
+                && Arrays.equals(a.tlsServers, b.tlsServers)
+                && Arrays.equals(a.transportTypes, b.transportTypes);
     }
 
     /**
@@ -434,6 +495,8 @@ public class DnsManager {
     }
 
     private void updateParametersSettings() {
+        if (mParametersSettingsValid) return;
+        mParametersSettingsValid = true;
         mSampleValidity = getIntSetting(
                 DNS_RESOLVER_SAMPLE_VALIDITY_SECONDS,
                 DNS_RESOLVER_DEFAULT_SAMPLE_VALIDITY_SECONDS);
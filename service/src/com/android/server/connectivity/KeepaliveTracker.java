@@ -53,6 +53,7 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.util.Log;
@@ -69,7 +70,10 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Manages socket keepalive requests.
@@ -88,6 +92,11 @@ public class KeepaliveTracker {
     /** Keeps track of keepalive requests. */
     private final HashMap <NetworkAgentInfo, HashMap<Integer, KeepaliveInfo>> mKeepalives =
             new HashMap<> ();
+    /** Indexes of the keepalives in mKeepalives, for networks that have keepalives. */
+    private final HashMap<NetworkAgentInfo, NetworkKeepaliveIndex> mKeepaliveIndexes =
+            new HashMap<>();
+    /** Statistics about keepalives started on each connected network. */
+    private final HashMap<NetworkAgentInfo, KeepaliveStartStats> mStartStats = new HashMap<>();
     private final Handler mConnectivityServiceHandler;
     @NonNull
     private final TcpKeepaliveController mTcpController;
@@ -121,6 +130,60 @@ public class KeepaliveTracker {
                 R.integer.config_allowedUnprivilegedKeepalivePerUid);
     }
 
+    /**
+     * Indexes the keepalives of a network by slot and by source address, so that free slots can
+     * be found and link properties changes can be handled without scanning all keepalives.
+     */
+    private static class NetworkKeepaliveIndex {
+        // Slots in use. Slot numbers start from 1, so bit 0 is never set.
+        private final BitSet mUsedSlots = new BitSet();
+        private final HashMap<InetAddress, ArrayList<KeepaliveInfo>> mBySrcAddress =
+                new HashMap<>();
+
+        private int findFirstFreeSlot() {
+            return mUsedSlots.nextClearBit(1);
+        }
+
+        private void add(int slot, @NonNull KeepaliveInfo ki) {
+            mUsedSlots.set(slot);
+            mBySrcAddress.computeIfAbsent(ki.mPacket.getSrcAddress(), k -> new ArrayList<>())
+                    .add(ki);
+        }
+
+        private void remove(int slot, @NonNull KeepaliveInfo ki) {
+            mUsedSlots.clear(slot);
+            final InetAddress srcAddress = ki.mPacket.getSrcAddress();
+            final ArrayList<KeepaliveInfo> keepalives = mBySrcAddress.get(srcAddress);
+            if (keepalives == null) return;
+            keepalives.remove(ki);
+            if (keepalives.isEmpty()) mBySrcAddress.remove(srcAddress);
+        }
+    }
+
+    /**
+     * Statistics about the time taken by the hardware to start keepalives on a network, shown in
+     * dump.
+     */
+    private static class KeepaliveStartStats {
+        private int mStarted;
+        private int mFailed;
+        private long mTotalLatencyMs;
+        private long mMaxLatencyMs;
+
+        private void onStarted(long latencyMs) {
+            mStarted++;
+            mTotalLatencyMs += latencyMs;
+            mMaxLatencyMs = Math.max(mMaxLatencyMs, latencyMs);
+        }
+
+        @Override
+        public String toString() {
+            final long avgLatencyMs = mStarted == 0 ? 0 : mTotalLatencyMs / mStarted;
+            return "started=" + mStarted + " failed=" + mFailed
+                    + " avgLatencyMs=" + avgLatencyMs + " maxLatencyMs=" + mMaxLatencyMs;
+        }
+    }
+
     /**
      * Tracks information about a socket keepalive.
      *
@@ -155,6 +218,8 @@ public class KeepaliveTracker {
         private static final int STOPPING = 4;
         private int mStartedState = NOT_STARTED;
         private int mStopReason = ERROR_STOP_REASON_UNINITIALIZED;
+        // Time at which the hardware was asked to start the keepalive.
+        private long mStartRequestedTimeMs;
 
         KeepaliveInfo(@NonNull ISocketKeepaliveCallback callback,
                 @NonNull NetworkAgentInfo nai,
@@ -353,6 +418,7 @@ public class KeepaliveTracker {
                         return;
                 }
                 mStartedState = STARTING;
+                mStartRequestedTimeMs = SystemClock.elapsedRealtime();
             } else {
                 handleStopKeepalive(mNai, mSlot, error);
                 return;
@@ -427,21 +493,14 @@ public class KeepaliveTracker {
     }
 
     private  int findFirstFreeSlot(NetworkAgentInfo nai) {
-        HashMap networkKeepalives = mKeepalives.get(nai);
-        if (networkKeepalives == null) {
-            networkKeepalives = new HashMap<Integer, KeepaliveInfo>();
-            mKeepalives.put(nai, networkKeepalives);
+        if (!mKeepalives.containsKey(nai)) {
+            mKeepalives.put(nai, new HashMap<Integer, KeepaliveInfo>());
+            mKeepaliveIndexes.put(nai, new NetworkKeepaliveIndex());
         }
 
         // Find the lowest-numbered free slot. Slot numbers start from 1, because that's what two
         // separate chipset implementations independently came up with.
-        int slot;
-        for (slot = 1; slot <= networkKeepalives.size(); slot++) {
-            if (networkKeepalives.get(slot) == null) {
-                return slot;
-            }
-        }
-        return slot;
+        return mKeepaliveIndexes.get(nai).findFirstFreeSlot();
     }
 
     public void handleStartKeepalive(Message message) {
@@ -449,6 +508,7 @@ public class KeepaliveTracker {
         NetworkAgentInfo nai = ki.getNai();
         int slot = findFirstFreeSlot(nai);
         mKeepalives.get(nai).put(slot, ki);
+        mKeepaliveIndexes.get(nai).add(slot, ki);
         ki.start(slot);
     }
 
@@ -463,6 +523,7 @@ public class KeepaliveTracker {
                 cleanupStoppedKeepalive(nai, ki.mSlot);
             }
         }
+        mStartStats.remove(nai);
     }
 
     public void handleStopKeepalive(NetworkAgentInfo nai, int slot, int reason) {
@@ -498,10 +559,12 @@ public class KeepaliveTracker {
         // Remove the keepalive from hash table so the slot can be considered available when reusing
         // it.
         networkKeepalives.remove(slot);
+        mKeepaliveIndexes.get(nai).remove(slot, ki);
         Log.d(TAG, "Remove keepalive " + slot + " on " + networkName + ", "
                 + networkKeepalives.size() + " remains.");
         if (networkKeepalives.isEmpty()) {
             mKeepalives.remove(nai);
+            mKeepaliveIndexes.remove(nai);
         }
 
         // Notify app that the keepalive is stopped.
@@ -529,20 +592,34 @@ public class KeepaliveTracker {
         ki.unlinkDeathRecipient();
     }
 
+    /**
+     * Stop the keepalives of a network that are no longer valid after its link properties changed.
+     *
+     * Only the keepalives whose source address is no longer on the network are checked: the
+     * other checks done when starting a keepalive do not depend on link properties.
+     */
     public void handleCheckKeepalivesStillValid(NetworkAgentInfo nai) {
-        HashMap <Integer, KeepaliveInfo> networkKeepalives = mKeepalives.get(nai);
-        if (networkKeepalives != null) {
-            ArrayList<Pair<Integer, Integer>> invalidKeepalives = new ArrayList<>();
-            for (int slot : networkKeepalives.keySet()) {
-                int error = networkKeepalives.get(slot).isValid();
+        final NetworkKeepaliveIndex index = mKeepaliveIndexes.get(nai);
+        if (index == null) return;
+        final List<InetAddress> addresses = nai.linkProperties.getAddresses();
+        ArrayList<Pair<Integer, Integer>> invalidKeepalives = new ArrayList<>();
+        for (Map.Entry<InetAddress, ArrayList<KeepaliveInfo>> entry
+                : index.mBySrcAddress.entrySet()) {
+            if (addresses.contains(entry.getKey())) continue;
+            for (KeepaliveInfo ki : entry.getValue()) {
+                int error = ki.isValid();
                 if (error != SUCCESS) {
-                    invalidKeepalives.add(Pair.create(slot, error));
+                    invalidKeepalives.add(Pair.create(ki.mSlot, error));
                 }
             }
-            for (Pair<Integer, Integer> slotAndError: invalidKeepalives) {
-                handleStopKeepalive(nai, slotAndError.first, slotAndError.second);
-            }
         }
+        for (Pair<Integer, Integer> slotAndError: invalidKeepalives) {
+            handleStopKeepalive(nai, slotAndError.first, slotAndError.second);
+        }
+    }
+
+    private KeepaliveStartStats getOrCreateStartStats(@NonNull NetworkAgentInfo nai) {
+        return mStartStats.computeIfAbsent(nai, k -> new KeepaliveStartStats());
     }
 
     /** Handle keepalive events from lower layer. */
@@ -577,6 +654,8 @@ public class KeepaliveTracker {
                 // Keepalive successfully started.
                 Log.d(TAG, "Started keepalive " + slot + " on " + nai.toShortString());
                 ki.mStartedState = KeepaliveInfo.STARTED;
+                getOrCreateStartStats(nai).onStarted(
+                        SystemClock.elapsedRealtime() - ki.mStartRequestedTimeMs);
                 try {
                     ki.mCallback.onStarted(slot);
                 } catch (RemoteException e) {
@@ -585,6 +664,7 @@ public class KeepaliveTracker {
             } else {
                 Log.d(TAG, "Failed to start keepalive " + slot + " on " + nai.toShortString()
                         + ": " + reason);
+                getOrCreateStartStats(nai).mFailed++;
                 // The message indicated some error trying to start: do call handleStopKeepalive.
                 handleStopKeepalive(nai, slot, reason);
             }
@@ -755,5 +835,11 @@ public class KeepaliveTracker {
             pw.decreaseIndent();
         }
         pw.decreaseIndent();
+        pw.println("Keepalive starts:");
+        pw.increaseIndent();
+        for (Map.Entry<NetworkAgentInfo, KeepaliveStartStats> entry : mStartStats.entrySet()) {
+            pw.println(entry.getKey().toShortString() + ": " + entry.getValue());
+        }
+        pw.decreaseIndent();
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.LinkProperties;
+import android.net.RouteInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The changes between two {@link LinkProperties} that need to be pushed to netd and the DNS
+ * resolver, computed in a single pass.
+ *
+ * Interfaces and routes (including those of stacked links) are compared using hash sets and
+ * maps, so computing the diff takes linear time in the number of interfaces and routes. Added and
+ * updated items are listed in the order of the new link properties, and removed items in the
+ * order of the old ones.
+ */
+public class LinkPropertiesDiff {
+    @NonNull
+    public final List<String> interfacesAdded;
+    @NonNull
+    public final List<String> interfacesRemoved;
+    @NonNull
+    public final List<RouteInfo> routesAdded;
+    @NonNull
+    public final List<RouteInfo> routesRemoved;
+    /** Routes whose key is in both link properties, but whose type or MTU changed. */
+    @NonNull
+    public final List<RouteInfo> routesUpdated;
+    /** Whether DNS servers or search domains changed. */
+    public final boolean dnsChanged;
+
+    public LinkPropertiesDiff(@Nullable LinkProperties oldLp, @Nullable LinkProperties newLp) {
+        final List<String> oldIfaces = oldLp != null
+                ? oldLp.getAllInterfaceNames() : Collections.emptyList();
+        final List<String> newIfaces = newLp != null
+                ? newLp.getAllInterfaceNames() : Collections.emptyList();
+        final HashSet<String> oldIfaceSet = new HashSet<>(oldIfaces);
+        final HashSet<String> newIfaceSet = new HashSet<>(newIfaces);
+        interfacesAdded = new ArrayList<>();
+        for (String iface : newIfaces) {
+            if (!oldIfaceSet.contains(iface)) interfacesAdded.add(iface);
+        }
+        interfacesRemoved = new ArrayList<>();
+        for (String iface : oldIfaces) {
+            if (!newIfaceSet.contains(iface)) interfacesRemoved.add(iface);
+        }
+
+        final List<RouteInfo> oldRoutes = oldLp != null
+                ? oldLp.getAllRoutes() : Collections.emptyList();
+        final List<RouteInfo> newRoutes = newLp != null
+                ? newLp.getAllRoutes() : Collections.emptyList();
+        final HashMap<RouteInfo.RouteKey, RouteInfo> oldRoutesByKey =
+                new HashMap<>(oldRoutes.size() * 2);
+        for (RouteInfo route : oldRoutes) {
+            oldRoutesByKey.put(route.getRouteKey(), route);
+        }
+        final HashSet<RouteInfo.RouteKey> newRouteKeys = new HashSet<>(newRoutes.size() * 2);
+        routesAdded = new ArrayList<>();
+        routesUpdated = new ArrayList<>();
+        for (RouteInfo route : newRoutes) {
+            final RouteInfo.RouteKey key = route.getRouteKey();
+            newRouteKeys.add(key);
+            final RouteInfo oldRoute = oldRoutesByKey.get(key);
+            if (oldRoute == null) {
+                routesAdded.add(route);
+            } else if (!oldRoute.equals(route)) {
+                routesUpdated.add(route);
+            }
+        }
+        routesRemoved = new ArrayList<>();
+        for (RouteInfo route : oldRoutes) {
+            if (!newRouteKeys.contains(route.getRouteKey())) routesRemoved.add(route);
+        }
+
+        dnsChanged = oldLp == null || newLp == null || !newLp.isIdenticalDnses(oldLp);
+    }
+
+    /** Whether any interface or route was added, removed or updated. */
+    public boolean hasInterfaceOrRouteChanges() {
+        return !interfacesAdded.isEmpty() || !interfacesRemoved.isEmpty() || hasRouteChanges();
+    }
+
+    /** Whether any route was added, removed or updated. */
+    public boolean hasRouteChanges() {
+        return !routesAdded.isEmpty() || !routesRemoved.isEmpty() || !routesUpdated.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "LinkPropertiesDiff{interfacesAdded=" + interfacesAdded
+                + ", interfacesRemoved=" + interfacesRemoved
+                + ", routesAdded=" + routesAdded
+                + ", routesRemoved=" + routesRemoved
+                + ", routesUpdated=" + routesUpdated
+                + ", dnsChanged=" + dnsChanged + "}";
+    }
+}
@@ -73,6 +73,7 @@ import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A bag class used by ConnectivityService for holding a collection of most recent
@@ -194,6 +195,9 @@ public class NetworkAgentInfo implements Comparable<NetworkAgentInfo>, NetworkRa
     public boolean everConnected;
     // Whether this network has been destroyed and is being kept temporarily until it is replaced.
     public boolean destroyed;
+    // Number of capabilities, link properties and score updates sent by the agent that have not
+    // yet been processed by the handler. Incremented on binder threads.
+    private final AtomicInteger mPendingStateUpdates = new AtomicInteger(0);
     // To check how long it has been since last roam.
     public long lastRoamTimestamp;
 
@@ -641,6 +645,7 @@ public class NetworkAgentInfo implements Comparable<NetworkAgentInfo>, NetworkRa
         @Override
         public void sendNetworkCapabilities(@NonNull NetworkCapabilities nc) {
             Objects.requireNonNull(nc);
+            mPendingStateUpdates.incrementAndGet();
             mHandler.obtainMessage(NetworkAgent.EVENT_NETWORK_CAPABILITIES_CHANGED,
                     new Pair<>(NetworkAgentInfo.this, nc)).sendToTarget();
         }
@@ -648,6 +653,7 @@ public class NetworkAgentInfo implements Comparable<NetworkAgentInfo>, NetworkRa
         @Override
         public void sendLinkProperties(@NonNull LinkProperties lp) {
             Objects.requireNonNull(lp);
+            mPendingStateUpdates.incrementAndGet();
             mHandler.obtainMessage(NetworkAgent.EVENT_NETWORK_PROPERTIES_CHANGED,
                     new Pair<>(NetworkAgentInfo.this, lp)).sendToTarget();
         }
@@ -661,6 +667,7 @@ public class NetworkAgentInfo implements Comparable<NetworkAgentInfo>, NetworkRa
 
         @Override
         public void sendScore(@NonNull final NetworkScore score) {
+            mPendingStateUpdates.incrementAndGet();
             mHandler.obtainMessage(NetworkAgent.EVENT_NETWORK_SCORE_CHANGED,
                     new Pair<>(NetworkAgentInfo.this, score)).sendToTarget();
         }
@@ -928,8 +935,53 @@ public class NetworkAgentInfo implements Comparable<NetworkAgentInfo>, NetworkRa
 
     // Does this network satisfy request?
     public boolean satisfies(NetworkRequest request) {
-        return created &&
-                request.networkCapabilities.satisfiedByNetworkCapabilities(networkCapabilities);
+        return created && satisfiesCapabilitiesOf(request);
+    }
+
+    // Results of satisfies() for the current generation of networkCapabilities. This is called
+    // many times for the same request and network during a single rematch, and evaluating
+    // satisfiedByNetworkCapabilities in full is comparatively expensive.
+    private static final class SatisfactionResult {
+        // Generation of the request's capabilities when the result was computed.
+        final long requestGeneration;
+        final boolean satisfied;
+
+        SatisfactionResult(long requestGeneration, boolean satisfied) {
+            this.requestGeneration = requestGeneration;
+            this.satisfied = satisfied;
+        }
+    }
+
+    // Keyed by request ID. Guarded by itself, as satisfies() can be called from binder threads.
+    private final SparseArray<SatisfactionResult> mSatisfactionCache = new SparseArray<>();
+    // Generation of networkCapabilities for which mSatisfactionCache is valid.
+    private long mSatisfactionCacheGeneration = -1;
+
+    private boolean satisfiesCapabilitiesOf(@NonNull NetworkRequest request) {
+        final NetworkCapabilities nc = networkCapabilities;
+        final long networkGeneration = nc.getGeneration();
+        final long requestGeneration = request.networkCapabilities.getGeneration();
+        synchronized (mSatisfactionCache) {
+            if (mSatisfactionCacheGeneration != networkGeneration) {
+                mSatisfactionCache.clear();
+                mSatisfactionCacheGeneration = networkGeneration;
+            }
+            final SatisfactionResult cached = mSatisfactionCache.get(request.requestId);
+            if (cached != null && cached.requestGeneration == requestGeneration) {
+                return cached.satisfied;
+            }
+        }
+        final boolean satisfied = request.canBeSatisfiedBy(nc);
+        synchronized (mSatisfactionCache) {
+            // Don't store the result if the capabilities changed while it was being computed.
+            if (mSatisfactionCacheGeneration == networkGeneration
+                    && nc.getGeneration() == networkGeneration
+                    && request.networkCapabilities.getGeneration() == requestGeneration) {
+                mSatisfactionCache.put(request.requestId,
+                        new SatisfactionResult(requestGeneration, satisfied));
+            }
+        }
+        return satisfied;
     }
 
     public boolean satisfiesImmutableCapabilitiesOf(NetworkRequest request) {
@@ -975,6 +1027,22 @@ public class NetworkAgentInfo implements Comparable<NetworkAgentInfo>, NetworkRa
         return mScore.getLegacyIntAsValidated();
     }
 
+    /**
+     * Record that a capabilities, link properties or score update sent by the agent has been
+     * taken off the handler queue. Must be called on the ConnectivityService handler thread.
+     */
+    public void onStateUpdateDequeued() {
+        mPendingStateUpdates.decrementAndGet();
+    }
+
+    /**
+     * Whether capabilities, link properties or score updates sent by the agent are still queued
+     * on the ConnectivityService handler.
+     */
+    public boolean hasPendingStateUpdates() {
+        return mPendingStateUpdates.get() > 0;
+    }
+
     /**
      * Mix-in the ConnectivityService-managed bits in the score.
      */
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.ConnectivityManager;
+import android.util.LocalLog;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Coalesces the rematch and callback work caused by consecutive capabilities, link properties
+ * and score updates sent by the same network agent.
+ *
+ * When an agent sends several of these updates back to back, ConnectivityService would normally
+ * rematch all networks and requests, and notify callbacks, once per update. While a transaction
+ * is open for an agent, rematches and callbacks requested for that agent are recorded instead,
+ * and are run once when the last queued update from that agent has been processed, or before
+ * any other message or runnable is dispatched by the ConnectivityService handlers.
+ *
+ * This class is not thread-safe and all its methods must be called on the ConnectivityService
+ * handler thread.
+ */
+public class NetworkAgentUpdateBatcher {
+    private static final int MAX_TRANSACTION_LOGS = 20;
+
+    /**
+     * Interface used to run the work that was deferred while a transaction was open.
+     */
+    public interface Callback {
+        /** Rematch all networks and requests. */
+        void rematchAllNetworksAndRequests();
+
+        /** Notify callbacks registered for requests satisfied by the network. */
+        void notifyNetworkCallbacks(@NonNull NetworkAgentInfo nai, int notifyType);
+    }
+
+    @NonNull
+    private final BooleanSupplier mEnabled;
+    @NonNull
+    private final Callback mCallback;
+
+    // The network whose updates are currently being batched, or null if no transaction is open.
+    @Nullable
+    private NetworkAgentInfo mNai;
+    private int mUpdateCount;
+    private int mRematchRequests;
+    private boolean mRematchPending;
+    private int mNotificationRequests;
+    // Callback types to send when the transaction is committed, in first-requested order.
+    private final ArrayList<Integer> mPendingNotifications = new ArrayList<>();
+
+    private long mTotalTransactions;
+    private long mTotalRematchesSaved;
+    private long mTotalNotificationsSaved;
+    private final LocalLog mTransactionLogs = new LocalLog(MAX_TRANSACTION_LOGS);
+
+    public NetworkAgentUpdateBatcher(@NonNull BooleanSupplier enabled,
+            @NonNull Callback callback) {
+        mEnabled = enabled;
+        mCallback = callback;
+    }
+
+    /**
+     * Must be called before processing a capabilities, link properties or score update from
+     * {@code nai}, after {@link NetworkAgentInfo#onStateUpdateDequeued} has been called.
+     *
+     * Commits any transaction open for another network, and opens (or continues) a transaction
+     * for {@code nai} if more updates from that network are already queued.
+     */
+    public void beginUpdate(@NonNull NetworkAgentInfo nai) {
+        if (mNai != null && mNai != nai) commit();
+        if (mNai == null) {
+            if (!mEnabled.getAsBoolean() || !nai.hasPendingStateUpdates()) return;
+            mNai = nai;
+        }
+        mUpdateCount++;
+    }
+
+    /**
+     * Must be called after processing an update passed to {@link #beginUpdate}. Commits the
+     * transaction if no more updates from the network are queued.
+     */
+    public void endUpdate() {
+        if (mNai != null && !mNai.hasPendingStateUpdates()) commit();
+    }
+
+    /**
+     * Whether a transaction is currently open for the given network.
+     */
+    public boolean isBatching(@NonNull NetworkAgentInfo nai) {
+        return mNai == nai;
+    }
+
+    /**
+     * Rematch all networks and requests, or defer the rematch if a transaction is open for
+     * {@code nai}.
+     */
+    public void rematchAllNetworksAndRequests(@NonNull NetworkAgentInfo nai) {
+        if (!isBatching(nai)) {
+            mCallback.rematchAllNetworksAndRequests();
+            return;
+        }
+        mRematchRequests++;
+        mRematchPending = true;
+    }
+
+    /**
+     * Notify network callbacks for {@code nai}, or defer the notification if a transaction is
+     * open for {@code nai}. Deferred notifications of the same type are only sent once.
+     */
+    public void notifyNetworkCallbacks(@NonNull NetworkAgentInfo nai, int notifyType) {
+        if (!isBatching(nai)) {
+            mCallback.notifyNetworkCallbacks(nai, notifyType);
+            return;
+        }
+        mNotificationRequests++;
+        if (!mPendingNotifications.contains(notifyType)) mPendingNotifications.add(notifyType);
+    }
+
+    /**
+     * Close the open transaction, if any, and run the work that was deferred while it was open.
+     */
+    public void commit() {
+        final NetworkAgentInfo nai = mNai;
+        if (nai == null) return;
+        mNai = null;
+
+        final int rematchesRun = mRematchPending ? 1 : 0;
+        if (mRematchPending) {
+            mRematchPending = false;
+            mCallback.rematchAllNetworksAndRequests();
+        }
+        // Copy before dispatching, as callbacks may re-enter this class.
+        final ArrayList<Integer> notifications = new ArrayList<>(mPendingNotifications);
+        mPendingNotifications.clear();
+        for (final int notifyType : notifications) {
+            mCallback.notifyNetworkCallbacks(nai, notifyType);
+        }
+
+        final int rematchesSaved = mRematchRequests - rematchesRun;
+        final int notificationsSaved = mNotificationRequests - notifications.size();
+        mTotalTransactions++;
+        mTotalRematchesSaved += rematchesSaved;
+        mTotalNotificationsSaved += notificationsSaved;
+        mTransactionLogs.log(nai.toShortString() + " updates=" + mUpdateCount
+                + " rematchesSaved=" + rematchesSaved
+                + " callbacksSaved=" + notificationsSaved
+                + " callbacks=" + describeNotifications(notifications));
+        mUpdateCount = 0;
+        mRematchRequests = 0;
+        mNotificationRequests = 0;
+    }
+
+    private static String describeNotifications(@NonNull ArrayList<Integer> notifications) {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < notifications.size(); i++) {
+            if (i > 0) sb.append(",");
+            sb.append(ConnectivityManager.getCallbackName(notifications.get(i)));
+        }
+        return sb.append("]").toString();
+    }
+
+    @VisibleForTesting
+    public long getTotalTransactions() {
+        return mTotalTransactions;
+    }
+
+    @VisibleForTesting
+    public long getTotalRematchesSaved() {
+        return mTotalRematchesSaved;
+    }
+
+    @VisibleForTesting
+    public long getTotalNotificationsSaved() {
+        return mTotalNotificationsSaved;
+    }
+
+    /**
+     * Dump the batching statistics.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("Network agent update batching: " + (mEnabled.getAsBoolean() ? "on" : "off"));
+        pw.increaseIndent();
+        pw.println("Transactions: " + mTotalTransactions);
+        pw.println("Rematches saved: " + mTotalRematchesSaved);
+        pw.println("Callbacks saved: " + mTotalNotificationsSaved);
+        pw.println("Recent transactions (most recent first):");
+        pw.increaseIndent();
+        mTransactionLogs.reverseDump(pw);
+        pw.decreaseIndent();
+        pw.decreaseIndent();
+    }
+}
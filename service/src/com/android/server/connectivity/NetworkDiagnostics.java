@@ -31,10 +31,12 @@ import android.net.util.NetworkConstants;
 import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
+import android.system.StructPollfd;
 import android.system.StructTimeval;
 import android.text.TextUtils;
 import android.util.Pair;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.net.module.util.NetworkStackConstants;
 
@@ -92,6 +94,11 @@ import javax.net.ssl.SSLSocketFactory;
  * check class must implement this upper bound on measurements in whichever
  * manner is most appropriate and effective.
  *
+ * By default every check runs on its own thread.  In multiplexed mode, the
+ * ICMP and DNS UDP checks instead use non-blocking sockets that are all
+ * polled by a single thread; DNS TLS checks still run on their own threads,
+ * as they use blocking TLS sockets.
+ *
  * @hide
  */
 public class NetworkDiagnostics {
@@ -118,6 +125,7 @@ public class NetworkDiagnostics {
     private final long mTimeoutMs;
     private final long mStartTime;
     private final long mDeadlineTime;
+    private final boolean mMultiplexed;
 
     // A counter, initialized to the total number of measurements,
     // so callers can wait for completion.
@@ -135,6 +143,7 @@ public class NetworkDiagnostics {
         long finishTime;
         String result = "";
         Thread thread;
+        MultiplexedCheck multiplexedCheck;
 
         public boolean checkSucceeded() { return succeeded; }
 
@@ -178,10 +187,18 @@ public class NetworkDiagnostics {
     private final Map<InetAddress, Measurement> mDnsUdpChecks = new HashMap<>();
     private final Map<InetAddress, Measurement> mDnsTlsChecks = new HashMap<>();
     private final String mDescription;
+    // The thread running all multiplexed checks, if any.
+    private Thread mMultiplexedThread;
 
 
     public NetworkDiagnostics(Network network, LinkProperties lp,
             @NonNull PrivateDnsConfig privateDnsCfg, long timeoutMs) {
+        this(network, lp, privateDnsCfg, timeoutMs, false /* multiplexed */);
+    }
+
+    public NetworkDiagnostics(Network network, LinkProperties lp,
+            @NonNull PrivateDnsConfig privateDnsCfg, long timeoutMs, boolean multiplexed) {
+        mMultiplexed = multiplexed;
         mNetwork = network;
         mLinkProperties = lp;
         mPrivateDnsCfg = privateDnsCfg;
@@ -264,11 +281,20 @@ public class NetworkDiagnostics {
     private void prepareIcmpMeasurement(InetAddress target) {
         if (!mIcmpChecks.containsKey(target)) {
             Measurement measurement = new Measurement();
-            measurement.thread = new Thread(new IcmpCheck(target, measurement));
+            prepareCheck(measurement, new IcmpCheck(target, measurement));
             mIcmpChecks.put(target, measurement);
         }
     }
 
+    private <T extends MultiplexedCheck & Runnable> void prepareCheck(
+            Measurement measurement, T check) {
+        if (mMultiplexed) {
+            measurement.multiplexedCheck = check;
+        } else {
+            measurement.thread = new Thread(check);
+        }
+    }
+
     private void prepareExplicitSourceIcmpMeasurements(InetAddress target) {
         for (LinkAddress l : mLinkProperties.getLinkAddresses()) {
             InetAddress source = l.getAddress();
@@ -276,7 +302,7 @@ public class NetworkDiagnostics {
                 Pair<InetAddress, InetAddress> srcTarget = new Pair<>(source, target);
                 if (!mExplicitSourceIcmpChecks.containsKey(srcTarget)) {
                     Measurement measurement = new Measurement();
-                    measurement.thread = new Thread(new IcmpCheck(source, target, measurement));
+                    prepareCheck(measurement, new IcmpCheck(source, target, measurement));
                     mExplicitSourceIcmpChecks.put(srcTarget, measurement);
                 }
             }
@@ -286,7 +312,7 @@ public class NetworkDiagnostics {
     private void prepareDnsMeasurement(InetAddress target) {
         if (!mDnsUdpChecks.containsKey(target)) {
             Measurement measurement = new Measurement();
-            measurement.thread = new Thread(new DnsUdpCheck(target, measurement));
+            prepareCheck(measurement, new DnsUdpCheck(target, measurement));
             mDnsUdpChecks.put(target, measurement);
         }
     }
@@ -307,18 +333,40 @@ public class NetworkDiagnostics {
     }
 
     private void startMeasurements() {
-        for (Measurement measurement : mIcmpChecks.values()) {
-            measurement.thread.start();
-        }
-        for (Measurement measurement : mExplicitSourceIcmpChecks.values()) {
-            measurement.thread.start();
+        final List<MultiplexedCheck> multiplexedChecks = new ArrayList<>();
+        for (Measurement measurement : getAllMeasurements()) {
+            if (measurement.thread != null) {
+                measurement.thread.start();
+            } else {
+                multiplexedChecks.add(measurement.multiplexedCheck);
+            }
         }
-        for (Measurement measurement : mDnsUdpChecks.values()) {
-            measurement.thread.start();
+        if (!multiplexedChecks.isEmpty()) {
+            mMultiplexedThread = new Thread(new MultiplexedCheckRunner(multiplexedChecks),
+                    TAG + "-multiplexed");
+            mMultiplexedThread.start();
         }
-        for (Measurement measurement : mDnsTlsChecks.values()) {
-            measurement.thread.start();
+    }
+
+    private List<Measurement> getAllMeasurements() {
+        final List<Measurement> measurements = new ArrayList<>(totalMeasurementCount());
+        measurements.addAll(mIcmpChecks.values());
+        measurements.addAll(mExplicitSourceIcmpChecks.values());
+        measurements.addAll(mDnsUdpChecks.values());
+        measurements.addAll(mDnsTlsChecks.values());
+        return measurements;
+    }
+
+    /**
+     * Returns the number of threads started to run the measurements.
+     */
+    @VisibleForTesting
+    public int getThreadCount() {
+        int count = (mMultiplexedThread != null) ? 1 : 0;
+        for (Measurement measurement : getAllMeasurements()) {
+            if (measurement.thread != null) count++;
         }
+        return count;
     }
 
     public void waitForMeasurements() {
@@ -404,6 +452,108 @@ public class NetworkDiagnostics {
     }
 
 
+    /**
+     * A check that sends requests on a non-blocking socket, so that it can be run together with
+     * other checks by a {@link MultiplexedCheckRunner}.
+     *
+     * Each method returns whether the check is still waiting for a reply. Once a method returns
+     * false, the measurement has been recorded and the check must be closed.
+     */
+    private interface MultiplexedCheck extends Closeable {
+        /** Sets up the socket and sends the first request. */
+        boolean start();
+
+        /** Reads a reply after the socket has become readable. */
+        boolean onReadable();
+
+        /** Resends the request if there is still time for it, or fails the measurement. */
+        boolean onTimeout();
+
+        /** Fails the measurement, for example because polling failed. */
+        void fail(String msg);
+
+        /** The socket to poll; only valid after {@link #start} has returned true. */
+        FileDescriptor getFileDescriptor();
+
+        /** The time at which {@link #onTimeout} must be called if no reply was read. */
+        long getNextTimeout();
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Runs multiplexed checks on the current thread until they have all completed.
+     */
+    private class MultiplexedCheckRunner implements Runnable {
+        private final List<MultiplexedCheck> mChecks;
+
+        MultiplexedCheckRunner(List<MultiplexedCheck> checks) {
+            mChecks = checks;
+        }
+
+        @Override
+        public void run() {
+            final int oldTag = TrafficStats.getAndSetThreadStatsTag(
+                    NetworkStackConstants.TAG_SYSTEM_PROBE);
+            try {
+                runChecks();
+            } finally {
+                TrafficStats.setThreadStatsTag(oldTag);
+            }
+        }
+
+        private void runChecks() {
+            final List<MultiplexedCheck> active = new ArrayList<>();
+            for (MultiplexedCheck check : mChecks) {
+                if (check.start()) {
+                    active.add(check);
+                } else {
+                    check.close();
+                }
+            }
+
+            while (!active.isEmpty()) {
+                final StructPollfd[] pollFds = new StructPollfd[active.size()];
+                long nextTimeout = Long.MAX_VALUE;
+                for (int i = 0; i < pollFds.length; i++) {
+                    pollFds[i] = new StructPollfd();
+                    pollFds[i].fd = active.get(i).getFileDescriptor();
+                    pollFds[i].events = (short) POLLIN;
+                    nextTimeout = Math.min(nextTimeout, active.get(i).getNextTimeout());
+                }
+
+                try {
+                    Os.poll(pollFds, (int) Math.max(0, nextTimeout - now()));
+                } catch (ErrnoException e) {
+                    if (e.errno == EINTR) continue;
+                    for (MultiplexedCheck check : active) {
+                        check.fail(e.toString());
+                        check.close();
+                    }
+                    return;
+                }
+
+                final long now = now();
+                for (int i = active.size() - 1; i >= 0; i--) {
+                    final MultiplexedCheck check = active.get(i);
+                    boolean pending = true;
+                    if ((pollFds[i].revents & (POLLIN | POLLERR)) != 0) {
+                        pending = check.onReadable();
+                    }
+                    if (pending && now >= check.getNextTimeout()) {
+                        pending = check.onTimeout();
+                    }
+                    if (!pending) {
+                        check.close();
+                        active.remove(i);
+                    }
+                }
+            }
+        }
+    }
+
+
     private class SimpleSocketCheck implements Closeable {
         protected final InetAddress mSource;  // Usually null.
         protected final InetAddress mTarget;
@@ -476,6 +626,14 @@ public class NetworkDiagnostics {
             return true;
         }
 
+        public FileDescriptor getFileDescriptor() {
+            return mFileDescriptor;
+        }
+
+        public void fail(String msg) {
+            mMeasurement.recordFailure(msg);
+        }
+
         @Override
         public void close() {
             IoUtils.closeQuietly(mFileDescriptor);
@@ -483,13 +641,18 @@ public class NetworkDiagnostics {
     }
 
 
-    private class IcmpCheck extends SimpleSocketCheck implements Runnable {
+    private class IcmpCheck extends SimpleSocketCheck implements Runnable, MultiplexedCheck {
         private static final int TIMEOUT_SEND = 100;
         private static final int TIMEOUT_RECV = 300;
         private static final int PACKET_BUFSIZE = 512;
         private final int mProtocol;
         private final int mIcmpType;
 
+        // State of the multiplexed check.
+        private byte[] mIcmpPacket;
+        private int mCount;
+        private long mNextTimeout;
+
         public IcmpCheck(InetAddress source, InetAddress target, Measurement measurement) {
             super(source, target, measurement);
 
@@ -555,10 +718,66 @@ public class NetworkDiagnostics {
 
             close();
         }
+
+        @Override
+        public boolean start() {
+            if (ensureMeasurementNecessary()) return false;
+
+            try {
+                setupSocket(SOCK_DGRAM | SOCK_NONBLOCK, mProtocol, TIMEOUT_SEND, TIMEOUT_RECV, 0);
+            } catch (ErrnoException | IOException e) {
+                mMeasurement.recordFailure(e.toString());
+                return false;
+            }
+            mMeasurement.description += " src{" + socketAddressToString(mSocketAddress) + "}";
+
+            // Build a trivial ICMP packet.
+            mIcmpPacket = new byte[] {
+                    (byte) mIcmpType, 0, 0, 0, 0, 0, 0, 0  // ICMP header
+            };
+            mMeasurement.startTime = now();
+            return onTimeout();
+        }
+
+        @Override
+        public boolean onReadable() {
+            try {
+                ByteBuffer reply = ByteBuffer.allocate(PACKET_BUFSIZE);
+                Os.read(mFileDescriptor, reply);
+                mMeasurement.recordSuccess("1/" + mCount);
+                return false;
+            } catch (ErrnoException | InterruptedIOException e) {
+                // Wait for the next reply or timeout.
+                return true;
+            }
+        }
+
+        @Override
+        public boolean onTimeout() {
+            if (now() >= mDeadlineTime - (TIMEOUT_SEND + TIMEOUT_RECV)) {
+                mMeasurement.recordFailure("0/" + mCount);
+                return false;
+            }
+            mCount++;
+            mIcmpPacket[mIcmpPacket.length - 1] = (byte) mCount;
+            try {
+                Os.write(mFileDescriptor, mIcmpPacket, 0, mIcmpPacket.length);
+            } catch (ErrnoException | InterruptedIOException e) {
+                mMeasurement.recordFailure(e.toString());
+                return false;
+            }
+            mNextTimeout = now() + TIMEOUT_RECV;
+            return true;
+        }
+
+        @Override
+        public long getNextTimeout() {
+            return mNextTimeout;
+        }
     }
 
 
-    private class DnsUdpCheck extends SimpleSocketCheck implements Runnable {
+    private class DnsUdpCheck extends SimpleSocketCheck implements Runnable, MultiplexedCheck {
         private static final int TIMEOUT_SEND = 100;
         private static final int TIMEOUT_RECV = 500;
         private static final int RR_TYPE_A = 1;
@@ -578,6 +797,11 @@ public class NetworkDiagnostics {
 
         protected final int mQueryType;
 
+        // State of the multiplexed check.
+        private byte[] mDnsPacket;
+        private int mCount;
+        private long mNextTimeout;
+
         public DnsUdpCheck(InetAddress target, Measurement measurement) {
             super(target, measurement);
 
@@ -642,6 +866,63 @@ public class NetworkDiagnostics {
             close();
         }
 
+        @Override
+        public boolean start() {
+            if (ensureMeasurementNecessary()) return false;
+
+            try {
+                setupSocket(SOCK_DGRAM | SOCK_NONBLOCK, IPPROTO_UDP, TIMEOUT_SEND, TIMEOUT_RECV,
+                        NetworkConstants.DNS_SERVER_PORT);
+            } catch (ErrnoException | IOException e) {
+                mMeasurement.recordFailure(e.toString());
+                return false;
+            }
+
+            final String sixRandomDigits = String.valueOf(mRandom.nextInt(900000) + 100000);
+            appendDnsToMeasurementDescription(sixRandomDigits, mSocketAddress);
+            mDnsPacket = getDnsQueryPacket(sixRandomDigits);
+            mMeasurement.startTime = now();
+            return onTimeout();
+        }
+
+        @Override
+        public boolean onReadable() {
+            try {
+                ByteBuffer reply = ByteBuffer.allocate(PACKET_BUFSIZE);
+                Os.read(mFileDescriptor, reply);
+                final String rcodeStr = (reply.limit() > 3)
+                        ? " " + responseCodeStr((int) (reply.get(3)) & 0x0f)
+                        : "";
+                mMeasurement.recordSuccess("1/" + mCount + rcodeStr);
+                return false;
+            } catch (ErrnoException | InterruptedIOException e) {
+                // Wait for the next reply or timeout.
+                return true;
+            }
+        }
+
+        @Override
+        public boolean onTimeout() {
+            if (now() >= mDeadlineTime - (TIMEOUT_RECV + TIMEOUT_RECV)) {
+                mMeasurement.recordFailure("0/" + mCount);
+                return false;
+            }
+            mCount++;
+            try {
+                Os.write(mFileDescriptor, mDnsPacket, 0, mDnsPacket.length);
+            } catch (ErrnoException | InterruptedIOException e) {
+                mMeasurement.recordFailure(e.toString());
+                return false;
+            }
+            mNextTimeout = now() + TIMEOUT_RECV;
+            return true;
+        }
+
+        @Override
+        public long getNextTimeout() {
+            return mNextTimeout;
+        }
+
         protected byte[] getDnsQueryPacket(String sixRandomDigits) {
             byte[] rnd = sixRandomDigits.getBytes(StandardCharsets.US_ASCII);
             return new byte[] {
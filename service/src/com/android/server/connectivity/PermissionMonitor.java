@@ -964,6 +964,43 @@ public class PermissionMonitor {
         }
     }
 
+    /**
+     * Called when the UID ranges of an active VPN network change, and the VPN network keeps the
+     * same interface and VPN app
+     *
+     * Unlike calling {@link #onVpnUidRangesRemoved} then {@link #onVpnUidRangesAdded}, this only
+     * updates the rules of the uids that leave or join the VPN network, so the uids that are under
+     * the VPN network both before and after the change always have their rule.
+     *
+     * @param iface The active VPN network's interface name. Null iface indicates that the app is
+     *              allowed to receive packets on all interfaces.
+     * @param prevRanges The UID ranges of the VPN network before the change
+     * @param newRanges The UID ranges of the VPN network after the change
+     * @param vpnAppUid The uid of the VPN app
+     */
+    public synchronized void onVpnUidRangesUpdated(@Nullable String iface,
+            Set<UidRange> prevRanges, Set<UidRange> newRanges, int vpnAppUid) {
+        final Set<Integer> removedUids =
+                intersectUids(UidRangeUtils.subtractRanges(prevRanges, newRanges), mAllApps);
+        removeBypassingUids(removedUids, vpnAppUid);
+        final Set<Integer> addedUids =
+                intersectUids(UidRangeUtils.subtractRanges(newRanges, prevRanges), mAllApps);
+        removeBypassingUids(addedUids, vpnAppUid);
+        updateVpnUidsInterfaceRules(iface, removedUids, false /* add */);
+        updateVpnUidsInterfaceRules(iface, addedUids, true /* add */);
+
+        Set<UidRange> existingRanges = mVpnInterfaceUidRanges.get(iface);
+        if (existingRanges == null) {
+            existingRanges = new HashSet<>();
+            mVpnInterfaceUidRanges.put(iface, existingRanges);
+        }
+        existingRanges.removeAll(prevRanges);
+        existingRanges.addAll(newRanges);
+        if (existingRanges.size() == 0) {
+            mVpnInterfaceUidRanges.remove(iface);
+        }
+    }
+
     /**
      * Called when UID ranges under VPN Lockdown are updated
      *
@@ -22,7 +22,9 @@ import android.util.ArraySet;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
@@ -125,6 +127,73 @@ public final class UidRangeUtils {
         return false;
     }
 
+    /**
+     * Sort and merge uid ranges.
+     * @param ranges uid ranges, which may overlap or be adjacent
+     * @return list of ranges covering the same uids, in increasing order, with no two ranges
+     *         overlapping or adjacent
+     * @hide
+     */
+    public static List<UidRange> normalizeRanges(@NonNull Collection<UidRange> ranges) {
+        Objects.requireNonNull(ranges);
+        final List<UidRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingInt(range -> range.start));
+        final List<UidRange> normalized = new ArrayList<>(sorted.size());
+        for (UidRange range : sorted) {
+            final int last = normalized.size() - 1;
+            if (last >= 0 && (long) range.start <= (long) normalized.get(last).stop + 1) {
+                final UidRange lastRange = normalized.get(last);
+                if (range.stop > lastRange.stop) {
+                    normalized.set(last, new UidRange(lastRange.start, range.stop));
+                }
+            } else {
+                normalized.add(range);
+            }
+        }
+        return normalized;
+    }
+
+    /**
+     * Compute the uids that are in a set of uid ranges but not in another one.
+     *
+     * The ranges of either set may overlap. This runs in O(n log n) where n is the total number
+     * of ranges.
+     * @param ranges uid ranges to subtract from
+     * @param rangesToSubtract uid ranges to subtract
+     * @return set of normalized ranges (see {@link #normalizeRanges}) containing the uids in
+     *         {@code ranges} that are not in {@code rangesToSubtract}
+     * @hide
+     */
+    public static ArraySet<UidRange> subtractRanges(@NonNull Collection<UidRange> ranges,
+            @NonNull Collection<UidRange> rangesToSubtract) {
+        Objects.requireNonNull(ranges);
+        Objects.requireNonNull(rangesToSubtract);
+        final List<UidRange> from = normalizeRanges(ranges);
+        final List<UidRange> subtracted = normalizeRanges(rangesToSubtract);
+        final ArraySet<UidRange> result = new ArraySet<>();
+        int first = 0;
+        for (UidRange range : from) {
+            // Skip the subtracted ranges entirely before this range. As both lists are sorted,
+            // they are also entirely before the next ranges.
+            while (first < subtracted.size() && subtracted.get(first).stop < range.start) {
+                first++;
+            }
+            int start = range.start;
+            for (int i = first; i < subtracted.size(); i++) {
+                final UidRange sub = subtracted.get(i);
+                if (sub.start > range.stop) break;
+                if (sub.start > start) result.add(new UidRange(start, sub.start - 1));
+                if (sub.stop >= range.stop) {
+                    start = -1;
+                    break;
+                }
+                start = sub.stop + 1;
+            }
+            if (start >= 0) result.add(new UidRange(start, range.stop));
+        }
+        return result;
+    }
+
     /**
      * Convert a list of uids to set of UidRanges.
      * @param uids list of uids
@@ -62,6 +62,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 @RunWith(AndroidJUnit4.class)
@@ -1055,6 +1056,113 @@ public class LinkPropertiesTest {
         assertParcelingIsLossless(empty);
     }
 
+    private static InetAddress randomAddress(Random r, boolean v6) throws Exception {
+        final byte[] bytes = new byte[v6 ? 16 : 4];
+        r.nextBytes(bytes);
+        // Use documentation prefixes so that the addresses are always valid unicast addresses.
+        if (v6) {
+            bytes[0] = 0x20;
+            bytes[1] = 0x01;
+            bytes[2] = 0x0d;
+            bytes[3] = (byte) 0xb8;
+        } else {
+            bytes[0] = 10;
+        }
+        return InetAddress.getByAddress(bytes);
+    }
+
+    private static LinkProperties makeRandomLinkProperties(Random r, String iface)
+            throws Exception {
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName(iface);
+        final int numAddresses = r.nextInt(4);
+        for (int i = 0; i < numAddresses; i++) {
+            final boolean v6 = r.nextBoolean();
+            lp.addLinkAddress(new LinkAddress(randomAddress(r, v6), v6 ? 64 : 24));
+        }
+        final int numDnses = r.nextInt(4);
+        for (int i = 0; i < numDnses; i++) {
+            lp.addDnsServer(randomAddress(r, r.nextBoolean()));
+        }
+        if (r.nextBoolean()) lp.addDnsServer(GATEWAY62);
+        if (r.nextBoolean()) lp.addValidatedPrivateDnsServer(randomAddress(r, r.nextBoolean()));
+        if (r.nextBoolean()) lp.addPcscfServer(randomAddress(r, r.nextBoolean()));
+        if (r.nextBoolean()) {
+            lp.setUsePrivateDns(true);
+            lp.setPrivateDnsServerName(PRIV_DNS_SERVER_NAME);
+        }
+        if (r.nextBoolean()) lp.setDomains(DOMAINS);
+        if (r.nextBoolean()) lp.setDhcpServerAddress((Inet4Address) randomAddress(r, false));
+        if (r.nextBoolean()) lp.setMtu(1280 + r.nextInt(200));
+        if (r.nextBoolean()) lp.setTcpBufferSizes(TCP_BUFFER_SIZES);
+        final int numRoutes = r.nextInt(6);
+        for (int i = 0; i < numRoutes; i++) {
+            final boolean v6 = r.nextBoolean();
+            final IpPrefix dest = new IpPrefix(randomAddress(r, v6), v6 ? 64 : 24);
+            final InetAddress gateway = r.nextBoolean() ? randomAddress(r, v6) : null;
+            lp.addRoute(new RouteInfo(dest, gateway, iface, RTN_UNICAST, r.nextInt(1500)));
+        }
+        if (r.nextBoolean()) lp.addRoute(new RouteInfo(new IpPrefix("0.0.0.0/0"), RTN_UNREACHABLE));
+        if (r.nextBoolean()) lp.setHttpProxy(ProxyInfo.buildDirectProxy("test", 8888));
+        if (r.nextBoolean()) lp.setNat64Prefix(new IpPrefix("2001:db8:1:2:64:64::/96"));
+        lp.setWakeOnLanSupported(r.nextBoolean());
+        return lp;
+    }
+
+    @Test @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testCompactParcelingFuzz() throws Exception {
+        final boolean wasEnabled = NetworkStateParcelFormat.isCompactEnabled();
+        final Random r = new Random(42);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                final LinkProperties lp = makeRandomLinkProperties(r, NAME);
+                if (r.nextBoolean()) {
+                    lp.addStackedLink(makeRandomLinkProperties(r, "stacked" + i));
+                }
+                NetworkStateParcelFormat.setCompactEnabled(true);
+                assertParcelingIsLossless(lp);
+                NetworkStateParcelFormat.setCompactEnabled(false);
+                assertParcelingIsLossless(lp);
+            }
+        } finally {
+            NetworkStateParcelFormat.setCompactEnabled(wasEnabled);
+        }
+    }
+
+    @Test @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testCompactParcelingSensitiveFields() throws Exception {
+        final boolean wasEnabled = NetworkStateParcelFormat.isCompactEnabled();
+        final LinkProperties source = makeLinkPropertiesForParceling();
+        source.setCaptivePortalApiUrl(CAPPORT_API_URL);
+        source.setCaptivePortalData((CaptivePortalData) getCaptivePortalData());
+        try {
+            NetworkStateParcelFormat.setCompactEnabled(true);
+            assertParcelingIsLossless(new LinkProperties(source, true /* parcelSensitiveFields */));
+
+            final LinkProperties sanitized = new LinkProperties(source);
+            sanitized.setCaptivePortalApiUrl(null);
+            sanitized.setCaptivePortalData(null);
+            assertEquals(sanitized, parcelingRoundTrip(source));
+        } finally {
+            NetworkStateParcelFormat.setCompactEnabled(wasEnabled);
+        }
+    }
+
+    @Test @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testCompactParcelingKeepsDnsScopeId() throws Exception {
+        final boolean wasEnabled = NetworkStateParcelFormat.isCompactEnabled();
+        final String strAddress = "fe80::1%lo";
+        final LinkProperties lp = new LinkProperties();
+        lp.addDnsServer(address(strAddress));
+        try {
+            NetworkStateParcelFormat.setCompactEnabled(true);
+            final LinkProperties unparceled = parcelingRoundTrip(lp);
+            assertEquals(strAddress, unparceled.getDnsServers().get(0).getHostAddress());
+        } finally {
+            NetworkStateParcelFormat.setCompactEnabled(wasEnabled);
+        }
+    }
+
     @Test
     public void testConstructor() {
         LinkProperties lp = new LinkProperties();
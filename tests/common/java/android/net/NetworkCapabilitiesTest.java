@@ -78,6 +78,8 @@ import android.net.wifi.aware.DiscoverySession;
 import android.net.wifi.aware.PeerHandle;
 import android.net.wifi.aware.WifiAwareNetworkSpecifier;
 import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.util.ArraySet;
 import android.util.Range;
@@ -96,6 +98,7 @@ import org.mockito.Mockito;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 @SmallTest
@@ -399,6 +402,102 @@ public class NetworkCapabilitiesTest {
         assertParcelingIsLossless(cap);
     }
 
+    private static final int[] FUZZ_CAPABILITIES = { NET_CAPABILITY_INTERNET, NET_CAPABILITY_MMS,
+            NET_CAPABILITY_CBS, NET_CAPABILITY_EIMS, NET_CAPABILITY_NOT_METERED,
+            NET_CAPABILITY_NOT_RESTRICTED, NET_CAPABILITY_TRUSTED, NET_CAPABILITY_NOT_VPN,
+            NET_CAPABILITY_VALIDATED, NET_CAPABILITY_NOT_ROAMING, NET_CAPABILITY_FOREGROUND };
+
+    private static NetworkCapabilities makeRandomNetworkCapabilities(Random r) {
+        final NetworkCapabilities nc = new NetworkCapabilities();
+        for (int cap : FUZZ_CAPABILITIES) {
+            if (r.nextBoolean()) nc.addCapability(cap);
+        }
+        for (int transport = MIN_TRANSPORT; transport <= MAX_TRANSPORT; transport++) {
+            if (r.nextInt(4) == 0) nc.addTransportType(transport);
+        }
+        if (r.nextBoolean()) nc.setLinkUpstreamBandwidthKbps(r.nextInt(1_000_000));
+        if (r.nextBoolean()) nc.setLinkDownstreamBandwidthKbps(r.nextInt(1_000_000));
+        if (r.nextBoolean()) nc.setSignalStrength(-r.nextInt(120));
+        if (r.nextBoolean()) nc.setSSID("ssid" + r.nextInt());
+        if (r.nextBoolean()) nc.setPrivateDnsBroken(true);
+        if (r.nextBoolean()) nc.setOwnerUid(r.nextInt(100_000));
+        if (r.nextBoolean()) nc.setAdministratorUids(new int[] { r.nextInt(1000) + 1000 });
+        if (r.nextBoolean()) {
+            nc.setRequestorUid(r.nextInt(100_000));
+            nc.setRequestorPackageName("com.android.test" + r.nextInt(100));
+        }
+        if (r.nextBoolean()) {
+            final int size = r.nextInt(4);
+            final ArrayList<Network> networks = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                networks.add(new Network(100 + r.nextInt(1000)));
+            }
+            nc.setUnderlyingNetworks(networks);
+        }
+        if (isAtLeastS()) {
+            if (r.nextBoolean()) {
+                final ArraySet<Range<Integer>> uids = new ArraySet<>();
+                final int size = r.nextInt(8);
+                for (int i = 0; i < size; i++) {
+                    final int start = r.nextInt(1_000_000);
+                    uids.add(new Range<>(start, start + r.nextInt(100_000)));
+                }
+                nc.setUids(uids);
+            }
+            if (r.nextBoolean()) nc.setAllowedUids(Set.of(r.nextInt(1000), 1000 + r.nextInt(1000)));
+            if (r.nextBoolean()) nc.setSubscriptionIds(Set.of(r.nextInt(10)));
+        }
+        return nc;
+    }
+
+    private static int getParceledSize(Parcelable p) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            p.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void testCompactParcelingFuzz() {
+        final boolean wasEnabled = NetworkStateParcelFormat.isCompactEnabled();
+        final Random r = new Random(42);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                final NetworkCapabilities nc = makeRandomNetworkCapabilities(r);
+                NetworkStateParcelFormat.setCompactEnabled(true);
+                assertParcelingIsLossless(nc);
+                final int compactSize = getParceledSize(nc);
+                NetworkStateParcelFormat.setCompactEnabled(false);
+                assertParcelingIsLossless(nc);
+                assertTrue("Compact parcel is larger than legacy parcel for " + nc,
+                        compactSize <= getParceledSize(nc));
+            }
+        } finally {
+            NetworkStateParcelFormat.setCompactEnabled(wasEnabled);
+        }
+    }
+
+    @Test
+    public void testCompactParcelingReadableWhenDisabled() {
+        final boolean wasEnabled = NetworkStateParcelFormat.isCompactEnabled();
+        final NetworkCapabilities nc = makeRandomNetworkCapabilities(new Random(7));
+        final Parcel parcel = Parcel.obtain();
+        try {
+            NetworkStateParcelFormat.setCompactEnabled(true);
+            nc.writeToParcel(parcel, 0);
+            // Readers accept both formats whatever the writer configuration.
+            NetworkStateParcelFormat.setCompactEnabled(false);
+            parcel.setDataPosition(0);
+            assertEquals(nc, NetworkCapabilities.CREATOR.createFromParcel(parcel));
+        } finally {
+            parcel.recycle();
+            NetworkStateParcelFormat.setCompactEnabled(wasEnabled);
+        }
+    }
+
     private static NetworkCapabilities createNetworkCapabilitiesWithTransportInfo() {
         return new NetworkCapabilities()
                 .addCapability(NET_CAPABILITY_INTERNET)
@@ -1370,4 +1469,127 @@ public class NetworkCapabilitiesTest {
 
         assertEquals(expectedNcBuilder.build(), restrictedNc);
     }
+
+    @Test @IgnoreUpTo(SC_V2)
+    public void testGenerationChangesOnMutation() {
+        final NetworkCapabilities nc = new NetworkCapabilities();
+        long generation = nc.getGeneration();
+
+        nc.addCapability(NET_CAPABILITY_MMS);
+        assertNotEquals(generation, nc.getGeneration());
+        generation = nc.getGeneration();
+
+        nc.addTransportType(TRANSPORT_CELLULAR);
+        assertNotEquals(generation, nc.getGeneration());
+        generation = nc.getGeneration();
+
+        nc.setUids(Set.of(new Range<>(10000, 20000)));
+        assertNotEquals(generation, nc.getGeneration());
+        generation = nc.getGeneration();
+
+        // Reads do not change the generation.
+        nc.hasCapability(NET_CAPABILITY_MMS);
+        nc.getUids();
+        nc.satisfiedByNetworkCapabilities(new NetworkCapabilities(nc));
+        assertEquals(generation, nc.getGeneration());
+
+        // Copies are equal but have their own generation, so that caches keyed on the
+        // generation can't confuse two objects.
+        final NetworkCapabilities copy = new NetworkCapabilities(nc);
+        assertEquals(nc, copy);
+        assertNotEquals(nc.getGeneration(), copy.getGeneration());
+        assertTrue(copy.getGeneration() > generation);
+    }
+
+    private static List<NetworkCapabilities> makeRequestMix() {
+        final List<NetworkCapabilities> requests = new ArrayList<>();
+        // Default request and per-app default requests, as filed by ConnectivityService.
+        final NetworkCapabilities internet = new NetworkCapabilities()
+                .addCapability(NET_CAPABILITY_INTERNET);
+        requests.add(internet);
+        requests.add(new NetworkCapabilities(internet)
+                .setSingleUid(10042).setRequestorUidAndPackageName(10042, "com.example"));
+        // Transport-only requests.
+        requests.add(new NetworkCapabilities(internet).addTransportType(TRANSPORT_WIFI));
+        requests.add(new NetworkCapabilities(internet).addTransportType(TRANSPORT_CELLULAR)
+                .addCapability(NET_CAPABILITY_NOT_METERED));
+        // Listens with few constraints.
+        requests.add(new NetworkCapabilities().clearAll());
+        requests.add(new NetworkCapabilities().addCapability(NET_CAPABILITY_VALIDATED));
+        // Requests constraining other fields.
+        requests.add(new NetworkCapabilities().addTransportType(TRANSPORT_CELLULAR)
+                .addCapability(NET_CAPABILITY_MMS)
+                .setNetworkSpecifier(new TelephonyNetworkSpecifier(TEST_SUBID1)));
+        requests.add(new NetworkCapabilities().addTransportType(TRANSPORT_WIFI)
+                .setSignalStrength(-70));
+        requests.add(new NetworkCapabilities().addTransportType(TRANSPORT_WIFI)
+                .setSSID(TEST_SSID));
+        requests.add(new NetworkCapabilities(internet).addCapability(NET_CAPABILITY_ENTERPRISE)
+                .addEnterpriseId(NET_ENTERPRISE_ID_2));
+        requests.add(new NetworkCapabilities().addTransportType(TRANSPORT_CELLULAR)
+                .setSubscriptionIds(Set.of(TEST_SUBID2)));
+        requests.add(new NetworkCapabilities(internet).setLinkDownstreamBandwidthKbps(50_000));
+        return requests;
+    }
+
+    private static List<NetworkCapabilities> makeNetworkMix() {
+        final List<NetworkCapabilities> networks = new ArrayList<>();
+        networks.add(new NetworkCapabilities().addTransportType(TRANSPORT_WIFI)
+                .addCapability(NET_CAPABILITY_INTERNET).addCapability(NET_CAPABILITY_VALIDATED)
+                .addCapability(NET_CAPABILITY_NOT_METERED).setSignalStrength(-60)
+                .setSSID(TEST_SSID).setLinkDownstreamBandwidthKbps(100_000));
+        networks.add(new NetworkCapabilities().addTransportType(TRANSPORT_WIFI)
+                .addCapability(NET_CAPABILITY_INTERNET).setSignalStrength(-80)
+                .setSSID(DIFFERENT_TEST_SSID));
+        networks.add(new NetworkCapabilities().addTransportType(TRANSPORT_CELLULAR)
+                .addCapability(NET_CAPABILITY_INTERNET).addCapability(NET_CAPABILITY_MMS)
+                .setNetworkSpecifier(new TelephonyNetworkSpecifier(TEST_SUBID1))
+                .setSubscriptionIds(Set.of(TEST_SUBID1)).setLinkDownstreamBandwidthKbps(20_000));
+        networks.add(new NetworkCapabilities().addTransportType(TRANSPORT_VPN)
+                .addCapability(NET_CAPABILITY_INTERNET).removeCapability(NET_CAPABILITY_NOT_VPN)
+                .setUids(Set.of(new Range<>(10000, 10041))));
+        networks.add(new NetworkCapabilities().addTransportType(TRANSPORT_ETHERNET)
+                .addCapability(NET_CAPABILITY_INTERNET).addCapability(NET_CAPABILITY_ENTERPRISE)
+                .addEnterpriseId(NET_ENTERPRISE_ID_2));
+        return networks;
+    }
+
+    @Test @IgnoreUpTo(SC_V2)
+    public void testMatchConstraintsFastPathIsEquivalent() {
+        final List<NetworkCapabilities> requests = makeRequestMix();
+        final List<NetworkCapabilities> networks = makeNetworkMix();
+        for (NetworkCapabilities request : requests) {
+            final int constraints = request.getMatchConstraints();
+            for (NetworkCapabilities network : networks) {
+                assertEquals("Request " + request + " vs network " + network,
+                        request.satisfiedByNetworkCapabilities(network),
+                        request.satisfiedByNetworkCapabilities(network, constraints));
+            }
+            assertFalse(request.satisfiedByNetworkCapabilities(null, constraints));
+        }
+
+        // Requests that only constrain bits take the fast path.
+        assertEquals(0, requests.get(0).getMatchConstraints());
+        assertEquals(0, requests.get(2).getMatchConstraints());
+        assertEquals(NetworkCapabilities.MATCH_CONSTRAINT_UIDS
+                | NetworkCapabilities.MATCH_CONSTRAINT_REQUESTOR,
+                requests.get(1).getMatchConstraints());
+        assertEquals(NetworkCapabilities.MATCH_CONSTRAINT_SPECIFIER,
+                requests.get(6).getMatchConstraints());
+    }
+
+    @Test @IgnoreUpTo(SC_V2)
+    public void testNetworkRequestFastMatchFollowsMutations() {
+        final NetworkRequest request = new NetworkRequest.Builder()
+                .addTransportType(TRANSPORT_WIFI).build();
+        final NetworkCapabilities wifi = new NetworkCapabilities().addTransportType(TRANSPORT_WIFI)
+                .addCapability(NET_CAPABILITY_INTERNET).setSSID(DIFFERENT_TEST_SSID);
+        assertTrue(request.canBeSatisfiedBy(wifi));
+
+        // Mutating the request's capabilities must invalidate the precomputed descriptor.
+        request.networkCapabilities.setSSID(TEST_SSID);
+        assertFalse(request.canBeSatisfiedBy(wifi));
+        wifi.setSSID(TEST_SSID);
+        assertTrue(request.canBeSatisfiedBy(wifi));
+    }
 }
@@ -28,6 +28,7 @@ import static android.system.OsConstants.ETIMEDOUT;
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -48,6 +49,7 @@ import android.net.cts.util.CtsNetUtils;
 import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.platform.test.annotations.AppModeFull;
 import android.provider.Settings;
 import android.system.ErrnoException;
@@ -110,6 +112,7 @@ public class DnsResolverTest {
     static final int CANCEL_RETRY_TIMES = 5;
     static final int QUERY_TIMES = 10;
     static final int NXDOMAIN = 3;
+    static final String RESOLVER_THREAD_NAME = "DnsResolver";
 
     private Context mContext;
     private ContentResolver mCR;
@@ -538,6 +541,88 @@ public class DnsResolverTest {
         }
     }
 
+    private static boolean isResolverThreadRunning() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (RESOLVER_THREAD_NAME.equals(thread.getName()) && thread.isAlive()) return true;
+        }
+        return false;
+    }
+
+    private static void assertResolverThreadStops() throws InterruptedException {
+        final long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (isResolverThreadRunning()) {
+            assertTrue("Resolver thread still running after " + TIMEOUT_MS + "ms",
+                    SystemClock.elapsedRealtime() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void testRawQueryDedicatedThread() throws InterruptedException {
+        final DnsResolver dns = DnsResolver.getDedicatedThreadInstance();
+        final String msg = "RawQuery on dedicated thread " + TEST_DOMAIN;
+        for (Network network : getTestableNetworks()) {
+            // Send several queries at once, so that some answers may be delivered together.
+            final VerifyCancelCallback[] callbacks = new VerifyCancelCallback[QUERY_TIMES];
+            final Thread[] executorThreads = new Thread[QUERY_TIMES];
+            for (int i = 0; i < QUERY_TIMES; i++) {
+                final int index = i;
+                final Executor executor = (Runnable r) -> {
+                    executorThreads[index] = Thread.currentThread();
+                    r.run();
+                };
+                callbacks[i] = new VerifyCancelCallback(msg);
+                dns.rawQuery(network, TEST_DOMAIN, CLASS_IN, TYPE_AAAA, FLAG_NO_CACHE_LOOKUP,
+                        executor, null, callbacks[i]);
+            }
+
+            for (int i = 0; i < QUERY_TIMES; i++) {
+                assertTrue(msg + " but no answer after " + TIMEOUT_MS + "ms.",
+                        callbacks[i].waitForAnswer());
+                callbacks[i].assertHasAnswer();
+                // Answers are posted to the executor from the dedicated thread, not from the
+                // main thread.
+                assertNotEquals(Looper.getMainLooper().getThread(), executorThreads[i]);
+                assertEquals(RESOLVER_THREAD_NAME, executorThreads[i].getName());
+            }
+            // The dedicated thread stops once no query has been in flight for its idle timeout,
+            // which is shorter than TIMEOUT_MS.
+            assertResolverThreadStops();
+        }
+    }
+
+    @Test
+    public void testRawQueryCancelDedicatedThread() throws InterruptedException {
+        final DnsResolver dns = DnsResolver.getDedicatedThreadInstance();
+        final String msg = "Test cancel RawQuery on dedicated thread " + TEST_DOMAIN;
+        // Same as testRawQueryCancel, on the dedicated thread instance.
+        for (Network network : getTestableNetworks()) {
+            boolean retry = false;
+            int round = 0;
+            do {
+                if (++round > CANCEL_RETRY_TIMES) {
+                    fail(msg + " cancel failed " + CANCEL_RETRY_TIMES + " times");
+                }
+                final CountDownLatch latch = new CountDownLatch(1);
+                final CancellationSignal cancelSignal = new CancellationSignal();
+                final VerifyCancelCallback callback = new VerifyCancelCallback(msg, cancelSignal);
+                dns.rawQuery(network, TEST_DOMAIN, CLASS_IN, TYPE_AAAA, FLAG_EMPTY,
+                        mExecutor, cancelSignal, callback);
+                mExecutor.execute(() -> {
+                    cancelSignal.cancel();
+                    latch.countDown();
+                });
+
+                retry = callback.needRetry();
+                assertTrue(msg + " query was not cancelled",
+                        latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            } while (retry);
+            // Cancelled queries are not in flight any more, so the dedicated thread stops once
+            // it has been idle for its timeout.
+            assertResolverThreadStops();
+        }
+    }
+
     /**
      * A query callback for InetAddress that ensures that the query is
      * cancelled and that onAnswer is never called. If the query succeeds
@@ -91,6 +91,12 @@ public class NetworkAgentWrapper implements TestableNetworkCallback.HasNetwork {
     public NetworkAgentWrapper(int transport, LinkProperties linkProperties,
             NetworkCapabilities ncTemplate, NetworkProvider provider,
             Context context) throws Exception {
+        this(transport, linkProperties, ncTemplate, provider, false /* bypassableVpn */, context);
+    }
+
+    public NetworkAgentWrapper(int transport, LinkProperties linkProperties,
+            NetworkCapabilities ncTemplate, NetworkProvider provider, boolean bypassableVpn,
+            Context context) throws Exception {
         final int type = transportToLegacyType(transport);
         final String typeName = ConnectivityManager.getNetworkTypeName(type);
         mNetworkCapabilities = (ncTemplate != null) ? ncTemplate : new NetworkCapabilities();
@@ -134,6 +140,7 @@ public class NetworkAgentWrapper implements TestableNetworkCallback.HasNetwork {
                 .setLegacyType(type)
                 .setLegacyTypeName(typeName)
                 .setLegacyExtraInfo(extraInfo)
+                .setBypassableVpn(bypassableVpn)
                 .build();
         mNetworkAgent = makeNetworkAgent(linkProperties, mNetworkAgentConfig, provider);
     }
@@ -39,6 +39,7 @@ import static android.net.NetworkRequest.Type.TRACK_SYSTEM_DEFAULT;
 
 import static com.android.testutils.MiscAsserts.assertThrows;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -51,6 +52,7 @@ import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.after;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
@@ -66,6 +68,7 @@ import android.net.ConnectivityManager.NetworkCallback;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
@@ -85,6 +88,9 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(DevSdkIgnoreRunner.class)
 @SmallTest
@@ -294,6 +300,79 @@ public class ConnectivityManagerTest {
         verify(mService, times(1)).releaseNetworkRequest(req2);
     }
 
+    @Test
+    public void testCallbackUnavailableUnregistersCallback() throws Exception {
+        ConnectivityManager manager = new ConnectivityManager(mCtx, mService);
+        NetworkRequest request = makeRequest(1000);
+        NetworkCallback callback = mock(ConnectivityManager.NetworkCallback.class,
+                CALLS_REAL_METHODS);
+        Handler handler = new Handler(Looper.getMainLooper());
+        ArgumentCaptor<Messenger> captor = ArgumentCaptor.forClass(Messenger.class);
+
+        when(mService.requestNetwork(anyInt(), any(), anyInt(), captor.capture(), anyInt(), any(),
+                anyInt(), anyInt(), any(), nullable(String.class))).thenReturn(request);
+        manager.requestNetwork(request, callback, handler);
+
+        // CALLBACK_UNAVAIL is the last message for the request, and unregisters the callback.
+        captor.getValue().send(makeMessage(request, ConnectivityManager.CALLBACK_UNAVAIL));
+        verify(callback, timeout(TIMEOUT_MS).times(1)).onUnavailable();
+        captor.getValue().send(makeMessage(request, ConnectivityManager.CALLBACK_LOST));
+        verify(callback, after(SHORT_TIMEOUT_MS).never()).onLost(any());
+
+        // Unregistering does not release the request again.
+        manager.unregisterNetworkCallback(callback);
+        verify(mService, never()).releaseNetworkRequest(any());
+    }
+
+    @Test
+    public void testUnregisterRacesWithCallbackUnavailable() throws Exception {
+        ConnectivityManager manager = new ConnectivityManager(mCtx, mService);
+        HandlerThread thread = new HandlerThread("ConnectivityManagerTest");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        ArgumentCaptor<Messenger> captor = ArgumentCaptor.forClass(Messenger.class);
+        try {
+            for (int i = 0; i < 100; i++) {
+                NetworkRequest request = makeRequest(2000 + i);
+                AtomicInteger unavailableCount = new AtomicInteger();
+                NetworkCallback callback = new NetworkCallback() {
+                    @Override
+                    public void onUnavailable() {
+                        unavailableCount.incrementAndGet();
+                    }
+                };
+                when(mService.requestNetwork(anyInt(), any(), anyInt(), captor.capture(),
+                        anyInt(), any(), anyInt(), anyInt(), any(), nullable(String.class)))
+                        .thenReturn(request);
+                AtomicInteger releaseCount = new AtomicInteger();
+                doAnswer(inv -> {
+                    releaseCount.incrementAndGet();
+                    return null;
+                }).when(mService).releaseNetworkRequest(request);
+                manager.requestNetwork(request, callback, handler);
+
+                // The handler thread looks the callback up while this thread unregisters it.
+                captor.getValue().send(makeMessage(request, ConnectivityManager.CALLBACK_UNAVAIL));
+                manager.unregisterNetworkCallback(callback);
+                CountDownLatch drained = new CountDownLatch(1);
+                handler.post(drained::countDown);
+                assertTrue(drained.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+                // Either the callback got onUnavailable and was unregistered by it, or it was
+                // unregistered first and the request released, but never both.
+                assertEquals(1, unavailableCount.get() + releaseCount.get());
+
+                // The callback can be registered again.
+                final int previousReleaseCount = releaseCount.get();
+                manager.requestNetwork(request, callback, handler);
+                manager.unregisterNetworkCallback(callback);
+                assertEquals(previousReleaseCount + 1, releaseCount.get());
+            }
+        } finally {
+            thread.quitSafely();
+        }
+    }
+
     // TODO: turn on this test when request  callback 1:1 mapping is enforced
     //@Test
     private void noDoubleCallbackRegistration() throws Exception {
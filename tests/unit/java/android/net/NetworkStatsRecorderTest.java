@@ -16,20 +16,33 @@
 
 package com.android.server.net;
 
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import android.net.NetworkIdentitySet;
 import android.net.NetworkStats;
+import android.net.NetworkStatsAccess;
+import android.net.NetworkStatsCollection;
 import android.os.DropBoxManager;
 
 import androidx.test.filters.SmallTest;
@@ -41,10 +54,15 @@ import com.android.testutils.DevSdkIgnoreRunner;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import libcore.testing.io.TestIoUtils;
+
+import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 
 @RunWith(DevSdkIgnoreRunner.class)
 @SmallTest
@@ -53,6 +71,9 @@ public final class NetworkStatsRecorderTest {
     private static final String TAG = NetworkStatsRecorderTest.class.getSimpleName();
 
     private static final String TEST_PREFIX = "test";
+    private static final int TEST_UID = 10001;
+    private static final int TEST_UID2 = 10002;
+    private static final String TEST_IFACE = "test0";
 
     @Mock private DropBoxManager mDropBox;
     @Mock private NetworkStats.NonMonotonicObserver mObserver;
@@ -67,6 +88,109 @@ public final class NetworkStatsRecorderTest {
                     HOUR_IN_MILLIS, false /* includeTags */, wipeOnError);
     }
 
+    private NetworkStatsRecorder buildPersistedRecorder(File dir, boolean deferRemoveUids) {
+        return new NetworkStatsRecorder(new FileRotator(dir, TEST_PREFIX, DAY_IN_MILLIS,
+                    30 * DAY_IN_MILLIS), mObserver, mDropBox, TEST_PREFIX, HOUR_IN_MILLIS,
+                    false /* includeTags */, true /* wipeOnError */,
+                    deferRemoveUids ? dir : null, TEST_PREFIX);
+    }
+
+    private static NetworkStatsCollection buildCollection(long start) {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        for (int uid : new int[] { TEST_UID, TEST_UID2 }) {
+            final NetworkStats.Entry entry = new NetworkStats.Entry(1024L, 8L, 2048L, 16L, 0L);
+            collection.recordData(ident, uid, SET_DEFAULT, TAG_NONE, start,
+                    start + HOUR_IN_MILLIS, entry);
+        }
+        return collection;
+    }
+
+    private static void assertUids(NetworkStatsCollection collection, int... uids) {
+        assertArrayEquals(uids, collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+    }
+
+    @Test
+    public void testRemoveUidsDeferredToCompaction() throws Exception {
+        final File dir = TestIoUtils.createTemporaryDirectory(TAG);
+        final File tombstoneFile = new File(dir, TEST_PREFIX + "_tombstones");
+        final NetworkStatsRecorder recorder = buildPersistedRecorder(dir, true);
+        // Persist the data in two files.
+        recorder.importCollectionLocked(buildCollection(0L));
+        recorder.importCollectionLocked(buildCollection(2 * DAY_IN_MILLIS));
+
+        recorder.removeUidsLocked(new int[] { TEST_UID });
+        assertTrue(recorder.hasPendingCompactionLocked());
+        assertTrue(tombstoneFile.exists());
+        assertUids(recorder.getOrLoadCompleteLocked(), UID_REMOVED, TEST_UID2);
+        // The removal is applied to loaded data after a restart, but the files are not modified.
+        assertUids(buildPersistedRecorder(dir, true).getOrLoadCompleteLocked(),
+                UID_REMOVED, TEST_UID2);
+        assertUids(buildPersistedRecorder(dir, false).getOrLoadCompleteLocked(),
+                TEST_UID, TEST_UID2);
+
+        // Each step compacts one file.
+        assertTrue(recorder.compactStep());
+        assertFalse(recorder.compactStep());
+        assertFalse(recorder.hasPendingCompactionLocked());
+        assertFalse(tombstoneFile.exists());
+        assertUids(buildPersistedRecorder(dir, false).getOrLoadCompleteLocked(),
+                UID_REMOVED, TEST_UID2);
+    }
+
+    @Test
+    public void testCompactionTracksFilesByName() throws Exception {
+        final File dir = TestIoUtils.createTemporaryDirectory(TAG);
+        final NetworkStatsRecorder recorder = buildPersistedRecorder(dir, true);
+        recorder.importCollectionLocked(buildCollection(0L));
+        recorder.importCollectionLocked(buildCollection(2 * DAY_IN_MILLIS));
+        recorder.removeUidsLocked(new int[] { TEST_UID });
+
+        // The oldest file is compacted first.
+        assertTrue(recorder.compactStep());
+
+        // The compacted file ages out and a file that still has the removed UID is added, so
+        // the number of files does not change.
+        final File[] oldest = dir.listFiles((d, name) -> name.startsWith(TEST_PREFIX + ".0-"));
+        assertEquals(1, oldest.length);
+        assertTrue(oldest[0].delete());
+        recorder.importCollectionLocked(buildCollection(4 * DAY_IN_MILLIS));
+
+        // Both remaining files are compacted before the removed UIDs are forgotten.
+        assertTrue(recorder.compactStep());
+        assertTrue(recorder.hasPendingCompactionLocked());
+        assertFalse(recorder.compactStep());
+        assertFalse(recorder.hasPendingCompactionLocked());
+        assertUids(buildPersistedRecorder(dir, false).getOrLoadCompleteLocked(),
+                UID_REMOVED, TEST_UID2);
+    }
+
+    @Test
+    public void testStartForcePersist() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, true);
+        final Map<String, NetworkIdentitySet> ifaceIdent =
+                Map.of(TEST_IFACE, new NetworkIdentitySet());
+        recorder.recordSnapshotLocked(new NetworkStats(0L, 1), ifaceIdent, HOUR_IN_MILLIS);
+        recorder.recordSnapshotLocked(new NetworkStats(HOUR_IN_MILLIS, 1).insertEntry(
+                TEST_IFACE, TEST_UID, SET_DEFAULT, TAG_NONE, 1024L, 8L, 2048L, 16L, 0L),
+                ifaceIdent, 2 * HOUR_IN_MILLIS);
+
+        // The pending data is only handed over.
+        final Runnable write = recorder.startForcePersistLocked(2 * HOUR_IN_MILLIS);
+        verify(rotator, never()).rewriteActive(any(), anyLong());
+
+        // Reading writes the data handed over first.
+        recorder.getOrLoadPartialLocked(Long.MIN_VALUE, Long.MAX_VALUE);
+        final InOrder inOrder = inOrder(rotator);
+        inOrder.verify(rotator).rewriteActive(any(), eq(2 * HOUR_IN_MILLIS));
+        inOrder.verify(rotator).readMatching(any(), anyLong(), anyLong());
+
+        // The data is only written once.
+        write.run();
+        verify(rotator, times(1)).rewriteActive(any(), anyLong());
+    }
+
     @Test
     public void testWipeOnError() throws Exception {
         final FileRotator rotator = mock(FileRotator.class);
@@ -21,10 +21,12 @@ import static android.net.util.DnsUtils.IPV6_ADDR_SCOPE_LINKLOCAL;
 import static android.net.util.DnsUtils.IPV6_ADDR_SCOPE_SITELOCAL;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.net.InetAddresses;
+import android.net.Network;
 import android.os.Build;
 
 import androidx.test.filters.SmallTest;
@@ -39,6 +41,7 @@ import java.net.InetAddress;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(DevSdkIgnoreRunner.class)
 @SmallTest
@@ -217,4 +220,88 @@ public class DnsUtilsTest {
         assertEquals(test.label, 12);
         assertEquals(test.precedence, 1);
     }
+
+    private static final long TEST_TTL_MS = 1000;
+    private static final int TEST_MAX_ENTRIES = 4;
+
+    private long mNowMs = 0;
+
+    private DnsUtils.SrcAddressCache makeSrcAddressCache(@NonNull AtomicInteger lookups,
+            @Nullable String srcAddr) {
+        return new DnsUtils.SrcAddressCache(TEST_MAX_ENTRIES, TEST_TTL_MS,
+                (network, addr) -> {
+                    lookups.incrementAndGet();
+                    return srcAddr != null ? stringToAddress(srcAddr) : null;
+                },
+                () -> mNowMs);
+    }
+
+    @Test
+    public void testSrcAddressCache() {
+        final AtomicInteger lookups = new AtomicInteger();
+        final DnsUtils.SrcAddressCache cache = makeSrcAddressCache(lookups, "2001:db8::1");
+        final Network network = new Network(100);
+
+        assertEquals(stringToAddress("2001:db8::1"),
+                cache.get(network, stringToAddress("2404:6800:4008:801::2004")));
+        assertEquals(1, lookups.get());
+
+        // Same address: cached.
+        cache.get(network, stringToAddress("2404:6800:4008:801::2004"));
+        assertEquals(1, lookups.get());
+
+        // Same /64 prefix, as a more specific route may select another source address, or
+        // different network: not cached.
+        cache.get(network, stringToAddress("2404:6800:4008:801::200e"));
+        assertEquals(2, lookups.get());
+        cache.get(new Network(101), stringToAddress("2404:6800:4008:801::2004"));
+        assertEquals(3, lookups.get());
+
+        // IPv4 addresses are cached by address too.
+        cache.get(network, stringToAddress("216.58.200.36"));
+        cache.get(network, stringToAddress("216.58.200.36"));
+        assertEquals(4, lookups.get());
+        cache.get(network, stringToAddress("216.58.200.37"));
+        assertEquals(5, lookups.get());
+
+        // The cache is bounded.
+        assertEquals(TEST_MAX_ENTRIES, cache.size());
+    }
+
+    @Test
+    public void testSrcAddressCacheExpiry() {
+        final AtomicInteger lookups = new AtomicInteger();
+        final DnsUtils.SrcAddressCache cache = makeSrcAddressCache(lookups, null);
+
+        // Unreachable destinations are cached too.
+        assertNull(cache.get(null, stringToAddress("216.58.200.36")));
+        assertNull(cache.get(null, stringToAddress("216.58.200.36")));
+        assertEquals(1, lookups.get());
+
+        mNowMs += TEST_TTL_MS;
+        cache.get(null, stringToAddress("216.58.200.36"));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testSrcAddressCacheInvalidate() {
+        final AtomicInteger lookups = new AtomicInteger();
+        final DnsUtils.SrcAddressCache cache = makeSrcAddressCache(lookups, "192.168.1.1");
+        final Network network = new Network(100);
+        final Network otherNetwork = new Network(101);
+        final InetAddress addr = stringToAddress("216.58.200.36");
+        cache.get(network, addr);
+        cache.get(otherNetwork, addr);
+        cache.get(null, addr);
+        assertEquals(3, lookups.get());
+
+        // Invalidating a network also invalidates the default network entries.
+        cache.invalidate(network);
+        assertEquals(1, cache.size());
+        cache.get(otherNetwork, addr);
+        assertEquals(3, lookups.get());
+        cache.get(network, addr);
+        cache.get(null, addr);
+        assertEquals(5, lookups.get());
+    }
 }
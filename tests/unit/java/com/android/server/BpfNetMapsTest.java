@@ -16,8 +16,16 @@
 
 package com.android.server;
 
+import static android.net.ConnectivityManager.FIREWALL_CHAIN_DOZABLE;
+import static android.net.ConnectivityManager.FIREWALL_CHAIN_STANDBY;
+import static android.net.ConnectivityManager.FIREWALL_RULE_ALLOW;
+import static android.net.ConnectivityManager.FIREWALL_RULE_DENY;
 import static android.net.INetd.PERMISSION_INTERNET;
+import static android.system.OsConstants.EINVAL;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assume.assumeFalse;
 import static org.mockito.Mockito.verify;
 
@@ -49,6 +57,42 @@ public final class BpfNetMapsTest {
 
     @Mock INetd mNetd;
 
+    // Records the calls to the native methods that write firewall chains instead of making them.
+    private static class TestBpfNetMaps extends BpfNetMaps {
+        int mError = 0;
+        int mFullReplaceCount = 0;
+        int[] mLastUids;
+        int[] mLastRules;
+
+        TestBpfNetMaps(INetd netd) {
+            super(netd);
+        }
+
+        @Override
+        int replaceUidChainNative(String chainName, boolean isAllowlist, int[] uids) {
+            mFullReplaceCount++;
+            return mError;
+        }
+
+        @Override
+        int setUidRulesNative(int childChain, int[] uids, int[] firewallRules) {
+            mLastUids = uids;
+            mLastRules = firewallRules;
+            return mError;
+        }
+
+        void assertUidRulesWritten(int[] uids, int[] firewallRules) {
+            assertArrayEquals(uids, mLastUids);
+            assertArrayEquals(firewallRules, mLastRules);
+            mLastUids = null;
+            mLastRules = null;
+        }
+
+        void assertNoUidRulesWritten() {
+            assertNull(mLastUids);
+        }
+    }
+
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
@@ -65,4 +109,58 @@ public final class BpfNetMapsTest {
         mBpfNetMaps.setNetPermForUids(PERMISSION_INTERNET, TEST_UIDS);
         verify(mNetd).trafficSetNetPermForUids(PERMISSION_INTERNET, TEST_UIDS);
     }
+
+    @Test
+    public void testReplaceUidChainWritesDelta() {
+        final TestBpfNetMaps bpfNetMaps = new TestBpfNetMaps(mNetd);
+        // The first replacement writes the whole chain.
+        assertEquals(0, bpfNetMaps.replaceUidChain(CHAINNAME, true, new int[] {1001, 1002, 1003}));
+        assertEquals(1, bpfNetMaps.mFullReplaceCount);
+        bpfNetMaps.assertNoUidRulesWritten();
+
+        // Later replacements only write the uids that join or leave the chain.
+        assertEquals(0, bpfNetMaps.replaceUidChain(CHAINNAME, true, new int[] {1002, 1003, 1004}));
+        bpfNetMaps.assertUidRulesWritten(new int[] {1001, 1004},
+                new int[] {FIREWALL_RULE_DENY, FIREWALL_RULE_ALLOW});
+        assertEquals(0, bpfNetMaps.replaceUidChain(CHAINNAME, true, new int[] {1004, 1003, 1002}));
+        bpfNetMaps.assertNoUidRulesWritten();
+
+        // Rules set on single uids are taken into account.
+        bpfNetMaps.setUidRules(FIREWALL_CHAIN_DOZABLE, new int[] {1004, 1005},
+                new int[] {FIREWALL_RULE_ALLOW, FIREWALL_RULE_ALLOW});
+        bpfNetMaps.assertUidRulesWritten(new int[] {1005}, new int[] {FIREWALL_RULE_ALLOW});
+        assertEquals(0, bpfNetMaps.replaceUidChain(CHAINNAME, true,
+                new int[] {1002, 1003, 1004, 1005}));
+        bpfNetMaps.assertNoUidRulesWritten();
+        assertEquals(1, bpfNetMaps.mFullReplaceCount);
+
+        // If writing the delta fails, the whole chain is replaced, and it is replaced again by
+        // the next call as its contents are unknown.
+        bpfNetMaps.mError = -EINVAL;
+        assertEquals(EINVAL, bpfNetMaps.replaceUidChain(CHAINNAME, true, new int[] {1002}));
+        assertEquals(2, bpfNetMaps.mFullReplaceCount);
+        bpfNetMaps.mError = 0;
+        bpfNetMaps.mLastUids = null;
+        assertEquals(0, bpfNetMaps.replaceUidChain(CHAINNAME, true, new int[] {1002}));
+        assertEquals(3, bpfNetMaps.mFullReplaceCount);
+        bpfNetMaps.assertNoUidRulesWritten();
+    }
+
+    @Test
+    public void testSetUidRulesSkipsUnchangedRules() {
+        final TestBpfNetMaps bpfNetMaps = new TestBpfNetMaps(mNetd);
+        final int[] uids = {1001, 1002};
+        bpfNetMaps.setUidRules(FIREWALL_CHAIN_STANDBY, uids,
+                new int[] {FIREWALL_RULE_DENY, FIREWALL_RULE_DENY});
+        bpfNetMaps.assertUidRulesWritten(uids, new int[] {FIREWALL_RULE_DENY, FIREWALL_RULE_DENY});
+        bpfNetMaps.setUidRules(FIREWALL_CHAIN_STANDBY, uids,
+                new int[] {FIREWALL_RULE_DENY, FIREWALL_RULE_DENY});
+        bpfNetMaps.assertNoUidRulesWritten();
+
+        // A uid listed several times ends up with its last rule.
+        bpfNetMaps.setUidRules(FIREWALL_CHAIN_STANDBY, new int[] {1001, 1001},
+                new int[] {FIREWALL_RULE_ALLOW, FIREWALL_RULE_DENY});
+        bpfNetMaps.assertUidRulesWritten(new int[] {1001, 1001},
+                new int[] {FIREWALL_RULE_ALLOW, FIREWALL_RULE_DENY});
+    }
 }
@@ -947,7 +947,13 @@ public class ConnectivityServiceTest {
 
         private TestNetworkAgentWrapper(int transport, LinkProperties linkProperties,
                 NetworkCapabilities ncTemplate, NetworkProvider provider) throws Exception {
-            super(transport, linkProperties, ncTemplate, provider, mServiceContext);
+            this(transport, linkProperties, ncTemplate, provider, false /* bypassableVpn */);
+        }
+
+        private TestNetworkAgentWrapper(int transport, LinkProperties linkProperties,
+                NetworkCapabilities ncTemplate, NetworkProvider provider, boolean bypassableVpn)
+                throws Exception {
+            super(transport, linkProperties, ncTemplate, provider, bypassableVpn, mServiceContext);
 
             // Waits for the NetworkAgent to be registered, which includes the creation of the
             // NetworkMonitor.
@@ -1375,6 +1381,7 @@ public class ConnectivityServiceTest {
         private boolean mAgentRegistered = false;
 
         private int mVpnType = VpnManager.TYPE_VPN_SERVICE;
+        private boolean mBypassable = false;
         private UnderlyingNetworkInfo mUnderlyingNetworkInfo;
 
         // These ConditionVariables allow tests to wait for LegacyVpnRunner to be stopped/started.
@@ -1430,6 +1437,10 @@ public class ConnectivityServiceTest {
             mVpnType = vpnType;
         }
 
+        public void setBypassable(boolean bypassable) {
+            mBypassable = bypassable;
+        }
+
         @Override
         public Network getNetwork() {
             return (mMockNetworkAgent == null) ? null : mMockNetworkAgent.getNetwork();
@@ -1462,7 +1473,7 @@ public class ConnectivityServiceTest {
             mNetworkCapabilities.setTransportInfo(new VpnTransportInfo(getActiveVpnType(),
                     mConfig.session));
             mMockNetworkAgent = new TestNetworkAgentWrapper(TRANSPORT_VPN, lp,
-                    mNetworkCapabilities);
+                    mNetworkCapabilities, null /* provider */, mBypassable);
             mMockNetworkAgent.waitForIdle(TIMEOUT_MS);
 
             verify(mMockNetd, times(1)).networkAddUidRangesParcel(
@@ -1896,6 +1907,7 @@ public class ConnectivityServiceTest {
     class ConnectivityServiceDependencies extends ConnectivityService.Dependencies {
         final ConnectivityResources mConnRes;
         @Mock final MockableSystemProperties mSystemProperties;
+        private volatile boolean mBatchNetworkAgentUpdates = false;
 
         ConnectivityServiceDependencies(final Context mockResContext) {
             mSystemProperties = mock(MockableSystemProperties.class);
@@ -1909,6 +1921,10 @@ public class ConnectivityServiceTest {
             return mSystemProperties;
         }
 
+        void setBatchNetworkAgentUpdates(boolean enabled) {
+            mBatchNetworkAgentUpdates = enabled;
+        }
+
         @Override
         public HandlerThread makeHandlerThread() {
             return mCsHandlerThread;
@@ -2055,6 +2071,8 @@ public class ConnectivityServiceTest {
             switch (name) {
                 case ConnectivityFlags.NO_REMATCH_ALL_REQUESTS_ON_REGISTER:
                     return true;
+                case ConnectivityFlags.BATCH_NETWORK_AGENT_UPDATES:
+                    return mBatchNetworkAgentUpdates;
                 default:
                     return super.isFeatureEnabled(context, name, defaultEnabled);
             }
@@ -4998,6 +5016,108 @@ public class ConnectivityServiceTest {
         mCm.unregisterNetworkCallback(cellNetworkCallback);
     }
 
+    private void enableNetworkAgentUpdateBatching() {
+        mDeps.setBatchNetworkAgentUpdates(true);
+        mCsHandlerThread.getThreadHandler().post(() -> mService.reloadFlags());
+        waitForIdle();
+    }
+
+    /**
+     * Blocks the ConnectivityService handler thread until the returned ConditionVariable is
+     * opened, so that several messages can be queued and then processed back to back.
+     */
+    private ConditionVariable blockConnectivityServiceHandler() {
+        final ConditionVariable cv = new ConditionVariable();
+        mCsHandlerThread.getThreadHandler().post(() -> cv.block(TIMEOUT_MS));
+        return cv;
+    }
+
+    @Test
+    public void testBatchedAgentUpdatesCoalesceCallbacks() throws Exception {
+        enableNetworkAgentUpdateBatching();
+        final TestNetworkCallback cellNetworkCallback = new TestNetworkCallback();
+        mCm.registerNetworkCallback(new NetworkRequest.Builder()
+                .addTransportType(TRANSPORT_CELLULAR).build(), cellNetworkCallback);
+        mCellNetworkAgent = new TestNetworkAgentWrapper(TRANSPORT_CELLULAR);
+        mCellNetworkAgent.connect(true);
+        cellNetworkCallback.expectAvailableThenValidatedCallbacks(mCellNetworkAgent);
+
+        final ConditionVariable cv = blockConnectivityServiceHandler();
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName("foonet_data0");
+        mCellNetworkAgent.sendLinkProperties(lp);
+        lp.setInterfaceName("foonet_data1");
+        mCellNetworkAgent.sendLinkProperties(lp);
+        cv.open();
+
+        // Both updates are processed in one batch, so only one callback reports the last one.
+        cellNetworkCallback.expectLinkPropertiesThat(mCellNetworkAgent,
+                newLp -> "foonet_data1".equals(newLp.getInterfaceName()));
+        cellNetworkCallback.assertNoCallback();
+        mCm.unregisterNetworkCallback(cellNetworkCallback);
+    }
+
+    @Test
+    public void testBatchedAgentUpdatesKeepSuspendedCallbackOrder() throws Exception {
+        enableNetworkAgentUpdateBatching();
+        final TestNetworkCallback cellNetworkCallback = new TestNetworkCallback();
+        mCm.registerNetworkCallback(new NetworkRequest.Builder()
+                .addTransportType(TRANSPORT_CELLULAR).build(), cellNetworkCallback);
+        mCellNetworkAgent = new TestNetworkAgentWrapper(TRANSPORT_CELLULAR);
+        mCellNetworkAgent.connect(true);
+        cellNetworkCallback.expectAvailableThenValidatedCallbacks(mCellNetworkAgent);
+
+        // Suspend the network in the same update as a requestable capability change, so that
+        // the capabilities callback is deferred until the end of the batch.
+        final ConditionVariable cv = blockConnectivityServiceHandler();
+        final NetworkCapabilities nc =
+                new NetworkCapabilities(mCellNetworkAgent.getNetworkCapabilities());
+        nc.removeCapability(NET_CAPABILITY_NOT_SUSPENDED);
+        nc.addCapability(NET_CAPABILITY_NOT_METERED);
+        mCellNetworkAgent.setNetworkCapabilities(nc, true /* sendToConnectivityService */);
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName("foonet_data0");
+        mCellNetworkAgent.sendLinkProperties(lp);
+        cv.open();
+
+        // Apps see the capabilities change before onSuspended, as when updates are not batched.
+        cellNetworkCallback.expectCapabilitiesThat(mCellNetworkAgent,
+                caps -> !caps.hasCapability(NET_CAPABILITY_NOT_SUSPENDED)
+                        && caps.hasCapability(NET_CAPABILITY_NOT_METERED));
+        cellNetworkCallback.expectCallback(CallbackEntry.SUSPENDED, mCellNetworkAgent);
+        cellNetworkCallback.expectCallback(CallbackEntry.LINK_PROPERTIES_CHANGED,
+                mCellNetworkAgent);
+        cellNetworkCallback.assertNoCallback();
+        mCm.unregisterNetworkCallback(cellNetworkCallback);
+    }
+
+    @Test
+    public void testBatchedAgentUpdatesCommittedBeforeOtherWork() throws Exception {
+        enableNetworkAgentUpdateBatching();
+        mCellNetworkAgent = new TestNetworkAgentWrapper(TRANSPORT_CELLULAR);
+        mCellNetworkAgent.connect(true);
+        mWiFiNetworkAgent = new TestNetworkAgentWrapper(TRANSPORT_WIFI);
+        mWiFiNetworkAgent.connect(true);
+        waitForIdle();
+        assertEquals(mWiFiNetworkAgent.getNetwork(), mCm.getActiveNetwork());
+
+        // Make cellular the best network in a batch that is still open when a callback is
+        // registered. The batch must be committed first, so the callback only sees cellular.
+        final ConditionVariable cv = blockConnectivityServiceHandler();
+        mWiFiNetworkAgent.adjustScore(-50);
+        final TestNetworkCallback defaultCallback = new TestNetworkCallback();
+        mCm.registerDefaultNetworkCallback(defaultCallback);
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName(WIFI_IFNAME);
+        mWiFiNetworkAgent.sendLinkProperties(lp);
+        cv.open();
+
+        defaultCallback.expectAvailableCallbacksValidated(mCellNetworkAgent);
+        defaultCallback.assertNoCallback();
+        assertEquals(mCellNetworkAgent.getNetwork(), mCm.getActiveNetwork());
+        mCm.unregisterNetworkCallback(defaultCallback);
+    }
+
     @Test
     public void testRegisterPrivilegedDefaultCallbacksRequireNetworkSettings() throws Exception {
         mCellNetworkAgent = new TestNetworkAgentWrapper(TRANSPORT_CELLULAR);
@@ -6426,6 +6546,89 @@ public class ConnectivityServiceTest {
         mWiFiNetworkAgent = null;
     }
 
+    @Test
+    public void testSocketKeepaliveSlotsAndSourceAddresses() throws Exception {
+        runTestWithSerialExecutors(
+                executor -> doTestSocketKeepaliveSlotsAndSourceAddresses(executor));
+    }
+
+    private void doTestSocketKeepaliveSlotsAndSourceAddresses(Executor executor) throws Exception {
+        final InetAddress myIPv4 = InetAddress.getByName("192.0.2.129");
+        final InetAddress myOtherIPv4 = InetAddress.getByName("192.0.2.130");
+        final InetAddress dstIPv4 = InetAddress.getByName("8.8.8.8");
+        final int validKaInterval = 15;
+
+        final IpSecManager ipSec = (IpSecManager) mContext.getSystemService(Context.IPSEC_SERVICE);
+        final UdpEncapsulationSocket testSocket = ipSec.openUdpEncapsulationSocket();
+        final UdpEncapsulationSocket testSocket2 = ipSec.openUdpEncapsulationSocket();
+        final UdpEncapsulationSocket testSocket3 = ipSec.openUdpEncapsulationSocket();
+
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName("wlan12");
+        lp.addLinkAddress(new LinkAddress(myIPv4, 25));
+        lp.addLinkAddress(new LinkAddress(myOtherIPv4, 25));
+        lp.addRoute(new RouteInfo(InetAddress.getByName("192.0.2.254")));
+        final Network myNet = connectKeepaliveNetwork(lp);
+        mWiFiNetworkAgent.setStartKeepaliveEvent(SocketKeepalive.SUCCESS);
+        mWiFiNetworkAgent.setStopKeepaliveEvent(SocketKeepalive.SUCCESS);
+
+        final TestSocketKeepaliveCallback callback = new TestSocketKeepaliveCallback(executor);
+        final TestSocketKeepaliveCallback callback2 = new TestSocketKeepaliveCallback(executor);
+        final TestSocketKeepaliveCallback callback3 = new TestSocketKeepaliveCallback(executor);
+        try (SocketKeepalive ka = mCm.createSocketKeepalive(
+                        myNet, testSocket, myIPv4, dstIPv4, executor, callback);
+                SocketKeepalive ka2 = mCm.createSocketKeepalive(
+                        myNet, testSocket2, myOtherIPv4, dstIPv4, executor, callback2);
+                SocketKeepalive ka3 = mCm.createSocketKeepalive(
+                        myNet, testSocket3, myIPv4, dstIPv4, executor, callback3)) {
+            mWiFiNetworkAgent.setExpectedKeepaliveSlot(1);
+            ka.start(validKaInterval);
+            callback.expectStarted();
+            mWiFiNetworkAgent.setExpectedKeepaliveSlot(2);
+            ka2.start(validKaInterval);
+            callback2.expectStarted();
+
+            // The slot of a stopped keepalive is the first free slot again.
+            ka.stop();
+            callback.expectStopped();
+            mWiFiNetworkAgent.setExpectedKeepaliveSlot(1);
+            ka3.start(validKaInterval);
+            callback3.expectStarted();
+
+            // Link properties changes that keep the source addresses do not stop keepalives.
+            final LinkProperties newLp = new LinkProperties(lp);
+            newLp.addRoute(new RouteInfo(new IpPrefix("198.51.100.0/24"), null, "wlan12"));
+            mWiFiNetworkAgent.sendLinkProperties(newLp);
+            waitForIdle();
+            callback2.assertNoCallback();
+            callback3.assertNoCallback();
+
+            // Removing a source address only stops the keepalives that use it.
+            newLp.removeLinkAddress(new LinkAddress(myOtherIPv4, 25));
+            mWiFiNetworkAgent.sendLinkProperties(newLp);
+            callback2.expectError(SocketKeepalive.ERROR_INVALID_IP_ADDRESS);
+            waitForIdle();
+            callback3.assertNoCallback();
+
+            // The starts are counted in dump.
+            mServiceContext.setPermission(DUMP, PERMISSION_GRANTED);
+            final StringWriter stringWriter = new StringWriter();
+            mService.dump(new FileDescriptor(), new PrintWriter(stringWriter), new String[0]);
+            assertTrue(stringWriter.toString().contains("started=3 failed=0"));
+
+            ka3.stop();
+            callback3.expectStopped();
+        }
+        testSocket.close();
+        testSocket2.close();
+        testSocket3.close();
+
+        mWiFiNetworkAgent.setExpectedKeepaliveSlot(null);
+        mWiFiNetworkAgent.disconnect();
+        mWiFiNetworkAgent.expectDisconnected();
+        mWiFiNetworkAgent = null;
+    }
+
     @Test
     public void testTcpSocketKeepalives() throws Exception {
         runTestWithSerialExecutors(executor -> doTestTcpSocketKeepalivesWithExecutor(executor));
@@ -7345,13 +7548,41 @@ public class ConnectivityServiceTest {
         callback.expectAvailableCallbacksUnvalidated(mWiFiNetworkAgent);
         verify(mMockDnsResolver, times(1)).createNetworkCache(
                 eq(mWiFiNetworkAgent.getNetwork().netId));
-        verify(mMockDnsResolver, times(2)).setResolverConfiguration(
+        // The configuration is noted twice on connect, but only sent once as it is unchanged.
+        verify(mMockDnsResolver, times(1)).setResolverConfiguration(
                 mResolverParamsParcelCaptor.capture());
         final ResolverParamsParcel resolverParams = mResolverParamsParcelCaptor.getValue();
         assertContainsExactly(resolverParams.transportTypes, TRANSPORT_WIFI);
         reset(mMockDnsResolver);
     }
 
+    @Test
+    public void testDnsConfigurationResentOnFreshValidation() throws Exception {
+        setPrivateDnsSettings(PRIVATE_DNS_MODE_OPPORTUNISTIC, "ignored.example.com");
+        // Clear any interactions that occur as a result of CS starting up.
+        reset(mMockDnsResolver);
+
+        final LinkProperties wifiLp = new LinkProperties();
+        wifiLp.setInterfaceName(WIFI_IFNAME);
+        wifiLp.addDnsServer(InetAddress.getByName("2001:db8::1"));
+        mWiFiNetworkAgent = new TestNetworkAgentWrapper(TRANSPORT_WIFI, wifiLp);
+        mWiFiNetworkAgent.connect(false);
+        waitForIdle();
+        verify(mMockDnsResolver, times(1)).setResolverConfiguration(any());
+        reset(mMockDnsResolver);
+
+        // The configuration is unchanged, but it is sent again so that the resolver restarts
+        // opportunistic private DNS validation.
+        mWiFiNetworkAgent.setNetworkValid(false /* isStrictMode */);
+        mWiFiNetworkAgent.mNetworkMonitor.forceReevaluation(Process.myUid());
+        waitForIdle();
+        verify(mMockDnsResolver, times(1)).setResolverConfiguration(
+                mResolverParamsParcelCaptor.capture());
+        final ResolverParamsParcel resolverParams = mResolverParamsParcelCaptor.getValue();
+        assertEquals(1, resolverParams.tlsServers.length);
+        assertTrue(CollectionUtils.contains(resolverParams.tlsServers, "2001:db8::1"));
+    }
+
     @Test
     public void testPrivateDnsNotification() throws Exception {
         NetworkRequest request = new NetworkRequest.Builder()
@@ -9570,6 +9801,31 @@ public class ConnectivityServiceTest {
         doTestSetUidFirewallRule(FIREWALL_CHAIN_OEM_DENY_3, FIREWALL_RULE_ALLOW);
     }
 
+    @Test @IgnoreUpTo(SC_V2)
+    public void testSetUidFirewallRules() throws Exception {
+        final int[] uids = new int[] {1001, 1002, 1003};
+        mCm.setUidFirewallRules(FIREWALL_CHAIN_DOZABLE, uids,
+                new int[] {FIREWALL_RULE_ALLOW, FIREWALL_RULE_DENY, FIREWALL_RULE_DEFAULT});
+        verify(mBpfNetMaps).setUidRules(FIREWALL_CHAIN_DOZABLE, uids,
+                new int[] {FIREWALL_RULE_ALLOW, FIREWALL_RULE_DENY, FIREWALL_RULE_DENY});
+        reset(mBpfNetMaps);
+
+        mCm.setUidFirewallRules(FIREWALL_CHAIN_STANDBY, uids,
+                new int[] {FIREWALL_RULE_ALLOW, FIREWALL_RULE_DENY, FIREWALL_RULE_DEFAULT});
+        verify(mBpfNetMaps).setUidRules(FIREWALL_CHAIN_STANDBY, uids,
+                new int[] {FIREWALL_RULE_ALLOW, FIREWALL_RULE_DENY, FIREWALL_RULE_ALLOW});
+        reset(mBpfNetMaps);
+
+        final Class<IllegalArgumentException> expected = IllegalArgumentException.class;
+        assertThrows(expected, () -> mCm.setUidFirewallRules(FIREWALL_CHAIN_DOZABLE, uids,
+                new int[] {FIREWALL_RULE_ALLOW}));
+        assertThrows(expected, () -> mCm.setUidFirewallRules(FIREWALL_CHAIN_DOZABLE, uids,
+                new int[] {FIREWALL_RULE_ALLOW, FIREWALL_RULE_ALLOW, 100 /* rule */}));
+        assertThrows(expected, () -> mCm.setUidFirewallRules(-1 /* chain */, new int[0],
+                new int[0]));
+        verify(mBpfNetMaps, never()).setUidRules(anyInt(), any(), any());
+    }
+
     @Test @IgnoreUpTo(SC_V2)
     public void testSetFirewallChainEnabled() throws Exception {
         final List<Integer> firewallChains = Arrays.asList(
@@ -10559,6 +10815,19 @@ public class ConnectivityServiceTest {
         }
     }
 
+    @Test
+    public void testBypassableVpnInterfaceFilteringRule() throws Exception {
+        LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName("tun0");
+        lp.addRoute(new RouteInfo(new IpPrefix(Inet4Address.ANY, 0), null));
+        lp.addRoute(new RouteInfo(new IpPrefix(Inet6Address.ANY, 0), null));
+        // A bypassable VPN is not isolated even if it routes all traffic, so it should have
+        // interface filtering with null interface, added when the VPN connects and removed when
+        // it disconnects.
+        mMockVpn.setBypassable(true);
+        checkInterfaceFilteringRuleWithNullInterface(lp, VPN_UID);
+    }
+
     @Test
     public void testLegacyVpnInterfaceFilteringRule() throws Exception {
         LinkProperties lp = new LinkProperties();
@@ -10668,11 +10937,11 @@ public class ConnectivityServiceTest {
         waitForIdle();
 
         ArgumentCaptor<int[]> uidCaptor = ArgumentCaptor.forClass(int[].class);
-        // Verify old rules are removed before new rules are added
+        // Verify only the rule of the uid leaving the VPN is removed, and the rule of the uid
+        // staying in the VPN is left untouched.
         inOrder.verify(mBpfNetMaps).removeUidInterfaceRules(uidCaptor.capture());
-        assertContainsExactly(uidCaptor.getValue(), APP1_UID, APP2_UID);
-        inOrder.verify(mBpfNetMaps).addUidInterfaceRules(eq("tun0"), uidCaptor.capture());
-        assertContainsExactly(uidCaptor.getValue(), APP2_UID);
+        assertContainsExactly(uidCaptor.getValue(), APP1_UID);
+        verify(mBpfNetMaps, never()).addUidInterfaceRules(any(), any());
     }
 
     @Test
@@ -11878,6 +12147,26 @@ public class ConnectivityServiceTest {
         assertContainsExactly(exemptUidCaptor.getValue(), Process.VPN_UID, exemptUid);
     }
 
+    private void assertVpnUidRangesChanged(Set<UidRange> addedRanges,
+            Set<UidRange> removedRanges, Set<UidRange> changedUids, int exemptUid)
+            throws Exception {
+        InOrder inOrder = inOrder(mMockNetd);
+        ArgumentCaptor<int[]> exemptUidCaptor = ArgumentCaptor.forClass(int[].class);
+
+        inOrder.verify(mMockNetd, times(1)).socketDestroy(eq(toUidRangeStableParcels(changedUids)),
+                exemptUidCaptor.capture());
+        assertContainsExactly(exemptUidCaptor.getValue(), Process.VPN_UID, exemptUid);
+        inOrder.verify(mMockNetd, times(1)).networkAddUidRangesParcel(
+                new NativeUidRangeConfig(mMockVpn.getNetwork().getNetId(),
+                        toUidRangeStableParcels(addedRanges), PREFERENCE_ORDER_VPN));
+        inOrder.verify(mMockNetd, times(1)).networkRemoveUidRangesParcel(
+                new NativeUidRangeConfig(mMockVpn.getNetwork().getNetId(),
+                        toUidRangeStableParcels(removedRanges), PREFERENCE_ORDER_VPN));
+        inOrder.verify(mMockNetd, times(1)).socketDestroy(eq(toUidRangeStableParcels(changedUids)),
+                exemptUidCaptor.capture());
+        assertContainsExactly(exemptUidCaptor.getValue(), Process.VPN_UID, exemptUid);
+    }
+
     @Test
     public void testVpnUidRangesUpdate() throws Exception {
         // Set up a WiFi network without proxy.
@@ -11906,8 +12195,8 @@ public class ConnectivityServiceTest {
         mMockVpn.setUids(newRanges);
         waitForIdle();
 
-        assertVpnUidRangesUpdated(true, newRanges, VPN_UID);
-        assertVpnUidRangesUpdated(false, vpnRanges, VPN_UID);
+        // Only the sockets of APP1 are closed, in a single pair of calls.
+        assertVpnUidRangesChanged(newRanges, vpnRanges, uidRangesForUids(APP1_UID), VPN_UID);
 
         // Uid has changed but proxy is not set, so there is no need to send proxy broadcast.
         b2.expectNoBroadcast(500);
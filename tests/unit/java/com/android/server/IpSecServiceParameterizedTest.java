@@ -30,11 +30,14 @@ import static android.system.OsConstants.AF_INET6;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -61,6 +64,7 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.ServiceSpecificException;
 import android.system.Os;
 import android.test.mock.MockContext;
 import android.util.ArraySet;
@@ -403,6 +407,103 @@ public class IpSecServiceParameterizedTest {
         verifyTransformNetdCalledForCreatingSA(ipSecConfig, createTransformResp);
     }
 
+    @Test
+    public void testCreateTransforms() throws Exception {
+        IpSecConfig inConfig = new IpSecConfig();
+        addDefaultSpisAndRemoteAddrToIpSecConfig(inConfig);
+        addAuthAndCryptToIpSecConfig(inConfig);
+        IpSecConfig outConfig = new IpSecConfig();
+        addDefaultSpisAndRemoteAddrToIpSecConfig(outConfig);
+        addAuthAndCryptToIpSecConfig(outConfig);
+
+        IpSecTransformResponse[] createTransformResps =
+                mIpSecService.createTransforms(
+                        new IpSecConfig[] {inConfig, outConfig}, new Binder(), BLESSED_PACKAGE);
+        assertEquals(2, createTransformResps.length);
+        assertEquals(IpSecManager.Status.OK, createTransformResps[0].status);
+        assertEquals(IpSecManager.Status.OK, createTransformResps[1].status);
+
+        verify(mMockNetd, times(2))
+                .ipSecAddSecurityAssociation(
+                        eq(mUid), anyInt(), anyString(), anyString(), anyInt(), eq(TEST_SPI),
+                        anyInt(), anyInt(), anyString(), any(), anyInt(), anyString(), any(),
+                        anyInt(), anyString(), any(), anyInt(), anyInt(), anyInt(), anyInt(),
+                        anyInt());
+        IpSecService.UserRecord userRecord = mIpSecService.mUserResourceTracker.getUserRecord(mUid);
+        assertEquals(2, userRecord.mTransformQuotaTracker.mCurrent);
+    }
+
+    @Test
+    public void testCreateTransformsRejectsReusedSpi() throws Exception {
+        IpSecConfig validConfig = new IpSecConfig();
+        addDefaultSpisAndRemoteAddrToIpSecConfig(validConfig);
+        addAuthAndCryptToIpSecConfig(validConfig);
+        IpSecConfig duplicateSpiConfig = new IpSecConfig();
+        duplicateSpiConfig.setSpiResourceId(validConfig.getSpiResourceId());
+        duplicateSpiConfig.setSourceAddress(mSourceAddr);
+        duplicateSpiConfig.setDestinationAddress(mDestinationAddr);
+        addAuthAndCryptToIpSecConfig(duplicateSpiConfig);
+
+        try {
+            mIpSecService.createTransforms(
+                    new IpSecConfig[] {validConfig, duplicateSpiConfig},
+                    new Binder(),
+                    BLESSED_PACKAGE);
+            fail("Expected IllegalStateException for a reused SPI");
+        } catch (IllegalStateException expected) {
+        }
+
+        IpSecService.UserRecord userRecord = mIpSecService.mUserResourceTracker.getUserRecord(mUid);
+        assertEquals(0, userRecord.mTransformQuotaTracker.mCurrent);
+    }
+
+    @Test
+    public void testCreateTransformsRollsBackPartialFailure() throws Exception {
+        IpSecConfig inConfig = new IpSecConfig();
+        addDefaultSpisAndRemoteAddrToIpSecConfig(inConfig);
+        addAuthAndCryptToIpSecConfig(inConfig);
+        IpSecConfig outConfig = new IpSecConfig();
+        addDefaultSpisAndRemoteAddrToIpSecConfig(outConfig);
+        addAuthAndCryptToIpSecConfig(outConfig);
+
+        // The first SA is created, and netd fails to create the second one.
+        doNothing().doThrow(new ServiceSpecificException(0)).when(mMockNetd)
+                .ipSecAddSecurityAssociation(
+                        anyInt(), anyInt(), anyString(), anyString(), anyInt(), anyInt(),
+                        anyInt(), anyInt(), anyString(), any(), anyInt(), anyString(), any(),
+                        anyInt(), anyString(), any(), anyInt(), anyInt(), anyInt(), anyInt(),
+                        anyInt());
+        try {
+            mIpSecService.createTransforms(
+                    new IpSecConfig[] {inConfig, outConfig}, new Binder(), BLESSED_PACKAGE);
+            fail("Expected ServiceSpecificException when netd fails to create an SA");
+        } catch (ServiceSpecificException expected) {
+        }
+
+        // The created transform is rolled back, and its SA is handed back to its SPI instead of
+        // being deleted.
+        IpSecService.UserRecord userRecord = mIpSecService.mUserResourceTracker.getUserRecord(mUid);
+        assertEquals(0, userRecord.mTransformQuotaTracker.mCurrent);
+        verify(mMockNetd, never())
+                .ipSecDeleteSecurityAssociation(
+                        anyInt(), anyString(), anyString(), anyInt(), anyInt(), anyInt(),
+                        anyInt());
+
+        // Both SPIs are no longer owned by a transform, so the batch can be retried.
+        doNothing().when(mMockNetd)
+                .ipSecAddSecurityAssociation(
+                        anyInt(), anyInt(), anyString(), anyString(), anyInt(), anyInt(),
+                        anyInt(), anyInt(), anyString(), any(), anyInt(), anyString(), any(),
+                        anyInt(), anyString(), any(), anyInt(), anyInt(), anyInt(), anyInt(),
+                        anyInt());
+        IpSecTransformResponse[] createTransformResps =
+                mIpSecService.createTransforms(
+                        new IpSecConfig[] {inConfig, outConfig}, new Binder(), BLESSED_PACKAGE);
+        assertEquals(IpSecManager.Status.OK, createTransformResps[0].status);
+        assertEquals(IpSecManager.Status.OK, createTransformResps[1].status);
+        assertEquals(2, userRecord.mTransformQuotaTracker.mCurrent);
+    }
+
     @Test
     public void testCreateTransformAead() throws Exception {
         IpSecConfig ipSecConfig = new IpSecConfig();
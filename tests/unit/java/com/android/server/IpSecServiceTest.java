@@ -22,6 +22,7 @@ import static android.system.OsConstants.IPPROTO_UDP;
 import static android.system.OsConstants.SOCK_DGRAM;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -31,6 +32,7 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -66,11 +68,22 @@ import org.mockito.ArgumentMatcher;
 
 import java.io.FileDescriptor;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /** Unit tests for {@link IpSecService}. */
 @SmallTest
@@ -82,6 +95,7 @@ public class IpSecServiceTest {
     private static final int MAX_NUM_ENCAP_SOCKETS = 100;
     private static final int MAX_NUM_SPIS = 100;
     private static final int TEST_UDP_ENCAP_INVALID_PORT = 100;
+    private static final int TEST_APP_UID = 10100;
     private static final int TEST_UDP_ENCAP_PORT_OUT_RANGE = 100000;
 
     private static final InetAddress INADDR_ANY;
@@ -121,6 +135,11 @@ public class IpSecServiceTest {
         }
     }
 
+    private static final Range<Integer> TEST_LOCAL_PORT_RANGE = new Range<>(32768, 60999);
+    private static final int STRESS_TEST_THREADS = 8;
+    private static final int STRESS_TEST_ITERATIONS = 50;
+    private static final long STRESS_TEST_TIMEOUT_MS = 30_000;
+
     Context mMockContext;
     INetd mMockNetd;
     IpSecService.Dependencies mDeps;
@@ -138,6 +157,9 @@ public class IpSecServiceTest {
     private IpSecService.Dependencies makeDependencies() throws RemoteException {
         final IpSecService.Dependencies deps = mock(IpSecService.Dependencies.class);
         when(deps.getNetdInstance(mMockContext)).thenReturn(mMockNetd);
+        when(deps.getLocalPortRange()).thenReturn(TEST_LOCAL_PORT_RANGE);
+        when(deps.getLocalReservedPorts()).thenReturn(new ArrayList<>());
+        when(deps.makePortRandom()).thenReturn(new SecureRandom());
         return deps;
     }
 
@@ -270,6 +292,107 @@ public class IpSecServiceTest {
         udpEncapResp.fileDescriptor.close();
     }
 
+    @Test
+    public void testOpenUdpEncapsulationSocketFallsBackToProbe() throws Exception {
+        // Occupy the only port of the local port range, so that binding directly fails.
+        FileDescriptor occupyingSocket = Os.socket(AF_INET, SOCK_DGRAM, IPPROTO_UDP);
+        Os.bind(occupyingSocket, INADDR_ANY, 0);
+        int occupiedPort = ((InetSocketAddress) Os.getsockname(occupyingSocket)).getPort();
+        when(mDeps.getLocalPortRange()).thenReturn(new Range<>(occupiedPort, occupiedPort));
+        mIpSecService = new IpSecService(mMockContext, mDeps);
+
+        IpSecUdpEncapResponse udpEncapResp =
+                mIpSecService.openUdpEncapsulationSocket(0, new Binder());
+        assertEquals(IpSecManager.Status.OK, udpEncapResp.status);
+        assertNotEquals(0, udpEncapResp.port);
+        assertNotEquals(occupiedPort, udpEncapResp.port);
+
+        mIpSecService.closeUdpEncapsulationSocket(udpEncapResp.resourceId);
+        udpEncapResp.fileDescriptor.close();
+        Os.close(occupyingSocket);
+    }
+
+    @Test
+    public void testOpenUdpEncapsulationSocketSkipsReservedPorts() throws Exception {
+        // Hold a port so that binding to it fails, and find a free port.
+        FileDescriptor occupyingSocket = Os.socket(AF_INET, SOCK_DGRAM, IPPROTO_UDP);
+        Os.bind(occupyingSocket, INADDR_ANY, 0);
+        int occupiedPort = ((InetSocketAddress) Os.getsockname(occupyingSocket)).getPort();
+        FileDescriptor probeSocket = Os.socket(AF_INET, SOCK_DGRAM, IPPROTO_UDP);
+        Os.bind(probeSocket, INADDR_ANY, 0);
+        int freePort = ((InetSocketAddress) Os.getsockname(probeSocket)).getPort();
+        Os.close(probeSocket);
+
+        // The lowest port of the range is reserved.
+        int lower = Math.min(occupiedPort, freePort) - 1;
+        int upper = Math.max(occupiedPort, freePort);
+        List<Range<Integer>> reservedPorts = IpSecService.parsePortRanges(Integer.toString(lower));
+        when(mDeps.getLocalPortRange()).thenReturn(new Range<>(lower, upper));
+        when(mDeps.getLocalReservedPorts()).thenReturn(reservedPorts);
+        // Pick the reserved port, then the occupied port, then the free port.
+        Random random = mock(Random.class);
+        when(random.nextInt(anyInt())).thenReturn(0, occupiedPort - lower, freePort - lower);
+        when(mDeps.makePortRandom()).thenReturn(random);
+        mIpSecService = new IpSecService(mMockContext, mDeps);
+
+        IpSecUdpEncapResponse udpEncapResp =
+                mIpSecService.openUdpEncapsulationSocket(0, new Binder());
+        assertEquals(IpSecManager.Status.OK, udpEncapResp.status);
+        assertFalse(reservedPorts.get(0).contains(udpEncapResp.port));
+        assertEquals(freePort, udpEncapResp.port);
+        // The reserved port is skipped without binding, and the occupied port is retried.
+        verify(random, times(3)).nextInt(upper - lower + 1);
+
+        mIpSecService.closeUdpEncapsulationSocket(udpEncapResp.resourceId);
+        udpEncapResp.fileDescriptor.close();
+        Os.close(occupyingSocket);
+    }
+
+    @Test
+    public void testOpenUdpEncapsulationSocketConcurrently() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(STRESS_TEST_THREADS);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < STRESS_TEST_THREADS; i++) {
+            results.add(executor.submit(() -> {
+                startLatch.await();
+                for (int j = 0; j < STRESS_TEST_ITERATIONS; j++) {
+                    IpSecUdpEncapResponse udpEncapResp =
+                            mIpSecService.openUdpEncapsulationSocket(0, new Binder());
+                    assertEquals(IpSecManager.Status.OK, udpEncapResp.status);
+                    assertTrue(udpEncapResp.port >= IpSecService.FREE_PORT_MIN);
+                    mIpSecService.closeUdpEncapsulationSocket(udpEncapResp.resourceId);
+                    udpEncapResp.fileDescriptor.close();
+                }
+                return null;
+            }));
+        }
+        startLatch.countDown();
+        try {
+            for (Future<Void> result : results) {
+                result.get(STRESS_TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Verify quota and RefcountedResource objects cleaned up
+        IpSecService.UserRecord userRecord =
+                mIpSecService.mUserResourceTracker.getUserRecord(Os.getuid());
+        assertEquals(0, userRecord.mSocketQuotaTracker.mCurrent);
+    }
+
+    @Test
+    public void testParsePortRanges() {
+        assertEquals(Arrays.asList(new Range<>(32768, 60999)),
+                IpSecService.parsePortRanges("32768\t60999\n"));
+        assertEquals(Arrays.asList(new Range<>(8080, 8080), new Range<>(9000, 9010)),
+                IpSecService.parsePortRanges("8080,9000-9010\n"));
+        assertEquals(Arrays.asList(new Range<>(8080, 8080)),
+                IpSecService.parsePortRanges("8080"));
+        assertTrue(IpSecService.parsePortRanges("\n").isEmpty());
+    }
+
     @Test
     public void testOpenUdpEncapsulationSocketPortRange() throws Exception {
         try {
@@ -570,6 +693,63 @@ public class IpSecServiceTest {
         }
     }
 
+    /**
+     * Allocates and releases SPIs for two UIDs in parallel. Each UID is guarded by its own lock,
+     * so check that the quota of each UID and the resource IDs stay consistent.
+     */
+    @Test
+    public void testSpiAllocationFromParallelUids() throws Exception {
+        when(mMockNetd.ipSecAllocateSpi(anyInt(), anyString(), anyString(), anyInt()))
+                .thenReturn(DROID_SPI);
+        final int[] uids = {TEST_APP_UID, TEST_APP_UID + 1};
+        final Set<Integer> resourceIds = ConcurrentHashMap.newKeySet();
+        final ExecutorService executor = Executors.newFixedThreadPool(uids.length);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final List<Future<Void>> results = new ArrayList<>();
+        for (int uid : uids) {
+            results.add(executor.submit(() -> {
+                // Make Binder.getCallingUid() return the UID on this thread.
+                Binder.restoreCallingIdentity(((long) uid << 32) | Process.myPid());
+                startLatch.await();
+                for (int i = 0; i < STRESS_TEST_ITERATIONS; i++) {
+                    final List<Integer> allocated = new ArrayList<>();
+                    for (int j = 0; j < IpSecService.UserRecord.MAX_NUM_SPIS; j++) {
+                        final IpSecSpiResponse spiResp =
+                                mIpSecService.allocateSecurityParameterIndex(
+                                        InetAddress.getLoopbackAddress().getHostAddress(),
+                                        DROID_SPI, new Binder());
+                        assertEquals(IpSecManager.Status.OK, spiResp.status);
+                        // Resource IDs are unique across UIDs.
+                        assertTrue(resourceIds.add(spiResp.resourceId));
+                        allocated.add(spiResp.resourceId);
+                    }
+                    // The other UID's allocations do not count against this UID's quota.
+                    assertEquals(IpSecManager.Status.RESOURCE_UNAVAILABLE,
+                            mIpSecService.allocateSecurityParameterIndex(
+                                    InetAddress.getLoopbackAddress().getHostAddress(),
+                                    DROID_SPI, new Binder()).status);
+                    for (int resourceId : allocated) {
+                        mIpSecService.releaseSecurityParameterIndex(resourceId);
+                    }
+                }
+                final IpSecService.UserRecord userRecord =
+                        mIpSecService.mUserResourceTracker.getUserRecord(uid);
+                assertEquals(0, userRecord.mSpiQuotaTracker.mCurrent);
+                return null;
+            }));
+        }
+        startLatch.countDown();
+        try {
+            for (Future<Void> result : results) {
+                result.get(STRESS_TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(uids.length * STRESS_TEST_ITERATIONS * IpSecService.UserRecord.MAX_NUM_SPIS,
+                resourceIds.size());
+    }
+
     @Test
     public void testUidFdtagger() throws Exception {
         SocketTagger actualSocketTagger = SocketTagger.get();
@@ -22,6 +22,7 @@ import static libcore.junit.util.compat.CoreCompatChangeRule.EnableCompatChanges
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.any;
@@ -57,6 +58,8 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.test.filters.SmallTest;
@@ -76,6 +79,9 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.LinkedList;
 import java.util.Queue;
 
@@ -86,10 +92,12 @@ import java.util.Queue;
 @SmallTest
 @DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.S_V2)
 public class NsdServiceTest {
+    private static final String TAG = NsdServiceTest.class.getSimpleName();
 
     static final int PROTOCOL = NsdManager.PROTOCOL_DNS_SD;
     private static final long CLEANUP_DELAY_MS = 500;
     private static final long TIMEOUT_MS = 500;
+    private static final long BURST_TIMEOUT_MS = 10_000;
 
     // Records INsdManagerCallback created when NsdService#connect is called.
     // Only accessed on the test thread, since NsdService#connect is called by the NsdManager
@@ -386,6 +394,194 @@ public class NsdServiceTest {
         assertEquals(servicePort, resolvedService.getPort());
         assertNull(resolvedService.getNetwork());
         assertEquals(interfaceIdx, resolvedService.getInterfaceIndex());
+
+        // Resolving the same service again is answered from the cache, without mdnsresponder
+        final NsdManager.ResolveListener resolveListener2 = mock(NsdManager.ResolveListener.class);
+        client.resolveService(foundInfo, resolveListener2);
+        waitForIdle();
+        verify(mMockMDnsM).resolve(anyInt(), anyString(), anyString(), anyString(), anyInt());
+        final ArgumentCaptor<NsdServiceInfo> cachedInfoCaptor =
+                ArgumentCaptor.forClass(NsdServiceInfo.class);
+        verify(resolveListener2, timeout(TIMEOUT_MS)).onServiceResolved(cachedInfoCaptor.capture());
+        final NsdServiceInfo cachedService = cachedInfoCaptor.getValue();
+        assertEquals(serviceName, cachedService.getServiceName());
+        assertEquals(InetAddresses.parseNumericAddress(serviceAddress), cachedService.getHost());
+        assertEquals(servicePort, cachedService.getPort());
+        assertEquals(interfaceIdx, cachedService.getInterfaceIndex());
+
+        // Losing the service invalidates the cached resolution
+        eventListener.onServiceDiscoveryStatus(new DiscoveryInfo(
+                discIdCaptor.getValue(),
+                IMDnsEventListener.SERVICE_LOST,
+                serviceName,
+                serviceType,
+                domainName,
+                interfaceIdx,
+                INetd.LOCAL_NET_ID));
+        waitForIdle();
+        verify(discListener, timeout(TIMEOUT_MS)).onServiceLost(any());
+        final NsdManager.ResolveListener resolveListener3 = mock(NsdManager.ResolveListener.class);
+        client.resolveService(foundInfo, resolveListener3);
+        waitForIdle();
+        verify(mMockMDnsM, times(2)).resolve(anyInt(), eq(serviceName), eq(serviceType),
+                eq("local.") /* domain */, eq(interfaceIdx));
+    }
+
+    @Test
+    public void testDiscoveryIsSharedBetweenClients() throws Exception {
+        NsdService service = makeService();
+        NsdManager client1 = connectClient(service);
+        NsdManager client2 = connectClient(service);
+
+        final String serviceType = "a_type";
+        final String serviceName = "a_name";
+        final int interfaceIdx = 123;
+        final NsdManager.DiscoveryListener discListener1 = mock(NsdManager.DiscoveryListener.class);
+        client1.discoverServices(serviceType, NsdManager.PROTOCOL_DNS_SD, discListener1);
+        waitForIdle();
+
+        final ArgumentCaptor<IMDnsEventListener> listenerCaptor =
+                ArgumentCaptor.forClass(IMDnsEventListener.class);
+        verify(mMockMDnsM).registerEventListener(listenerCaptor.capture());
+        final ArgumentCaptor<Integer> discIdCaptor = ArgumentCaptor.forClass(Integer.class);
+        verify(mMockMDnsM).discover(discIdCaptor.capture(), eq(serviceType),
+                eq(0) /* interfaceIdx */);
+        verify(discListener1, timeout(TIMEOUT_MS)).onDiscoveryStarted(serviceType);
+
+        listenerCaptor.getValue().onServiceDiscoveryStatus(new DiscoveryInfo(
+                discIdCaptor.getValue(),
+                IMDnsEventListener.SERVICE_FOUND,
+                serviceName,
+                serviceType,
+                "mytestdevice.local",
+                interfaceIdx,
+                INetd.LOCAL_NET_ID));
+        waitForIdle();
+        verify(discListener1, timeout(TIMEOUT_MS)).onServiceFound(any());
+
+        // The second client joins the running discovery and gets the services already found
+        final NsdManager.DiscoveryListener discListener2 = mock(NsdManager.DiscoveryListener.class);
+        client2.discoverServices(serviceType, NsdManager.PROTOCOL_DNS_SD, discListener2);
+        waitForIdle();
+        verify(mMockMDnsM).discover(anyInt(), anyString(), anyInt());
+        verify(discListener2, timeout(TIMEOUT_MS)).onDiscoveryStarted(serviceType);
+        final ArgumentCaptor<NsdServiceInfo> foundInfoCaptor =
+                ArgumentCaptor.forClass(NsdServiceInfo.class);
+        verify(discListener2, timeout(TIMEOUT_MS)).onServiceFound(foundInfoCaptor.capture());
+        assertEquals(serviceName, foundInfoCaptor.getValue().getServiceName());
+        assertEquals(interfaceIdx, foundInfoCaptor.getValue().getInterfaceIndex());
+
+        // The discovery is only stopped when the last client stops it
+        client1.stopServiceDiscovery(discListener1);
+        waitForIdle();
+        verify(discListener1, timeout(TIMEOUT_MS)).onDiscoveryStopped(serviceType);
+        verify(mMockMDnsM, never()).stopOperation(anyInt());
+
+        client2.stopServiceDiscovery(discListener2);
+        waitForIdle();
+        verify(discListener2, timeout(TIMEOUT_MS)).onDiscoveryStopped(serviceType);
+        verify(mMockMDnsM).stopOperation(discIdCaptor.getValue());
+    }
+
+    @Test
+    public void testServiceFoundBurst() throws Exception {
+        NsdService service = makeService();
+        NsdManager client = connectClient(service);
+
+        final String serviceType = "a_type";
+        final int interfaceIdx = 123;
+        final int numEvents = 10_000;
+        final NsdManager.DiscoveryListener discListener = mock(NsdManager.DiscoveryListener.class);
+        client.discoverServices(serviceType, NsdManager.PROTOCOL_DNS_SD, discListener);
+        waitForIdle();
+
+        final ArgumentCaptor<IMDnsEventListener> listenerCaptor =
+                ArgumentCaptor.forClass(IMDnsEventListener.class);
+        verify(mMockMDnsM).registerEventListener(listenerCaptor.capture());
+        final ArgumentCaptor<Integer> discIdCaptor = ArgumentCaptor.forClass(Integer.class);
+        verify(mMockMDnsM).discover(discIdCaptor.capture(), eq(serviceType),
+                eq(0) /* interfaceIdx */);
+
+        // Replay a burst of events for distinct services, as seen on a busy network
+        final IMDnsEventListener eventListener = listenerCaptor.getValue();
+        final long startMs = SystemClock.elapsedRealtime();
+        for (int i = 0; i < numEvents; i++) {
+            eventListener.onServiceDiscoveryStatus(new DiscoveryInfo(
+                    discIdCaptor.getValue(),
+                    IMDnsEventListener.SERVICE_FOUND,
+                    "service_" + i,
+                    serviceType,
+                    "mytestdevice.local",
+                    interfaceIdx,
+                    INetd.LOCAL_NET_ID));
+        }
+        HandlerUtils.waitForIdle(mHandler, BURST_TIMEOUT_MS);
+        Log.d(TAG, "Processed " + numEvents + " service found events in "
+                + (SystemClock.elapsedRealtime() - startMs) + "ms");
+        verify(discListener, timeout(BURST_TIMEOUT_MS).times(numEvents)).onServiceFound(any());
+
+        final StringWriter dump = new StringWriter();
+        service.dump(new FileDescriptor(), new PrintWriter(dump), new String[0]);
+        assertTrue(dump.toString().contains(
+                "event " + IMDnsEventListener.SERVICE_FOUND + " count " + numEvents + "\n"));
+        assertTrue(dump.toString().contains("dropped events 0\n"));
+
+        // A client joining the discovery only gets the most recently found services.
+        final NsdManager client2 = connectClient(service);
+        final NsdManager.DiscoveryListener discListener2 = mock(NsdManager.DiscoveryListener.class);
+        client2.discoverServices(serviceType, NsdManager.PROTOCOL_DNS_SD, discListener2);
+        HandlerUtils.waitForIdle(mHandler, BURST_TIMEOUT_MS);
+        final ArgumentCaptor<NsdServiceInfo> foundInfoCaptor =
+                ArgumentCaptor.forClass(NsdServiceInfo.class);
+        verify(discListener2, timeout(TIMEOUT_MS).times(
+                NsdService.MAX_FOUND_SERVICES_PER_DISCOVERY))
+                .onServiceFound(foundInfoCaptor.capture());
+        assertEquals("service_" + (numEvents - 1), foundInfoCaptor.getValue().getServiceName());
+    }
+
+    @Test
+    public void testSharedDiscoveryFailure() throws Exception {
+        NsdService service = makeService();
+        NsdManager client1 = connectClient(service);
+        NsdManager client2 = connectClient(service);
+
+        final String serviceType = "a_type";
+        final int interfaceIdx = 123;
+        final NsdManager.DiscoveryListener discListener1 = mock(NsdManager.DiscoveryListener.class);
+        client1.discoverServices(serviceType, NsdManager.PROTOCOL_DNS_SD, discListener1);
+        waitForIdle();
+
+        final ArgumentCaptor<IMDnsEventListener> listenerCaptor =
+                ArgumentCaptor.forClass(IMDnsEventListener.class);
+        verify(mMockMDnsM).registerEventListener(listenerCaptor.capture());
+        final ArgumentCaptor<Integer> discIdCaptor = ArgumentCaptor.forClass(Integer.class);
+        verify(mMockMDnsM).discover(discIdCaptor.capture(), eq(serviceType),
+                eq(0) /* interfaceIdx */);
+        final int failedDiscId = discIdCaptor.getValue();
+        final IMDnsEventListener eventListener = listenerCaptor.getValue();
+        eventListener.onServiceDiscoveryStatus(new DiscoveryInfo(failedDiscId,
+                IMDnsEventListener.SERVICE_FOUND, "a_name", serviceType, "mytestdevice.local",
+                interfaceIdx, INetd.LOCAL_NET_ID));
+        eventListener.onServiceDiscoveryStatus(new DiscoveryInfo(failedDiscId,
+                IMDnsEventListener.SERVICE_DISCOVERY_FAILED, "", serviceType, "", 0, 0));
+        waitForIdle();
+        verify(discListener1, timeout(TIMEOUT_MS)).onStartDiscoveryFailed(serviceType,
+                NsdManager.FAILURE_INTERNAL_ERROR);
+
+        // Events for the failed discovery are no longer delivered through it.
+        eventListener.onServiceDiscoveryStatus(new DiscoveryInfo(failedDiscId,
+                IMDnsEventListener.SERVICE_FOUND, "another_name", serviceType,
+                "mytestdevice.local", interfaceIdx, INetd.LOCAL_NET_ID));
+        waitForIdle();
+        verify(discListener1, times(1)).onServiceFound(any());
+
+        // A new request starts a new discovery, without the services of the failed one.
+        final NsdManager.DiscoveryListener discListener2 = mock(NsdManager.DiscoveryListener.class);
+        client2.discoverServices(serviceType, NsdManager.PROTOCOL_DNS_SD, discListener2);
+        waitForIdle();
+        verify(mMockMDnsM, times(2)).discover(anyInt(), eq(serviceType), eq(0));
+        verify(discListener2, timeout(TIMEOUT_MS)).onDiscoveryStarted(serviceType);
+        verify(discListener2, never()).onServiceFound(any());
     }
 
     private void waitForIdle() {
@@ -16,6 +16,7 @@
 
 package com.android.server.connectivity;
 
+import static android.net.ConnectivitySettingsManager.DNS_RESOLVER_MIN_SAMPLES;
 import static android.net.ConnectivitySettingsManager.PRIVATE_DNS_DEFAULT_MODE;
 import static android.net.ConnectivitySettingsManager.PRIVATE_DNS_MODE;
 import static android.net.ConnectivitySettingsManager.PRIVATE_DNS_MODE_OFF;
@@ -37,6 +38,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -376,6 +378,42 @@ public class DnsManagerTest {
         assertResolverParamsEquals(actualParams, expectedParams);
     }
 
+    @Test
+    public void testUnchangedDnsConfigurationNotSent() throws Exception {
+        reset(mMockDnsResolver);
+        mDnsManager.updatePrivateDns(new Network(TEST_NETID),
+                mDnsManager.getPrivateDnsConfig());
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName(TEST_IFACENAME);
+        lp.addDnsServer(InetAddress.getByName("3.3.3.3"));
+        mDnsManager.updateTransportsForNetwork(TEST_NETID, TEST_TRANSPORT_TYPES);
+        mDnsManager.noteDnsServersForNetwork(TEST_NETID, lp);
+        mDnsManager.noteDnsServersForNetwork(TEST_NETID, new LinkProperties(lp));
+        mDnsManager.updateTransportsForNetwork(TEST_NETID, TEST_TRANSPORT_TYPES);
+        verify(mMockDnsResolver, times(1)).setResolverConfiguration(any());
+
+        // Settings are only read again after they are reported to have changed.
+        Settings.Global.putInt(mContentResolver, DNS_RESOLVER_MIN_SAMPLES, 4);
+        lp.addDnsServer(InetAddress.getByName("4.4.4.4"));
+        mDnsManager.noteDnsServersForNetwork(TEST_NETID, lp);
+        final ArgumentCaptor<ResolverParamsParcel> resolverParamsParcelCaptor =
+                ArgumentCaptor.forClass(ResolverParamsParcel.class);
+        verify(mMockDnsResolver, times(2)).setResolverConfiguration(
+                resolverParamsParcelCaptor.capture());
+        assertEquals(TEST_DEFAULT_MIN_SAMPLES, resolverParamsParcelCaptor.getValue().minSamples);
+
+        mDnsManager.onResolverParametersSettingsChanged();
+        verify(mMockDnsResolver, times(3)).setResolverConfiguration(
+                resolverParamsParcelCaptor.capture());
+        assertEquals(4, resolverParamsParcelCaptor.getValue().minSamples);
+
+        // A removed network gets its configuration sent again if it is re-added.
+        mDnsManager.removeNetwork(new Network(TEST_NETID));
+        mDnsManager.updateTransportsForNetwork(TEST_NETID, TEST_TRANSPORT_TYPES);
+        mDnsManager.noteDnsServersForNetwork(TEST_NETID, lp);
+        verify(mMockDnsResolver, times(4)).setResolverConfiguration(any());
+    }
+
     @Test
     public void testTransportTypesEqual() throws Exception {
         SparseArray<String> ncTransTypes = MessageUtils.findMessageNames(
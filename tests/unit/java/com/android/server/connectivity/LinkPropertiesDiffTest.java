@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static android.net.RouteInfo.RTN_UNICAST;
+import static android.net.RouteInfo.RTN_UNREACHABLE;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.net.InetAddresses;
+import android.net.IpPrefix;
+import android.net.LinkProperties;
+import android.net.RouteInfo;
+import android.os.Build;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Tests for LinkPropertiesDiff.
+ *
+ * Build, install and run with:
+ *  runtest frameworks-net -c com.android.server.connectivity.LinkPropertiesDiffTest
+ */
+@RunWith(DevSdkIgnoreRunner.class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+public class LinkPropertiesDiffTest {
+    private static final String IFACE = "wlan0";
+    private static final String STACKED_IFACE = "v4-wlan0";
+
+    private static RouteInfo route(String dest, String gateway, String iface) {
+        return new RouteInfo(new IpPrefix(dest),
+                gateway == null ? null : InetAddresses.parseNumericAddress(gateway), iface,
+                RTN_UNICAST);
+    }
+
+    private static LinkProperties makeLp(RouteInfo... routes) {
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName(IFACE);
+        for (RouteInfo route : routes) {
+            lp.addRoute(route);
+        }
+        return lp;
+    }
+
+    @Test
+    public void testIdentical() {
+        final LinkProperties lp = makeLp(route("2001:db8::/64", null, IFACE));
+        lp.addDnsServer(InetAddresses.parseNumericAddress("2001:db8::53"));
+        final LinkPropertiesDiff diff = new LinkPropertiesDiff(lp, new LinkProperties(lp));
+        assertFalse(diff.hasInterfaceOrRouteChanges());
+        assertFalse(diff.dnsChanged);
+    }
+
+    @Test
+    public void testRoutes() {
+        final RouteInfo kept = route("2001:db8::/64", null, IFACE);
+        final RouteInfo removed = route("2001:db8:1::/64", null, IFACE);
+        final RouteInfo added = route("::/0", "fe80::1", IFACE);
+        final RouteInfo updated = new RouteInfo(new IpPrefix("2001:db8:2::/64"), null, IFACE,
+                RTN_UNREACHABLE);
+        final LinkProperties oldLp = makeLp(kept, removed, route("2001:db8:2::/64", null, IFACE));
+        final LinkProperties newLp = makeLp(kept, added, updated);
+
+        final LinkPropertiesDiff diff = new LinkPropertiesDiff(oldLp, newLp);
+        assertEquals(List.of(added), diff.routesAdded);
+        assertEquals(List.of(removed), diff.routesRemoved);
+        assertEquals(List.of(updated), diff.routesUpdated);
+        assertTrue(diff.hasRouteChanges());
+        assertTrue(diff.interfacesAdded.isEmpty());
+        assertTrue(diff.interfacesRemoved.isEmpty());
+        assertFalse(diff.dnsChanged);
+    }
+
+    @Test
+    public void testStackedLinks() {
+        final LinkProperties oldLp = makeLp(route("2001:db8::/64", null, IFACE));
+        final LinkProperties newLp = new LinkProperties(oldLp);
+        final LinkProperties stacked = new LinkProperties();
+        stacked.setInterfaceName(STACKED_IFACE);
+        final RouteInfo stackedRoute = route("0.0.0.0/0", null, STACKED_IFACE);
+        stacked.addRoute(stackedRoute);
+        newLp.addStackedLink(stacked);
+
+        LinkPropertiesDiff diff = new LinkPropertiesDiff(oldLp, newLp);
+        assertEquals(List.of(STACKED_IFACE), diff.interfacesAdded);
+        assertEquals(List.of(stackedRoute), diff.routesAdded);
+
+        diff = new LinkPropertiesDiff(newLp, oldLp);
+        assertEquals(List.of(STACKED_IFACE), diff.interfacesRemoved);
+        assertEquals(List.of(stackedRoute), diff.routesRemoved);
+    }
+
+    @Test
+    public void testDnsAndNullLinkProperties() {
+        final LinkProperties oldLp = makeLp();
+        final LinkProperties newLp = makeLp();
+        newLp.addDnsServer(InetAddresses.parseNumericAddress("192.0.2.53"));
+        assertTrue(new LinkPropertiesDiff(oldLp, newLp).dnsChanged);
+
+        final LinkPropertiesDiff diff = new LinkPropertiesDiff(null, newLp);
+        assertEquals(List.of(IFACE), diff.interfacesAdded);
+        assertTrue(diff.dnsChanged);
+    }
+
+    @Test
+    public void testManyRoutes() {
+        final LinkProperties oldLp = makeLp();
+        final LinkProperties newLp = makeLp();
+        for (int i = 0; i < 1000; i++) {
+            oldLp.addRoute(route("2001:db8:" + Integer.toHexString(i) + "::/64", null, IFACE));
+            newLp.addRoute(route("2001:db8:" + Integer.toHexString(i + 500) + "::/64", null,
+                    IFACE));
+        }
+        final LinkPropertiesDiff diff = new LinkPropertiesDiff(oldLp, newLp);
+        assertEquals(500, diff.routesAdded.size());
+        assertEquals(500, diff.routesRemoved.size());
+        assertTrue(diff.routesUpdated.isEmpty());
+        // Removed routes are in the order of the old link properties.
+        assertEquals(new IpPrefix("2001:db8:0::/64"), diff.routesRemoved.get(0).getDestination());
+    }
+}
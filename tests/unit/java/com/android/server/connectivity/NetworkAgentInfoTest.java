@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_NOT_METERED;
+import static android.net.NetworkCapabilities.TRANSPORT_CELLULAR;
+import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.net.ConnectivityResources;
+import android.net.IDnsResolver;
+import android.net.INetd;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkAgentConfig;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkProvider;
+import android.net.NetworkRequest;
+import android.net.NetworkScore;
+import android.os.Binder;
+import android.os.Build;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.ConnectivityService;
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+public class NetworkAgentInfoTest {
+    private static final int TEST_NETID = 100;
+    private static final int TEST_REQUEST_ID = 42;
+    private static final int TEST_LINGER_DELAY_MS = 400;
+
+    @Mock ConnectivityService mConnService;
+    @Mock IDnsResolver mDnsResolver;
+    @Mock INetd mNetd;
+    @Mock Context mCtx;
+    @Mock Resources mResources;
+    @Mock QosCallbackTracker mQosCallbackTracker;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mCtx.getResources()).thenReturn(mResources);
+        when(mCtx.getPackageName()).thenReturn("com.android.server.connectivity");
+        ConnectivityResources.setResourcesContextForTest(mCtx);
+    }
+
+    @After
+    public void tearDown() {
+        ConnectivityResources.setResourcesContextForTest(null);
+    }
+
+    private NetworkAgentInfo makeNai(NetworkCapabilities caps) {
+        final NetworkInfo info = new NetworkInfo(ConnectivityManager.TYPE_WIFI, 0, "WIFI", "");
+        final NetworkAgentInfo nai = new NetworkAgentInfo(null, new Network(TEST_NETID), info,
+                new LinkProperties(), caps, new NetworkScore.Builder().setLegacyInt(50).build(),
+                mCtx, null, new NetworkAgentConfig.Builder().build(), mConnService, mNetd,
+                mDnsResolver, NetworkProvider.ID_NONE, Binder.getCallingUid(),
+                TEST_LINGER_DELAY_MS, mQosCallbackTracker, new ConnectivityService.Dependencies());
+        nai.created = true;
+        return nai;
+    }
+
+    private static NetworkCapabilities wifiCaps() {
+        return new NetworkCapabilities()
+                .addCapability(NET_CAPABILITY_INTERNET)
+                .addTransportType(TRANSPORT_WIFI);
+    }
+
+    private static NetworkRequest makeRequest(int requestId, NetworkCapabilities caps) {
+        return new NetworkRequest(caps, ConnectivityManager.TYPE_NONE, requestId,
+                NetworkRequest.Type.REQUEST);
+    }
+
+    @Test
+    public void testSatisfiesRecomputedWhenNetworkCapabilitiesChange() {
+        final NetworkAgentInfo nai = makeNai(wifiCaps());
+        final NetworkRequest request = makeRequest(TEST_REQUEST_ID, wifiCaps());
+        assertTrue(nai.satisfies(request));
+        assertTrue(nai.satisfies(request));
+
+        // New capabilities object: the cached result must not be used.
+        nai.networkCapabilities = new NetworkCapabilities()
+                .addCapability(NET_CAPABILITY_INTERNET)
+                .addTransportType(TRANSPORT_CELLULAR);
+        assertFalse(nai.satisfies(request));
+
+        // Capabilities mutated in place get a new generation too.
+        nai.networkCapabilities.removeTransportType(TRANSPORT_CELLULAR);
+        nai.networkCapabilities.addTransportType(TRANSPORT_WIFI);
+        assertTrue(nai.satisfies(request));
+    }
+
+    @Test
+    public void testSatisfiesRecomputedForReusedRequestId() {
+        final NetworkAgentInfo nai = makeNai(wifiCaps());
+        assertTrue(nai.satisfies(makeRequest(TEST_REQUEST_ID, wifiCaps())));
+
+        // Another request with the same ID, as after the first one was released, must not get
+        // the result cached for the first one.
+        final NetworkRequest cellRequest = makeRequest(TEST_REQUEST_ID, new NetworkCapabilities()
+                .addCapability(NET_CAPABILITY_INTERNET)
+                .addTransportType(TRANSPORT_CELLULAR));
+        assertFalse(nai.satisfies(cellRequest));
+
+        // Same for the capabilities of a request that are changed in place.
+        final NetworkRequest request = makeRequest(TEST_REQUEST_ID + 1, wifiCaps());
+        assertTrue(nai.satisfies(request));
+        request.networkCapabilities.addCapability(NET_CAPABILITY_NOT_METERED);
+        assertFalse(nai.satisfies(request));
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static android.net.ConnectivityManager.CALLBACK_CAP_CHANGED;
+import static android.net.ConnectivityManager.CALLBACK_IP_CHANGED;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.os.Build;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Tests for NetworkAgentUpdateBatcher.
+ *
+ * Build, install and run with:
+ *  runtest frameworks-net -c com.android.server.connectivity.NetworkAgentUpdateBatcherTest
+ */
+@RunWith(DevSdkIgnoreRunner.class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+public class NetworkAgentUpdateBatcherTest {
+    @Mock NetworkAgentUpdateBatcher.Callback mCallback;
+    private boolean mEnabled = true;
+    private NetworkAgentUpdateBatcher mBatcher;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mBatcher = new NetworkAgentUpdateBatcher(() -> mEnabled, mCallback);
+    }
+
+    private static NetworkAgentInfo makeNai(Boolean... pendingUpdates) {
+        final NetworkAgentInfo nai = mock(NetworkAgentInfo.class);
+        if (pendingUpdates.length == 1) {
+            when(nai.hasPendingStateUpdates()).thenReturn(pendingUpdates[0]);
+        } else {
+            final Boolean[] rest = new Boolean[pendingUpdates.length - 1];
+            System.arraycopy(pendingUpdates, 1, rest, 0, rest.length);
+            when(nai.hasPendingStateUpdates()).thenReturn(pendingUpdates[0], rest);
+        }
+        when(nai.toShortString()).thenReturn("nai");
+        return nai;
+    }
+
+    // Simulates ConnectivityService processing a capabilities update followed by link
+    // properties and score updates from the same agent, all queued at the same time.
+    private void processThreeUpdates(NetworkAgentInfo nai) {
+        mBatcher.beginUpdate(nai);
+        mBatcher.rematchAllNetworksAndRequests(nai);
+        mBatcher.notifyNetworkCallbacks(nai, CALLBACK_CAP_CHANGED);
+        mBatcher.endUpdate();
+
+        mBatcher.beginUpdate(nai);
+        mBatcher.notifyNetworkCallbacks(nai, CALLBACK_IP_CHANGED);
+        mBatcher.endUpdate();
+
+        mBatcher.beginUpdate(nai);
+        mBatcher.rematchAllNetworksAndRequests(nai);
+        mBatcher.endUpdate();
+    }
+
+    @Test
+    public void testBatchedUpdatesRematchOnce() {
+        // The first beginUpdate and every endUpdate query the pending state; the queue is empty
+        // after the last update.
+        final NetworkAgentInfo nai = makeNai(true, true, true, false);
+        processThreeUpdates(nai);
+
+        final InOrder inOrder = inOrder(mCallback);
+        inOrder.verify(mCallback).rematchAllNetworksAndRequests();
+        inOrder.verify(mCallback).notifyNetworkCallbacks(nai, CALLBACK_CAP_CHANGED);
+        inOrder.verify(mCallback).notifyNetworkCallbacks(nai, CALLBACK_IP_CHANGED);
+        inOrder.verifyNoMoreInteractions();
+        assertFalse(mBatcher.isBatching(nai));
+        assertEquals(1, mBatcher.getTotalTransactions());
+        assertEquals(1, mBatcher.getTotalRematchesSaved());
+        assertEquals(0, mBatcher.getTotalNotificationsSaved());
+    }
+
+    @Test
+    public void testNoPendingUpdatesRunsImmediately() {
+        final NetworkAgentInfo nai = makeNai(false);
+        processThreeUpdates(nai);
+
+        verify(mCallback, times(2)).rematchAllNetworksAndRequests();
+        verify(mCallback).notifyNetworkCallbacks(nai, CALLBACK_CAP_CHANGED);
+        verify(mCallback).notifyNetworkCallbacks(nai, CALLBACK_IP_CHANGED);
+        assertEquals(0, mBatcher.getTotalTransactions());
+    }
+
+    @Test
+    public void testDisabled() {
+        mEnabled = false;
+        final NetworkAgentInfo nai = makeNai(true);
+        processThreeUpdates(nai);
+
+        verify(mCallback, times(2)).rematchAllNetworksAndRequests();
+        verify(mCallback, times(2)).notifyNetworkCallbacks(any(), anyInt());
+        assertFalse(mBatcher.isBatching(nai));
+    }
+
+    @Test
+    public void testDuplicateNotificationsCoalesced() {
+        final NetworkAgentInfo nai = makeNai(true, true, false);
+        mBatcher.beginUpdate(nai);
+        mBatcher.notifyNetworkCallbacks(nai, CALLBACK_CAP_CHANGED);
+        mBatcher.endUpdate();
+        mBatcher.beginUpdate(nai);
+        mBatcher.notifyNetworkCallbacks(nai, CALLBACK_CAP_CHANGED);
+        mBatcher.endUpdate();
+
+        verify(mCallback).notifyNetworkCallbacks(nai, CALLBACK_CAP_CHANGED);
+        verify(mCallback, never()).rematchAllNetworksAndRequests();
+        assertEquals(1, mBatcher.getTotalNotificationsSaved());
+    }
+
+    @Test
+    public void testOtherNetworkCommits() {
+        final NetworkAgentInfo nai1 = makeNai(true);
+        final NetworkAgentInfo nai2 = makeNai(false);
+        mBatcher.beginUpdate(nai1);
+        mBatcher.rematchAllNetworksAndRequests(nai1);
+        mBatcher.endUpdate();
+        assertTrue(mBatcher.isBatching(nai1));
+        verify(mCallback, never()).rematchAllNetworksAndRequests();
+
+        // An update from another network must see the effects of the deferred rematch.
+        mBatcher.beginUpdate(nai2);
+        verify(mCallback).rematchAllNetworksAndRequests();
+        assertFalse(mBatcher.isBatching(nai1));
+        assertFalse(mBatcher.isBatching(nai2));
+
+        mBatcher.rematchAllNetworksAndRequests(nai2);
+        mBatcher.endUpdate();
+        verify(mCallback, times(2)).rematchAllNetworksAndRequests();
+    }
+
+    @Test
+    public void testExplicitCommit() {
+        final NetworkAgentInfo nai = makeNai(true);
+        mBatcher.beginUpdate(nai);
+        mBatcher.rematchAllNetworksAndRequests(nai);
+        mBatcher.notifyNetworkCallbacks(nai, CALLBACK_CAP_CHANGED);
+        mBatcher.endUpdate();
+        verify(mCallback, never()).rematchAllNetworksAndRequests();
+
+        mBatcher.commit();
+        verify(mCallback).rematchAllNetworksAndRequests();
+        verify(mCallback).notifyNetworkCallbacks(nai, CALLBACK_CAP_CHANGED);
+
+        // Committing with no open transaction does nothing.
+        mBatcher.commit();
+        verify(mCallback).rematchAllNetworksAndRequests();
+        assertEquals(1, mBatcher.getTotalTransactions());
+    }
+}
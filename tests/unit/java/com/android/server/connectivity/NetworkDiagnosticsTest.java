@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import android.net.InetAddresses;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.shared.PrivateDnsConfig;
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Tests for NetworkDiagnostics.
+ *
+ * Build, install and run with:
+ *  runtest frameworks-net -c com.android.server.connectivity.NetworkDiagnosticsTest
+ */
+@RunWith(DevSdkIgnoreRunner.class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+public class NetworkDiagnosticsTest {
+    private static final int NUM_DNS_SERVERS = 6;
+    private static final long TIMEOUT_MS = 1500;
+    // Time allowed for thread startup and scheduling on top of the diagnostics timeout.
+    private static final long TIMEOUT_SLACK_MS = 1000;
+
+    // Loopback stand-in for a network: nothing listens on the DNS ports of the loopback addresses,
+    // so every check runs until its deadline or fails.
+    private static LinkProperties makeLoopbackLinkProperties() {
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName("lo");
+        for (int i = 1; i <= NUM_DNS_SERVERS; i++) {
+            lp.addDnsServer(InetAddresses.parseNumericAddress("127.0.0." + i));
+        }
+        return lp;
+    }
+
+    private NetworkDiagnostics runDiagnostics(boolean multiplexed) {
+        // A mock network does not bind sockets, so they use the loopback interface.
+        final NetworkDiagnostics netDiag = new NetworkDiagnostics(mock(Network.class),
+                makeLoopbackLinkProperties(), new PrivateDnsConfig(), TIMEOUT_MS, multiplexed);
+        final long start = SystemClock.elapsedRealtime();
+        netDiag.waitForMeasurements();
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        assertTrue("Measurements took " + elapsed + "ms",
+                elapsed <= TIMEOUT_MS + TIMEOUT_SLACK_MS);
+        return netDiag;
+    }
+
+    private static void assertAllMeasurementsFinished(NetworkDiagnostics netDiag) {
+        final List<NetworkDiagnostics.Measurement> measurements = netDiag.getMeasurements();
+        // One ICMP, one DNS UDP and one DNS TLS check per DNS server.
+        assertEquals(3 * NUM_DNS_SERVERS, measurements.size());
+        for (NetworkDiagnostics.Measurement m : measurements) {
+            assertNotEquals("Unfinished measurement " + m, 0, m.finishTime);
+        }
+    }
+
+    @Test
+    public void testThreadPerCheck() {
+        final NetworkDiagnostics netDiag = runDiagnostics(false /* multiplexed */);
+        assertEquals(3 * NUM_DNS_SERVERS, netDiag.getThreadCount());
+        assertAllMeasurementsFinished(netDiag);
+    }
+
+    @Test
+    public void testMultiplexed() {
+        final NetworkDiagnostics netDiag = runDiagnostics(true /* multiplexed */);
+        // The ICMP and DNS UDP checks all run on one thread, DNS TLS checks on their own.
+        assertEquals(1 + NUM_DNS_SERVERS, netDiag.getThreadCount());
+        assertAllMeasurementsFinished(netDiag);
+    }
+}
@@ -819,6 +819,39 @@ public class PermissionMonitorTest {
         doTestUidFilteringDuringVpnConnectDisconnectAndUidUpdates(null /* ifName */);
     }
 
+    @Test
+    public void testUidFilteringDuringVpnUidRangesUpdate() throws Exception {
+        doReturn(List.of(
+                buildPackageInfo(MOCK_PACKAGE1, MOCK_UID11),
+                buildPackageInfo(MOCK_PACKAGE2, MOCK_UID12),
+                buildPackageInfo(SYSTEM_PACKAGE2, VPN_UID)))
+                .when(mPackageManager).getInstalledPackagesAsUser(eq(GET_PERMISSIONS), anyInt());
+        mPermissionMonitor.startMonitoring();
+        final Set<UidRange> vpnRange1 = Set.of(UidRange.createForUser(MOCK_USER1));
+        mPermissionMonitor.onVpnUidRangesAdded("tun0", vpnRange1, VPN_UID);
+        verify(mBpfNetMaps).addUidInterfaceRules(eq("tun0"), any());
+
+        reset(mBpfNetMaps);
+
+        // Excluding MOCK_UID12 from the VPN only removes its rule, and does not touch the rule of
+        // MOCK_UID11 even though its range is replaced.
+        final Set<UidRange> vpnRange2 = Set.of(
+                new UidRange(0, MOCK_UID12 - 1),
+                new UidRange(MOCK_UID12 + 1, UserHandle.PER_USER_RANGE - 1));
+        mPermissionMonitor.onVpnUidRangesUpdated("tun0", vpnRange1, vpnRange2, VPN_UID);
+        verify(mBpfNetMaps).removeUidInterfaceRules(aryEq(new int[]{MOCK_UID12}));
+        verify(mBpfNetMaps, never()).addUidInterfaceRules(any(), any());
+        assertEquals(vpnRange2, mPermissionMonitor.getVpnInterfaceUidRanges("tun0"));
+
+        reset(mBpfNetMaps);
+
+        // Adding it back only adds its rule.
+        mPermissionMonitor.onVpnUidRangesUpdated("tun0", vpnRange2, vpnRange1, VPN_UID);
+        verify(mBpfNetMaps).addUidInterfaceRules(eq("tun0"), aryEq(new int[]{MOCK_UID12}));
+        verify(mBpfNetMaps, never()).removeUidInterfaceRules(any());
+        assertEquals(vpnRange1, mPermissionMonitor.getVpnInterfaceUidRanges("tun0"));
+    }
+
     private void doTestUidFilteringDuringPackageInstallAndUninstall(@Nullable String ifName) throws
             Exception {
         doReturn(List.of(
@@ -402,4 +402,60 @@ public class UidRangeUtilsTest {
         expected.add(uids20_24);
         assertEquals(expected, UidRangeUtils.convertArrayToUidRange(input));
     }
+
+    @Test @DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testNormalizeRanges() {
+        assertThrows(NullPointerException.class, () -> UidRangeUtils.normalizeRanges(null));
+        assertEquals(List.of(), UidRangeUtils.normalizeRanges(List.of()));
+
+        // Overlapping, adjacent and contained ranges are merged, in any order.
+        assertEquals(List.of(new UidRange(1, 20), new UidRange(30, 40)),
+                UidRangeUtils.normalizeRanges(List.of(new UidRange(30, 40),
+                        new UidRange(11, 20), new UidRange(1, 10), new UidRange(5, 6))));
+        assertEquals(List.of(new UidRange(1, 30)),
+                UidRangeUtils.normalizeRanges(List.of(new UidRange(1, 20),
+                        new UidRange(10, 30))));
+        assertEquals(List.of(new UidRange(0, Integer.MAX_VALUE)),
+                UidRangeUtils.normalizeRanges(List.of(new UidRange(0, Integer.MAX_VALUE),
+                        new UidRange(100, Integer.MAX_VALUE))));
+    }
+
+    @Test @DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testSubtractRanges() {
+        final Set<UidRange> range1_100 = Set.of(new UidRange(1, 100));
+        assertThrows(NullPointerException.class,
+                () -> UidRangeUtils.subtractRanges(null, range1_100));
+        assertThrows(NullPointerException.class,
+                () -> UidRangeUtils.subtractRanges(range1_100, null));
+
+        assertEquals(range1_100, UidRangeUtils.subtractRanges(range1_100, Set.of()));
+        assertEquals(Set.of(), UidRangeUtils.subtractRanges(Set.of(), range1_100));
+        assertEquals(Set.of(), UidRangeUtils.subtractRanges(range1_100, range1_100));
+
+        // Removing one uid from a range.
+        final Set<UidRange> split = Set.of(new UidRange(1, 2), new UidRange(4, 100));
+        assertEquals(Set.of(new UidRange(3, 3)),
+                UidRangeUtils.subtractRanges(range1_100, split));
+        assertEquals(Set.of(), UidRangeUtils.subtractRanges(split, range1_100));
+
+        // Subtracted ranges overlapping several ranges, and ranges at the ends.
+        assertEquals(Set.of(new UidRange(1, 4), new UidRange(26, 29), new UidRange(61, 70)),
+                UidRangeUtils.subtractRanges(
+                        Set.of(new UidRange(1, 10), new UidRange(20, 40), new UidRange(50, 70)),
+                        Set.of(new UidRange(5, 25), new UidRange(30, 60))));
+
+        // Ranges of the same set overlapping each other.
+        assertEquals(Set.of(new UidRange(1, 9), new UidRange(21, 30)),
+                UidRangeUtils.subtractRanges(
+                        Set.of(new UidRange(1, 20), new UidRange(15, 30)),
+                        Set.of(new UidRange(10, 12), new UidRange(12, 20))));
+
+        // Ranges up to the largest uid.
+        assertEquals(Set.of(new UidRange(0, 99)),
+                UidRangeUtils.subtractRanges(Set.of(new UidRange(0, Integer.MAX_VALUE)),
+                        Set.of(new UidRange(100, Integer.MAX_VALUE))));
+        assertEquals(Set.of(new UidRange(Integer.MAX_VALUE, Integer.MAX_VALUE)),
+                UidRangeUtils.subtractRanges(Set.of(new UidRange(0, Integer.MAX_VALUE)),
+                        Set.of(new UidRange(0, Integer.MAX_VALUE - 1))));
+    }
 }
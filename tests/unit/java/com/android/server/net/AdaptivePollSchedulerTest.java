@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static com.android.server.net.AdaptivePollScheduler.HEAVY_TRAFFIC_DIVISOR;
+import static com.android.server.net.AdaptivePollScheduler.MAX_BACKOFF_FACTOR;
+import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.ArrayMap;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(SC_V2)
+public class AdaptivePollSchedulerTest {
+    private static final String TEST_IFACE = "test0";
+    private static final String TEST_IFACE2 = "test1";
+    private static final long BASE_INTERVAL_MS = 30 * 60 * 1000L;
+    private static final long GLOBAL_ALERT_BYTES = 2 * 1024 * 1024L;
+    private static final long NO_PROVIDERS = -1L;
+
+    private static ArrayMap<String, Long> ifaceBytes(Object... ifaceAndBytes) {
+        final ArrayMap<String, Long> map = new ArrayMap<>();
+        for (int i = 0; i < ifaceAndBytes.length; i += 2) {
+            map.put((String) ifaceAndBytes[i], (Long) ifaceAndBytes[i + 1]);
+        }
+        return map;
+    }
+
+    @Test
+    public void testFirstPollAlwaysPerformed() {
+        final AdaptivePollScheduler scheduler = new AdaptivePollScheduler(BASE_INTERVAL_MS);
+        assertEquals(BASE_INTERVAL_MS, scheduler.getIntervalMs());
+        assertTrue(scheduler.shouldPoll(ifaceBytes(), NO_PROVIDERS, GLOBAL_ALERT_BYTES));
+    }
+
+    @Test
+    public void testBackOffWithoutTraffic() {
+        final AdaptivePollScheduler scheduler = new AdaptivePollScheduler(BASE_INTERVAL_MS);
+        scheduler.onPollPerformed(ifaceBytes(TEST_IFACE, 100L), 0L);
+
+        long expectedInterval = BASE_INTERVAL_MS;
+        for (int i = 0; i < 10; i++) {
+            assertFalse(scheduler.shouldPoll(ifaceBytes(TEST_IFACE, 100L), NO_PROVIDERS,
+                    GLOBAL_ALERT_BYTES));
+            expectedInterval = Math.min(expectedInterval * 2,
+                    BASE_INTERVAL_MS * MAX_BACKOFF_FACTOR);
+            assertEquals(expectedInterval, scheduler.getIntervalMs());
+        }
+        assertEquals(BASE_INTERVAL_MS * MAX_BACKOFF_FACTOR, scheduler.getIntervalMs());
+
+        // Light traffic restores the base interval.
+        assertTrue(scheduler.shouldPoll(ifaceBytes(TEST_IFACE, 200L), NO_PROVIDERS,
+                GLOBAL_ALERT_BYTES));
+        assertEquals(BASE_INTERVAL_MS, scheduler.getIntervalMs());
+    }
+
+    @Test
+    public void testHeavyTrafficPollsSooner() {
+        final AdaptivePollScheduler scheduler = new AdaptivePollScheduler(BASE_INTERVAL_MS);
+        scheduler.onPollPerformed(ifaceBytes(TEST_IFACE, 0L, TEST_IFACE2, 0L), 0L);
+
+        assertTrue(scheduler.shouldPoll(ifaceBytes(TEST_IFACE, GLOBAL_ALERT_BYTES / 4,
+                TEST_IFACE2, GLOBAL_ALERT_BYTES / 4), NO_PROVIDERS, GLOBAL_ALERT_BYTES));
+        assertEquals(BASE_INTERVAL_MS / HEAVY_TRAFFIC_DIVISOR, scheduler.getIntervalMs());
+    }
+
+    @Test
+    public void testUnknownChangesArePolled() {
+        final AdaptivePollScheduler scheduler = new AdaptivePollScheduler(BASE_INTERVAL_MS);
+        scheduler.onPollPerformed(ifaceBytes(TEST_IFACE, 100L, TEST_IFACE2, 100L), 0L);
+
+        // Interface gone, new interface, counter reset and unreadable counter.
+        assertTrue(scheduler.shouldPoll(ifaceBytes(TEST_IFACE, 100L), NO_PROVIDERS,
+                GLOBAL_ALERT_BYTES));
+        assertTrue(scheduler.shouldPoll(ifaceBytes(TEST_IFACE, 100L, TEST_IFACE2, 100L,
+                "test2", 0L), NO_PROVIDERS, GLOBAL_ALERT_BYTES));
+        assertTrue(scheduler.shouldPoll(ifaceBytes(TEST_IFACE, 0L, TEST_IFACE2, 100L),
+                NO_PROVIDERS, GLOBAL_ALERT_BYTES));
+        assertTrue(scheduler.shouldPoll(ifaceBytes(TEST_IFACE, -1L, TEST_IFACE2, 100L),
+                NO_PROVIDERS, GLOBAL_ALERT_BYTES));
+        // Unknown changes do not count as heavy traffic.
+        assertEquals(BASE_INTERVAL_MS, scheduler.getIntervalMs());
+    }
+
+    @Test
+    public void testProviderTrafficIsPolled() {
+        final AdaptivePollScheduler scheduler = new AdaptivePollScheduler(BASE_INTERVAL_MS);
+        scheduler.onPollPerformed(ifaceBytes(TEST_IFACE, 100L), 0L);
+        assertTrue(scheduler.shouldPoll(ifaceBytes(TEST_IFACE, 100L), 1000L,
+                GLOBAL_ALERT_BYTES));
+
+        scheduler.onPollPerformed(ifaceBytes(TEST_IFACE, 100L), 1000L);
+        assertFalse(scheduler.shouldPoll(ifaceBytes(TEST_IFACE, 100L), 1000L,
+                GLOBAL_ALERT_BYTES));
+    }
+
+    @Test
+    public void testBackOffWithProviders() {
+        final AdaptivePollScheduler scheduler = new AdaptivePollScheduler(BASE_INTERVAL_MS);
+        scheduler.onPollPerformed(ifaceBytes(TEST_IFACE, 100L), 1000L);
+
+        // Providers that are always registered but see no traffic do not prevent backing off.
+        assertFalse(scheduler.shouldPoll(ifaceBytes(TEST_IFACE, 100L), 1000L,
+                GLOBAL_ALERT_BYTES));
+        assertEquals(BASE_INTERVAL_MS * 2, scheduler.getIntervalMs());
+        assertFalse(scheduler.shouldPoll(ifaceBytes(TEST_IFACE, 100L), 1000L,
+                GLOBAL_ALERT_BYTES));
+        assertEquals(BASE_INTERVAL_MS * 4, scheduler.getIntervalMs());
+
+        // Provider traffic goes back to the base interval.
+        assertTrue(scheduler.shouldPoll(ifaceBytes(TEST_IFACE, 100L), 2000L,
+                GLOBAL_ALERT_BYTES));
+        assertEquals(BASE_INTERVAL_MS, scheduler.getIntervalMs());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.net.NetworkIdentity;
+import android.net.NetworkIdentitySet;
+import android.net.NetworkStats;
+import android.net.NetworkStatsCollection;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(SC_V2)
+public class NetworkStatsColdTierTest {
+    private static final String TEST_IMSI = "310210000000000";
+    private static final int TEST_UID = 10001;
+    private static final long START = 100 * DAY_IN_MILLIS;
+    private static final int HOURS = 72;
+    private static final long RX_BYTES_PER_HOUR = 100L;
+    private static final long TX_BYTES_PER_HOUR = 200L;
+    private static final NetworkTemplate TEMPLATE = buildTemplateMobileAll(TEST_IMSI);
+
+    private static NetworkStatsCollection buildCollection() {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        ident.add(new NetworkIdentity.Builder().setType(TYPE_MOBILE)
+                .setSubscriberId(TEST_IMSI).build());
+        for (int i = 0; i < HOURS; i++) {
+            final long start = START + i * HOUR_IN_MILLIS;
+            collection.recordData(ident, TEST_UID, SET_DEFAULT, TAG_NONE, start,
+                    start + HOUR_IN_MILLIS, new NetworkStats.Entry(RX_BYTES_PER_HOUR, 1L,
+                            TX_BYTES_PER_HOUR, 1L, 0L));
+        }
+        return collection;
+    }
+
+    private static void assertTotal(long hours, NetworkStats.Entry total) {
+        assertEquals(hours * RX_BYTES_PER_HOUR, total.rxBytes);
+        assertEquals(hours * TX_BYTES_PER_HOUR, total.txBytes);
+    }
+
+    @Test
+    public void testMoveHistoryBefore() {
+        final NetworkStatsCollection collection = buildCollection();
+        final long fineHeapBytes = NetworkStatsColdTier.estimateHeapBytes(collection);
+        final NetworkStatsColdTier tier = new NetworkStatsColdTier(DAY_IN_MILLIS);
+        assertTrue(tier.isEmpty());
+
+        tier.moveHistoryBefore(collection, START + 2 * DAY_IN_MILLIS);
+        assertFalse(tier.isEmpty());
+        assertTotal(48, tier.getTotal(TEMPLATE));
+        // The callers may modify the returned entry.
+        tier.getTotal(TEMPLATE).rxBytes = 0;
+        assertTotal(48, tier.getTotal(TEMPLATE));
+
+        // Only the last day is left in the collection.
+        final NetworkStatsHistory history = collection.getEntries().values().iterator().next();
+        assertEquals(24, history.size());
+        assertEquals(START + 2 * DAY_IN_MILLIS, history.getStart());
+        assertTrue(tier.getHeapBytes() < fineHeapBytes
+                - NetworkStatsColdTier.estimateHeapBytes(collection));
+
+        // Moving again does not change anything.
+        tier.moveHistoryBefore(collection, START + 2 * DAY_IN_MILLIS);
+        assertEquals(24, history.size());
+        assertTotal(48, tier.getTotal(TEMPLATE));
+    }
+
+    @Test
+    public void testRemove() {
+        final NetworkStatsColdTier tier = new NetworkStatsColdTier(DAY_IN_MILLIS);
+        tier.moveHistoryBefore(buildCollection(), START + 3 * DAY_IN_MILLIS);
+        assertTotal(72, tier.getTotal(TEMPLATE));
+
+        // Removed UIDs are still counted in totals.
+        tier.removeUids(new int[] { TEST_UID });
+        assertTotal(72, tier.getTotal(TEMPLATE));
+
+        tier.removeHistoryBefore(START + DAY_IN_MILLIS);
+        assertTotal(48, tier.getTotal(TEMPLATE));
+
+        tier.reset();
+        assertTrue(tier.isEmpty());
+        assertTotal(0, tier.getTotal(TEMPLATE));
+    }
+}
@@ -506,6 +506,62 @@ public class NetworkStatsObserversTest {
         waitForObserverToIdle();
     }
 
+    @Test
+    public void testUpdateStats_sameTemplate_sharesGroup() throws Exception {
+        DataUsageRequest inputRequest = new DataUsageRequest(
+                DataUsageRequest.REQUEST_ID_UNSET, sTemplateImsi1, THRESHOLD_BYTES);
+        final TestableUsageCallback usageCallback2 =
+                new TestableUsageCallback(mUsageCallbackBinder);
+
+        DataUsageRequest request1 = mStatsObservers.register(mContext, inputRequest,
+                mUsageCallback, PID_BLUE, UID_BLUE, PACKAGE_BLUE, NetworkStatsAccess.Level.USER);
+        DataUsageRequest request2 = mStatsObservers.register(mContext, inputRequest,
+                usageCallback2, PID_RED, UID_RED, PACKAGE_RED, NetworkStatsAccess.Level.DEFAULT);
+        DataUsageRequest networkRequest = mStatsObservers.register(mContext, inputRequest,
+                mUsageCallback, PID_SYSTEM, Process.SYSTEM_UID, PACKAGE_SYSTEM,
+                NetworkStatsAccess.Level.DEVICE);
+        waitForObserverToIdle();
+        // One group for the uid usage requests, and one for the network usage request.
+        assertEquals(2, mStatsObservers.getStatsGroupCount());
+
+        NetworkIdentitySet identSet = makeTestIdentSet();
+        mActiveUidIfaces.put(TEST_IFACE, identSet);
+
+        // Baseline
+        NetworkStats xtSnapshot = null;
+        NetworkStats uidSnapshot = new NetworkStats(TEST_START, 2 /* initialSize */)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                        DEFAULT_NETWORK_YES, BASE_BYTES, 2L, BASE_BYTES, 2L, 0L)
+                .insertEntry(TEST_IFACE, UID_GREEN, SET_DEFAULT, TAG_NONE, METERED_NO,
+                        ROAMING_NO, DEFAULT_NETWORK_YES, BASE_BYTES, 2L, BASE_BYTES, 2L, 0L);
+        mStatsObservers.updateStats(
+                xtSnapshot, uidSnapshot, mActiveIfaces, mActiveUidIfaces, TEST_START);
+
+        // Delta: only the usage of the green uid reaches the threshold.
+        uidSnapshot = new NetworkStats(TEST_START + 2 * MINUTE_IN_MILLIS, 2 /* initialSize */)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                        DEFAULT_NETWORK_YES, BASE_BYTES + 1024L, 2L, BASE_BYTES + 1024L, 2L, 0L)
+                .insertEntry(TEST_IFACE, UID_GREEN, SET_DEFAULT, TAG_NONE, METERED_NO,
+                        ROAMING_NO, DEFAULT_NETWORK_YES, BASE_BYTES + THRESHOLD_BYTES, 2L,
+                        BASE_BYTES + THRESHOLD_BYTES, 2L, 0L);
+        mStatsObservers.updateStats(
+                xtSnapshot, uidSnapshot, mActiveIfaces, mActiveUidIfaces, TEST_START);
+        waitForObserverToIdle();
+        // The user level request can see the green uid, the default level request of the red uid
+        // cannot.
+        mUsageCallback.expectOnThresholdReached(request1);
+        usageCallback2.assertNoCallback();
+
+        // Removing the last request of a group removes the group.
+        mStatsObservers.unregister(networkRequest, Process.SYSTEM_UID);
+        waitForObserverToIdle();
+        assertEquals(1, mStatsObservers.getStatsGroupCount());
+        mStatsObservers.unregister(request1, Process.SYSTEM_UID);
+        mStatsObservers.unregister(request2, Process.SYSTEM_UID);
+        waitForObserverToIdle();
+        assertEquals(0, mStatsObservers.getStatsGroupCount());
+    }
+
     private void waitForObserverToIdle() {
         HandlerUtils.waitForIdle(mObserverHandlerThread, WAIT_TIMEOUT_MS);
     }
@@ -83,6 +83,7 @@ import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -113,6 +114,7 @@ import android.net.NetworkTemplate;
 import android.net.TelephonyNetworkSpecifier;
 import android.net.TetherStatsParcel;
 import android.net.TetheringManager;
+import android.net.TrafficStats;
 import android.net.UnderlyingNetworkInfo;
 import android.net.netstats.provider.INetworkStatsProviderCallback;
 import android.net.wifi.WifiInfo;
@@ -254,6 +256,8 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
     private @Mock PersistentInt mImportLegacyFallbacksCounter;
     private @Mock Resources mResources;
     private Boolean mIsDebuggable;
+    // Rx bytes of the interface counters, tx bytes are always 0.
+    private final ArrayMap<String, Long> mIfaceRxBytes = new ArrayMap<>();
 
     private class MockContext extends BroadcastInterceptingContext {
         private final Context mBaseContext;
@@ -480,6 +484,18 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
             public boolean isDebuggable() {
                 return mIsDebuggable == Boolean.TRUE;
             }
+
+            @Override
+            public long getIfaceStat(String iface, int type) {
+                return type == TrafficStats.TYPE_RX_BYTES ? mIfaceRxBytes.getOrDefault(iface, 0L)
+                        : 0L;
+            }
+
+            @Override
+            public Executor makePersistExecutor() {
+                // Write stats to disk synchronously, so that tests can inspect the files.
+                return Runnable::run;
+            }
         };
     }
 
@@ -2327,4 +2343,41 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
         assertTrue(mAppUidStatsMap.containsKey(new UidStatsMapKey(UID_RED)));
         assertTrue(mUidCounterSetMap.containsKey(new U32(UID_RED)));
     }
+
+    private void firePollAlarm(AlarmManager.OnAlarmListener listener) {
+        clearInvocations(mStatsFactory, mAlarmManager);
+        mHandler.post(listener::onAlarm);
+        waitForIdle();
+        // The next poll is always scheduled.
+        verify(mAlarmManager).set(eq(AlarmManager.ELAPSED_REALTIME), anyLong(), any(),
+                eq(listener), any());
+    }
+
+    @Test
+    public void testPollAlarmSkipsPollWithoutTraffic() throws Exception {
+        final ArgumentCaptor<AlarmManager.OnAlarmListener> listenerCaptor =
+                ArgumentCaptor.forClass(AlarmManager.OnAlarmListener.class);
+        verify(mAlarmManager).set(eq(AlarmManager.ELAPSED_REALTIME), anyLong(), any(),
+                listenerCaptor.capture(), any());
+        final AlarmManager.OnAlarmListener listener = listenerCaptor.getValue();
+
+        initWifiStats(buildWifiState());
+        mIfaceRxBytes.put(TEST_IFACE, 1024L);
+        incrementWifiStats(HOUR_IN_MILLIS, TEST_IFACE, 1024L, 1L, 2048L, 2L);
+        assertNetworkTotal(sTemplateWifi, 1024L, 1L, 2048L, 2L, 0);
+
+        // The interface counters did not change since the last poll, so the poll is skipped.
+        firePollAlarm(listener);
+        verify(mStatsFactory, never()).readNetworkStatsSummaryXt();
+
+        // Traffic on the interface, the poll is performed.
+        mIfaceRxBytes.put(TEST_IFACE, 4096L);
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectNetworkStatsSummary(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, 4096L, 4L, 8192L, 8L));
+        expectNetworkStatsUidDetail(buildEmptyStats());
+        firePollAlarm(listener);
+        verify(mStatsFactory).readNetworkStatsSummaryXt();
+        assertNetworkTotal(sTemplateWifi, 4096L, 4L, 8192L, 8L, 0);
+    }
 }